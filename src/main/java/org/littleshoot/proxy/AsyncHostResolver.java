@@ -0,0 +1,32 @@
+package org.littleshoot.proxy;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Resolves host and port into an InetSocketAddress without blocking the
+ * calling thread. The proxy resolves upstream server addresses from its I/O
+ * threads, so implementations must never block in
+ * {@link #resolve(String, int, EventExecutor)}.
+ */
+public interface AsyncHostResolver {
+    /**
+     * Starts resolving the given host and port.
+     * 
+     * @param host
+     *            the hostname to resolve
+     * @param port
+     *            the port to include in the resolved address
+     * @param executor
+     *            the executor on which listeners of the returned future will
+     *            be notified, typically the event loop of the connection that
+     *            needs the address
+     * @return a future that completes with the resolved address, or fails
+     *         (usually with an {@link java.net.UnknownHostException}) if the
+     *         host could not be resolved
+     */
+    Future<InetSocketAddress> resolve(String host, int port,
+            EventExecutor executor);
+}
@@ -0,0 +1,36 @@
+package org.littleshoot.proxy;
+
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.util.concurrent.Future;
+
+/**
+ * <p>
+ * {@link HttpFilters} that can decide asynchronously whether to let a request
+ * through, for example after consulting a policy service, a database or a
+ * rate limiter, without blocking the proxy's I/O threads.
+ * </p>
+ *
+ * <p>
+ * Once {@link #clientToProxyRequest(io.netty.handler.codec.http.HttpObject)}
+ * has let the initial {@link HttpRequest} through, the proxy calls
+ * {@link #clientToProxyRequestAsync(HttpRequest)} and stops reading from the
+ * client until the returned future completes. Content of the request that has
+ * already been received is held until then. The remaining filter methods are
+ * called as usual once the decision has been made.
+ * </p>
+ */
+public interface AsyncHttpFilters extends HttpFilters {
+    /**
+     * Decides asynchronously whether to let the request through. The future
+     * may be completed on any thread; the proxy continues processing the
+     * request on the client connection's event loop.
+     *
+     * @param httpRequest the initial request from the client
+     * @return a future for a short-circuit response to send to the client
+     *         instead of forwarding the request, or for null to continue
+     *         processing as usual. If the future fails, the client receives a
+     *         502 Bad Gateway response.
+     */
+    Future<HttpResponse> clientToProxyRequestAsync(HttpRequest httpRequest);
+}
@@ -0,0 +1,27 @@
+package org.littleshoot.proxy;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+
+/**
+ * Convenience base class for implementations of {@link AsyncHttpFilters},
+ * which lets every request through.
+ */
+public class AsyncHttpFiltersAdapter extends HttpFiltersAdapter implements AsyncHttpFilters {
+    public AsyncHttpFiltersAdapter(HttpRequest originalRequest,
+            ChannelHandlerContext ctx) {
+        super(originalRequest, ctx);
+    }
+
+    public AsyncHttpFiltersAdapter(HttpRequest originalRequest) {
+        super(originalRequest);
+    }
+
+    @Override
+    public Future<HttpResponse> clientToProxyRequestAsync(HttpRequest httpRequest) {
+        return ImmediateEventExecutor.INSTANCE.newSucceededFuture(null);
+    }
+}
@@ -0,0 +1,39 @@
+package org.littleshoot.proxy;
+
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+
+/**
+ * <p>
+ * {@link HttpFilters} that rewrite or scan bodies without needing the whole
+ * message at once. Instead of setting a buffer size, which aggregates whole
+ * messages before the filters see them, they return an
+ * {@link HttpBodyTransformer} that transforms the body incrementally as its
+ * chunks arrive.
+ * </p>
+ */
+public interface BodyTransformingHttpFilters extends HttpFilters {
+    /**
+     * Returns a transformer for the body of a request, which is applied to the
+     * body's chunks as they are received, after
+     * {@link #clientToProxyRequest(HttpObject)}. This is only called for
+     * requests that have a body.
+     *
+     * @param httpRequest the request, after clientToProxyRequest
+     * @return a transformer for the body, or null to leave it unchanged
+     */
+    HttpBodyTransformer requestBodyTransformer(HttpRequest httpRequest);
+
+    /**
+     * Returns a transformer for the body of a response, which is applied to
+     * the body's chunks as they are received, after
+     * {@link #serverToProxyResponse(HttpObject)}. This is only called for
+     * responses that may have a body, and not for streamed responses to
+     * HTTP/1.0 requests, whose clients can't read a chunked body.
+     *
+     * @param httpResponse the response, after serverToProxyResponse
+     * @return a transformer for the body, or null to leave it unchanged
+     */
+    HttpBodyTransformer responseBodyTransformer(HttpResponse httpResponse);
+}
@@ -0,0 +1,30 @@
+package org.littleshoot.proxy;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+
+/**
+ * Convenience base class for implementations of
+ * {@link BodyTransformingHttpFilters}, which leaves all bodies unchanged.
+ */
+public class BodyTransformingHttpFiltersAdapter extends HttpFiltersAdapter implements BodyTransformingHttpFilters {
+    public BodyTransformingHttpFiltersAdapter(HttpRequest originalRequest,
+            ChannelHandlerContext ctx) {
+        super(originalRequest, ctx);
+    }
+
+    public BodyTransformingHttpFiltersAdapter(HttpRequest originalRequest) {
+        super(originalRequest);
+    }
+
+    @Override
+    public HttpBodyTransformer requestBodyTransformer(HttpRequest httpRequest) {
+        return null;
+    }
+
+    @Override
+    public HttpBodyTransformer responseBodyTransformer(HttpResponse httpResponse) {
+        return null;
+    }
+}
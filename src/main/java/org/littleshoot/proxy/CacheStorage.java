@@ -0,0 +1,57 @@
+package org.littleshoot.proxy;
+
+/**
+ * <p>
+ * Stores the responses cached by the proxy's response cache. The proxy decides
+ * which responses may be stored and when they may be served, following RFC
+ * 7234; implementations only need to keep the responses they are given, and
+ * are free to evict them at any time.
+ * </p>
+ *
+ * <p>
+ * Implementations must be thread-safe, and should not block for long, since
+ * they are called from the proxy's I/O threads.
+ * </p>
+ *
+ * @see InMemoryCacheStorage
+ */
+public interface CacheStorage {
+    /**
+     * Returns the response stored under the given key, or null if there isn't
+     * one.
+     *
+     * @param key
+     *            the effective request URI of the cached response
+     * @return the stored response, or null
+     */
+    CachedResponse get(String key);
+
+    /**
+     * Stores a response under the given key, replacing any response already
+     * stored under it. Implementations may decline to store the response, e.g.
+     * if it is too large.
+     *
+     * @param key
+     *            the effective request URI of the response
+     * @param response
+     *            the response to store
+     */
+    void put(String key, CachedResponse response);
+
+    /**
+     * Removes the response stored under the given key, if any.
+     *
+     * @param key
+     *            the effective request URI of the cached response
+     */
+    void remove(String key);
+
+    /**
+     * Returns the size, in bytes, of the largest response body this storage
+     * will accept. The proxy doesn't buffer responses with larger bodies for
+     * caching.
+     *
+     * @return maximum size of a response body, in bytes
+     */
+    long getMaximumObjectSize();
+}
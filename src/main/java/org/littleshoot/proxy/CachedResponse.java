@@ -0,0 +1,118 @@
+package org.littleshoot.proxy;
+
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A response held by a {@link CacheStorage}, along with the information the
+ * proxy needs to decide whether it may be served: the times at which the
+ * request was sent and the response was received, and the values of the
+ * request headers named by the response's Vary header. Instances are
+ * immutable.
+ */
+public class CachedResponse {
+    private final HttpResponseStatus status;
+    private final HttpHeaders headers;
+    private final ByteBuffer content;
+    private final Map<String, String> varyHeaders;
+    private final long requestTime;
+    private final long responseTime;
+
+    /**
+     * @param status
+     *            status of the response
+     * @param headers
+     *            headers of the response. The headers are copied.
+     * @param content
+     *            body of the response, between its position and limit. The
+     *            buffer is not copied, so it must not be modified afterwards.
+     * @param varyHeaders
+     *            the values of the request headers named in the response's
+     *            Vary header, keyed by lower-case header name. Headers that were
+     *            not present in the request map to null.
+     * @param requestTime
+     *            time at which the request was sent upstream, in milliseconds
+     *            since the epoch
+     * @param responseTime
+     *            time at which the response was received, in milliseconds since
+     *            the epoch
+     */
+    public CachedResponse(HttpResponseStatus status,
+            HttpHeaders headers,
+            ByteBuffer content,
+            Map<String, String> varyHeaders,
+            long requestTime,
+            long responseTime) {
+        this.status = status;
+        this.headers = new DefaultHttpHeaders().add(headers);
+        this.content = content.slice().asReadOnlyBuffer();
+        this.varyHeaders = Collections.unmodifiableMap(new HashMap<String, String>(varyHeaders));
+        this.requestTime = requestTime;
+        this.responseTime = responseTime;
+    }
+
+    public HttpResponseStatus getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns a copy of the response's headers.
+     */
+    public HttpHeaders getHeaders() {
+        return new DefaultHttpHeaders().add(headers);
+    }
+
+    /**
+     * Returns the first value of the given response header, or null if the
+     * response doesn't have it.
+     */
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    /**
+     * Returns all values of the given response header.
+     */
+    public List<String> getAllHeaders(String name) {
+        return headers.getAll(name);
+    }
+
+    /**
+     * Returns a read-only view of the body of the response.
+     */
+    public ByteBuffer getContent() {
+        return content.duplicate();
+    }
+
+    public Map<String, String> getVaryHeaders() {
+        return varyHeaders;
+    }
+
+    public long getRequestTime() {
+        return requestTime;
+    }
+
+    public long getResponseTime() {
+        return responseTime;
+    }
+
+    /**
+     * Returns the approximate amount of memory taken up by the response's body
+     * and headers, in bytes.
+     */
+    public long getSize() {
+        long size = content.remaining();
+        for (Map.Entry<String, String> header : headers) {
+            size += header.getKey().length() + header.getValue().length();
+        }
+
+        return size;
+    }
+}
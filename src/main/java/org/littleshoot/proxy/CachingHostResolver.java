@@ -0,0 +1,280 @@
+package org.littleshoot.proxy;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * A {@link HostResolver} that caches the addresses returned by another
+ * resolver, such as {@link DefaultHostResolver} or
+ * {@link DnsSecServerResolver}. Addresses are cached per host, independently
+ * of the port, in a bounded cache that evicts the least recently used hosts.
+ * </p>
+ *
+ * <p>
+ * Resolved addresses are cached for the TTL returned by
+ * {@link #ttlSecondsFor(String, InetSocketAddress)}, clamped to the configured
+ * minimum and maximum. Unknown hosts are cached for the (usually much shorter)
+ * negative TTL. Entries that are used often are refreshed in the background
+ * shortly before they expire, so that busy hosts never pay for a lookup on the
+ * request path.
+ * </p>
+ *
+ * <pre>
+ * DefaultHttpProxyServer.bootstrap()
+ *         .withServerResolver(new CachingHostResolver(new DnsSecServerResolver()))
+ * </pre>
+ */
+public class CachingHostResolver implements HostResolver {
+    private static final Logger LOG = LoggerFactory.getLogger(CachingHostResolver.class);
+
+    private static final int REFRESH_THREADS = 2;
+    private static final int MAX_QUEUED_REFRESHES = 1024;
+    private static final long IDLE_THREAD_KEEP_ALIVE_SECONDS = 60;
+
+    private final HostResolver resolver;
+
+    private final int minTtlSeconds;
+    private final int maxTtlSeconds;
+    private final int negativeTtlSeconds;
+    private final int refreshAheadPercent;
+    private final int hotEntryHits;
+    private final int ttlSeconds;
+
+    private final Cache<String, CachedAddress> cache;
+
+    private final ThreadPoolExecutor refreshExecutor;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+
+    /**
+     * Caches the addresses returned by the given resolver, using the default
+     * {@link HostResolverCacheConfiguration}.
+     *
+     * @param resolver
+     *            the resolver that performs the actual lookups
+     */
+    public CachingHostResolver(HostResolver resolver) {
+        this(resolver, new HostResolverCacheConfiguration());
+    }
+
+    /**
+     * @param resolver
+     *            the resolver that performs the actual lookups
+     * @param configuration
+     *            cache size, TTLs and refresh settings
+     */
+    public CachingHostResolver(HostResolver resolver,
+            HostResolverCacheConfiguration configuration) {
+        this.resolver = resolver;
+        this.ttlSeconds = configuration.getTtlSeconds();
+        this.minTtlSeconds = configuration.getMinTtlSeconds();
+        this.maxTtlSeconds = configuration.getMaxTtlSeconds();
+        this.negativeTtlSeconds = configuration.getNegativeTtlSeconds();
+        this.refreshAheadPercent = configuration.getRefreshAheadPercent();
+        this.hotEntryHits = configuration.getHotEntryHits();
+
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(configuration.getMaximumSize())
+                // entries carry their own expiry time. this just makes sure expired entries don't linger.
+                .expireAfterWrite(Math.max(maxTtlSeconds, negativeTtlSeconds), TimeUnit.SECONDS)
+                .build();
+
+        this.refreshExecutor = new ThreadPoolExecutor(REFRESH_THREADS,
+                REFRESH_THREADS, IDLE_THREAD_KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_QUEUED_REFRESHES),
+                new ResolverThreadFactory("HostResolverRefresh"));
+        this.refreshExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public InetSocketAddress resolve(final String host, final int port)
+            throws UnknownHostException {
+        final String key = host.toLowerCase(Locale.US);
+        long now = System.nanoTime();
+
+        CachedAddress cached = cache.getIfPresent(key);
+        if (cached != null) {
+            if (!cached.isExpired(now)) {
+                hits.incrementAndGet();
+                maybeRefresh(key, cached, now);
+                return cached.toSocketAddress(host, port);
+            }
+
+            // only remove the expired entry, not one that another thread may have just loaded
+            cache.asMap().remove(key, cached);
+        }
+
+        misses.incrementAndGet();
+
+        try {
+            cached = cache.get(key, new Callable<CachedAddress>() {
+                @Override
+                public CachedAddress call() throws Exception {
+                    return lookup(host, port);
+                }
+            });
+        } catch (ExecutionException e) {
+            // lookup() handles UnknownHostExceptions itself, so this is some other failure in the underlying resolver
+            UnknownHostException uhe = new UnknownHostException(host);
+            uhe.initCause(e.getCause());
+            throw uhe;
+        }
+
+        return cached.toSocketAddress(host, port);
+    }
+
+    /**
+     * Returns the number of seconds the given address may be cached, before
+     * clamping to the configured minimum and maximum TTL. The JDK's resolver
+     * APIs don't expose the TTL of DNS records, so the default implementation
+     * returns the configured TTL. Subclasses that wrap a resolver with access to
+     * record TTLs can override this to honor them.
+     *
+     * @param host
+     *            the host that was resolved
+     * @param address
+     *            the address returned by the underlying resolver
+     * @return TTL of the address, in seconds
+     */
+    protected int ttlSecondsFor(String host, InetSocketAddress address) {
+        return ttlSeconds;
+    }
+
+    /**
+     * Number of lookups that were answered from the cache, including cached
+     * failures.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Number of lookups that had to go to the underlying resolver.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Number of background refreshes of hot entries that were started.
+     */
+    public long getRefreshes() {
+        return refreshes.get();
+    }
+
+    /**
+     * Approximate number of hosts currently cached.
+     */
+    public long getSize() {
+        return cache.size();
+    }
+
+    private CachedAddress lookup(String host, int port) {
+        InetSocketAddress resolved;
+        try {
+            resolved = resolver.resolve(host, port);
+        } catch (UnknownHostException e) {
+            LOG.debug("Caching failed lookup of {} for {}s", host, negativeTtlSeconds);
+            return CachedAddress.unknownHost(port, negativeTtlSeconds);
+        }
+
+        int ttl = Math.max(minTtlSeconds, Math.min(maxTtlSeconds, ttlSecondsFor(host, resolved)));
+        return CachedAddress.resolved(resolved.getAddress(), port, ttl, refreshAheadPercent);
+    }
+
+    /**
+     * Starts a background refresh of the entry if it is hot and close to
+     * expiring. At most one refresh per entry is ever started.
+     */
+    private void maybeRefresh(final String key, final CachedAddress cached, long now) {
+        if (cached.address == null
+                || refreshAheadPercent <= 0
+                || cached.hits.incrementAndGet() < hotEntryHits
+                || now - cached.refreshAtNanos < 0
+                || !cached.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+
+        refreshes.incrementAndGet();
+        try {
+            refreshExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    CachedAddress refreshed = lookup(key, cached.port);
+                    if (refreshed.address != null) {
+                        cache.asMap().replace(key, cached, refreshed);
+                    } else {
+                        // keep serving the address we have until it expires, in case the failure is transient
+                        LOG.debug("Unable to refresh cached address of {}", key);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOG.debug("Too many pending refreshes, not refreshing cached address of {}", key);
+        }
+    }
+
+    /**
+     * A cached lookup result. Either {@link #address} is set, or the host was
+     * unknown.
+     */
+    private static class CachedAddress {
+        private final InetAddress address;
+        private final int port;
+        private final long expiresAtNanos;
+        private final long refreshAtNanos;
+        private final AtomicInteger hits = new AtomicInteger();
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private CachedAddress(InetAddress address, int port, long expiresAtNanos, long refreshAtNanos) {
+            this.address = address;
+            this.port = port;
+            this.expiresAtNanos = expiresAtNanos;
+            this.refreshAtNanos = refreshAtNanos;
+        }
+
+        static CachedAddress resolved(InetAddress address, int port, int ttlSeconds, int refreshAheadPercent) {
+            long now = System.nanoTime();
+            long ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+            long refreshAfterNanos = ttlNanos - ttlNanos * refreshAheadPercent / 100;
+            return new CachedAddress(address, port, now + ttlNanos, now + refreshAfterNanos);
+        }
+
+        static CachedAddress unknownHost(int port, int ttlSeconds) {
+            long now = System.nanoTime();
+            return new CachedAddress(null, port, now + TimeUnit.SECONDS.toNanos(ttlSeconds), Long.MAX_VALUE);
+        }
+
+        boolean isExpired(long now) {
+            return now - expiresAtNanos >= 0;
+        }
+
+        InetSocketAddress toSocketAddress(String host, int port) throws UnknownHostException {
+            if (address == null) {
+                throw new UnknownHostException(host);
+            }
+
+            return new InetSocketAddress(address, port);
+        }
+    }
+}
@@ -42,8 +42,12 @@ public interface ChainedProxy extends SslEngineSource {
     /**
      * Implement this method to tell LittleProxy whether or not to encrypt
      * connections to the chained proxy for the given request. If true,
-     * LittleProxy will call {@link SslEngineSource#newSslEngine()} to obtain an
-     * SSLContext used by the downstream proxy.
+     * LittleProxy will call
+     * {@link SslEngineSource#newSslEngine(String, int)} with the chained
+     * proxy's address to obtain an SSLEngine used by the downstream proxy, so
+     * that the engine can resume a previous TLS session with the chained
+     * proxy. If that returns null, LittleProxy falls back to
+     * {@link SslEngineSource#newSslEngine()}.
      * 
      * @return true of the connection to the chained proxy should be encrypted
      */
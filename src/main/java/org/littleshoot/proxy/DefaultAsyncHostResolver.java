@@ -0,0 +1,135 @@
+package org.littleshoot.proxy;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Default implementation of {@link AsyncHostResolver} that runs a blocking
+ * {@link HostResolver} on a small, bounded pool of daemon threads, so that a
+ * slow DNS server never stalls the proxy's I/O threads.
+ * </p>
+ * 
+ * <p>
+ * Lookups that take longer than the configured timeout fail with an
+ * {@link UnknownHostException}. The lookup itself keeps running in the
+ * background, but the connection waiting for it is released. Lookups that
+ * cannot be queued because the pool is saturated fail immediately.
+ * </p>
+ */
+public class DefaultAsyncHostResolver implements AsyncHostResolver {
+    public static final int DEFAULT_MAX_THREADS = 16;
+    public static final int DEFAULT_MAX_QUEUED_LOOKUPS = 1024;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+
+    private static final long IDLE_THREAD_KEEP_ALIVE_SECONDS = 60;
+
+    private final HostResolver resolver;
+    private final long timeoutMillis;
+    private final ThreadPoolExecutor lookupExecutor;
+
+    /**
+     * Creates a resolver that uses {@link DefaultHostResolver} with the default
+     * pool size and timeout.
+     */
+    public DefaultAsyncHostResolver() {
+        this(new DefaultHostResolver());
+    }
+
+    /**
+     * Creates a resolver that offloads lookups to the given blocking resolver,
+     * with the default pool size and timeout.
+     * 
+     * @param resolver
+     *            the blocking resolver that performs the actual lookups
+     */
+    public DefaultAsyncHostResolver(HostResolver resolver) {
+        this(resolver, DEFAULT_MAX_THREADS, DEFAULT_MAX_QUEUED_LOOKUPS,
+                DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param resolver
+     *            the blocking resolver that performs the actual lookups
+     * @param maxThreads
+     *            maximum number of lookups that run concurrently
+     * @param maxQueuedLookups
+     *            maximum number of lookups waiting for a free thread
+     * @param timeoutMillis
+     *            time after which a lookup is reported as failed, or 0 to wait
+     *            indefinitely
+     */
+    public DefaultAsyncHostResolver(HostResolver resolver, int maxThreads,
+            int maxQueuedLookups, long timeoutMillis) {
+        this.resolver = resolver;
+        this.timeoutMillis = timeoutMillis;
+        this.lookupExecutor = new ThreadPoolExecutor(maxThreads, maxThreads,
+                IDLE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(maxQueuedLookups),
+                new ResolverThreadFactory("HostResolver"));
+        // idle lookup threads go away on their own, so the pool never needs to be shut down
+        this.lookupExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public Future<InetSocketAddress> resolve(final String host, final int port,
+            EventExecutor executor) {
+        final Promise<InetSocketAddress> promise = executor.newPromise();
+
+        try {
+            lookupExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (promise.isDone()) {
+                        // timed out while waiting for a thread
+                        return;
+                    }
+
+                    try {
+                        promise.trySuccess(resolver.resolve(host, port));
+                    } catch (Throwable t) {
+                        promise.tryFailure(t);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            UnknownHostException uhe = new UnknownHostException(host
+                    + ": too many pending lookups");
+            uhe.initCause(ree);
+            promise.tryFailure(uhe);
+            return promise;
+        }
+
+        if (timeoutMillis > 0) {
+            final ScheduledFuture<?> timeout = executor.schedule(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            promise.tryFailure(new UnknownHostException(host
+                                    + ": lookup timed out after "
+                                    + timeoutMillis + "ms"));
+                        }
+                    }, timeoutMillis, TimeUnit.MILLISECONDS);
+
+            promise.addListener(new GenericFutureListener<Future<InetSocketAddress>>() {
+                @Override
+                public void operationComplete(Future<InetSocketAddress> future)
+                        throws Exception {
+                    timeout.cancel(false);
+                }
+            });
+        }
+
+        return promise;
+    }
+}
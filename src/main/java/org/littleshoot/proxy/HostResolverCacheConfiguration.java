@@ -0,0 +1,174 @@
+package org.littleshoot.proxy;
+
+import java.security.Security;
+
+/**
+ * Configuration object for {@link CachingHostResolver}. Controls how many
+ * hosts are cached, how long successful and failed lookups are remembered,
+ * and when frequently used entries are refreshed in the background.
+ */
+public class HostResolverCacheConfiguration {
+    public static final int DEFAULT_MAXIMUM_SIZE = 10000;
+    public static final int DEFAULT_MIN_TTL_SECONDS = 5;
+    public static final int DEFAULT_MAX_TTL_SECONDS = 3600;
+    public static final int DEFAULT_REFRESH_AHEAD_PERCENT = 20;
+    public static final int DEFAULT_HOT_ENTRY_HITS = 2;
+
+    /**
+     * TTL used when the networkaddress.cache.ttl security property is not set
+     * or is set to "cache forever".
+     */
+    public static final int FALLBACK_TTL_SECONDS = 30;
+
+    /**
+     * Negative TTL used when the networkaddress.cache.negative.ttl security
+     * property is not set or is set to "cache forever".
+     */
+    public static final int FALLBACK_NEGATIVE_TTL_SECONDS = 10;
+
+    private int maximumSize = DEFAULT_MAXIMUM_SIZE;
+    private int ttlSeconds = securityPropertyOrDefault("networkaddress.cache.ttl", FALLBACK_TTL_SECONDS);
+    private int minTtlSeconds = DEFAULT_MIN_TTL_SECONDS;
+    private int maxTtlSeconds = DEFAULT_MAX_TTL_SECONDS;
+    private int negativeTtlSeconds = securityPropertyOrDefault("networkaddress.cache.negative.ttl", FALLBACK_NEGATIVE_TTL_SECONDS);
+    private int refreshAheadPercent = DEFAULT_REFRESH_AHEAD_PERCENT;
+    private int hotEntryHits = DEFAULT_HOT_ENTRY_HITS;
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * Set the maximum number of hosts to cache. When the cache is full, the least recently used hosts are evicted. The
+     * default value is {@link #DEFAULT_MAXIMUM_SIZE}.
+     *
+     * @param maximumSize maximum number of cached hosts
+     * @return this configuration instance, for chaining
+     */
+    public HostResolverCacheConfiguration withMaximumSize(int maximumSize) {
+        this.maximumSize = maximumSize;
+        return this;
+    }
+
+    public int getTtlSeconds() {
+        return ttlSeconds;
+    }
+
+    /**
+     * Set the number of seconds a successfully resolved address is cached. The value is clamped to the minimum and
+     * maximum TTL. The default value is taken from the networkaddress.cache.ttl security property, or is
+     * {@link #FALLBACK_TTL_SECONDS} if the property is not set.
+     *
+     * @param ttlSeconds TTL of resolved addresses, in seconds
+     * @return this configuration instance, for chaining
+     */
+    public HostResolverCacheConfiguration withTtlSeconds(int ttlSeconds) {
+        this.ttlSeconds = ttlSeconds;
+        return this;
+    }
+
+    public int getMinTtlSeconds() {
+        return minTtlSeconds;
+    }
+
+    /**
+     * Set the lower bound for the TTL of resolved addresses, including TTLs reported by
+     * {@link CachingHostResolver#ttlSecondsFor(String, java.net.InetSocketAddress)}. The default value is
+     * {@link #DEFAULT_MIN_TTL_SECONDS}.
+     *
+     * @param minTtlSeconds minimum TTL, in seconds
+     * @return this configuration instance, for chaining
+     */
+    public HostResolverCacheConfiguration withMinTtlSeconds(int minTtlSeconds) {
+        this.minTtlSeconds = minTtlSeconds;
+        return this;
+    }
+
+    public int getMaxTtlSeconds() {
+        return maxTtlSeconds;
+    }
+
+    /**
+     * Set the upper bound for the TTL of resolved addresses, including TTLs reported by
+     * {@link CachingHostResolver#ttlSecondsFor(String, java.net.InetSocketAddress)}. The default value is
+     * {@link #DEFAULT_MAX_TTL_SECONDS}.
+     *
+     * @param maxTtlSeconds maximum TTL, in seconds
+     * @return this configuration instance, for chaining
+     */
+    public HostResolverCacheConfiguration withMaxTtlSeconds(int maxTtlSeconds) {
+        this.maxTtlSeconds = maxTtlSeconds;
+        return this;
+    }
+
+    public int getNegativeTtlSeconds() {
+        return negativeTtlSeconds;
+    }
+
+    /**
+     * Set the number of seconds a failed lookup (i.e. an unknown host) is cached. 0 disables negative caching. The
+     * default value is taken from the networkaddress.cache.negative.ttl security property, or is
+     * {@link #FALLBACK_NEGATIVE_TTL_SECONDS} if the property is not set.
+     *
+     * @param negativeTtlSeconds TTL of failed lookups, in seconds
+     * @return this configuration instance, for chaining
+     */
+    public HostResolverCacheConfiguration withNegativeTtlSeconds(int negativeTtlSeconds) {
+        this.negativeTtlSeconds = negativeTtlSeconds;
+        return this;
+    }
+
+    public int getRefreshAheadPercent() {
+        return refreshAheadPercent;
+    }
+
+    /**
+     * Set how close to expiry a hot entry is refreshed in the background, as a percentage of its TTL. For example, 20
+     * means the entry is refreshed once less than 20% of its TTL remains. 0 disables background refreshes. The
+     * default value is {@link #DEFAULT_REFRESH_AHEAD_PERCENT}.
+     *
+     * @param refreshAheadPercent percentage of the TTL remaining at which entries are refreshed
+     * @return this configuration instance, for chaining
+     */
+    public HostResolverCacheConfiguration withRefreshAheadPercent(int refreshAheadPercent) {
+        this.refreshAheadPercent = refreshAheadPercent;
+        return this;
+    }
+
+    public int getHotEntryHits() {
+        return hotEntryHits;
+    }
+
+    /**
+     * Set the number of cache hits an entry must receive before it is considered hot and eligible for background
+     * refresh. Entries that are rarely used are simply allowed to expire. The default value is
+     * {@link #DEFAULT_HOT_ENTRY_HITS}.
+     *
+     * @param hotEntryHits number of hits that make an entry hot
+     * @return this configuration instance, for chaining
+     */
+    public HostResolverCacheConfiguration withHotEntryHits(int hotEntryHits) {
+        this.hotEntryHits = hotEntryHits;
+        return this;
+    }
+
+    /**
+     * Reads one of the JVM's networkaddress.cache.* security properties. Negative values mean "cache forever" to the
+     * JVM, which we don't want for a long-running proxy, so those fall back to the default as well.
+     */
+    private static int securityPropertyOrDefault(String name, int defaultValue) {
+        String value = Security.getProperty(name);
+        if (value != null) {
+            try {
+                int seconds = Integer.parseInt(value.trim());
+                if (seconds >= 0) {
+                    return seconds;
+                }
+            } catch (NumberFormatException e) {
+                // fall through to the default
+            }
+        }
+
+        return defaultValue;
+    }
+}
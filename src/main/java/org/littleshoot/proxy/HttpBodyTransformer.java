@@ -0,0 +1,77 @@
+package org.littleshoot.proxy;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * <p>
+ * Transforms the body of a request or response incrementally, as its chunks
+ * pass through the proxy, so that bodies can be rewritten or scanned without
+ * buffering the whole message. Transformers are obtained from
+ * {@link BodyTransformingHttpFilters#requestBodyTransformer(io.netty.handler.codec.http.HttpRequest)}
+ * and {@link BodyTransformingHttpFilters#responseBodyTransformer(io.netty.handler.codec.http.HttpResponse)}.
+ * </p>
+ *
+ * <p>
+ * For every chunk of the body, {@link #transform(ByteBuf, ByteBuf, boolean)}
+ * is called with the bytes of the body that have not been consumed yet. The
+ * transformer reads the bytes it is done with and writes its output. Bytes
+ * that it leaves unread are held back and passed to it again, followed by the
+ * next chunk, which lets it look ahead across chunk boundaries, for example to
+ * match a pattern that spans two chunks. At most
+ * {@link #getMaximumLookahead()} bytes are held back; any older unread bytes
+ * are sent on unchanged.
+ * </p>
+ *
+ * <p>
+ * Since the length of the transformed body isn't known in advance, the proxy
+ * sends it with chunked transfer coding. The bodies of HTTP/1.0 requests,
+ * which cannot be chunked, are not transformed, and neither are streamed
+ * responses to HTTP/1.0 requests, since HTTP/1.0 clients can't read chunked
+ * bodies.
+ * </p>
+ *
+ * <p>
+ * A new transformer is requested for each message, so transformers can be
+ * stateful.
+ * </p>
+ */
+public interface HttpBodyTransformer {
+    /**
+     * Transforms the next part of the body.
+     *
+     * @param in
+     *            the bytes of the body that have not been consumed yet. The
+     *            transformer reads the bytes that it has transformed.
+     * @param out
+     *            the buffer to write the transformed bytes to
+     * @param last
+     *            true if this is the end of the body, in which case any bytes
+     *            left unread in <code>in</code> are sent on unchanged
+     */
+    void transform(ByteBuf in, ByteBuf out, boolean last);
+
+    /**
+     * Returns the maximum number of unread bytes to hold back between chunks.
+     *
+     * @return the maximum lookahead, in bytes
+     */
+    int getMaximumLookahead();
+
+    /**
+     * Returns true if a body with a gzip or deflate Content-Encoding should be
+     * decompressed before it is passed to the transformer.
+     *
+     * @return true to transform the decompressed body
+     */
+    boolean isDecompressing();
+
+    /**
+     * Returns true if a body that was decompressed for the transformer should
+     * be compressed again, with its original Content-Encoding, before it is
+     * sent on. Otherwise the body is sent uncompressed, without a
+     * Content-Encoding.
+     *
+     * @return true to compress the transformed body again
+     */
+    boolean isRecompressing();
+}
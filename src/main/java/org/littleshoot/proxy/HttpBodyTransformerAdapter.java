@@ -0,0 +1,30 @@
+package org.littleshoot.proxy;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Convenience base class for implementations of {@link HttpBodyTransformer}.
+ * By default the body is passed through unchanged, without lookahead or
+ * decompression.
+ */
+public class HttpBodyTransformerAdapter implements HttpBodyTransformer {
+    @Override
+    public void transform(ByteBuf in, ByteBuf out, boolean last) {
+        out.writeBytes(in);
+    }
+
+    @Override
+    public int getMaximumLookahead() {
+        return 0;
+    }
+
+    @Override
+    public boolean isDecompressing() {
+        return false;
+    }
+
+    @Override
+    public boolean isRecompressing() {
+        return false;
+    }
+}
@@ -42,6 +42,12 @@ import java.net.InetSocketAddress;
  * </p>
  * 
  * <p>
+ * Filters that rewrite or scan bodies without needing the whole message at
+ * once can avoid buffering by implementing
+ * {@link BodyTransformingHttpFilters}.
+ * </p>
+ * 
+ * <p>
  * A new instance of {@link HttpFilters} is created for each request, so these
  * objects can be stateful.
  * </p>
@@ -15,6 +15,16 @@ public interface HttpFiltersSource {
      * want to filter the request and/or its responses.
      * 
      * @param originalRequest
+     *            a snapshot of the request as it was received from the client.
+     *            Its initial line and headers are copies, so changes the
+     *            filters make to the request's initial line and headers don't
+     *            affect it. When the request is buffered, however, the
+     *            snapshot's body is not a copy: it is a read-only view of the
+     *            request's body, so a filter that modifies the bytes of the
+     *            request's body in place modifies the snapshot's body as well.
+     *            The snapshot's body is released once the next request on the
+     *            connection is read or the client disconnects, and must not be
+     *            read after that.
      * @return
      */
     HttpFilters filterRequest(HttpRequest originalRequest,
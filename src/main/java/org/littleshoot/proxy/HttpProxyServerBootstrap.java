@@ -1,5 +1,9 @@
 package org.littleshoot.proxy;
 
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import org.littleshoot.proxy.impl.ConnectionPoolConfiguration;
 import org.littleshoot.proxy.impl.ThreadPoolConfiguration;
 
 import java.net.InetSocketAddress;
@@ -268,6 +272,25 @@ public interface HttpProxyServerBootstrap {
      */
     HttpProxyServerBootstrap withServerResolver(HostResolver serverResolver);
 
+    /**
+     * <p>
+     * Specify a custom {@link AsyncHostResolver} for resolving server
+     * addresses without blocking the proxy's I/O threads. When specified, it
+     * takes precedence over the {@link HostResolver} given to
+     * {@link #withServerResolver(HostResolver)} for upstream connections.
+     * </p>
+     *
+     * <p>
+     * Default = a {@link DefaultAsyncHostResolver} that runs the server
+     * resolver on a separate thread pool
+     * </p>
+     *
+     * @param asyncServerResolver
+     * @return
+     */
+    HttpProxyServerBootstrap withAsyncServerResolver(
+            AsyncHostResolver asyncServerResolver);
+
     /**
      * <p>
      * Add an {@link ActivityTracker} for tracking activity in this proxy.
@@ -335,4 +358,212 @@ public interface HttpProxyServerBootstrap {
      * @return proxy server bootstrap for chaining
      */
     HttpProxyServerBootstrap withThreadPoolConfiguration(ThreadPoolConfiguration configuration);
-}
\ No newline at end of file
+
+    /**
+     * <p>
+     * Specify the I/O transport to use for TCP connections to and from the
+     * proxy. {@link IoTransport#EPOLL} uses Linux's native epoll transport, and
+     * falls back to NIO when the native transport is not available. UDT
+     * connections always use NIO.
+     * </p>
+     *
+     * <p>
+     * This setting has no effect on proxies cloned from a running proxy, since
+     * those share the original proxy's thread pools.
+     * </p>
+     *
+     * <p>
+     * Default = {@link IoTransport#NIO}
+     * </p>
+     *
+     * @param ioTransport the I/O transport for TCP connections
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withIoTransport(IoTransport ioTransport);
+
+    /**
+     * <p>
+     * When true and the proxy uses the {@link IoTransport#EPOLL} transport,
+     * the proxy binds one server channel per acceptor thread to its port using
+     * SO_REUSEPORT. The kernel then spreads incoming connections across the
+     * acceptor threads, instead of funneling them through a single accept
+     * queue. The number of acceptor threads is configured using
+     * {@link #withThreadPoolConfiguration(ThreadPoolConfiguration)}. Ignored
+     * with the NIO transport.
+     * </p>
+     *
+     * <p>
+     * Default = false
+     * </p>
+     *
+     * @param reusePort true to listen on multiple SO_REUSEPORT server channels
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withReusePort(boolean reusePort);
+
+    /**
+     * <p>
+     * When true, connections to upstream servers are registered with the same
+     * event loop as the client connection that opened them, instead of with
+     * the separate proxy-to-server worker pool. Data relayed between the client
+     * and the server is then processed entirely on one thread, which avoids
+     * handing tasks between threads on every read and write. This only applies
+     * when both the client connection and the upstream connection use TCP;
+     * other connections continue to use the proxy-to-server worker pool.
+     * </p>
+     *
+     * <p>
+     * Default = false
+     * </p>
+     *
+     * @param upstreamOnClientEventLoop true to co-locate upstream connections
+     *            with their client connections
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withUpstreamOnClientEventLoop(boolean upstreamOnClientEventLoop);
+
+    /**
+     * <p>
+     * When true and the proxy uses the {@link IoTransport#EPOLL} transport,
+     * CONNECT tunnels that are not intercepted by a {@link MitmManager} relay
+     * data between the client and server sockets using the kernel's splice()
+     * call, without copying it into the JVM. The upstream connection of a
+     * tunnel is registered with the client connection's event loop, and all
+     * proxied TCP connections use level-triggered epoll, as splice() requires.
+     * </p>
+     *
+     * <p>
+     * Spliced data bypasses the channel pipelines, so tunnels are not spliced
+     * when {@link ActivityTracker}s are registered, when throttling is enabled
+     * or when either connection is encrypted. Spliced tunnels are closed once
+     * neither socket has received data for the idle connection timeout, as
+     * reported by the kernel's TCP statistics. Ignored with the NIO transport.
+     * </p>
+     *
+     * <p>
+     * Default = false
+     * </p>
+     *
+     * @param spliceTunnels true to splice CONNECT tunnels when possible
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withSpliceTunnels(boolean spliceTunnels);
+
+    /**
+     * <p>
+     * Messages that the proxy relays while handling a batch of reads from a
+     * connection, such as the chunks of a streamed response or the data of a
+     * CONNECT tunnel, are only flushed to the socket once the batch is
+     * complete, so that they are sent together instead of one syscall per
+     * message. This sets the number of bytes that may be written during a
+     * batch before the pending writes are flushed early. A value of 0 flushes
+     * every message immediately.
+     * </p>
+     *
+     * <p>
+     * Default = 32768
+     * </p>
+     *
+     * @param flushThreshold maximum number of bytes to write before flushing
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withFlushThreshold(int flushThreshold);
+
+    /**
+     * <p>
+     * Enables the proxy's shared HTTP response cache, which follows RFC 7234.
+     * Cacheable responses to GET requests are kept in the given
+     * {@link CacheStorage}, and requests for them are answered by the proxy
+     * for as long as they are fresh, without contacting the server.
+     * </p>
+     *
+     * <p>
+     * Default = null (caching disabled)
+     * </p>
+     *
+     * @param cacheStorage storage for cached responses, such as an
+     *            {@link InMemoryCacheStorage}
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withCacheStorage(CacheStorage cacheStorage);
+
+    /**
+     * <p>
+     * Sets the allocator for the buffers of the proxy's client and server
+     * connections, and of the responses that the proxy generates itself, such
+     * as 502 Bad Gateway and 504 Gateway Timeout. A pooled allocator of direct
+     * buffers avoids allocating and zeroing a new buffer for every read, and
+     * lets the transport write the buffers without copying them. To size the
+     * pool, pass a new {@link PooledByteBufAllocator}, for example:
+     * </p>
+     *
+     * <pre>
+     * // 8 heap and 8 direct arenas, 8 KiB pages, 2^11 pages (16 MiB) per chunk
+     * .withAllocator(new PooledByteBufAllocator(true, 8, 8, 8192, 11))
+     * </pre>
+     *
+     * <p>
+     * Default = {@link PooledByteBufAllocator#DEFAULT}
+     * </p>
+     *
+     * @param allocator the allocator to use
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withAllocator(ByteBufAllocator allocator);
+
+    /**
+     * <p>
+     * Enables a pool of idle upstream connections that is shared by all clients of the proxy. When a client
+     * disconnects, its keep-alive connections to origin servers are returned to the pool and handed out to later
+     * requests for the same server, instead of being closed. Only plain HTTP connections made directly to the origin
+     * server are pooled.
+     * </p>
+     *
+     * <p>
+     * Default = null (connection pooling disabled)
+     * </p>
+     *
+     * @param configuration connection pool configuration
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withConnectionPoolConfiguration(ConnectionPoolConfiguration configuration);
+
+    /**
+     * <p>
+     * Enables the proxy's built-in metrics: counts of connections, requests,
+     * responses and bytes, and histograms of DNS resolution, server connect,
+     * server TLS handshake and time-to-first-byte durations. Recording uses
+     * striped counters and lock-free histograms, so it adds little overhead to
+     * the proxy's threads. The metrics are available from
+     * {@link org.littleshoot.proxy.impl.DefaultHttpProxyServer#getMetrics()},
+     * and from the admin port if one is set with
+     * {@link #withMetricsAdminAddress(InetSocketAddress)}.
+     * </p>
+     *
+     * <p>
+     * Default = false
+     * </p>
+     *
+     * @param metrics true to collect metrics
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withMetrics(boolean metrics);
+
+    /**
+     * <p>
+     * Enables the proxy's built-in metrics and serves them in the Prometheus
+     * text format at <code>/metrics</code> on a separate admin port bound to
+     * the given address. The admin port is handled by the proxy's own thread
+     * pools and is closed when the proxy stops.
+     * </p>
+     *
+     * <p>
+     * Default = null (no admin port)
+     * </p>
+     *
+     * @param metricsAdminAddress the address to serve metrics on, for
+     *            example 127.0.0.1:9090. Port 0 binds to an ephemeral port.
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withMetricsAdminAddress(InetSocketAddress metricsAdminAddress);
+}
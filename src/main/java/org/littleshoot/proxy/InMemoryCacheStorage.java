@@ -0,0 +1,87 @@
+package org.littleshoot.proxy;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+/**
+ * <p>
+ * A {@link CacheStorage} that keeps responses on the heap, in a cache bounded
+ * by the total size of the responses it holds. When the cache is full, the
+ * least recently used responses are evicted first. Responses with bodies
+ * larger than the maximum object size are not stored at all, so that a few
+ * large downloads can't push out many small, frequently requested objects.
+ * </p>
+ *
+ * <pre>
+ * DefaultHttpProxyServer.bootstrap()
+ *         .withCacheStorage(new InMemoryCacheStorage())
+ * </pre>
+ */
+public class InMemoryCacheStorage implements CacheStorage {
+    public static final long DEFAULT_MAXIMUM_SIZE = 64 * 1024 * 1024;
+    public static final long DEFAULT_MAXIMUM_OBJECT_SIZE = 1024 * 1024;
+
+    private final long maximumObjectSize;
+
+    private final Cache<String, CachedResponse> cache;
+
+    /**
+     * Creates a storage of {@link #DEFAULT_MAXIMUM_SIZE} bytes, for objects of
+     * up to {@link #DEFAULT_MAXIMUM_OBJECT_SIZE} bytes.
+     */
+    public InMemoryCacheStorage() {
+        this(DEFAULT_MAXIMUM_SIZE, DEFAULT_MAXIMUM_OBJECT_SIZE);
+    }
+
+    /**
+     * @param maximumSize
+     *            approximate maximum total size of the stored responses, in
+     *            bytes
+     * @param maximumObjectSize
+     *            maximum size of a single response body, in bytes
+     */
+    public InMemoryCacheStorage(long maximumSize, long maximumObjectSize) {
+        this.maximumObjectSize = maximumObjectSize;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maximumSize)
+                .weigher(new Weigher<String, CachedResponse>() {
+                    @Override
+                    public int weigh(String key, CachedResponse response) {
+                        return (int) Math.min(Integer.MAX_VALUE, key.length() + response.getSize());
+                    }
+                })
+                .build();
+    }
+
+    @Override
+    public CachedResponse get(String key) {
+        return cache.getIfPresent(key);
+    }
+
+    @Override
+    public void put(String key, CachedResponse response) {
+        if (response.getContent().remaining() > maximumObjectSize) {
+            return;
+        }
+
+        cache.put(key, response);
+    }
+
+    @Override
+    public void remove(String key) {
+        cache.invalidate(key);
+    }
+
+    @Override
+    public long getMaximumObjectSize() {
+        return maximumObjectSize;
+    }
+
+    /**
+     * Approximate number of responses currently stored.
+     */
+    public long getSize() {
+        return cache.size();
+    }
+}
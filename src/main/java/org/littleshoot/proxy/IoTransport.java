@@ -0,0 +1,18 @@
+package org.littleshoot.proxy;
+
+/**
+ * Enumeration of the I/O implementations LittleProxy can use for its TCP
+ * channels and event loops.
+ */
+public enum IoTransport {
+    /**
+     * Java NIO. Available on every platform.
+     */
+    NIO,
+
+    /**
+     * Linux native epoll. Falls back to {@link #NIO} when the native transport
+     * is not available, e.g. when not running on Linux.
+     */
+    EPOLL
+}
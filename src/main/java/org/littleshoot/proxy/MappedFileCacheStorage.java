@@ -0,0 +1,252 @@
+package org.littleshoot.proxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>
+ * A {@link CacheStorage} that keeps response bodies outside of the Java heap,
+ * in memory-mapped segment files, so that it can hold far more data than the
+ * heap without adding to garbage collection work. The headers of the stored
+ * responses are kept in an in-memory index. The bodies of cached responses are
+ * sent to clients straight from the mapped files, without being copied into
+ * the heap.
+ * </p>
+ *
+ * <p>
+ * Bodies are appended to the newest segment. When the segments are full, the
+ * oldest segment is dropped along with all of the responses stored in it, and
+ * a new segment takes its place. Storing a response whose body is already
+ * stored under the same key, as happens when a cached response is refreshed
+ * by a 304 Not Modified response, only replaces its headers and keeps the body
+ * where it is. The segment files are deleted as soon as they
+ * are mapped, so they never outlive the proxy; the disk space of a dropped
+ * segment is released once its mapping has been garbage collected, which
+ * allows responses that are still being sent from it to complete.
+ * </p>
+ *
+ * <p>
+ * This storage is typically combined with a small {@link InMemoryCacheStorage}
+ * using a {@link TieredCacheStorage}.
+ * </p>
+ */
+public class MappedFileCacheStorage implements CacheStorage {
+    private static final Logger LOG = LoggerFactory.getLogger(MappedFileCacheStorage.class);
+
+    public static final int DEFAULT_SEGMENT_SIZE = 256 * 1024 * 1024;
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maximumSegments;
+
+    private final ConcurrentMap<String, CachedResponse> index = new ConcurrentHashMap<String, CachedResponse>();
+
+    /**
+     * The segments, oldest first. Guarded by this.
+     */
+    private final Deque<Segment> segments = new ArrayDeque<Segment>();
+    private long nextSegmentNumber = 0;
+
+    /**
+     * Creates a storage of up to the given size, in segments of
+     * {@link #DEFAULT_SEGMENT_SIZE} bytes.
+     *
+     * @param directory
+     *            directory in which to create the segment files
+     * @param maximumSize
+     *            maximum total size of the segment files, in bytes
+     */
+    public MappedFileCacheStorage(File directory, long maximumSize) {
+        this(directory, DEFAULT_SEGMENT_SIZE, (int) Math.max(1, maximumSize / DEFAULT_SEGMENT_SIZE));
+    }
+
+    /**
+     * @param directory
+     *            directory in which to create the segment files
+     * @param segmentSize
+     *            size of each segment file, in bytes. This is also the maximum
+     *            size of a stored response body.
+     * @param maximumSegments
+     *            maximum number of segment files
+     */
+    public MappedFileCacheStorage(File directory, int segmentSize, int maximumSegments) {
+        if (segmentSize <= 0 || maximumSegments <= 0) {
+            throw new IllegalArgumentException("Segment size and number of segments must be positive");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Unable to create cache directory " + directory);
+        }
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maximumSegments = maximumSegments;
+    }
+
+    @Override
+    public CachedResponse get(String key) {
+        return index.get(key);
+    }
+
+    @Override
+    public void put(String key, CachedResponse response) {
+        ByteBuffer content = response.getContent();
+        if (content.remaining() > segmentSize) {
+            return;
+        }
+
+        synchronized (this) {
+            if (replaceHeaders(key, response)) {
+                return;
+            }
+
+            Segment segment = segmentWithRoomFor(content.remaining());
+            if (segment == null) {
+                return;
+            }
+
+            CachedResponse stored = new CachedResponse(response.getStatus(),
+                    response.getHeaders(),
+                    segment.append(content),
+                    response.getVaryHeaders(),
+                    response.getRequestTime(),
+                    response.getResponseTime());
+            segment.responses.put(key, stored);
+            index.put(key, stored);
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        index.remove(key);
+    }
+
+    @Override
+    public long getMaximumObjectSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Approximate number of responses currently stored.
+     */
+    public long getSize() {
+        return index.size();
+    }
+
+    /**
+     * Stores the response under the given key with the body of the response
+     * already stored under it, if the bodies are the same. This avoids copying
+     * the same body into the newest segment every time a response is
+     * revalidated, which would push other responses out of the cache.
+     *
+     * @return true if the response was stored
+     */
+    private boolean replaceHeaders(String key, CachedResponse response) {
+        CachedResponse existing = index.get(key);
+        if (existing == null || !existing.getContent().equals(response.getContent())) {
+            return false;
+        }
+
+        for (Segment segment : segments) {
+            if (segment.responses.get(key) == existing) {
+                CachedResponse stored = new CachedResponse(response.getStatus(),
+                        response.getHeaders(),
+                        existing.getContent(),
+                        response.getVaryHeaders(),
+                        response.getRequestTime(),
+                        response.getResponseTime());
+                segment.responses.put(key, stored);
+                index.put(key, stored);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns a segment with enough room left for a body of the given size,
+     * dropping the oldest segment to make room if necessary, or null if no new
+     * segment could be created.
+     */
+    private Segment segmentWithRoomFor(int length) {
+        Segment newest = segments.peekLast();
+        if (newest != null && newest.remaining() >= length) {
+            return newest;
+        }
+
+        if (segments.size() >= maximumSegments) {
+            Segment oldest = segments.removeFirst();
+            LOG.debug("Dropping {} cached responses in the oldest cache segment", oldest.responses.size());
+            for (Map.Entry<String, CachedResponse> entry : oldest.responses.entrySet()) {
+                // the key may have been stored again in a newer segment since
+                index.remove(entry.getKey(), entry.getValue());
+            }
+        }
+
+        File file = new File(directory, "littleproxy-cache-" + (nextSegmentNumber++) + ".segment");
+        try {
+            Segment segment = new Segment(file, segmentSize);
+            segments.addLast(segment);
+            return segment;
+        } catch (IOException e) {
+            LOG.warn("Unable to create cache segment " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * A memory-mapped segment file, and the responses whose bodies are stored
+     * in it.
+     */
+    private static class Segment {
+        private final MappedByteBuffer buffer;
+        private final Map<String, CachedResponse> responses = new HashMap<String, CachedResponse>();
+
+        Segment(File file, int size) throws IOException {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                randomAccessFile.setLength(size);
+                buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } finally {
+                randomAccessFile.close();
+                // the mapping stays valid after the file is deleted. on platforms that don't allow deleting mapped
+                // files, fall back to deleting it when the JVM exits.
+                if (!file.delete()) {
+                    file.deleteOnExit();
+                }
+            }
+        }
+
+        int remaining() {
+            return buffer.remaining();
+        }
+
+        /**
+         * Copies the content to the end of the segment, and returns the region
+         * of the segment it was copied to.
+         */
+        ByteBuffer append(ByteBuffer content) {
+            ByteBuffer region = buffer.slice();
+            region.limit(content.remaining());
+            region.put(content);
+            region.flip();
+
+            buffer.position(buffer.position() + region.remaining());
+
+            return region;
+        }
+    }
+}
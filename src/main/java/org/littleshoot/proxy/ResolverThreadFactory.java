@@ -0,0 +1,31 @@
+package org.littleshoot.proxy;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Names the background threads used by the host resolvers and makes them
+ * daemons, so that an outstanding lookup never keeps the JVM alive.
+ */
+class ResolverThreadFactory implements ThreadFactory {
+    private static final AtomicInteger POOL_COUNT = new AtomicInteger();
+
+    private final String category;
+    private final int poolId = POOL_COUNT.getAndIncrement();
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    /**
+     * @param category the kind of work the threads perform, used in the thread names
+     */
+    ResolverThreadFactory(String category) {
+        this.category = category;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "LittleProxy-" + category + "-" + poolId
+                + "-" + threadCount.getAndIncrement());
+        t.setDaemon(true);
+        return t;
+    }
+}
@@ -0,0 +1,67 @@
+package org.littleshoot.proxy;
+
+/**
+ * <p>
+ * Combines a small, fast first tier with a large second tier. Responses are
+ * looked up in the first tier, then in the second. Every response is stored
+ * in the second tier, and responses small enough for the first tier are
+ * stored there as well, so that popular small objects are served from the
+ * first tier while the second tier keeps them after the first tier has evicted
+ * them.
+ * </p>
+ *
+ * <pre>
+ * DefaultHttpProxyServer.bootstrap()
+ *         .withCacheStorage(new TieredCacheStorage(
+ *                 new InMemoryCacheStorage(),
+ *                 new MappedFileCacheStorage(new File("/var/cache/littleproxy"), 32L * 1024 * 1024 * 1024)))
+ * </pre>
+ */
+public class TieredCacheStorage implements CacheStorage {
+    private final CacheStorage firstTier;
+    private final CacheStorage secondTier;
+
+    /**
+     * @param firstTier
+     *            the small, fast tier, such as an {@link InMemoryCacheStorage}
+     * @param secondTier
+     *            the large tier, such as a {@link MappedFileCacheStorage}
+     */
+    public TieredCacheStorage(CacheStorage firstTier, CacheStorage secondTier) {
+        this.firstTier = firstTier;
+        this.secondTier = secondTier;
+    }
+
+    @Override
+    public CachedResponse get(String key) {
+        CachedResponse response = firstTier.get(key);
+        if (response != null) {
+            return response;
+        }
+
+        return secondTier.get(key);
+    }
+
+    @Override
+    public void put(String key, CachedResponse response) {
+        if (response.getContent().remaining() <= firstTier.getMaximumObjectSize()) {
+            firstTier.put(key, response);
+        } else {
+            // don't leave an older, smaller version of the response behind
+            firstTier.remove(key);
+        }
+
+        secondTier.put(key, response);
+    }
+
+    @Override
+    public void remove(String key) {
+        firstTier.remove(key);
+        secondTier.remove(key);
+    }
+
+    @Override
+    public long getMaximumObjectSize() {
+        return Math.max(firstTier.getMaximumObjectSize(), secondTier.getMaximumObjectSize());
+    }
+}
@@ -0,0 +1,248 @@
+package org.littleshoot.proxy.extras;
+
+import com.google.common.net.InetAddresses;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x500.X500NameBuilder;
+import org.bouncycastle.asn1.x500.style.BCStyle;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.ExtendedKeyUsage;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Generates the key pairs and X.509 certificates used to man-in-the-middle TLS connections: a self-signed
+ * certificate authority, and leaf certificates for individual hosts signed by it. Also generates the self-signed
+ * certificates of {@link SelfSignedSslEngineSource}.
+ * </p>
+ *
+ * <p>
+ * Requires BouncyCastle's <code>bcpkix</code> library, which is an optional dependency of LittleProxy.
+ * </p>
+ */
+public final class CertificateGenerator {
+    /**
+     * How long generated leaf certificates are valid for. Browsers reject server certificates that are valid for more
+     * than 398 days.
+     */
+    private static final long LEAF_VALIDITY_MILLIS = TimeUnit.DAYS.toMillis(365);
+
+    /**
+     * Generated certificates are backdated by this much, to tolerate clients whose clocks are slightly behind.
+     */
+    private static final long CLOCK_SKEW_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private CertificateGenerator() {
+    }
+
+    /**
+     * Generates a new key pair.
+     *
+     * @param algorithm the key algorithm, "RSA" or "EC"
+     * @param keySize the key size in bits, for example 2048 for RSA or 256 for EC
+     */
+    public static KeyPair generateKeyPair(String algorithm, int keySize) throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance(algorithm);
+        generator.initialize(keySize, RANDOM);
+        return generator.generateKeyPair();
+    }
+
+    /**
+     * Creates a self-signed certificate authority certificate that can sign leaf certificates.
+     *
+     * @param keyPair the certificate authority's key pair
+     * @param commonName the common name of the certificate authority
+     * @param validityDays how many days the certificate is valid for
+     */
+    public static X509Certificate createCertificateAuthority(KeyPair keyPair, String commonName, int validityDays)
+            throws GeneralSecurityException {
+        long now = System.currentTimeMillis();
+        X500Name name = new X500NameBuilder(BCStyle.INSTANCE)
+                .addRDN(BCStyle.CN, commonName)
+                .addRDN(BCStyle.O, "LittleProxy")
+                .build();
+
+        X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(
+                name,
+                randomSerialNumber(),
+                new Date(now - CLOCK_SKEW_MILLIS),
+                new Date(now + TimeUnit.DAYS.toMillis(validityDays)),
+                name,
+                keyPair.getPublic());
+
+        try {
+            JcaX509ExtensionUtils extensionUtils = new JcaX509ExtensionUtils();
+            builder.addExtension(Extension.basicConstraints, true, new BasicConstraints(0));
+            builder.addExtension(Extension.keyUsage, true,
+                    new KeyUsage(KeyUsage.keyCertSign | KeyUsage.cRLSign | KeyUsage.digitalSignature));
+            builder.addExtension(Extension.subjectKeyIdentifier, false,
+                    extensionUtils.createSubjectKeyIdentifier(keyPair.getPublic()));
+        } catch (IOException e) {
+            throw new GeneralSecurityException("Unable to encode certificate extensions", e);
+        }
+
+        return sign(builder, keyPair.getPrivate());
+    }
+
+    /**
+     * Creates a self-signed certificate that identifies its owner both as a server and as a client, for peers that
+     * trust the certificate itself rather than a certificate authority.
+     *
+     * @param keyPair the key pair of the certificate
+     * @param commonName the common name of the certificate
+     * @param validityDays how many days the certificate is valid for
+     */
+    public static X509Certificate createSelfSignedCertificate(KeyPair keyPair, String commonName, int validityDays)
+            throws GeneralSecurityException {
+        long now = System.currentTimeMillis();
+        X500Name name = new X500NameBuilder(BCStyle.INSTANCE)
+                .addRDN(BCStyle.CN, commonName)
+                .build();
+
+        X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(
+                name,
+                randomSerialNumber(),
+                new Date(now - CLOCK_SKEW_MILLIS),
+                new Date(now + TimeUnit.DAYS.toMillis(validityDays)),
+                name,
+                keyPair.getPublic());
+
+        try {
+            JcaX509ExtensionUtils extensionUtils = new JcaX509ExtensionUtils();
+            int keyUsage = "RSA".equals(keyPair.getPublic().getAlgorithm())
+                    ? KeyUsage.digitalSignature | KeyUsage.keyEncipherment
+                    : KeyUsage.digitalSignature;
+            builder.addExtension(Extension.keyUsage, true, new KeyUsage(keyUsage));
+            builder.addExtension(Extension.subjectKeyIdentifier, false,
+                    extensionUtils.createSubjectKeyIdentifier(keyPair.getPublic()));
+        } catch (IOException e) {
+            throw new GeneralSecurityException("Unable to encode certificate extensions", e);
+        }
+
+        return sign(builder, keyPair.getPrivate());
+    }
+
+    /**
+     * Creates a certificate for the given host, signed by the given certificate authority.
+     *
+     * @param hostname the host name or IP address the certificate is for. Used as the common name and as the first
+     *            subject alternative name.
+     * @param subjectAlternativeNames additional DNS names and IP addresses, in the format returned by
+     *            {@link X509Certificate#getSubjectAlternativeNames()}. Only DNS names and IP addresses are copied. May
+     *            be null.
+     * @param publicKey the public key of the host certificate
+     * @param caCertificate the certificate authority's certificate
+     * @param caPrivateKey the certificate authority's private key
+     */
+    public static X509Certificate createHostCertificate(String hostname,
+            Collection<List<?>> subjectAlternativeNames,
+            PublicKey publicKey,
+            X509Certificate caCertificate,
+            PrivateKey caPrivateKey) throws GeneralSecurityException {
+        long now = System.currentTimeMillis();
+        Date notAfter = new Date(Math.min(now + LEAF_VALIDITY_MILLIS, caCertificate.getNotAfter().getTime()));
+
+        X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(
+                caCertificate,
+                randomSerialNumber(),
+                new Date(now - CLOCK_SKEW_MILLIS),
+                notAfter,
+                new X500NameBuilder(BCStyle.INSTANCE).addRDN(BCStyle.CN, hostname).build(),
+                publicKey);
+
+        try {
+            JcaX509ExtensionUtils extensionUtils = new JcaX509ExtensionUtils();
+            builder.addExtension(Extension.subjectAlternativeName, false,
+                    toGeneralNames(hostname, subjectAlternativeNames));
+            builder.addExtension(Extension.basicConstraints, true, new BasicConstraints(false));
+            // RSA key exchange encrypts with the certificate's key; elliptic curve keys are only used for signatures
+            int keyUsage = "RSA".equals(publicKey.getAlgorithm())
+                    ? KeyUsage.digitalSignature | KeyUsage.keyEncipherment
+                    : KeyUsage.digitalSignature;
+            builder.addExtension(Extension.keyUsage, true, new KeyUsage(keyUsage));
+            builder.addExtension(Extension.extendedKeyUsage, false,
+                    new ExtendedKeyUsage(KeyPurposeId.id_kp_serverAuth));
+            builder.addExtension(Extension.subjectKeyIdentifier, false,
+                    extensionUtils.createSubjectKeyIdentifier(publicKey));
+            builder.addExtension(Extension.authorityKeyIdentifier, false,
+                    extensionUtils.createAuthorityKeyIdentifier(caCertificate));
+        } catch (IOException e) {
+            throw new GeneralSecurityException("Unable to encode certificate extensions", e);
+        }
+
+        return sign(builder, caPrivateKey);
+    }
+
+    private static GeneralNames toGeneralNames(String hostname, Collection<List<?>> subjectAlternativeNames) {
+        // keep the names in order and drop duplicates, such as the hostname that is usually also among the
+        // server's own alternative names
+        Set<GeneralName> names = new LinkedHashSet<GeneralName>();
+        names.add(toGeneralName(hostname));
+        if (subjectAlternativeNames != null) {
+            for (List<?> subjectAlternativeName : subjectAlternativeNames) {
+                Object type = subjectAlternativeName.get(0);
+                Object value = subjectAlternativeName.get(1);
+                if (value instanceof String
+                        && (Integer.valueOf(GeneralName.dNSName).equals(type)
+                        || Integer.valueOf(GeneralName.iPAddress).equals(type))) {
+                    names.add(toGeneralName((String) value));
+                }
+            }
+        }
+
+        List<GeneralName> nameList = new ArrayList<GeneralName>(names);
+        return new GeneralNames(nameList.toArray(new GeneralName[nameList.size()]));
+    }
+
+    private static GeneralName toGeneralName(String name) {
+        if (InetAddresses.isInetAddress(name)) {
+            return new GeneralName(GeneralName.iPAddress, name);
+        } else {
+            return new GeneralName(GeneralName.dNSName, name);
+        }
+    }
+
+    private static X509Certificate sign(X509v3CertificateBuilder builder, PrivateKey signingKey)
+            throws GeneralSecurityException {
+        String signatureAlgorithm = "EC".equals(signingKey.getAlgorithm()) ? "SHA256withECDSA" : "SHA256withRSA";
+        try {
+            ContentSigner signer = new JcaContentSignerBuilder(signatureAlgorithm).build(signingKey);
+            return new JcaX509CertificateConverter().getCertificate(builder.build(signer));
+        } catch (OperatorCreationException e) {
+            throw new GeneralSecurityException("Unable to sign certificate", e);
+        }
+    }
+
+    private static BigInteger randomSerialNumber() {
+        return new BigInteger(64, RANDOM);
+    }
+}
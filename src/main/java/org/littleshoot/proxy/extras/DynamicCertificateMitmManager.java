@@ -0,0 +1,286 @@
+package org.littleshoot.proxy.extras;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.net.HostAndPort;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import org.littleshoot.proxy.MitmManager;
+import org.littleshoot.proxy.impl.ProxyUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * <p>
+ * {@link MitmManager} that impersonates each server with a certificate for the server's host name, signed by a
+ * certificate authority that the proxy's clients trust. The certificate also carries the DNS names and IP addresses
+ * from the server's own certificate, so that clients accept it for any of the names the server is known by.
+ * </p>
+ *
+ * <p>
+ * Signing a certificate is expensive, so the {@link SslContext} for each host is kept in a bounded, least recently
+ * used cache and shared by all connections to that host. Each host certificate gets its own key pair from a
+ * {@link KeyPairPool}, which generates keys ahead of time so that clients don't wait for key generation.
+ * </p>
+ *
+ * <p>
+ * Like the {@link NettySslEngineSource}, the manager uses OpenSSL for both the client and the server connections when
+ * netty-tcnative is on the classpath.
+ * </p>
+ *
+ * <p>
+ * Requires BouncyCastle's <code>bcpkix</code> library, which is an optional dependency of LittleProxy.
+ * </p>
+ */
+public class DynamicCertificateMitmManager implements MitmManager {
+    private static final Logger LOG = LoggerFactory.getLogger(DynamicCertificateMitmManager.class);
+
+    public static final int DEFAULT_MAXIMUM_CACHED_HOSTS = 1024;
+
+    private final X509Certificate caCertificate;
+    private final PrivateKey caPrivateKey;
+    private final KeyPairPool keyPairPool;
+    private final SslProvider sslProvider;
+    private final boolean trustAllServers;
+    private final SslSessionConfiguration sslSessionConfiguration;
+    private final SslContext serverSslContext;
+    private final Cache<String, SslContext> clientSslContexts;
+
+    /**
+     * Creates a manager that verifies servers' certificates against the JVM's default trust store and caches the
+     * certificates of up to {@value #DEFAULT_MAXIMUM_CACHED_HOSTS} hosts.
+     *
+     * @param caCertificate the certificate of the certificate authority that signs host certificates
+     * @param caPrivateKey the private key of the certificate authority
+     */
+    public DynamicCertificateMitmManager(X509Certificate caCertificate, PrivateKey caPrivateKey) {
+        this(caCertificate, caPrivateKey, false, DEFAULT_MAXIMUM_CACHED_HOSTS);
+    }
+
+    /**
+     * Creates a manager whose host certificates use elliptic curve keys from a {@link KeyPairPool} with the default
+     * settings.
+     *
+     * @param caCertificate the certificate of the certificate authority that signs host certificates
+     * @param caPrivateKey the private key of the certificate authority
+     * @param trustAllServers when true, the certificates of servers aren't verified
+     * @param maximumCachedHosts the maximum number of hosts whose certificates are cached
+     */
+    public DynamicCertificateMitmManager(X509Certificate caCertificate,
+            PrivateKey caPrivateKey,
+            boolean trustAllServers,
+            int maximumCachedHosts) {
+        this(caCertificate, caPrivateKey, trustAllServers, maximumCachedHosts, new KeyPairPool());
+    }
+
+    /**
+     * Creates a manager with the default {@link SslSessionConfiguration}.
+     *
+     * @param caCertificate the certificate of the certificate authority that signs host certificates
+     * @param caPrivateKey the private key of the certificate authority
+     * @param trustAllServers when true, the certificates of servers aren't verified
+     * @param maximumCachedHosts the maximum number of hosts whose certificates are cached
+     * @param keyPairPool the pool that supplies the key pairs of host certificates
+     */
+    public DynamicCertificateMitmManager(X509Certificate caCertificate,
+            PrivateKey caPrivateKey,
+            boolean trustAllServers,
+            int maximumCachedHosts,
+            KeyPairPool keyPairPool) {
+        this(caCertificate, caPrivateKey, trustAllServers, maximumCachedHosts, keyPairPool,
+                new SslSessionConfiguration());
+    }
+
+    /**
+     * @param caCertificate the certificate of the certificate authority that signs host certificates
+     * @param caPrivateKey the private key of the certificate authority
+     * @param trustAllServers when true, the certificates of servers aren't verified
+     * @param maximumCachedHosts the maximum number of hosts whose certificates are cached
+     * @param keyPairPool the pool that supplies the key pairs of host certificates
+     * @param sslSessionConfiguration the session cache settings for connections to servers, and for the connections
+     *            from clients to each host
+     */
+    public DynamicCertificateMitmManager(X509Certificate caCertificate,
+            PrivateKey caPrivateKey,
+            boolean trustAllServers,
+            int maximumCachedHosts,
+            KeyPairPool keyPairPool,
+            SslSessionConfiguration sslSessionConfiguration) {
+        this.caCertificate = caCertificate;
+        this.caPrivateKey = caPrivateKey;
+        this.keyPairPool = keyPairPool;
+        this.trustAllServers = trustAllServers;
+        this.sslSessionConfiguration = sslSessionConfiguration;
+        this.clientSslContexts = CacheBuilder.newBuilder()
+                .maximumSize(maximumCachedHosts)
+                .build();
+
+        this.sslProvider = NettySslEngineSource.preferredSslProvider();
+
+        SslContextBuilder serverSslContextBuilder = sslSessionConfiguration.configure(SslContextBuilder.forClient())
+                .sslProvider(sslProvider);
+        if (trustAllServers) {
+            serverSslContextBuilder.trustManager(InsecureTrustManagerFactory.INSTANCE);
+        }
+        try {
+            this.serverSslContext = serverSslContextBuilder.build();
+        } catch (SSLException e) {
+            throw new IllegalStateException("Unable to initialize the SslContext for servers", e);
+        }
+    }
+
+    /**
+     * Creates a manager whose certificate authority is read from the given key store.
+     *
+     * @param keyStore key store holding the certificate authority's certificate and private key
+     * @param alias the alias of the certificate authority in the key store
+     * @param password the password of the private key
+     * @param trustAllServers when true, the certificates of servers aren't verified
+     */
+    public static DynamicCertificateMitmManager fromKeyStore(KeyStore keyStore,
+            String alias,
+            char[] password,
+            boolean trustAllServers) throws GeneralSecurityException {
+        PrivateKey caPrivateKey = (PrivateKey) keyStore.getKey(alias, password);
+        X509Certificate caCertificate = (X509Certificate) keyStore.getCertificate(alias);
+        if (caPrivateKey == null || caCertificate == null) {
+            throw new KeyStoreException("No private key and certificate found for alias " + alias);
+        }
+
+        return new DynamicCertificateMitmManager(caCertificate, caPrivateKey, trustAllServers, DEFAULT_MAXIMUM_CACHED_HOSTS);
+    }
+
+    /**
+     * Unless all servers are trusted, the engine also checks that the server's certificate was issued for the host
+     * name the proxy connects to. Otherwise any trusted certificate, for any name, would be accepted, and then
+     * re-signed for the host the client asked for.
+     */
+    @Override
+    public SSLEngine serverSslEngine(String peerHost, int peerPort) {
+        SSLEngine sslEngine = serverSslContext.newEngine(ByteBufAllocator.DEFAULT, peerHost, peerPort);
+        if (!trustAllServers) {
+            SSLParameters sslParameters = sslEngine.getSSLParameters();
+            sslParameters.setEndpointIdentificationAlgorithm("HTTPS");
+            sslEngine.setSSLParameters(sslParameters);
+        }
+        return sslEngine;
+    }
+
+    @Override
+    public SSLEngine serverSslEngine() {
+        return serverSslContext.newEngine(ByteBufAllocator.DEFAULT);
+    }
+
+    @Override
+    public SSLEngine clientSslEngineFor(HttpRequest httpRequest, final SSLSession serverSslSession) {
+        final String hostname = hostnameFor(httpRequest, serverSslSession);
+        try {
+            SslContext sslContext = clientSslContexts.get(hostname, new Callable<SslContext>() {
+                @Override
+                public SslContext call() throws Exception {
+                    return createClientSslContext(hostname, serverSslSession);
+                }
+            });
+            return sslContext.newEngine(ByteBufAllocator.DEFAULT);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to create a certificate for " + hostname, e.getCause());
+        }
+    }
+
+    /**
+     * Returns the number of hosts whose certificates are currently cached.
+     */
+    public long getCachedHostCount() {
+        return clientSslContexts.size();
+    }
+
+    public SslProvider getSslProvider() {
+        return sslProvider;
+    }
+
+    public KeyPairPool getKeyPairPool() {
+        return keyPairPool;
+    }
+
+    public X509Certificate getCaCertificate() {
+        return caCertificate;
+    }
+
+    /**
+     * Returns the host name the client asked to connect to in its CONNECT request, or the server's host name if the
+     * request doesn't name one.
+     */
+    private static String hostnameFor(HttpRequest httpRequest, SSLSession serverSslSession) {
+        String hostAndPort = ProxyUtils.parseHostAndPort(httpRequest);
+        if (hostAndPort != null && !hostAndPort.isEmpty()) {
+            try {
+                return HostAndPort.fromString(hostAndPort).getHost();
+            } catch (IllegalArgumentException e) {
+                LOG.debug("Unable to parse host from {}", hostAndPort, e);
+            }
+        }
+
+        return serverSslSession.getPeerHost();
+    }
+
+    private SslContext createClientSslContext(String hostname, SSLSession serverSslSession)
+            throws GeneralSecurityException, SSLException {
+        LOG.debug("Creating certificate for {}", hostname);
+
+        KeyPair hostKeyPair = keyPairPool.take();
+        X509Certificate hostCertificate = CertificateGenerator.createHostCertificate(hostname,
+                serverSubjectAlternativeNames(serverSslSession),
+                hostKeyPair.getPublic(),
+                caCertificate,
+                caPrivateKey);
+
+        return sslSessionConfiguration.configureServer(sslSessionConfiguration.configure(
+                SslContextBuilder.forServer(hostKeyPair.getPrivate(), hostCertificate, caCertificate))
+                .sslProvider(sslProvider)
+                .build());
+    }
+
+    /**
+     * Returns the subject alternative names of the server's certificate, or null if there are none.
+     */
+    private static Collection<List<?>> serverSubjectAlternativeNames(SSLSession serverSslSession)
+            throws CertificateException {
+        if (serverSslSession == null) {
+            return null;
+        }
+
+        Certificate[] peerCertificates;
+        try {
+            peerCertificates = serverSslSession.getPeerCertificates();
+        } catch (SSLPeerUnverifiedException e) {
+            return null;
+        }
+
+        if (peerCertificates.length == 0 || !(peerCertificates[0] instanceof X509Certificate)) {
+            return null;
+        }
+        return ((X509Certificate) peerCertificates[0]).getSubjectAlternativeNames();
+    }
+}
@@ -0,0 +1,184 @@
+package org.littleshoot.proxy.extras;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * A pool of key pairs that are generated ahead of time on a background thread, so that certificates can be issued
+ * without generating a key while a client waits for its handshake. Each key pair is handed out only once.
+ * </p>
+ *
+ * <p>
+ * Whenever the number of pooled key pairs drops to the low-water mark, the refill thread generates key pairs until
+ * the pool is full again. If the pool is empty when a key pair is needed, the caller generates one itself; these
+ * starvations are counted, and a rising count means the pool is too small or the low-water mark too low for the rate
+ * at which certificates are issued.
+ * </p>
+ */
+public class KeyPairPool {
+    private static final Logger LOG = LoggerFactory.getLogger(KeyPairPool.class);
+
+    /**
+     * Elliptic curve keys are cheap to generate and to use in handshakes, and are supported by all current clients.
+     */
+    public static final String DEFAULT_ALGORITHM = "EC";
+    public static final int DEFAULT_KEY_SIZE = 256;
+    public static final int DEFAULT_CAPACITY = 32;
+    public static final int DEFAULT_LOW_WATER_MARK = 8;
+
+    private static final AtomicInteger POOL_COUNT = new AtomicInteger();
+
+    private final String algorithm;
+    private final int keySize;
+    private final int lowWaterMark;
+    private final BlockingQueue<KeyPair> keyPairs;
+    private final ExecutorService refillExecutor;
+    private final AtomicBoolean refillScheduled = new AtomicBoolean();
+
+    private final AtomicLong generated = new AtomicLong();
+    private final AtomicLong starvations = new AtomicLong();
+
+    private final Runnable refill = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                do {
+                    while (keyPairs.remainingCapacity() > 0 && !Thread.currentThread().isInterrupted()) {
+                        keyPairs.offer(generateKeyPair());
+                    }
+                    refillScheduled.set(false);
+                    // key pairs taken while the flag was still set didn't schedule a refill, so check again
+                } while (keyPairs.size() <= lowWaterMark
+                        && !Thread.currentThread().isInterrupted()
+                        && refillScheduled.compareAndSet(false, true));
+            } catch (GeneralSecurityException e) {
+                refillScheduled.set(false);
+                LOG.error("Unable to generate {} key pairs of {} bits", algorithm, keySize, e);
+            }
+        }
+    };
+
+    /**
+     * Creates a pool of {@value #DEFAULT_CAPACITY} elliptic curve key pairs on the P-256 curve.
+     */
+    public KeyPairPool() {
+        this(DEFAULT_ALGORITHM, DEFAULT_KEY_SIZE, DEFAULT_CAPACITY, DEFAULT_LOW_WATER_MARK);
+    }
+
+    /**
+     * Creates a pool and starts filling it in the background.
+     *
+     * @param algorithm the key algorithm, "EC" or "RSA"
+     * @param keySize the key size in bits, for example 256 for EC or 2048 for RSA
+     * @param capacity the maximum number of pooled key pairs
+     * @param lowWaterMark the number of pooled key pairs at or below which the pool is refilled
+     */
+    public KeyPairPool(String algorithm, int keySize, int capacity, int lowWaterMark) {
+        if (capacity < 1 || lowWaterMark < 0 || lowWaterMark >= capacity) {
+            throw new IllegalArgumentException("Low-water mark must be at least 0 and less than the capacity of "
+                    + capacity + ", but was " + lowWaterMark);
+        }
+
+        this.algorithm = algorithm;
+        this.keySize = keySize;
+        this.lowWaterMark = lowWaterMark;
+        this.keyPairs = new ArrayBlockingQueue<KeyPair>(capacity);
+
+        final int poolId = POOL_COUNT.getAndIncrement();
+        this.refillExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "LittleProxy-KeyPairPool-" + poolId);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        scheduleRefill();
+    }
+
+    /**
+     * Takes a key pair from the pool, or generates one if the pool is empty.
+     *
+     * @return a key pair that has not been handed out before
+     */
+    public KeyPair take() throws GeneralSecurityException {
+        KeyPair keyPair = keyPairs.poll();
+        if (keyPairs.size() <= lowWaterMark) {
+            scheduleRefill();
+        }
+
+        if (keyPair == null) {
+            starvations.incrementAndGet();
+            LOG.debug("Key pair pool is empty; generating a {} key pair on the calling thread", algorithm);
+            keyPair = generateKeyPair();
+        }
+        return keyPair;
+    }
+
+    /**
+     * Stops refilling the pool.
+     */
+    public void shutdown() {
+        refillExecutor.shutdownNow();
+    }
+
+    /**
+     * Returns the number of key pairs currently in the pool.
+     */
+    public int getDepth() {
+        return keyPairs.size();
+    }
+
+    public int getCapacity() {
+        return keyPairs.size() + keyPairs.remainingCapacity();
+    }
+
+    public int getLowWaterMark() {
+        return lowWaterMark;
+    }
+
+    /**
+     * Returns the number of key pairs generated, both by the refill thread and by callers of {@link #take()}.
+     */
+    public long getGeneratedCount() {
+        return generated.get();
+    }
+
+    /**
+     * Returns the number of times {@link #take()} found the pool empty and had to generate a key pair itself.
+     */
+    public long getStarvationCount() {
+        return starvations.get();
+    }
+
+    private void scheduleRefill() {
+        if (refillScheduled.compareAndSet(false, true)) {
+            try {
+                refillExecutor.execute(refill);
+            } catch (RejectedExecutionException e) {
+                // the pool has been shut down; callers generate their own key pairs from now on
+                refillScheduled.set(false);
+            }
+        }
+    }
+
+    private KeyPair generateKeyPair() throws GeneralSecurityException {
+        KeyPair keyPair = CertificateGenerator.generateKeyPair(algorithm, keySize);
+        generated.incrementAndGet();
+        return keyPair;
+    }
+}
@@ -0,0 +1,156 @@
+package org.littleshoot.proxy.extras;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import org.littleshoot.proxy.SslEngineSource;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * {@link SslEngineSource} built on Netty's {@link SslContext}s. When netty-tcnative is on the classpath, engines are
+ * backed by OpenSSL, whose handshakes are several times faster than the JDK's; otherwise they fall back to the JDK
+ * provider.
+ * </p>
+ *
+ * <p>
+ * The source builds one server context and one client context up front and shares them between all engines, so
+ * creating an engine for a connection is cheap. Server engines present the given certificate chain and, when clients
+ * are authenticated, accept clients presenting that chain. Client engines present the chain too, and verify servers
+ * against the JVM's default trust store unless all servers are trusted.
+ * </p>
+ *
+ * <p>
+ * Because all engines share the contexts, TLS sessions are cached across connections as configured by the
+ * {@link SslSessionConfiguration}: the proxy resumes sessions with the servers and chained proxies it reconnects to,
+ * and clients that reconnect to the proxy can resume theirs.
+ * </p>
+ */
+public class NettySslEngineSource implements SslEngineSource {
+    private final SslProvider sslProvider;
+    private final SslContext serverSslContext;
+    private final SslContext clientSslContext;
+
+    /**
+     * Creates a source that uses OpenSSL if it is available.
+     *
+     * @param privateKey the private key of the certificate
+     * @param certificateChain the certificate chain to present, starting with the certificate of the private key
+     * @param trustAllServers when true, the certificates of servers aren't verified
+     */
+    public NettySslEngineSource(PrivateKey privateKey, X509Certificate[] certificateChain, boolean trustAllServers) {
+        this(privateKey, certificateChain, trustAllServers, preferredSslProvider());
+    }
+
+    /**
+     * Creates a source with the default {@link SslSessionConfiguration}.
+     *
+     * @param privateKey the private key of the certificate
+     * @param certificateChain the certificate chain to present, starting with the certificate of the private key
+     * @param trustAllServers when true, the certificates of servers aren't verified
+     * @param sslProvider the TLS implementation to use
+     */
+    public NettySslEngineSource(PrivateKey privateKey,
+            X509Certificate[] certificateChain,
+            boolean trustAllServers,
+            SslProvider sslProvider) {
+        this(privateKey, certificateChain, trustAllServers, sslProvider, new SslSessionConfiguration());
+    }
+
+    /**
+     * @param privateKey the private key of the certificate
+     * @param certificateChain the certificate chain to present, starting with the certificate of the private key
+     * @param trustAllServers when true, the certificates of servers aren't verified
+     * @param sslProvider the TLS implementation to use
+     * @param sslSessionConfiguration the session cache settings of the client and server contexts
+     */
+    public NettySslEngineSource(PrivateKey privateKey,
+            X509Certificate[] certificateChain,
+            boolean trustAllServers,
+            SslProvider sslProvider,
+            SslSessionConfiguration sslSessionConfiguration) {
+        this.sslProvider = sslProvider;
+        try {
+            this.serverSslContext = sslSessionConfiguration.configureServer(sslSessionConfiguration.configure(
+                    SslContextBuilder.forServer(privateKey, certificateChain))
+                    .sslProvider(sslProvider)
+                    .trustManager(certificateChain)
+                    .build());
+
+            SslContextBuilder clientSslContextBuilder = sslSessionConfiguration.configure(SslContextBuilder.forClient())
+                    .sslProvider(sslProvider)
+                    .keyManager(privateKey, certificateChain);
+            if (trustAllServers) {
+                clientSslContextBuilder.trustManager(InsecureTrustManagerFactory.INSTANCE);
+            }
+            this.clientSslContext = clientSslContextBuilder.build();
+        } catch (SSLException e) {
+            throw new IllegalStateException("Failed to initialize the SslContexts", e);
+        }
+    }
+
+    /**
+     * Creates a source from the private key and certificate chain stored in a key store under the given alias.
+     *
+     * @param keyStore the key store
+     * @param alias the alias of the private key
+     * @param password the password of the private key
+     * @param trustAllServers when true, the certificates of servers aren't verified
+     */
+    public static NettySslEngineSource fromKeyStore(KeyStore keyStore,
+            String alias,
+            char[] password,
+            boolean trustAllServers) throws GeneralSecurityException {
+        PrivateKey privateKey = (PrivateKey) keyStore.getKey(alias, password);
+        Certificate[] chain = keyStore.getCertificateChain(alias);
+        if (privateKey == null || chain == null) {
+            throw new KeyStoreException("No private key and certificate chain found for alias " + alias);
+        }
+
+        return new NettySslEngineSource(privateKey,
+                Arrays.copyOf(chain, chain.length, X509Certificate[].class),
+                trustAllServers);
+    }
+
+    /**
+     * Returns {@link SslProvider#OPENSSL} if netty-tcnative is on the classpath and usable on this platform, and
+     * {@link SslProvider#JDK} otherwise.
+     */
+    public static SslProvider preferredSslProvider() {
+        return OpenSsl.isAvailable() ? SslProvider.OPENSSL : SslProvider.JDK;
+    }
+
+    @Override
+    public SSLEngine newSslEngine() {
+        return serverSslContext.newEngine(ByteBufAllocator.DEFAULT);
+    }
+
+    @Override
+    public SSLEngine newSslEngine(String peerHost, int peerPort) {
+        return clientSslContext.newEngine(ByteBufAllocator.DEFAULT, peerHost, peerPort);
+    }
+
+    public SslProvider getSslProvider() {
+        return sslProvider;
+    }
+
+    public SslContext getServerSslContext() {
+        return serverSslContext;
+    }
+
+    public SslContext getClientSslContext() {
+        return clientSslContext;
+    }
+}
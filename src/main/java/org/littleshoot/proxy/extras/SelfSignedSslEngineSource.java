@@ -1,6 +1,7 @@
 package org.littleshoot.proxy.extras;
 
 import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
 import org.littleshoot.proxy.SslEngineSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,18 +15,35 @@ import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
 import java.security.KeyStore;
 import java.security.Security;
+import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
 
 /**
+ * <p>
  * Basic {@link SslEngineSource} for testing. The {@link SSLContext} uses
  * self-signed certificates that are generated lazily if the given key store
  * file doesn't yet exist.
+ * </p>
+ * 
+ * <p>
+ * The certificate is generated in-process with the {@link CertificateGenerator}
+ * when BouncyCastle's optional <code>bcpkix</code> library is on the class path,
+ * and with the JDK's <code>keytool</code> otherwise. It is saved to the key store
+ * file so that later sources reuse it. Sources created with
+ * {@link #inMemory(boolean, boolean)} never touch the file system: they share one
+ * certificate that is generated the first time it is needed and kept for the
+ * lifetime of the JVM.
+ * </p>
  */
 public class SelfSignedSslEngineSource implements SslEngineSource {
     private static final Logger LOG = LoggerFactory
@@ -34,17 +52,33 @@ public class SelfSignedSslEngineSource implements SslEngineSource {
     private static final String ALIAS = "littleproxy";
     private static final String PASSWORD = "Be Your Own Lantern";
     private static final String PROTOCOL = "TLS";
+    private static final String KEY_ALGORITHM = "RSA";
+    private static final int KEY_SIZE = 2048;
+    private static final int VALIDITY_DAYS = 36500;
+
+    private static volatile KeyStore inMemoryKeyStore;
+
+    /**
+     * The file the key store is saved to, or null if the key store is only
+     * kept in memory.
+     */
     private final File keyStoreFile;
     private final boolean trustAllServers;
     private final boolean sendCerts;
 
+    private KeyStore keyStore;
     private SSLContext sslContext;
 
     public SelfSignedSslEngineSource(String keyStorePath,
             boolean trustAllServers, boolean sendCerts) {
+        this(new File(keyStorePath), trustAllServers, sendCerts);
+    }
+
+    private SelfSignedSslEngineSource(File keyStoreFile,
+            boolean trustAllServers, boolean sendCerts) {
         this.trustAllServers = trustAllServers;
         this.sendCerts = sendCerts;
-        this.keyStoreFile = new File(keyStorePath);
+        this.keyStoreFile = keyStoreFile;
         initializeKeyStore();
         initializeSSLContext();
     }
@@ -65,6 +99,22 @@ public class SelfSignedSslEngineSource implements SslEngineSource {
         this(false);
     }
 
+    /**
+     * Creates a source whose key store is only kept in memory. All such
+     * sources share the same self-signed certificate, so they trust each
+     * other just like sources that share a key store file.
+     * 
+     * @param trustAllServers
+     *            when true, the certificates of servers aren't verified
+     * @param sendCerts
+     *            when true, the certificate is presented to peers
+     */
+    public static SelfSignedSslEngineSource inMemory(boolean trustAllServers,
+            boolean sendCerts) {
+        return new SelfSignedSslEngineSource((File) null, trustAllServers,
+                sendCerts);
+    }
+
     @Override
     public SSLEngine newSslEngine() {
         return sslContext.createSSLEngine();
@@ -80,19 +130,187 @@ public class SelfSignedSslEngineSource implements SslEngineSource {
     }
 
     private void initializeKeyStore() {
+        if (keyStoreFile == null) {
+            keyStore = getInMemoryKeyStore();
+            return;
+        }
+
         if (keyStoreFile.isFile()) {
             LOG.info("Not deleting keystore");
+            keyStore = loadKeyStore(keyStoreFile);
             return;
         }
 
-        nativeCall("keytool", "-genkey", "-alias", ALIAS, "-keysize",
-                "4096", "-validity", "36500", "-keyalg", "RSA", "-dname",
-                "CN=littleproxy", "-keypass", PASSWORD, "-storepass",
-                PASSWORD, "-keystore", keyStoreFile.getName());
+        keyStore = generateKeyStore();
+        saveKeyStore();
+    }
+
+    private static KeyStore getInMemoryKeyStore() {
+        KeyStore keyStore = inMemoryKeyStore;
+        if (keyStore == null) {
+            synchronized (SelfSignedSslEngineSource.class) {
+                keyStore = inMemoryKeyStore;
+                if (keyStore == null) {
+                    keyStore = generateKeyStore();
+                    inMemoryKeyStore = keyStore;
+                }
+            }
+        }
+        return keyStore;
+    }
+
+    private static KeyStore loadKeyStore(File file) {
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            KeyStore keyStore = KeyStore.getInstance("JKS");
+            keyStore.load(is, PASSWORD.toCharArray());
+            return keyStore;
+        } catch (final Exception e) {
+            throw new Error("Failed to load the key store " + file, e);
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    LOG.debug("Error closing key store " + file, e);
+                }
+            }
+        }
+    }
+
+    private static KeyStore generateKeyStore() {
+        if (!isBouncyCastleAvailable()) {
+            return generateKeyStoreWithKeytool();
+        }
+
+        LOG.info("Generating a self-signed certificate");
+        try {
+            KeyPair keyPair = CertificateGenerator.generateKeyPair(
+                    KEY_ALGORITHM, KEY_SIZE);
+            X509Certificate certificate = CertificateGenerator
+                    .createSelfSignedCertificate(keyPair, ALIAS, VALIDITY_DAYS);
+
+            KeyStore keyStore = KeyStore.getInstance("JKS");
+            keyStore.load(null, null);
+            keyStore.setKeyEntry(ALIAS, keyPair.getPrivate(),
+                    PASSWORD.toCharArray(), new Certificate[] { certificate });
+            return keyStore;
+        } catch (final Exception e) {
+            throw new Error("Failed to generate the self-signed certificate", e);
+        }
+    }
+
+    private static boolean isBouncyCastleAvailable() {
+        try {
+            ClassLoader classLoader = SelfSignedSslEngineSource.class.getClassLoader();
+            Class.forName("org.bouncycastle.asn1.x500.X500Name", false, classLoader);
+            Class.forName("org.bouncycastle.cert.X509v3CertificateBuilder", false, classLoader);
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Generates the key store with the JDK's <code>keytool</code>, for when
+     * BouncyCastle isn't on the class path. keytool can only write key stores
+     * to files, so it writes to a temporary directory that is deleted once the
+     * key store has been loaded.
+     */
+    private static KeyStore generateKeyStoreWithKeytool() {
+        LOG.info("BouncyCastle is not available, generating a self-signed certificate with keytool");
+        File tempDir = Files.createTempDir();
+        File file = new File(tempDir, "littleproxy_keystore.jks");
+        try {
+            nativeCall(keytoolPath(), "-genkey", "-alias", ALIAS, "-keysize",
+                    String.valueOf(KEY_SIZE), "-validity",
+                    String.valueOf(VALIDITY_DAYS), "-keyalg", KEY_ALGORITHM,
+                    "-dname", "CN=" + ALIAS, "-keypass", PASSWORD,
+                    "-storepass", PASSWORD, "-storetype", "JKS", "-keystore",
+                    file.getAbsolutePath());
+            if (!file.isFile()) {
+                throw new Error("keytool failed to generate the self-signed certificate");
+            }
+            return loadKeyStore(file);
+        } finally {
+            if (file.isFile() && !file.delete()) {
+                LOG.debug("Unable to delete temporary key store {}", file);
+            }
+            if (!tempDir.delete()) {
+                LOG.debug("Unable to delete temporary directory {}", tempDir);
+            }
+        }
+    }
+
+    /**
+     * Returns the keytool of the running JVM if it has one, and otherwise
+     * relies on keytool being on the path.
+     */
+    private static String keytoolPath() {
+        File keytool = new File(System.getProperty("java.home"), "bin"
+                + File.separator + "keytool");
+        if (keytool.isFile()) {
+            return keytool.getAbsolutePath();
+        }
+        File windowsKeytool = new File(keytool.getPath() + ".exe");
+        if (windowsKeytool.isFile()) {
+            return windowsKeytool.getAbsolutePath();
+        }
+        return "keytool";
+    }
+
+    private static String nativeCall(final String... commands) {
+        LOG.info("Running '{}'", Arrays.asList(commands));
+        final ProcessBuilder pb = new ProcessBuilder(commands);
+        pb.redirectErrorStream(true);
+        try {
+            final Process process = pb.start();
+            final InputStream is = process.getInputStream();
+
+            byte[] data = ByteStreams.toByteArray(is);
+            String dataAsString = new String(data);
+            process.waitFor();
+
+            LOG.info("Completed native call: '{}'\nResponse: '" + dataAsString + "'",
+                    Arrays.asList(commands));
+            return dataAsString;
+        } catch (final IOException e) {
+            LOG.error("Error running commands: " + Arrays.asList(commands), e);
+            return "";
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.error("Interrupted running commands: " + Arrays.asList(commands), e);
+            return "";
+        }
+    }
 
-        nativeCall("keytool", "-exportcert", "-alias", ALIAS, "-keystore",
-                keyStoreFile.getName(), "-storepass", PASSWORD, "-file",
-                "littleproxy_cert");
+    /**
+     * Saves the key store, and exports its certificate to
+     * <code>littleproxy_cert</code> so that it can be imported into clients.
+     * The key store is still used if it can't be saved, for example on a
+     * read-only file system; it's just generated again next time.
+     */
+    private void saveKeyStore() {
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(keyStoreFile);
+            keyStore.store(os, PASSWORD.toCharArray());
+            Files.write(keyStore.getCertificate(ALIAS).getEncoded(),
+                    new File("littleproxy_cert"));
+        } catch (IOException e) {
+            LOG.warn("Unable to save the key store to " + keyStoreFile, e);
+        } catch (GeneralSecurityException e) {
+            LOG.warn("Unable to save the key store to " + keyStoreFile, e);
+        } finally {
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (IOException e) {
+                    LOG.debug("Error closing key store " + keyStoreFile, e);
+                }
+            }
+        }
     }
 
     private void initializeSSLContext() {
@@ -103,10 +321,7 @@ public class SelfSignedSslEngineSource implements SslEngineSource {
         }
 
         try {
-            final KeyStore ks = KeyStore.getInstance("JKS");
-            // ks.load(new FileInputStream("keystore.jks"),
-            // "changeit".toCharArray());
-            ks.load(new FileInputStream(keyStoreFile), PASSWORD.toCharArray());
+            final KeyStore ks = keyStore;
 
             // Set up key manager factory to use our key store
             final KeyManagerFactory kmf =
@@ -159,23 +374,4 @@ public class SelfSignedSslEngineSource implements SslEngineSource {
         }
     }
 
-    private String nativeCall(final String... commands) {
-        LOG.info("Running '{}'", Arrays.asList(commands));
-        final ProcessBuilder pb = new ProcessBuilder(commands);
-        try {
-            final Process process = pb.start();
-            final InputStream is = process.getInputStream();
-
-            byte[] data = ByteStreams.toByteArray(is);
-            String dataAsString = new String(data);
-
-            LOG.info("Completed native call: '{}'\nResponse: '" + dataAsString + "'",
-                    Arrays.asList(commands));
-            return dataAsString;
-        } catch (final IOException e) {
-            LOG.error("Error running commands: " + Arrays.asList(commands), e);
-            return "";
-        }
-    }
-
 }
@@ -0,0 +1,112 @@
+package org.littleshoot.proxy.extras;
+
+import io.netty.handler.ssl.OpenSslSessionContext;
+import io.netty.handler.ssl.OpenSslSessionTicketKey;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+
+import java.security.SecureRandom;
+
+/**
+ * <p>
+ * Configuration object for the TLS session caches of the {@link SslContext}s built by {@link NettySslEngineSource} and
+ * {@link DynamicCertificateMitmManager}. Cached sessions let clients and servers that reconnect resume their previous
+ * session with an abbreviated handshake, instead of repeating the full key exchange.
+ * </p>
+ *
+ * <p>
+ * Client contexts cache sessions by the host and port of the peer, so the proxy resumes sessions with upstream servers
+ * and encrypted chained proxies. Server contexts cache sessions by session ID, and with OpenSSL also issue session
+ * tickets, so that clients can resume sessions the proxy no longer has in its cache. With the JDK provider, session
+ * tickets are controlled by the <code>jdk.tls.server.enableSessionTicketExtension</code> system property instead.
+ * </p>
+ */
+public class SslSessionConfiguration {
+    public static final long DEFAULT_SESSION_CACHE_SIZE = 20480;
+    public static final long DEFAULT_SESSION_TIMEOUT_SECONDS = 3600;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private long sessionCacheSize = DEFAULT_SESSION_CACHE_SIZE;
+    private long sessionTimeoutSeconds = DEFAULT_SESSION_TIMEOUT_SECONDS;
+    private boolean sessionTickets = true;
+
+    public long getSessionCacheSize() {
+        return sessionCacheSize;
+    }
+
+    /**
+     * Set the maximum number of sessions cached by each context. 0 disables the limit. The default value is
+     * {@link #DEFAULT_SESSION_CACHE_SIZE}.
+     *
+     * @param sessionCacheSize maximum number of cached sessions
+     * @return this session configuration instance, for chaining
+     */
+    public SslSessionConfiguration withSessionCacheSize(long sessionCacheSize) {
+        this.sessionCacheSize = sessionCacheSize;
+        return this;
+    }
+
+    public long getSessionTimeoutSeconds() {
+        return sessionTimeoutSeconds;
+    }
+
+    /**
+     * Set how long cached sessions may be resumed for. The default value is
+     * {@link #DEFAULT_SESSION_TIMEOUT_SECONDS}.
+     *
+     * @param sessionTimeoutSeconds lifetime of cached sessions, in seconds
+     * @return this session configuration instance, for chaining
+     */
+    public SslSessionConfiguration withSessionTimeoutSeconds(long sessionTimeoutSeconds) {
+        this.sessionTimeoutSeconds = sessionTimeoutSeconds;
+        return this;
+    }
+
+    public boolean isSessionTickets() {
+        return sessionTickets;
+    }
+
+    /**
+     * Set whether OpenSSL server contexts issue session tickets. The ticket keys are generated randomly for each
+     * context, so tickets are only valid for the proxy instance that issued them. The default value is true.
+     *
+     * @param sessionTickets true to issue session tickets
+     * @return this session configuration instance, for chaining
+     */
+    public SslSessionConfiguration withSessionTickets(boolean sessionTickets) {
+        this.sessionTickets = sessionTickets;
+        return this;
+    }
+
+    /**
+     * Applies the session cache settings to a context that is being built.
+     */
+    SslContextBuilder configure(SslContextBuilder sslContextBuilder) {
+        return sslContextBuilder
+                .sessionCacheSize(sessionCacheSize)
+                .sessionTimeout(sessionTimeoutSeconds);
+    }
+
+    /**
+     * Enables session tickets on a server context, if they are enabled and the context supports them.
+     *
+     * @return the context
+     */
+    SslContext configureServer(SslContext sslContext) {
+        if (sessionTickets && sslContext.sessionContext() instanceof OpenSslSessionContext) {
+            OpenSslSessionTicketKey ticketKey = new OpenSslSessionTicketKey(
+                    randomBytes(OpenSslSessionTicketKey.NAME_SIZE),
+                    randomBytes(OpenSslSessionTicketKey.HMAC_KEY_SIZE),
+                    randomBytes(OpenSslSessionTicketKey.AES_KEY_SIZE));
+            ((OpenSslSessionContext) sslContext.sessionContext()).setTicketKeys(ticketKey);
+        }
+        return sslContext;
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        RANDOM.nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,251 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.compression.ZlibCodecFactory;
+import io.netty.handler.codec.compression.ZlibWrapper;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.FullHttpMessage;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMessage;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import org.littleshoot.proxy.HttpBodyTransformer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Locale;
+
+/**
+ * Applies an {@link HttpBodyTransformer} to the body of one request or
+ * response, chunk by chunk. Decompresses the body for the transformer and
+ * compresses its output again if the transformer asks for it.
+ */
+class BodyTransformation {
+    private static final Logger LOG = LoggerFactory.getLogger(BodyTransformation.class);
+
+    private final HttpBodyTransformer transformer;
+    private final ByteBufAllocator allocator;
+
+    /**
+     * Decompresses the body for the transformer, or null if the transformer
+     * sees the body as it was received.
+     */
+    private final EmbeddedChannel decoder;
+
+    /**
+     * Compresses the output of the transformer, or null if it is sent as is.
+     */
+    private final EmbeddedChannel encoder;
+
+    /**
+     * The bytes of the body that the transformer has not consumed yet.
+     */
+    private ByteBuf pending;
+
+    private BodyTransformation(HttpBodyTransformer transformer,
+            ByteBufAllocator allocator,
+            EmbeddedChannel decoder,
+            EmbeddedChannel encoder) {
+        this.transformer = transformer;
+        this.allocator = allocator;
+        this.decoder = decoder;
+        this.encoder = encoder;
+        this.pending = allocator.buffer();
+    }
+
+    /**
+     * Starts transforming the body of the given message.
+     *
+     * @return the transformation, or null if the body of the message can't be
+     *         transformed
+     */
+    static BodyTransformation start(HttpBodyTransformer transformer, HttpMessage message, ByteBufAllocator allocator) {
+        if (message instanceof HttpRequest
+                && !(message instanceof FullHttpMessage)
+                && HttpVersion.HTTP_1_0.equals(message.getProtocolVersion())) {
+            LOG.debug("Not transforming the body of an HTTP/1.0 request, since it can't be chunked");
+            return null;
+        }
+
+        EmbeddedChannel decoder = null;
+        EmbeddedChannel encoder = null;
+        String contentEncoding = message.headers().get(HttpHeaders.Names.CONTENT_ENCODING);
+        if (transformer.isDecompressing() && contentEncoding != null) {
+            contentEncoding = contentEncoding.trim().toLowerCase(Locale.US);
+            if ("gzip".equals(contentEncoding) || "x-gzip".equals(contentEncoding)) {
+                decoder = new EmbeddedChannel(ZlibCodecFactory.newZlibDecoder(ZlibWrapper.GZIP));
+                if (transformer.isRecompressing()) {
+                    encoder = new EmbeddedChannel(ZlibCodecFactory.newZlibEncoder(ZlibWrapper.GZIP));
+                }
+            } else if ("deflate".equals(contentEncoding) || "x-deflate".equals(contentEncoding)) {
+                decoder = new EmbeddedChannel(ZlibCodecFactory.newZlibDecoder(ZlibWrapper.ZLIB_OR_NONE));
+                if (transformer.isRecompressing()) {
+                    encoder = new EmbeddedChannel(ZlibCodecFactory.newZlibEncoder(ZlibWrapper.ZLIB));
+                }
+            } else if (!HttpHeaders.Values.IDENTITY.equals(contentEncoding)) {
+                LOG.debug("Not transforming a body with unsupported Content-Encoding: {}", contentEncoding);
+                return null;
+            }
+        }
+
+        return new BodyTransformation(transformer, allocator, decoder, encoder);
+    }
+
+    /**
+     * Transforms the next object of the message. The initial request or
+     * response is replaced by a copy whose headers reflect the transformation,
+     * and each chunk is replaced by a new chunk containing the transformed
+     * bytes. The caller owns the new objects. Once the last chunk has been
+     * transformed, the transformation is released.
+     */
+    HttpObject transform(HttpObject httpObject) {
+        if (httpObject instanceof HttpMessage) {
+            HttpMessage message = (HttpMessage) httpObject;
+            if (message instanceof FullHttpMessage) {
+                FullHttpMessage fullMessage = (FullHttpMessage) message;
+                ByteBuf content = transform(fullMessage.content(), true);
+                FullHttpMessage transformed = fullCopy(message, content);
+                transformed.headers().remove(HttpHeaders.Names.TRANSFER_ENCODING);
+                HttpHeaders.setContentLength(transformed, content.readableBytes());
+                transformed.trailingHeaders().set(fullMessage.trailingHeaders());
+                return transformed;
+            } else {
+                HttpMessage transformed = copy(message);
+                HttpHeaders.setTransferEncodingChunked(transformed);
+                return transformed;
+            }
+        }
+
+        HttpContent chunk = (HttpContent) httpObject;
+        if (chunk instanceof LastHttpContent) {
+            LastHttpContent transformed = new DefaultLastHttpContent(transform(chunk.content(), true));
+            transformed.trailingHeaders().set(((LastHttpContent) chunk).trailingHeaders());
+            return transformed;
+        } else {
+            return new DefaultHttpContent(transform(chunk.content(), false));
+        }
+    }
+
+    private ByteBuf transform(ByteBuf content, boolean last) {
+        ByteBuf out = allocator.buffer();
+        try {
+            if (decoder != null) {
+                decoder.writeInbound(content.retain());
+                if (last) {
+                    decoder.finish();
+                }
+                Object decoded;
+                while ((decoded = decoder.readInbound()) != null) {
+                    ByteBuf decodedContent = (ByteBuf) decoded;
+                    pending.writeBytes(decodedContent);
+                    decodedContent.release();
+                }
+            } else {
+                pending.writeBytes(content, content.readerIndex(), content.readableBytes());
+            }
+
+            transformer.transform(pending, out, last);
+
+            // send on whatever the transformer can't hold back
+            int heldBack = last ? 0 : Math.max(0, transformer.getMaximumLookahead());
+            if (pending.readableBytes() > heldBack) {
+                out.writeBytes(pending, pending.readableBytes() - heldBack);
+            }
+            pending.discardSomeReadBytes();
+
+            if (encoder != null) {
+                out = encode(out, last);
+            }
+
+            return out;
+        } catch (RuntimeException e) {
+            out.release();
+            release();
+            throw e;
+        } finally {
+            if (last) {
+                release();
+            }
+        }
+    }
+
+    private ByteBuf encode(ByteBuf out, boolean last) {
+        encoder.writeOutbound(out);
+        if (last) {
+            encoder.finish();
+        }
+
+        ByteBuf encoded = allocator.buffer();
+        Object msg;
+        while ((msg = encoder.readOutbound()) != null) {
+            ByteBuf encodedContent = (ByteBuf) msg;
+            encoded.writeBytes(encodedContent);
+            encodedContent.release();
+        }
+        return encoded;
+    }
+
+    /**
+     * Releases the resources of the transformation. Called once the last chunk
+     * has been transformed, or if the message is abandoned.
+     */
+    void release() {
+        if (pending == null) {
+            return;
+        }
+
+        pending.release();
+        pending = null;
+        if (decoder != null) {
+            decoder.finishAndReleaseAll();
+        }
+        if (encoder != null) {
+            encoder.finishAndReleaseAll();
+        }
+    }
+
+    private HttpMessage copy(HttpMessage message) {
+        HttpMessage copy;
+        if (message instanceof HttpRequest) {
+            HttpRequest request = (HttpRequest) message;
+            copy = new DefaultHttpRequest(request.getProtocolVersion(), request.getMethod(), request.getUri());
+        } else {
+            HttpResponse response = (HttpResponse) message;
+            copy = new DefaultHttpResponse(response.getProtocolVersion(), response.getStatus());
+        }
+        copyHeaders(message, copy);
+        return copy;
+    }
+
+    private FullHttpMessage fullCopy(HttpMessage message, ByteBuf content) {
+        FullHttpMessage copy;
+        if (message instanceof HttpRequest) {
+            HttpRequest request = (HttpRequest) message;
+            copy = new DefaultFullHttpRequest(request.getProtocolVersion(), request.getMethod(), request.getUri(), content);
+        } else {
+            HttpResponse response = (HttpResponse) message;
+            copy = new DefaultFullHttpResponse(response.getProtocolVersion(), response.getStatus(), content);
+        }
+        copyHeaders(message, copy);
+        return copy;
+    }
+
+    private void copyHeaders(HttpMessage message, HttpMessage copy) {
+        copy.headers().set(message.headers());
+        copy.headers().remove(HttpHeaders.Names.CONTENT_LENGTH);
+        if (decoder != null && encoder == null) {
+            copy.headers().remove(HttpHeaders.Names.CONTENT_ENCODING);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The directives of the Cache-Control header(s) of a message, as defined in
+ * RFC 7234, section 5.2, and the stale content extensions of RFC 5861. Directive names are case-insensitive. Arguments of
+ * directives that take a list of field names, such as no-cache="Set-Cookie",
+ * are kept as-is; callers treat such directives like their unqualified
+ * forms.
+ */
+final class CacheControl {
+    static final String NO_CACHE = "no-cache";
+    static final String NO_STORE = "no-store";
+    static final String MAX_AGE = "max-age";
+    static final String MAX_STALE = "max-stale";
+    static final String MIN_FRESH = "min-fresh";
+    static final String ONLY_IF_CACHED = "only-if-cached";
+    static final String PUBLIC = "public";
+    static final String PRIVATE = "private";
+    static final String MUST_REVALIDATE = "must-revalidate";
+    static final String PROXY_REVALIDATE = "proxy-revalidate";
+    static final String S_MAXAGE = "s-maxage";
+    static final String STALE_WHILE_REVALIDATE = "stale-while-revalidate";
+    static final String STALE_IF_ERROR = "stale-if-error";
+
+    private static final CacheControl EMPTY = new CacheControl(Collections.<String, String>emptyMap());
+
+    private final Map<String, String> directives;
+
+    private CacheControl(Map<String, String> directives) {
+        this.directives = directives;
+    }
+
+    /**
+     * Parses the Cache-Control directives of a request. Per RFC 7234, section
+     * 5.4, "Pragma: no-cache" is treated as "Cache-Control: no-cache" when the
+     * request has no Cache-Control header.
+     */
+    static CacheControl forRequest(HttpRequest request) {
+        HttpHeaders headers = request.headers();
+        if (!headers.contains(HttpHeaders.Names.CACHE_CONTROL)) {
+            for (String pragma : headers.getAll(HttpHeaders.Names.PRAGMA)) {
+                if (pragma.toLowerCase(Locale.US).contains(NO_CACHE)) {
+                    return new CacheControl(Collections.singletonMap(NO_CACHE, (String) null));
+                }
+            }
+        }
+
+        return parse(headers.getAll(HttpHeaders.Names.CACHE_CONTROL));
+    }
+
+    /**
+     * Parses the directives of the given Cache-Control header values.
+     */
+    static CacheControl parse(List<String> headerValues) {
+        if (headerValues.isEmpty()) {
+            return EMPTY;
+        }
+
+        Map<String, String> directives = new HashMap<String, String>();
+        for (String headerValue : headerValues) {
+            parseInto(headerValue, directives);
+        }
+
+        return new CacheControl(directives);
+    }
+
+    private static void parseInto(String headerValue, Map<String, String> directives) {
+        int length = headerValue.length();
+        int i = 0;
+        while (i < length) {
+            // directive name, up to '=', ',' or the end of the header
+            int nameStart = i;
+            while (i < length && headerValue.charAt(i) != '=' && headerValue.charAt(i) != ',') {
+                i++;
+            }
+            String name = headerValue.substring(nameStart, i).trim().toLowerCase(Locale.US);
+
+            String argument = null;
+            if (i < length && headerValue.charAt(i) == '=') {
+                i++;
+                while (i < length && headerValue.charAt(i) == ' ') {
+                    i++;
+                }
+                if (i < length && headerValue.charAt(i) == '"') {
+                    // quoted-string, which may contain commas
+                    int argumentStart = ++i;
+                    while (i < length && headerValue.charAt(i) != '"') {
+                        i++;
+                    }
+                    argument = headerValue.substring(argumentStart, i);
+                    while (i < length && headerValue.charAt(i) != ',') {
+                        i++;
+                    }
+                } else {
+                    int argumentStart = i;
+                    while (i < length && headerValue.charAt(i) != ',') {
+                        i++;
+                    }
+                    argument = headerValue.substring(argumentStart, i).trim();
+                }
+            }
+
+            // skip the comma
+            i++;
+
+            if (!name.isEmpty() && !directives.containsKey(name)) {
+                directives.put(name, argument);
+            }
+        }
+    }
+
+    boolean has(String directive) {
+        return directives.containsKey(directive);
+    }
+
+    /**
+     * Returns the value of a delta-seconds directive such as max-age, or -1 if
+     * the directive is absent or its value is invalid.
+     */
+    long getSeconds(String directive) {
+        String argument = directives.get(directive);
+        if (argument == null) {
+            return -1;
+        }
+
+        try {
+            long seconds = Long.parseLong(argument);
+            return seconds >= 0 ? seconds : -1;
+        } catch (NumberFormatException e) {
+            // RFC 7234, section 1.2.1: delta-seconds too large to represent are treated as "infinity"
+            return argument.matches("\\d+") ? Long.MAX_VALUE : -1;
+        }
+    }
+}
@@ -5,6 +5,7 @@ import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
 import io.netty.handler.codec.http.DefaultHttpRequest;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
@@ -21,27 +22,36 @@ import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.timeout.IdleStateHandler;
 import io.netty.handler.traffic.GlobalTrafficShapingHandler;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.PromiseNotifier;
 import org.apache.commons.lang3.StringUtils;
 import org.littleshoot.proxy.ActivityTracker;
+import org.littleshoot.proxy.AsyncHttpFilters;
+import org.littleshoot.proxy.BodyTransformingHttpFilters;
 import org.littleshoot.proxy.FlowContext;
 import org.littleshoot.proxy.FullFlowContext;
+import org.littleshoot.proxy.HttpBodyTransformer;
 import org.littleshoot.proxy.HttpFilters;
 import org.littleshoot.proxy.HttpFiltersAdapter;
 import org.littleshoot.proxy.ProxyAuthenticator;
 import org.littleshoot.proxy.SslEngineSource;
 
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLSession;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.UnknownHostException;
 import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -49,8 +59,11 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import static org.littleshoot.proxy.impl.ConnectionState.AWAITING_CHUNK;
+import static org.littleshoot.proxy.impl.ConnectionState.AWAITING_COLLAPSED_RESPONSE;
+import static org.littleshoot.proxy.impl.ConnectionState.AWAITING_FILTER_DECISION;
 import static org.littleshoot.proxy.impl.ConnectionState.AWAITING_INITIAL;
 import static org.littleshoot.proxy.impl.ConnectionState.AWAITING_PROXY_AUTHENTICATION;
+import static org.littleshoot.proxy.impl.ConnectionState.AWAITING_SERVER_ADDRESS;
 import static org.littleshoot.proxy.impl.ConnectionState.DISCONNECT_REQUESTED;
 import static org.littleshoot.proxy.impl.ConnectionState.NEGOTIATING_CONNECT;
 
@@ -95,6 +108,14 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      */
     private final Map<String, ProxyToServerConnection> serverConnectionsByHostAndPort = new ConcurrentHashMap<String, ProxyToServerConnection>();
 
+    /**
+     * Server connections that revalidate stale cached responses in the
+     * background, after the stale responses were sent to the client, and the
+     * cache exchanges of the revalidations. The responses to these connections
+     * are stored in the cache rather than sent to the client.
+     */
+    private final Map<ProxyToServerConnection, ResponseCache.Exchange> backgroundRevalidations = new ConcurrentHashMap<ProxyToServerConnection, ResponseCache.Exchange>();
+
     /**
      * Keep track of how many servers are currently in the process of
      * connecting.
@@ -125,6 +146,14 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      */
     private volatile HttpFilters currentFilters = HttpFiltersAdapter.NOOP_FILTER;
 
+    /**
+     * The response cache's view of the request that was last forwarded
+     * upstream, and the server connection it was forwarded to, if its response
+     * may be stored or invalidate stored responses.
+     */
+    private volatile ResponseCache.Exchange currentCacheExchange;
+    private volatile ProxyToServerConnection cacheExchangeServerConnection;
+
     private volatile SSLSession clientSslSession;
 
     /**
@@ -141,6 +170,24 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      */
     private volatile HttpRequest currentRequest;
 
+    /**
+     * The snapshot of the current request that was given to the filters. It is
+     * released when the next request is read or the client disconnects.
+     */
+    private HttpRequest originalRequest;
+
+    /**
+     * Transforms the body of the current request, if the filters asked for it.
+     */
+    private BodyTransformation requestBodyTransformation;
+
+    /**
+     * Messages read while waiting for an asynchronous filter decision or for
+     * the server's address to be resolved, which are handled once the wait is
+     * over.
+     */
+    private final Queue<Object> deferredMessages = new ArrayDeque<Object>();
+
     ClientToProxyConnection(
             final DefaultHttpProxyServer proxyServer,
             SslEngineSource sslEngineSource,
@@ -178,6 +225,18 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      * Reading
      **************************************************************************/
 
+    @Override
+    protected void read(Object msg) {
+        if (is(AWAITING_FILTER_DECISION) || is(AWAITING_SERVER_ADDRESS) || !deferredMessages.isEmpty()) {
+            // hold on to the message until we're done waiting, and handle the messages in the order they arrived
+            LOG.debug("Deferring message until the current request can be handled: {}", msg);
+            deferredMessages.add(ReferenceCountUtil.retain(msg));
+            return;
+        }
+
+        super.read(msg);
+    }
+
     @Override
     protected ConnectionState readHTTPInitial(HttpRequest httpRequest) {
         LOG.debug("Received raw request: {}", httpRequest);
@@ -189,7 +248,8 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
 
             FullHttpResponse response = ProxyUtils.createFullHttpResponse(HttpVersion.HTTP_1_1,
                     HttpResponseStatus.BAD_REQUEST,
-                    "Unable to parse HTTP request");
+                    "Unable to parse HTTP request",
+                    channel.alloc());
             HttpHeaders.setKeepAlive(response, false);
 
             respondWithShortCircuitResponse(response);
@@ -226,9 +286,50 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      * @return
      */
     private ConnectionState doReadHTTPInitial(HttpRequest httpRequest) {
-        // Make a copy of the original request
-        this.currentRequest = copy(httpRequest);
+        // Take a snapshot of the original request
+        releaseOriginalRequest();
+        this.originalRequest = snapshot(httpRequest);
+        this.currentRequest = originalRequest;
 
+        FilterOffloadExecutor filterOffloadExecutor = proxyServer.getFilterOffloadExecutor();
+        if (filterOffloadExecutor != null) {
+            return offloadRequestFilters(filterOffloadExecutor, httpRequest);
+        }
+
+        // Send the request through the clientToProxyRequest filter, and respond with the short-circuit response if required
+        HttpResponse clientToProxyFilterResponse = filterRequest(httpRequest);
+
+        if (clientToProxyFilterResponse != null) {
+            LOG.debug("Responding to client with short-circuit response from filter: {}", clientToProxyFilterResponse);
+
+            boolean keepAlive = respondWithShortCircuitResponse(clientToProxyFilterResponse);
+            if (keepAlive) {
+                return AWAITING_INITIAL;
+            } else {
+                return DISCONNECT_REQUESTED;
+            }
+        }
+
+        if (currentFilters instanceof AsyncHttpFilters) {
+            Future<HttpResponse> filterDecision = ((AsyncHttpFilters) currentFilters).clientToProxyRequestAsync(httpRequest);
+            if (!filterDecision.isDone()) {
+                return awaitFilterDecision(httpRequest, filterDecision);
+            }
+
+            return filterDecisionMade(httpRequest, filterDecision);
+        }
+
+        return doReadFilteredHTTPInitial(httpRequest);
+    }
+
+    /**
+     * Sets up the filters for the request and sends the request through their
+     * clientToProxyRequest filter.
+     *
+     * @param httpRequest
+     * @return the short-circuit response from the filter, or null to continue
+     */
+    private HttpResponse filterRequest(HttpRequest httpRequest) {
         // Set up our filters based on the original request. If the HttpFiltersSource returns null (meaning the request/response
         // should not be filtered), fall back to the default no-op filter source.
         HttpFilters filterInstance = proxyServer.getFiltersSource().filterRequest(currentRequest, ctx);
@@ -238,13 +339,131 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
             currentFilters = HttpFiltersAdapter.NOOP_FILTER;
         }
 
-        // Send the request through the clientToProxyRequest filter, and respond with the short-circuit response if required
-        HttpResponse clientToProxyFilterResponse = currentFilters.clientToProxyRequest(httpRequest);
+        return currentFilters.clientToProxyRequest(httpRequest);
+    }
 
-        if (clientToProxyFilterResponse != null) {
-            LOG.debug("Responding to client with short-circuit response from filter: {}", clientToProxyFilterResponse);
+    /**
+     * Runs the request filters on the filter offload executor, and stops
+     * reading from the client until they have decided whether to let the
+     * request through. If the executor is saturated, the client receives a 503
+     * Service Unavailable response instead.
+     */
+    private ConnectionState offloadRequestFilters(FilterOffloadExecutor filterOffloadExecutor, final HttpRequest httpRequest) {
+        final Promise<HttpResponse> filterDecision = channel.eventLoop().newPromise();
+        try {
+            // the request is retained by awaitFilterDecision() before the read completes and releases it
+            Future<Void> filtered = filterOffloadExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    HttpResponse clientToProxyFilterResponse = filterRequest(httpRequest);
+                    if (clientToProxyFilterResponse == null && currentFilters instanceof AsyncHttpFilters) {
+                        ((AsyncHttpFilters) currentFilters).clientToProxyRequestAsync(httpRequest)
+                                .addListener(new PromiseNotifier<HttpResponse, Future<HttpResponse>>(filterDecision));
+                    } else {
+                        filterDecision.setSuccess(clientToProxyFilterResponse);
+                    }
+                    return null;
+                }
+            }, channel.eventLoop());
+            filtered.addListener(new GenericFutureListener<Future<Void>>() {
+                @Override
+                public void operationComplete(Future<Void> future) {
+                    if (!future.isSuccess()) {
+                        filterDecision.tryFailure(future.cause());
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOG.warn("Filter offload executor is saturated, rejecting request to {}", httpRequest.getUri());
+            boolean keepAlive = writeServiceUnavailable(httpRequest);
+            if (keepAlive) {
+                return AWAITING_INITIAL;
+            } else {
+                return DISCONNECT_REQUESTED;
+            }
+        }
 
-            boolean keepAlive = respondWithShortCircuitResponse(clientToProxyFilterResponse);
+        return awaitFilterDecision(httpRequest, filterDecision);
+    }
+
+    /**
+     * Stops reading from the client until an asynchronous filter has decided
+     * whether to let the request through.
+     */
+    private ConnectionState awaitFilterDecision(HttpRequest httpRequest, Future<HttpResponse> filterDecision) {
+        LOG.debug("Waiting for the asynchronous filter decision on {}", httpRequest.getUri());
+        stopReading();
+
+        // the request is released once it has been read, so keep it until the decision has been made
+        final HttpRequest deferredRequest = ReferenceCountUtil.retain(httpRequest);
+        filterDecision.addListener(new GenericFutureListener<Future<HttpResponse>>() {
+            @Override
+            public void operationComplete(final Future<HttpResponse> future) {
+                channel.eventLoop().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        resumeAfterFilterDecision(deferredRequest, future);
+                    }
+                });
+            }
+        });
+
+        return AWAITING_FILTER_DECISION;
+    }
+
+    /**
+     * Continues handling the request, and the messages that were read while
+     * waiting, once an asynchronous filter has made its decision.
+     */
+    private void resumeAfterFilterDecision(HttpRequest httpRequest, Future<HttpResponse> filterDecision) {
+        try {
+            if (!is(AWAITING_FILTER_DECISION)) {
+                // the client disconnected while waiting
+                return;
+            }
+
+            // resume before handling the request, so that handling it can stop reading again if necessary
+            resumeReading();
+            become(filterDecisionMade(httpRequest, filterDecision));
+        } finally {
+            ReferenceCountUtil.release(httpRequest);
+        }
+
+        readDeferredMessages();
+    }
+
+    /**
+     * Handles the messages that were read while waiting, in the order they
+     * arrived, until handling one of them makes us wait again.
+     */
+    private void readDeferredMessages() {
+        Object msg;
+        while (!is(AWAITING_FILTER_DECISION) && !is(AWAITING_SERVER_ADDRESS)
+                && (msg = deferredMessages.poll()) != null) {
+            try {
+                super.read(msg);
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+    }
+
+    private ConnectionState filterDecisionMade(HttpRequest httpRequest, Future<HttpResponse> filterDecision) {
+        if (!filterDecision.isSuccess()) {
+            LOG.warn("Asynchronous filter failed to decide on request to {}", httpRequest.getUri(), filterDecision.cause());
+            boolean keepAlive = writeBadGateway(httpRequest);
+            if (keepAlive) {
+                return AWAITING_INITIAL;
+            } else {
+                return DISCONNECT_REQUESTED;
+            }
+        }
+
+        HttpResponse filterResponse = filterDecision.getNow();
+        if (filterResponse != null) {
+            LOG.debug("Responding to client with short-circuit response from asynchronous filter: {}", filterResponse);
+
+            boolean keepAlive = respondWithShortCircuitResponse(filterResponse);
             if (keepAlive) {
                 return AWAITING_INITIAL;
             } else {
@@ -252,6 +471,37 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
             }
         }
 
+        return doReadFilteredHTTPInitial(httpRequest);
+    }
+
+    /**
+     * Handles an initial request that the filters have let through, applying
+     * the filters' body transformer if they asked for one.
+     *
+     * @param httpRequest
+     * @return
+     */
+    private ConnectionState doReadFilteredHTTPInitial(HttpRequest httpRequest) {
+        HttpRequest transformedRequest = transformRequestBody(httpRequest);
+        try {
+            return answerOrForwardRequest(transformedRequest);
+        } finally {
+            if (transformedRequest != httpRequest) {
+                // unlike the request read from the client, nothing else releases a transformed FullHttpRequest. the
+                // server connection has retained it if it is writing it.
+                ReferenceCountUtil.release(transformedRequest);
+            }
+        }
+    }
+
+    /**
+     * Answers the request from the cache if possible, or forwards it to its
+     * server.
+     *
+     * @param httpRequest
+     * @return
+     */
+    private ConnectionState answerOrForwardRequest(HttpRequest httpRequest) {
         // if origin-form requests are not explicitly enabled, short-circuit requests that treat the proxy as the
         // origin server, to avoid infinite loops
         if (!proxyServer.isAllowRequestsToOriginServer() && isRequestToOriginServer(httpRequest)) {
@@ -263,6 +513,77 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
             }
         }
 
+        // answer the request from the response cache, if possible
+        finishCacheExchange();
+        ResponseCache.Exchange cacheExchange = null;
+        final ResponseCache responseCache = proxyServer.getResponseCache();
+        if (responseCache != null && !ProxyUtils.isCONNECT(httpRequest)) {
+            final String cacheKey = ResponseCache.cacheKey(httpRequest, isMitming());
+            if (cacheKey != null) {
+                HttpResponse cachedResponse = lookupCachedResponse(responseCache, cacheKey, httpRequest);
+                if (cachedResponse == null && ResponseCache.isOnlyIfCached(httpRequest)) {
+                    cachedResponse = ProxyUtils.createFullHttpResponse(HttpVersion.HTTP_1_1,
+                            HttpResponseStatus.GATEWAY_TIMEOUT, "Gateway Timeout", channel.alloc());
+                }
+
+                if (cachedResponse != null) {
+                    return respondFromCache(httpRequest, cachedResponse);
+                }
+
+                // if an identical request is already being forwarded, stop reading from the client until its response
+                // has been received, rather than forwarding this request as well
+                final HttpRequest collapsedRequest = httpRequest;
+                cacheExchange = responseCache.newExchange(cacheKey, httpRequest, new Runnable() {
+                    @Override
+                    public void run() {
+                        channel.eventLoop().execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                collapsedResponseReceived(responseCache, cacheKey, collapsedRequest);
+                            }
+                        });
+                    }
+                });
+                if (cacheExchange == null) {
+                    LOG.debug("Waiting for the response to an identical request for {}", cacheKey);
+                    stopReading();
+                    return AWAITING_COLLAPSED_RESPONSE;
+                }
+            }
+        }
+
+        return forwardRequest(httpRequest, cacheExchange);
+    }
+
+    /**
+     * Forwards the request to its server. If the request turns out not to be
+     * forwarded, e.g. because a filter short-circuits it, the cache exchange
+     * is finished right away.
+     *
+     * @param httpRequest
+     * @param cacheExchange
+     *            the response cache's exchange for the request, or null if its
+     *            response will not be cached
+     * @return
+     */
+    private ConnectionState forwardRequest(HttpRequest httpRequest, ResponseCache.Exchange cacheExchange) {
+        ConnectionState nextState = writeRequestToServer(httpRequest, cacheExchange);
+        if (cacheExchange != null && currentCacheExchange != cacheExchange) {
+            cacheExchange.finish();
+        }
+
+        return nextState;
+    }
+
+    /**
+     * Writes the request to its server, creating the
+     * {@link ProxyToServerConnection} if necessary.
+     *
+     * @param httpRequest
+     * @param cacheExchange
+     * @return
+     */
+    private ConnectionState writeRequestToServer(HttpRequest httpRequest, ResponseCache.Exchange cacheExchange) {
         // Identify our server and chained proxy
         String serverHostAndPort = identifyHostAndPort(httpRequest);
 
@@ -296,29 +617,15 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         }
 
         if (newConnectionRequired) {
-            try {
-                currentServerConnection = ProxyToServerConnection.create(
-                        proxyServer,
-                        this,
-                        serverHostAndPort,
-                        currentFilters,
-                        httpRequest,
-                        globalTrafficShapingHandler);
-                if (currentServerConnection == null) {
-                    LOG.debug("Unable to create server connection, probably no chained proxies available");
-                    boolean keepAlive = writeBadGateway(httpRequest);
-                    resumeReading();
-                    if (keepAlive) {
-                        return AWAITING_INITIAL;
-                    } else {
-                        return DISCONNECT_REQUESTED;
-                    }
-                }
-                // Remember the connection for later
-                serverConnectionsByHostAndPort.put(serverHostAndPort,
-                        currentServerConnection);
-            } catch (UnknownHostException uhe) {
-                LOG.info("Bad Host {}", httpRequest.getUri());
+            currentServerConnection = ProxyToServerConnection.create(
+                    proxyServer,
+                    this,
+                    serverHostAndPort,
+                    currentFilters,
+                    httpRequest,
+                    globalTrafficShapingHandler);
+            if (currentServerConnection == null) {
+                LOG.debug("Unable to create server connection, probably no chained proxies available");
                 boolean keepAlive = writeBadGateway(httpRequest);
                 resumeReading();
                 if (keepAlive) {
@@ -327,18 +634,119 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
                     return DISCONNECT_REQUESTED;
                 }
             }
+            // Remember the connection for later
+            serverConnectionsByHostAndPort.put(serverHostAndPort,
+                    currentServerConnection);
         } else {
             LOG.debug("Reusing existing server connection: {}",
                     currentServerConnection);
             numberOfReusedServerConnections.incrementAndGet();
         }
 
-        modifyRequestHeadersToReflectProxying(httpRequest);
+        Future<InetSocketAddress> resolution = currentServerConnection.getRemoteAddressResolution();
+        if (newConnectionRequired && resolution != null && !resolution.isDone()) {
+            return awaitServerAddress(httpRequest, cacheExchange, currentServerConnection, resolution);
+        }
+
+        return writeRequestToResolvedServer(httpRequest, cacheExchange, currentServerConnection, resolution);
+    }
+
+    /**
+     * Stops reading from the client until the address of the server has been
+     * resolved, so that the request is only filtered and forwarded once we
+     * know that the server can be reached.
+     */
+    private ConnectionState awaitServerAddress(HttpRequest httpRequest,
+            final ResponseCache.Exchange cacheExchange,
+            final ProxyToServerConnection serverConnection,
+            Future<InetSocketAddress> resolution) {
+        LOG.debug("Waiting for the address of {} to be resolved", serverConnection.getServerHostAndPort());
+        stopReading();
+
+        // keep following the cache exchange while waiting, so that a failed lookup can still serve a stale response
+        if (cacheExchange != null) {
+            currentCacheExchange = cacheExchange;
+            cacheExchangeServerConnection = serverConnection;
+        }
+
+        // the request is released once it has been read, so keep it until the address has been resolved
+        final HttpRequest deferredRequest = ReferenceCountUtil.retain(httpRequest);
+        resolution.addListener(new GenericFutureListener<Future<InetSocketAddress>>() {
+            @Override
+            public void operationComplete(final Future<InetSocketAddress> future) {
+                channel.eventLoop().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        resumeAfterServerAddressResolved(deferredRequest, cacheExchange, serverConnection, future);
+                    }
+                });
+            }
+        });
+
+        return AWAITING_SERVER_ADDRESS;
+    }
+
+    /**
+     * Continues handling the request, and the messages that were read while
+     * waiting, once the address of its server has been resolved.
+     */
+    private void resumeAfterServerAddressResolved(HttpRequest httpRequest,
+            ResponseCache.Exchange cacheExchange,
+            ProxyToServerConnection serverConnection,
+            Future<InetSocketAddress> resolution) {
+        try {
+            if (!is(AWAITING_SERVER_ADDRESS)) {
+                // the client disconnected while waiting
+                return;
+            }
+
+            // resume before handling the request, so that handling it can stop reading again if necessary
+            resumeReading();
+            become(writeRequestToResolvedServer(httpRequest, cacheExchange, serverConnection, resolution));
+        } finally {
+            ReferenceCountUtil.release(httpRequest);
+        }
+
+        readDeferredMessages();
+    }
+
+    /**
+     * Filters the request and writes it to the server, unless the server's
+     * address could not be resolved.
+     *
+     * @param httpRequest
+     * @param cacheExchange
+     * @param serverConnection
+     * @param resolution
+     *            the resolution of the server's address, or null if it doesn't
+     *            need to be resolved
+     * @return
+     */
+    private ConnectionState writeRequestToResolvedServer(HttpRequest httpRequest,
+            ResponseCache.Exchange cacheExchange,
+            ProxyToServerConnection serverConnection,
+            Future<InetSocketAddress> resolution) {
+        if (resolution != null && resolution.isDone() && !resolution.isSuccess()) {
+            LOG.info("Bad Host {}", httpRequest.getUri());
+            if (cacheExchange != null) {
+                currentCacheExchange = cacheExchange;
+                cacheExchangeServerConnection = serverConnection;
+            }
+            connectionFailedUnrecoverably(httpRequest, serverConnection);
+            return getCurrentState();
+        }
+
+        modifyRequestHeadersToReflectProxying(httpRequest, serverConnection);
 
         HttpResponse proxyToServerFilterResponse = currentFilters.proxyToServerRequest(httpRequest);
         if (proxyToServerFilterResponse != null) {
             LOG.debug("Responding to client with short-circuit response from filter: {}", proxyToServerFilterResponse);
 
+            if (currentCacheExchange == cacheExchange) {
+                // we were following the exchange while waiting for the server's address
+                finishCacheExchange();
+            }
+
             boolean keepAlive = respondWithShortCircuitResponse(proxyToServerFilterResponse);
             if (keepAlive) {
                 return AWAITING_INITIAL;
@@ -347,8 +755,14 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
             }
         }
 
+        if (cacheExchange != null) {
+            cacheExchange.addValidators();
+            currentCacheExchange = cacheExchange;
+            cacheExchangeServerConnection = serverConnection;
+        }
+
         LOG.debug("Writing request to ProxyToServerConnection");
-        currentServerConnection.write(httpRequest, currentFilters);
+        serverConnection.write(httpRequest, currentFilters);
 
         // Figure out our next state
         if (ProxyUtils.isCONNECT(httpRequest)) {
@@ -360,6 +774,136 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         }
     }
 
+    /**
+     * Looks for a cached response to the request. Stale responses are only
+     * used if they can be revalidated in the background.
+     */
+    private HttpResponse lookupCachedResponse(ResponseCache responseCache, String cacheKey, HttpRequest httpRequest) {
+        HttpResponse cachedResponse = responseCache.lookup(cacheKey, httpRequest);
+        if (cachedResponse != null && ResponseCache.isStale(cachedResponse)
+                && !revalidateInBackground(responseCache, cacheKey, httpRequest)) {
+            return null;
+        }
+
+        return cachedResponse;
+    }
+
+    /**
+     * Revalidates the stale cached response to the request over a separate
+     * server connection, whose response is stored in the cache rather than
+     * sent to the client. The revalidation bypasses the filters, since the
+     * client has already been answered. Stale responses can't be revalidated
+     * in the background while tunneling or MITMing, since the server
+     * connection has to be the one set up by the CONNECT.
+     *
+     * @return true if the response is being revalidated in the background
+     */
+    private boolean revalidateInBackground(ResponseCache responseCache, String cacheKey, HttpRequest httpRequest) {
+        if (isMitming() || isTunneling()) {
+            return false;
+        }
+
+        String serverHostAndPort = identifyHostAndPort(httpRequest);
+        if (StringUtils.isBlank(serverHostAndPort)) {
+            return false;
+        }
+
+        FullHttpRequest revalidationRequest = new DefaultFullHttpRequest(httpRequest.getProtocolVersion(),
+                httpRequest.getMethod(), httpRequest.getUri());
+        revalidationRequest.headers().set(httpRequest.headers());
+
+        ResponseCache.Exchange cacheExchange = responseCache.newBackgroundRevalidation(cacheKey, revalidationRequest);
+        if (cacheExchange == null) {
+            LOG.debug("Stale cached response for {} is already being revalidated", cacheKey);
+            return true;
+        }
+
+        ProxyToServerConnection serverConnection = ProxyToServerConnection.create(
+                proxyServer,
+                this,
+                serverHostAndPort,
+                HttpFiltersAdapter.NOOP_FILTER,
+                revalidationRequest,
+                globalTrafficShapingHandler);
+        if (serverConnection == null) {
+            cacheExchange.finish();
+            return false;
+        }
+
+        LOG.debug("Revalidating stale cached response for {} in the background", cacheKey);
+        backgroundRevalidations.put(serverConnection, cacheExchange);
+
+        modifyRequestHeadersToReflectProxying(revalidationRequest, serverConnection);
+        cacheExchange.addValidators();
+        serverConnection.write(revalidationRequest, HttpFiltersAdapter.NOOP_FILTER);
+        revalidationRequest.release();
+
+        return true;
+    }
+
+    /**
+     * Finishes the current cache exchange after its request failed, and
+     * returns the stale cached response to send to the client instead of an
+     * error response, if stale-if-error allows it.
+     */
+    private HttpResponse finishCacheExchangeWithError() {
+        ResponseCache.Exchange cacheExchange = currentCacheExchange;
+        if (cacheExchange == null) {
+            return null;
+        }
+
+        HttpResponse staleResponse = cacheExchange.staleIfError();
+        finishCacheExchange();
+
+        return staleResponse;
+    }
+
+    private ConnectionState respondFromCache(HttpRequest httpRequest, HttpResponse cachedResponse) {
+        LOG.debug("Responding to client from cache: {}", cachedResponse);
+
+        HttpHeaders.setKeepAlive(cachedResponse, HttpHeaders.isKeepAlive(httpRequest));
+        boolean keepAlive = respondWithShortCircuitResponse(cachedResponse);
+        if (keepAlive) {
+            return AWAITING_INITIAL;
+        } else {
+            return DISCONNECT_REQUESTED;
+        }
+    }
+
+    /**
+     * Called once the response to an identical request that this request was
+     * waiting for has been received. Answers the request from the cache, or
+     * forwards it if the response could not be stored.
+     */
+    private void collapsedResponseReceived(ResponseCache responseCache, String cacheKey, HttpRequest httpRequest) {
+        if (getCurrentState() != AWAITING_COLLAPSED_RESPONSE) {
+            // the client disconnected while waiting
+            return;
+        }
+
+        resumeReading();
+
+        HttpResponse cachedResponse = lookupCachedResponse(responseCache, cacheKey, httpRequest);
+        if (cachedResponse != null) {
+            become(respondFromCache(httpRequest, cachedResponse));
+        } else {
+            LOG.debug("Response to identical request could not be used, forwarding request for {}", cacheKey);
+            become(forwardRequest(httpRequest, responseCache.newExchange(cacheKey, httpRequest, null)));
+        }
+    }
+
+    /**
+     * Finishes following the current cache exchange, if any, so that
+     * identical requests waiting for it can continue.
+     */
+    private void finishCacheExchange() {
+        ResponseCache.Exchange cacheExchange = currentCacheExchange;
+        currentCacheExchange = null;
+        if (cacheExchange != null) {
+            cacheExchange.finish();
+        }
+    }
+
     /**
      * Returns true if the specified request is a request to an origin server, rather than to a proxy server. If this
      * request is being MITM'd, this method always returns false. The format of requests to a proxy server are defined
@@ -395,9 +939,70 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
     @Override
     protected void readHTTPChunk(HttpContent chunk) {
         currentFilters.clientToProxyRequest(chunk);
-        currentFilters.proxyToServerRequest(chunk);
 
-        currentServerConnection.write(chunk);
+        HttpContent transformedChunk = chunk;
+        if (requestBodyTransformation != null) {
+            transformedChunk = (HttpContent) requestBodyTransformation.transform(chunk);
+            if (ProxyUtils.isLastChunk(chunk)) {
+                requestBodyTransformation = null;
+            }
+        }
+
+        currentFilters.proxyToServerRequest(transformedChunk);
+
+        currentServerConnection.write(transformedChunk);
+
+        if (transformedChunk != chunk) {
+            transformedChunk.release();
+        }
+    }
+
+    /**
+     * Starts applying the filters' {@link HttpBodyTransformer} to the body of
+     * the request, if they asked for one.
+     *
+     * @return the request to forward in place of the given request
+     */
+    private HttpRequest transformRequestBody(HttpRequest httpRequest) {
+        releaseRequestBodyTransformation();
+
+        boolean hasBody = HttpHeaders.isTransferEncodingChunked(httpRequest)
+                || HttpHeaders.getContentLength(httpRequest, 0) > 0;
+        if (!hasBody || ProxyUtils.isCONNECT(httpRequest)
+                || !(currentFilters instanceof BodyTransformingHttpFilters)) {
+            return httpRequest;
+        }
+
+        HttpBodyTransformer transformer = ((BodyTransformingHttpFilters) currentFilters).requestBodyTransformer(httpRequest);
+        if (transformer == null) {
+            return httpRequest;
+        }
+
+        requestBodyTransformation = BodyTransformation.start(transformer, httpRequest, channel.alloc());
+        if (requestBodyTransformation == null) {
+            return httpRequest;
+        }
+
+        HttpRequest transformedRequest = (HttpRequest) requestBodyTransformation.transform(httpRequest);
+        if (ProxyUtils.isLastChunk(httpRequest)) {
+            // the whole body was buffered, and has been transformed already
+            requestBodyTransformation = null;
+        }
+        return transformedRequest;
+    }
+
+    private void releaseRequestBodyTransformation() {
+        if (requestBodyTransformation != null) {
+            requestBodyTransformation.release();
+            requestBodyTransformation = null;
+        }
+    }
+
+    private void releaseDeferredMessages() {
+        Object msg;
+        while ((msg = deferredMessages.poll()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
     }
 
     @Override
@@ -428,6 +1033,15 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
     void respond(ProxyToServerConnection serverConnection, HttpFilters filters,
             HttpRequest currentHttpRequest, HttpResponse currentHttpResponse,
             HttpObject httpObject) {
+        ResponseCache.Exchange backgroundRevalidation = backgroundRevalidations.get(serverConnection);
+        if (backgroundRevalidation != null) {
+            backgroundRevalidation.responseReceived(httpObject);
+            if (backgroundRevalidation.isFinished()) {
+                serverConnection.disconnect();
+            }
+            return;
+        }
+
         // we are sending a response to the client, so we are done handling this request
         this.currentRequest = null;
 
@@ -437,6 +1051,34 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
             return;
         }
 
+        HttpObject transformedObject = serverConnection.transformResponseBody(filters, httpObject);
+        respondWithFilteredObject(serverConnection, filters, currentHttpRequest, currentHttpResponse, transformedObject);
+        if (transformedObject != httpObject) {
+            // unlike the objects read from the server, nothing else releases a transformed object. the write has
+            // retained it.
+            ReferenceCountUtil.release(transformedObject);
+        }
+    }
+
+    /**
+     * Sends an object of a response that has passed through the
+     * serverToProxyResponse filter on to the response cache and the client.
+     */
+    private void respondWithFilteredObject(ProxyToServerConnection serverConnection, HttpFilters filters,
+            HttpRequest currentHttpRequest, HttpResponse currentHttpResponse,
+            HttpObject httpObject) {
+        ResponseCache.Exchange cacheExchange = currentCacheExchange;
+        if (cacheExchange != null && serverConnection == cacheExchangeServerConnection) {
+            httpObject = cacheExchange.responseReceived(httpObject);
+            if (cacheExchange.isFinished()) {
+                currentCacheExchange = null;
+            }
+            if (httpObject == null) {
+                // the rest of a 304 response that was replaced by the refreshed cached response
+                return;
+            }
+        }
+
         if (httpObject instanceof HttpResponse) {
             HttpResponse httpResponse = (HttpResponse) httpObject;
 
@@ -521,7 +1163,18 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
             // the idle timeout fired on the active server connection. send a timeout response to the client.
             LOG.warn("Server timed out: {}", currentServerConnection);
             currentFilters.serverToProxyResponseTimedOut();
-            writeGatewayTimeout(currentRequest);
+            HttpResponse staleResponse = currentRequest != null ? finishCacheExchangeWithError() : null;
+            if (staleResponse != null) {
+                LOG.debug("Responding to client with stale cached response: {}", staleResponse);
+                respondWithShortCircuitResponse(staleResponse);
+            } else {
+                finishCacheExchange();
+                writeGatewayTimeout(currentRequest);
+            }
+        } else if (backgroundRevalidations.containsKey(serverConnection)) {
+            LOG.debug("Background revalidation timed out: {}", serverConnection);
+            backgroundRevalidations.get(serverConnection).finish();
+            serverConnection.disconnect();
         }
     }
 
@@ -534,18 +1187,42 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
     }
 
     /**
-     * On disconnect of the client, disconnect all server connections.
+     * On disconnect of the client, return idle server connections to the
+     * proxy's connection pool (if pooling is enabled) and disconnect all other
+     * server connections. Background revalidations are left running, since
+     * clients that don't keep their connections alive usually disconnect
+     * before the revalidated response arrives. They finish on their own once
+     * the response is stored, the server connection fails or times out, or
+     * the proxy is stopped.
      */
     @Override
     protected void disconnected() {
         super.disconnected();
+        finishCacheExchange();
+        releaseOriginalRequest();
+        releaseRequestBodyTransformation();
+        releaseDeferredMessages();
         for (ProxyToServerConnection serverConnection : serverConnectionsByHostAndPort
                 .values()) {
-            serverConnection.disconnect();
+            releaseOrDisconnect(serverConnection);
         }
         recordClientDisconnected();
     }
 
+    /**
+     * Returns the server connection's channel to the proxy's connection pool
+     * if possible, otherwise disconnects it.
+     * 
+     * @param serverConnection
+     */
+    private void releaseOrDisconnect(ProxyToServerConnection serverConnection) {
+        if (serverConnection.releaseToPool()) {
+            serverConnectionsByHostAndPort.remove(serverConnection.getServerHostAndPort());
+        } else {
+            serverConnection.disconnect();
+        }
+    }
+
     /**
      * Called when {@link ProxyToServerConnection} starts its connection flow.
      * 
@@ -553,6 +1230,11 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      */
     protected void serverConnectionFlowStarted(
             ProxyToServerConnection serverConnection) {
+        if (backgroundRevalidations.containsKey(serverConnection)) {
+            // the client doesn't have to wait for a background revalidation
+            return;
+        }
+
         stopReading();
         this.numberOfCurrentlyConnectingServers.incrementAndGet();
     }
@@ -569,6 +1251,10 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
             boolean shouldForwardInitialRequest) {
         LOG.debug("Connection to server succeeded: {}",
                 serverConnection.getRemoteAddress());
+        if (backgroundRevalidations.containsKey(serverConnection)) {
+            return;
+        }
+
         resumeReadingIfNecessary();
         become(shouldForwardInitialRequest ? getCurrentState()
                 : AWAITING_INITIAL);
@@ -602,24 +1288,28 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
             ProxyToServerConnection serverConnection,
             ConnectionState lastStateBeforeFailure,
             Throwable cause) {
+        ResponseCache.Exchange backgroundRevalidation = backgroundRevalidations.get(serverConnection);
+        if (backgroundRevalidation != null) {
+            LOG.debug("Connection to server for background revalidation failed: {}",
+                    serverConnection.getRemoteAddress(), cause);
+            backgroundRevalidation.finish();
+            serverConnection.disconnect();
+            return false;
+        }
+
         resumeReadingIfNecessary();
         HttpRequest initialRequest = serverConnection.getInitialRequest();
-        try {
-            boolean retrying = serverConnection.connectionFailed(cause);
-            if (retrying) {
-                LOG.debug("Failed to connect to upstream server or chained proxy. Retrying connection. Last state before failure: {}",
-                        lastStateBeforeFailure, cause);
-                return true;
-            } else {
-                LOG.debug(
-                        "Connection to upstream server or chained proxy failed: {}.  Last state before failure: {}",
-                        serverConnection.getRemoteAddress(),
-                        lastStateBeforeFailure,
-                        cause);
-                connectionFailedUnrecoverably(initialRequest, serverConnection);
-                return false;
-            }
-        } catch (UnknownHostException uhe) {
+        boolean retrying = serverConnection.connectionFailed(cause);
+        if (retrying) {
+            LOG.debug("Failed to connect to upstream server or chained proxy. Retrying connection. Last state before failure: {}",
+                    lastStateBeforeFailure, cause);
+            return true;
+        } else {
+            LOG.debug(
+                    "Connection to upstream server or chained proxy failed: {}.  Last state before failure: {}",
+                    serverConnection.getRemoteAddress(),
+                    lastStateBeforeFailure,
+                    cause);
             connectionFailedUnrecoverably(initialRequest, serverConnection);
             return false;
         }
@@ -631,6 +1321,12 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         serverConnection.disconnect();
         this.serverConnectionsByHostAndPort.remove(serverConnection.getServerHostAndPort());
 
+        HttpResponse staleResponse = serverConnection == cacheExchangeServerConnection ? finishCacheExchangeWithError() : null;
+        if (staleResponse != null) {
+            become(respondFromCache(initialRequest, staleResponse));
+            return;
+        }
+
         boolean keepAlive = writeBadGateway(initialRequest);
         if (keepAlive) {
             become(AWAITING_INITIAL);
@@ -657,8 +1353,19 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      * @param serverConnection
      */
     protected void serverDisconnected(ProxyToServerConnection serverConnection) {
+        ResponseCache.Exchange backgroundRevalidation = backgroundRevalidations.remove(serverConnection);
+        if (backgroundRevalidation != null) {
+            backgroundRevalidation.finish();
+            return;
+        }
+
         numberOfCurrentlyConnectedServers.decrementAndGet();
 
+        // a response that was cut off will never be stored
+        if (serverConnection == cacheExchangeServerConnection) {
+            finishCacheExchange();
+        }
+
         // for non-SSL connections, do not disconnect the client from the proxy, even if this was the last server connection.
         // this allows clients to continue to use the open connection to the proxy to make future requests. for SSL
         // connections, whether we are tunneling or MITMing, we need to disconnect the client because there is always
@@ -779,8 +1486,12 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
     private void initChannelPipeline(ChannelPipeline pipeline) {
         LOG.debug("Configuring ChannelPipeline");
 
-        pipeline.addLast("bytesReadMonitor", bytesReadMonitor);
-        pipeline.addLast("bytesWrittenMonitor", bytesWrittenMonitor);
+        // the monitors only report to activity trackers, so leave them out if there are none
+        boolean trackingActivity = proxyServer.isTrackingActivity();
+        if (trackingActivity) {
+            pipeline.addLast("bytesReadMonitor", bytesReadMonitor);
+            pipeline.addLast("bytesWrittenMonitor", bytesWrittenMonitor);
+        }
 
         pipeline.addLast("encoder", new HttpResponseEncoder());
         // We want to allow longer request lines, headers, and chunks
@@ -797,8 +1508,10 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
             aggregateContentForFiltering(pipeline, numberOfBytesToBuffer);
         }
 
-        pipeline.addLast("requestReadMonitor", requestReadMonitor);
-        pipeline.addLast("responseWrittenMonitor", responseWrittenMonitor);
+        if (trackingActivity) {
+            pipeline.addLast("requestReadMonitor", requestReadMonitor);
+            pipeline.addLast("responseWrittenMonitor", responseWrittenMonitor);
+        }
 
         pipeline.addLast(
                 "idle",
@@ -1018,11 +1731,11 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
                 + "browser doesn't understand how to supply\n"
                 + "the credentials required.</p>\n" + "</body></html>\n";
         FullHttpResponse response = ProxyUtils.createFullHttpResponse(HttpVersion.HTTP_1_1,
-                HttpResponseStatus.PROXY_AUTHENTICATION_REQUIRED, body);
+                HttpResponseStatus.PROXY_AUTHENTICATION_REQUIRED, body, channel.alloc());
         HttpHeaders.setDate(response, new Date());
         response.headers().set("Proxy-Authenticate",
                 "Basic realm=\"" + (realm == null ? "Restricted Files" : realm) + "\"");
-        write(response);
+        doWrite(response);
     }
 
     /***************************************************************************
@@ -1030,14 +1743,25 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      **************************************************************************/
 
     /**
-     * Copy the given {@link HttpRequest} verbatim.
+     * Takes a snapshot of the given {@link HttpRequest}, so that the filters
+     * see the request as it was received even if they modify it. The initial
+     * line and headers are copied, but the body of a {@link FullHttpRequest} is
+     * shared through a read-only view rather than copied, so a filter that
+     * changes the bytes of the body in place rather than replacing it changes
+     * the snapshot as well. The snapshot retains the body until it is released.
      * 
      * @param original
      * @return
      */
-    private HttpRequest copy(HttpRequest original) {
+    private HttpRequest snapshot(HttpRequest original) {
         if (original instanceof FullHttpRequest) {
-            return ((FullHttpRequest) original).copy();
+            FullHttpRequest fullRequest = (FullHttpRequest) original;
+            FullHttpRequest request = new DefaultFullHttpRequest(original.getProtocolVersion(),
+                    original.getMethod(), original.getUri(),
+                    Unpooled.unmodifiableBuffer(fullRequest.content().retain()));
+            request.headers().set(original.headers());
+            request.trailingHeaders().set(fullRequest.trailingHeaders());
+            return request;
         } else {
             HttpRequest request = new DefaultHttpRequest(original.getProtocolVersion(),
                     original.getMethod(), original.getUri());
@@ -1046,6 +1770,13 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         }
     }
 
+    private void releaseOriginalRequest() {
+        if (originalRequest != null) {
+            ReferenceCountUtil.release(originalRequest);
+            originalRequest = null;
+        }
+    }
+
     /**
      * Chunked encoding is an HTTP 1.1 feature, but sometimes we get a chunked
      * response that reports its HTTP version as 1.0. In this case, we change it
@@ -1070,9 +1801,12 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      * request headers to reflect that it was proxied.
      * 
      * @param httpRequest
+     * @param serverConnection
+     *            the connection the request will be written to
      */
-    private void modifyRequestHeadersToReflectProxying(HttpRequest httpRequest) {
-        if (!currentServerConnection.hasUpstreamChainedProxy()) {
+    private void modifyRequestHeadersToReflectProxying(HttpRequest httpRequest,
+            ProxyToServerConnection serverConnection) {
+        if (!serverConnection.hasUpstreamChainedProxy()) {
             /*
              * We are making the request to the origin server, so must modify
              * the 'absolute-URI' into the 'origin-form' as per RFC 7230
@@ -1204,7 +1938,29 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      */
     private boolean writeBadGateway(HttpRequest httpRequest) {
         String body = "Bad Gateway: " + httpRequest.getUri();
-        FullHttpResponse response = ProxyUtils.createFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.BAD_GATEWAY, body);
+        FullHttpResponse response = ProxyUtils.createFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.BAD_GATEWAY, body,
+                channel.alloc());
+
+        if (ProxyUtils.isHEAD(httpRequest)) {
+            // don't allow any body content in response to a HEAD request
+            response.content().clear();
+        }
+
+        return respondWithShortCircuitResponse(response);
+    }
+
+    /**
+     * Tells the client that the proxy is too busy to handle its request right now. If the Service Unavailable is a
+     * response to an HTTP HEAD request, the response will contain no body, but the Content-Length header will be set
+     * to the value it would have been if this 503 Service Unavailable were in response to a GET.
+     *
+     * @param httpRequest the HttpRequest that is resulting in the Service Unavailable response
+     * @return true if the connection will be kept open, or false if it will be disconnected
+     */
+    private boolean writeServiceUnavailable(HttpRequest httpRequest) {
+        String body = "Service Unavailable";
+        FullHttpResponse response = ProxyUtils.createFullHttpResponse(HttpVersion.HTTP_1_1,
+                HttpResponseStatus.SERVICE_UNAVAILABLE, body, channel.alloc());
 
         if (ProxyUtils.isHEAD(httpRequest)) {
             // don't allow any body content in response to a HEAD request
@@ -1223,7 +1979,8 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      */
     private boolean writeBadRequest(HttpRequest httpRequest) {
         String body = "Bad Request to URI: " + httpRequest.getUri();
-        FullHttpResponse response = ProxyUtils.createFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.BAD_REQUEST, body);
+        FullHttpResponse response = ProxyUtils.createFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.BAD_REQUEST, body,
+                channel.alloc());
 
         if (ProxyUtils.isHEAD(httpRequest)) {
             // don't allow any body content in response to a HEAD request
@@ -1244,7 +2001,7 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
     private boolean writeGatewayTimeout(HttpRequest httpRequest) {
         String body = "Gateway Timeout";
         FullHttpResponse response = ProxyUtils.createFullHttpResponse(HttpVersion.HTTP_1_1,
-                HttpResponseStatus.GATEWAY_TIMEOUT, body);
+                HttpResponseStatus.GATEWAY_TIMEOUT, body, channel.alloc());
 
         if (httpRequest != null && ProxyUtils.isHEAD(httpRequest)) {
             // don't allow any body content in response to a HEAD request
@@ -1260,7 +2017,8 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      * will not be disconnected, unless the response includes a "Connection: close" header, or the filter returns
      * a null HttpResponse (in which case no response will be written to the client and the connection will be
      * disconnected immediately). If the response is not a Bad Gateway or Gateway Timeout response, the response's headers
-     * will be modified to reflect proxying, including adding a Via header, Date header, etc.
+     * will be modified to reflect proxying, including adding a Via header, Date header, etc. The response is released
+     * once it has been written, or immediately if it is not written.
      *
      * @param httpResponse the response to return to the client
      * @return true if the connection will be kept open, or false if it will be disconnected.
@@ -1271,6 +2029,7 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
 
         HttpResponse filteredResponse = (HttpResponse) currentFilters.proxyToClientResponse(httpResponse);
         if (filteredResponse == null) {
+            ReferenceCountUtil.release(httpResponse);
             disconnect();
             return false;
         }
@@ -1288,7 +2047,9 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         // restore the keep alive status, if it was overwritten when modifying headers for proxying
         HttpHeaders.setKeepAlive(httpResponse, isKeepAlive);
 
-        write(httpResponse);
+        // the response was created for this connection rather than read from the server, so hand it to the channel
+        // without retaining it
+        doWrite(httpResponse);
 
         if (ProxyUtils.isLastChunk(httpResponse)) {
             writeEmptyBuffer();
@@ -1354,6 +2115,12 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      * We track statistics on bytes, requests and responses by adding handlers
      * at the appropriate parts of the pipeline (see initChannelPipeline()).
      **************************************************************************/
+    /**
+     * The flow context last reported to the activity trackers. Only accessed
+     * on this connection's event loop.
+     */
+    private FlowContext flowContext;
+
     private final BytesReadMonitor bytesReadMonitor = new BytesReadMonitor() {
         @Override
         protected void bytesRead(int numberOfBytes) {
@@ -1444,12 +2211,52 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         return (InetSocketAddress) channel.remoteAddress();
     }
 
+    /**
+     * Returns the flow context for activity on this connection. Since the
+     * activity trackers are called for every read and write, the context is
+     * reused for as long as it still describes the flow.
+     */
     private FlowContext flowContext() {
-        if (currentServerConnection != null) {
-            return new FullFlowContext(this, currentServerConnection);
-        } else {
-            return new FlowContext(this);
+        ProxyToServerConnection serverConnection = currentServerConnection;
+        FlowContext context = flowContext;
+        if (context == null || !isCurrentFlowContext(context, serverConnection)) {
+            if (serverConnection != null) {
+                context = new FullFlowContext(this, serverConnection);
+            } else {
+                context = new FlowContext(this);
+            }
+            flowContext = context;
         }
+        return context;
+    }
+
+    /**
+     * Returns true if the given flow context still describes the flow between
+     * this client and the given server connection, i.e. if neither the
+     * client's SSL session nor the server or chained proxy have changed since
+     * the context was created.
+     *
+     * @param context a previously created flow context
+     * @param serverConnection the current server connection, or null if there
+     *            is none
+     */
+    boolean isCurrentFlowContext(FlowContext context, ProxyToServerConnection serverConnection) {
+        SSLEngine sslEngine = getSslEngine();
+        SSLSession sslSession = sslEngine != null ? sslEngine.getSession() : null;
+        if (context.getClientSslSession() != sslSession) {
+            return false;
+        }
+
+        if (serverConnection == null) {
+            return !(context instanceof FullFlowContext);
+        }
+        if (!(context instanceof FullFlowContext)) {
+            return false;
+        }
+
+        FullFlowContext fullContext = (FullFlowContext) context;
+        return fullContext.getChainedProxy() == serverConnection.getChainedProxy()
+                && StringUtils.equals(fullContext.getServerHostAndPort(), serverConnection.getServerHostAndPort());
     }
 
 }
@@ -29,8 +29,8 @@ class ConnectionFlow {
      * @param connectLock
      *            an object that's shared by {@link ConnectionFlow} and
      *            {@link ProxyToServerConnection} and that is used for
-     *            synchronizing the reader and writer threads that are both
-     *            involved during the establishing of a connection.
+     *            synchronizing the queueing of writes that arrive while we're
+     *            connecting with the completion of the flow.
      */
     ConnectionFlow(
             ClientToProxyConnection clientConnection,
@@ -166,7 +166,7 @@ class ConnectionFlow {
             serverConnection.getLOG().debug(
                     "Connection flow completed successfully: {}", currentStep);
             serverConnection.connectionSucceeded(!suppressInitialRequest);
-            notifyThreadsWaitingForConnection();
+            serverConnection.writePendingMessages();
         }
     }
 
@@ -179,28 +179,42 @@ class ConnectionFlow {
     void fail(final Throwable cause) {
         final ConnectionState lastStateBeforeFailure = serverConnection
                 .getCurrentState();
-        serverConnection.disconnect().addListener(
+        Future<Void> disconnectFuture = serverConnection.disconnect();
+        if (disconnectFuture == null) {
+            // we failed before a channel was ever opened (e.g. while resolving the server's address), so there's
+            // nothing to disconnect
+            connectionFailed(lastStateBeforeFailure, cause);
+            return;
+        }
+
+        disconnectFuture.addListener(
                 new GenericFutureListener() {
                     @Override
                     public void operationComplete(Future future)
                             throws Exception {
-                        synchronized (connectLock) {
-                            if (!clientConnection.serverConnectionFailed(
-                                    serverConnection,
-                                    lastStateBeforeFailure,
-                                    cause)) {
-                                // the connection to the server failed and we are not retrying, so transition to the
-                                // DISCONNECTED state
-                                serverConnection.become(ConnectionState.DISCONNECTED);
-
-                                // We are not retrying our connection, let anyone waiting for a connection know that we're done
-                                notifyThreadsWaitingForConnection();
-                            }
-                        }
+                        connectionFailed(lastStateBeforeFailure, cause);
                     }
                 });
     }
 
+    private void connectionFailed(ConnectionState lastStateBeforeFailure,
+            Throwable cause) {
+        synchronized (connectLock) {
+            if (!clientConnection.serverConnectionFailed(
+                    serverConnection,
+                    lastStateBeforeFailure,
+                    cause)) {
+                // the connection to the server failed and we are not retrying, so transition to the
+                // DISCONNECTED state
+                serverConnection.become(ConnectionState.DISCONNECTED);
+
+                // We are not retrying our connection, so anything that was queued up waiting for the
+                // connection will never be written
+                serverConnection.discardPendingMessages();
+            }
+        }
+    }
+
     /**
      * Like {@link #fail(Throwable)} but with no cause.
      */
@@ -208,13 +222,4 @@ class ConnectionFlow {
         fail(null);
     }
 
-    /**
-     * Once we've finished recording our connection and written our initial
-     * request, we can notify anyone who is waiting on the connection that it's
-     * okay to proceed.
-     */
-    private void notifyThreadsWaitingForConnection() {
-        connectLock.notifyAll();
-    }
-
 }
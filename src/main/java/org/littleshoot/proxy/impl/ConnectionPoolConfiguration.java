@@ -0,0 +1,83 @@
+package org.littleshoot.proxy.impl;
+
+/**
+ * Configuration object for the proxy's server-wide pool of idle upstream connections. Controls how many idle
+ * connections are kept per upstream server and in total, and how long a pooled connection may be kept around.
+ */
+public class ConnectionPoolConfiguration {
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS_PER_SERVER = 8;
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 256;
+    public static final int DEFAULT_IDLE_TIMEOUT_SECONDS = 30;
+    public static final int DEFAULT_MAX_LIFETIME_SECONDS = 300;
+
+    private int maxIdleConnectionsPerServer = DEFAULT_MAX_IDLE_CONNECTIONS_PER_SERVER;
+    private int maxIdleConnections = DEFAULT_MAX_IDLE_CONNECTIONS;
+    private int idleTimeoutSeconds = DEFAULT_IDLE_TIMEOUT_SECONDS;
+    private int maxLifetimeSeconds = DEFAULT_MAX_LIFETIME_SECONDS;
+
+    public int getMaxIdleConnectionsPerServer() {
+        return maxIdleConnectionsPerServer;
+    }
+
+    /**
+     * Set the maximum number of idle connections to keep for any single upstream server (identified by its resolved
+     * address and port). The default value is {@link #DEFAULT_MAX_IDLE_CONNECTIONS_PER_SERVER}.
+     *
+     * @param maxIdleConnectionsPerServer maximum number of idle connections per upstream server
+     * @return this connection pool configuration instance, for chaining
+     */
+    public ConnectionPoolConfiguration withMaxIdleConnectionsPerServer(int maxIdleConnectionsPerServer) {
+        this.maxIdleConnectionsPerServer = maxIdleConnectionsPerServer;
+        return this;
+    }
+
+    public int getMaxIdleConnections() {
+        return maxIdleConnections;
+    }
+
+    /**
+     * Set the maximum number of idle connections to keep across all upstream servers. The default value is
+     * {@link #DEFAULT_MAX_IDLE_CONNECTIONS}.
+     *
+     * @param maxIdleConnections maximum number of idle connections in the pool
+     * @return this connection pool configuration instance, for chaining
+     */
+    public ConnectionPoolConfiguration withMaxIdleConnections(int maxIdleConnections) {
+        this.maxIdleConnections = maxIdleConnections;
+        return this;
+    }
+
+    public int getIdleTimeoutSeconds() {
+        return idleTimeoutSeconds;
+    }
+
+    /**
+     * Set the number of seconds a connection may sit unused in the pool before it is closed. The default value is
+     * {@link #DEFAULT_IDLE_TIMEOUT_SECONDS}.
+     *
+     * @param idleTimeoutSeconds idle timeout for pooled connections, in seconds
+     * @return this connection pool configuration instance, for chaining
+     */
+    public ConnectionPoolConfiguration withIdleTimeoutSeconds(int idleTimeoutSeconds) {
+        this.idleTimeoutSeconds = idleTimeoutSeconds;
+        return this;
+    }
+
+    public int getMaxLifetimeSeconds() {
+        return maxLifetimeSeconds;
+    }
+
+    /**
+     * Set the maximum age of a pooled connection, in seconds, measured from when it was first opened. Connections older
+     * than this are closed instead of being handed out again. 0 means connections never expire due to age. The default
+     * value is {@link #DEFAULT_MAX_LIFETIME_SECONDS}.
+     *
+     * @param maxLifetimeSeconds maximum lifetime of a pooled connection, in seconds
+     * @return this connection pool configuration instance, for chaining
+     */
+    public ConnectionPoolConfiguration withMaxLifetimeSeconds(int maxLifetimeSeconds) {
+        this.maxLifetimeSeconds = maxLifetimeSeconds;
+        return this;
+    }
+
+}
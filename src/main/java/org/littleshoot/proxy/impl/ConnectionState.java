@@ -1,6 +1,11 @@
 package org.littleshoot.proxy.impl;
 
 enum ConnectionState {
+    /**
+     * Resolving the address of the server we're about to connect to.
+     */
+    RESOLVING(true),
+
     /**
      * Connection attempting to connect.
      */
@@ -38,6 +43,25 @@ enum ConnectionState {
      */
     AWAITING_CHUNK,
 
+    /**
+     * Waiting for the response to an identical request that another connection
+     * is already forwarding, which will be answered from the response cache.
+     */
+    AWAITING_COLLAPSED_RESPONSE,
+
+    /**
+     * Waiting for an asynchronous filter to decide whether to let the current
+     * request through. Messages read in the meantime are held until then.
+     */
+    AWAITING_FILTER_DECISION,
+
+    /**
+     * Waiting for the address of the server to be resolved before the current
+     * request is filtered and forwarded to it. Messages read in the meantime
+     * are held until then.
+     */
+    AWAITING_SERVER_ADDRESS,
+
     /**
      * We've asked the client to disconnect, but it hasn't yet.
      */
@@ -2,6 +2,8 @@ package org.littleshoot.proxy.impl;
 
 import io.netty.bootstrap.ChannelFactory;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
@@ -12,12 +14,20 @@ import io.netty.channel.ServerChannel;
 import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.group.ChannelGroupFuture;
 import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.channel.udt.nio.NioUdtProvider;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.traffic.GlobalTrafficShapingHandler;
 import io.netty.util.concurrent.GlobalEventExecutor;
 import org.littleshoot.proxy.ActivityTracker;
 import org.littleshoot.proxy.ChainedProxyManager;
+import org.littleshoot.proxy.AsyncHostResolver;
+import org.littleshoot.proxy.CacheStorage;
+import org.littleshoot.proxy.DefaultAsyncHostResolver;
 import org.littleshoot.proxy.DefaultHostResolver;
 import org.littleshoot.proxy.DnsSecServerResolver;
 import org.littleshoot.proxy.HostResolver;
@@ -26,6 +36,7 @@ import org.littleshoot.proxy.HttpFiltersSource;
 import org.littleshoot.proxy.HttpFiltersSourceAdapter;
 import org.littleshoot.proxy.HttpProxyServer;
 import org.littleshoot.proxy.HttpProxyServerBootstrap;
+import org.littleshoot.proxy.IoTransport;
 import org.littleshoot.proxy.MitmManager;
 import org.littleshoot.proxy.ProxyAuthenticator;
 import org.littleshoot.proxy.SslEngineSource;
@@ -40,7 +51,9 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
@@ -78,6 +91,7 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
     private static final int MAX_INITIAL_LINE_LENGTH_DEFAULT = 8192;
     private static final int MAX_HEADER_SIZE_DEFAULT = 8192*2;
     private static final int MAX_CHUNK_SIZE_DEFAULT = 8192*2;
+    private static final int FLUSH_THRESHOLD_DEFAULT = 32 * 1024;
 
     /**
      * The proxy alias to use in the Via header if no explicit proxy alias is specified and the hostname of the local
@@ -112,11 +126,25 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
     private volatile int connectTimeout;
     private volatile int idleConnectionTimeout;
     private final HostResolver serverResolver;
+    private final AsyncHostResolver asyncServerResolver;
+    private final boolean reusePort;
+    private final boolean upstreamOnClientEventLoop;
+    private final boolean spliceTunnels;
+    private final int flushThreshold;
+    private final CacheStorage cacheStorage;
+    private final ResponseCache responseCache;
+    private final ByteBufAllocator allocator;
     private volatile GlobalTrafficShapingHandler globalTrafficShapingHandler;
     private final int maxInitialLineLength;
     private final int maxHeaderSize;
     private final int maxChunkSize;
     private final boolean allowRequestsToOriginServer;
+    private final ConnectionPoolConfiguration connectionPoolConfiguration;
+
+    /**
+     * Server-wide pool of idle connections to upstream servers. Null when connection pooling is disabled.
+     */
+    private final ServerConnectionPool serverConnectionPool;
 
     /**
      * The alias or pseudonym for this proxy, used when adding the Via header.
@@ -129,9 +157,26 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
     private final AtomicBoolean stopped = new AtomicBoolean(false);
 
     /**
-     * Track all ActivityTrackers for tracking proxying activity.
+     * Track all ActivityTrackers for tracking proxying activity. The trackers are fixed when the server is built, so
+     * they are kept in an array that connections can iterate without allocating an iterator for every event.
+     */
+    private final ActivityTracker[] activityTrackers;
+
+    /**
+     * The proxy's built-in metrics, or null if metrics are disabled. Its activity tracker is one of the
+     * {@link #activityTrackers}.
+     */
+    private final ProxyMetrics metrics;
+
+    /**
+     * The address requested for the metrics admin port, or null if there is no admin port.
+     */
+    private final InetSocketAddress metricsAdminAddress;
+
+    /**
+     * The address the metrics admin port is actually bound to, once the proxy has started.
      */
-    private final Collection<ActivityTracker> activityTrackers = new ConcurrentLinkedQueue<ActivityTracker>();
+    private volatile InetSocketAddress boundMetricsAdminAddress;
 
     /**
      * Keep track of all channels created by this proxy server for later shutdown when the proxy is stopped.
@@ -230,6 +275,32 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
      * @param maxChunkSize
      * @param allowRequestsToOriginServer
      *            when true, allow the proxy to handle requests that contain an origin-form URI, as defined in RFC 7230 5.3.1
+     * @param connectionPoolConfiguration
+     *            (optional) if specified, idle upstream connections will be pooled and shared between clients
+     * @param asyncServerResolver
+     *            (optional) the {@link AsyncHostResolver} to use for resolving server addresses. if not specified,
+     *            lookups are made using the serverResolver on a separate thread pool.
+     * @param reusePort
+     *            when true and the native epoll transport is in use, listen on one SO_REUSEPORT server channel per
+     *            acceptor thread
+     * @param upstreamOnClientEventLoop
+     *            when true, connections to upstream servers are registered with the event loop of the client connection
+     *            that opened them, when the transports allow it
+     * @param spliceTunnels
+     *            when true and the native epoll transport is in use, CONNECT tunnels relay data between the client and
+     *            server sockets using splice()
+     * @param flushThreshold
+     *            the number of bytes that may be written while handling a batch of reads before the writes are flushed.
+     *            0 flushes every write immediately.
+     * @param cacheStorage
+     *            (optional) if specified, cacheable responses are stored in it and used to answer later requests
+     * @param allocator
+     *            the allocator for the buffers of client and server channels, and of responses generated by the proxy
+     * @param metricsEnabled
+     *            when true, the proxy collects {@link ProxyMetrics}
+     * @param metricsAdminAddress
+     *            (optional) if specified, the proxy collects metrics and serves them in the Prometheus text format on
+     *            this address
      */
     private DefaultHttpProxyServer(ServerGroup serverGroup,
             TransportProtocol transportProtocol,
@@ -252,7 +323,17 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
             int maxInitialLineLength,
             int maxHeaderSize,
             int maxChunkSize,
-            boolean allowRequestsToOriginServer) {
+            boolean allowRequestsToOriginServer,
+            ConnectionPoolConfiguration connectionPoolConfiguration,
+            AsyncHostResolver asyncServerResolver,
+            boolean reusePort,
+            boolean upstreamOnClientEventLoop,
+            boolean spliceTunnels,
+            int flushThreshold,
+            CacheStorage cacheStorage,
+            ByteBufAllocator allocator,
+            boolean metricsEnabled,
+            InetSocketAddress metricsAdminAddress) {
         this.serverGroup = serverGroup;
         this.transportProtocol = transportProtocol;
         this.requestedAddress = requestedAddress;
@@ -264,11 +345,38 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
         this.filtersSource = filtersSource;
         this.transparent = transparent;
         this.idleConnectionTimeout = idleConnectionTimeout;
+        this.metricsAdminAddress = metricsAdminAddress;
+        if (metricsEnabled || metricsAdminAddress != null) {
+            this.metrics = new ProxyMetrics();
+        } else {
+            this.metrics = null;
+        }
+        List<ActivityTracker> allActivityTrackers = new ArrayList<ActivityTracker>();
         if (activityTrackers != null) {
-            this.activityTrackers.addAll(activityTrackers);
+            allActivityTrackers.addAll(activityTrackers);
+        }
+        if (metrics != null) {
+            allActivityTrackers.add(metrics.getActivityTracker());
         }
+        this.activityTrackers = allActivityTrackers.toArray(new ActivityTracker[allActivityTrackers.size()]);
         this.connectTimeout = connectTimeout;
         this.serverResolver = serverResolver;
+        if (asyncServerResolver != null) {
+            this.asyncServerResolver = asyncServerResolver;
+        } else {
+            this.asyncServerResolver = new DefaultAsyncHostResolver(serverResolver);
+        }
+        this.reusePort = reusePort;
+        this.upstreamOnClientEventLoop = upstreamOnClientEventLoop;
+        this.spliceTunnels = spliceTunnels;
+        this.flushThreshold = flushThreshold;
+        this.cacheStorage = cacheStorage;
+        if (cacheStorage != null) {
+            this.responseCache = new ResponseCache(cacheStorage);
+        } else {
+            this.responseCache = null;
+        }
+        this.allocator = allocator;
 
         if (writeThrottleBytesPerSecond > 0 || readThrottleBytesPerSecond > 0) {
             this.globalTrafficShapingHandler = createGlobalTrafficShapingHandler(transportProtocol, readThrottleBytesPerSecond, writeThrottleBytesPerSecond);
@@ -291,6 +399,12 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
         this.maxHeaderSize = maxHeaderSize;
         this.maxChunkSize = maxChunkSize;
         this.allowRequestsToOriginServer = allowRequestsToOriginServer;
+        this.connectionPoolConfiguration = connectionPoolConfiguration;
+        if (connectionPoolConfiguration != null) {
+            this.serverConnectionPool = new ServerConnectionPool(connectionPoolConfiguration);
+        } else {
+            this.serverConnectionPool = null;
+        }
     }
 
     /**
@@ -315,6 +429,23 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
         return transparent;
     }
 
+    TransportProtocol getTransportProtocol() {
+        return transportProtocol;
+    }
+
+    boolean isUpstreamOnClientEventLoop() {
+        return upstreamOnClientEventLoop;
+    }
+
+    /**
+     * Returns true if CONNECT tunnels should be spliced. This is only possible with the native epoll transport.
+     */
+    boolean isSpliceTunnels() {
+        return spliceTunnels
+                && transportProtocol == TransportProtocol.TCP
+                && getIoTransportFor(TransportProtocol.TCP) == IoTransport.EPOLL;
+    }
+
     @Override
     public int getIdleConnectionTimeout() {
         return idleConnectionTimeout;
@@ -339,6 +470,25 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
         return serverResolver;
     }
 
+    public AsyncHostResolver getAsyncServerResolver() {
+        return asyncServerResolver;
+    }
+
+    int getFlushThreshold() {
+        return flushThreshold;
+    }
+
+    /**
+     * Returns the proxy's response cache, or null if caching is disabled.
+     */
+    ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    ByteBufAllocator getAllocator() {
+        return allocator;
+    }
+
     public InetSocketAddress getLocalAddress() {
         return localAddress;
     }
@@ -384,6 +534,36 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
         return allowRequestsToOriginServer;
     }
 
+    /**
+     * Returns the pool of idle upstream connections shared by all clients of this proxy, or null if connection
+     * pooling is disabled.
+     */
+    public ServerConnectionPool getServerConnectionPool() {
+        return serverConnectionPool;
+    }
+
+    /**
+     * Returns the executor that request filters are offloaded to, or null if filters run on the worker threads.
+     */
+    public FilterOffloadExecutor getFilterOffloadExecutor() {
+        return serverGroup.getFilterOffloadExecutor();
+    }
+
+    /**
+     * Returns the proxy's built-in metrics, or null if metrics are disabled.
+     */
+    public ProxyMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the address the metrics admin port is bound to, or null if there is no admin port or the proxy hasn't
+     * started.
+     */
+    public InetSocketAddress getMetricsAdminAddress() {
+        return boundMetricsAdminAddress;
+    }
+
     @Override
     public HttpProxyServerBootstrap clone() {
         return new DefaultHttpProxyServerBootstrap(serverGroup,
@@ -398,7 +578,7 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
                     filtersSource,
                     transparent,
                     idleConnectionTimeout,
-                    activityTrackers,
+                    getUserActivityTrackers(),
                     connectTimeout,
                     serverResolver,
                     globalTrafficShapingHandler != null ? globalTrafficShapingHandler.getReadLimit() : 0,
@@ -408,7 +588,31 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
                     maxInitialLineLength,
                     maxHeaderSize,
                     maxChunkSize,
-                    allowRequestsToOriginServer);
+                    allowRequestsToOriginServer,
+                    connectionPoolConfiguration,
+                    asyncServerResolver,
+                    reusePort,
+                    upstreamOnClientEventLoop,
+                    spliceTunnels,
+                    flushThreshold,
+                    cacheStorage,
+                    allocator,
+                    metrics != null,
+                    metricsAdminAddress == null ? null : new InetSocketAddress(metricsAdminAddress.getAddress(),
+                            metricsAdminAddress.getPort() == 0 ? 0 : metricsAdminAddress.getPort() + 1));
+    }
+
+    /**
+     * Returns the activity trackers that were registered with the bootstrap, without the metrics tracker.
+     */
+    private List<ActivityTracker> getUserActivityTrackers() {
+        List<ActivityTracker> userActivityTrackers = new ArrayList<ActivityTracker>(activityTrackers.length);
+        for (ActivityTracker activityTracker : activityTrackers) {
+            if (metrics == null || activityTracker != metrics.getActivityTracker()) {
+                userActivityTrackers.add(activityTracker);
+            }
+        }
+        return userActivityTrackers;
     }
 
     @Override
@@ -521,13 +725,23 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
         };
         switch (transportProtocol) {
             case TCP:
-                LOG.info("Proxy listening with TCP transport");
-                serverBootstrap.channelFactory(new ChannelFactory<ServerChannel>() {
-                    @Override
-                    public ServerChannel newChannel() {
-                        return new NioServerSocketChannel();
-                    }
-                });
+                if (getIoTransportFor(TransportProtocol.TCP) == IoTransport.EPOLL) {
+                    LOG.info("Proxy listening with TCP transport using native epoll");
+                    serverBootstrap.channelFactory(new ChannelFactory<ServerChannel>() {
+                        @Override
+                        public ServerChannel newChannel() {
+                            return new EpollServerSocketChannel();
+                        }
+                    });
+                } else {
+                    LOG.info("Proxy listening with TCP transport");
+                    serverBootstrap.channelFactory(new ChannelFactory<ServerChannel>() {
+                        @Override
+                        public ServerChannel newChannel() {
+                            return new NioServerSocketChannel();
+                        }
+                    });
+                }
                 break;
             case UDT:
                 LOG.info("Proxy listening with UDT transport");
@@ -539,7 +753,97 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
                 throw new UnknownTransportProtocolException(transportProtocol);
         }
         serverBootstrap.childHandler(initializer);
-        ChannelFuture future = serverBootstrap.bind(requestedAddress)
+        serverBootstrap.option(ChannelOption.ALLOCATOR, allocator)
+                .childOption(ChannelOption.ALLOCATOR, allocator);
+
+        if (isSpliceTunnels()) {
+            // splice() requires level-triggered channels, and the epoll mode can only be set before registration
+            serverBootstrap.childOption(EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED);
+        }
+
+        int listeners = 1;
+        if (reusePort) {
+            if (getIoTransportFor(transportProtocol) == IoTransport.EPOLL) {
+                // with SO_REUSEPORT the kernel load-balances incoming connections across all of the server channels
+                // bound to the port. each bind() registers the new server channel with the next acceptor event loop,
+                // so binding once per acceptor thread gives every acceptor its own accept queue.
+                serverBootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+                listeners = serverGroup.getIncomingAcceptorThreads();
+            } else {
+                LOG.warn("SO_REUSEPORT is only supported with the native epoll transport. Listening on a single server channel.");
+            }
+        }
+
+        Channel serverChannel = bind(serverBootstrap, requestedAddress);
+
+        this.boundAddress = ((InetSocketAddress) serverChannel.localAddress());
+
+        // the remaining listeners must use the port the first listener actually bound to, in case an ephemeral port
+        // was requested
+        InetSocketAddress reusedAddress = new InetSocketAddress(requestedAddress.getAddress(), boundAddress.getPort());
+        for (int i = 1; i < listeners; i++) {
+            bind(serverBootstrap, reusedAddress);
+        }
+
+        if (listeners > 1) {
+            LOG.info("Proxy started at address: " + this.boundAddress + " with " + listeners + " SO_REUSEPORT listeners");
+        } else {
+            LOG.info("Proxy started at address: " + this.boundAddress);
+        }
+
+        if (metricsAdminAddress != null) {
+            startMetricsAdmin();
+        }
+
+        Runtime.getRuntime().addShutdownHook(jvmShutdownHook);
+    }
+
+    /**
+     * Starts serving the proxy's metrics on the metrics admin port. The admin port is always TCP, and shares the
+     * proxy's TCP thread pools.
+     */
+    private void startMetricsAdmin() {
+        ServerBootstrap adminBootstrap = new ServerBootstrap().group(
+                serverGroup.getClientToProxyAcceptorPoolForTransport(TransportProtocol.TCP),
+                serverGroup.getClientToProxyWorkerPoolForTransport(TransportProtocol.TCP));
+        if (getIoTransportFor(TransportProtocol.TCP) == IoTransport.EPOLL) {
+            adminBootstrap.channelFactory(new ChannelFactory<ServerChannel>() {
+                @Override
+                public ServerChannel newChannel() {
+                    return new EpollServerSocketChannel();
+                }
+            });
+        } else {
+            adminBootstrap.channelFactory(new ChannelFactory<ServerChannel>() {
+                @Override
+                public ServerChannel newChannel() {
+                    return new NioServerSocketChannel();
+                }
+            });
+        }
+        adminBootstrap.childHandler(new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) throws Exception {
+                registerChannel(ch);
+                ch.pipeline().addLast("codec", new HttpServerCodec());
+                ch.pipeline().addLast("aggregator", new HttpObjectAggregator(64 * 1024));
+                ch.pipeline().addLast("metrics", new MetricsAdminHandler(metrics));
+            }
+        });
+
+        Channel adminChannel = bind(adminBootstrap, metricsAdminAddress);
+        this.boundMetricsAdminAddress = (InetSocketAddress) adminChannel.localAddress();
+
+        LOG.info("Serving metrics at http://{}{}", boundMetricsAdminAddress, MetricsAdminHandler.METRICS_PATH);
+    }
+
+    /**
+     * Binds a new server channel to the given address, waiting for the bind to complete.
+     *
+     * @return the bound server channel
+     */
+    private Channel bind(ServerBootstrap serverBootstrap, InetSocketAddress address) {
+        ChannelFuture future = serverBootstrap.bind(address)
                 .addListener(new ChannelFutureListener() {
                     @Override
                     public void operationComplete(ChannelFuture future)
@@ -555,10 +859,7 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
             throw new RuntimeException(cause);
         }
 
-        this.boundAddress = ((InetSocketAddress) future.channel().localAddress());
-        LOG.info("Proxy started at address: " + this.boundAddress);
-
-        Runtime.getRuntime().addShutdownHook(jvmShutdownHook);
+        return future.channel();
     }
 
     protected ChainedProxyManager getChainProxyManager() {
@@ -581,10 +882,21 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
         return filtersSource;
     }
 
-    protected Collection<ActivityTracker> getActivityTrackers() {
+    /**
+     * Returns the activity trackers of this proxy. The array must not be modified.
+     */
+    protected ActivityTracker[] getActivityTrackers() {
         return activityTrackers;
     }
 
+    /**
+     * Returns true if any activity trackers are registered with this proxy. When there are none, connections leave
+     * the activity monitors out of their pipelines.
+     */
+    protected boolean isTrackingActivity() {
+        return activityTrackers.length > 0;
+    }
+
     public String getProxyAlias() {
         return proxyAlias;
     }
@@ -594,6 +906,10 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
         return serverGroup.getProxyToServerWorkerPoolForTransport(transportProtocol);
     }
 
+    protected IoTransport getIoTransportFor(TransportProtocol transportProtocol) {
+        return serverGroup.getIoTransportFor(transportProtocol);
+    }
+
     // TODO: refactor bootstrap into a separate class
     private static class DefaultHttpProxyServerBootstrap implements HttpProxyServerBootstrap {
         private String name = "LittleProxy";
@@ -620,10 +936,23 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
         private int clientToProxyAcceptorThreads = ServerGroup.DEFAULT_INCOMING_ACCEPTOR_THREADS;
         private int clientToProxyWorkerThreads = ServerGroup.DEFAULT_INCOMING_WORKER_THREADS;
         private int proxyToServerWorkerThreads = ServerGroup.DEFAULT_OUTGOING_WORKER_THREADS;
+        private int filterOffloadThreads = ServerGroup.DEFAULT_FILTER_OFFLOAD_THREADS;
+        private int filterOffloadQueueSize = ServerGroup.DEFAULT_FILTER_OFFLOAD_QUEUE_SIZE;
+        private IoTransport ioTransport = IoTransport.NIO;
         private int maxInitialLineLength = MAX_INITIAL_LINE_LENGTH_DEFAULT;
         private int maxHeaderSize = MAX_HEADER_SIZE_DEFAULT;
         private int maxChunkSize = MAX_CHUNK_SIZE_DEFAULT;
         private boolean allowRequestToOriginServer = false;
+        private ConnectionPoolConfiguration connectionPoolConfiguration = null;
+        private AsyncHostResolver asyncServerResolver = null;
+        private boolean reusePort = false;
+        private boolean upstreamOnClientEventLoop = false;
+        private boolean spliceTunnels = false;
+        private int flushThreshold = FLUSH_THRESHOLD_DEFAULT;
+        private CacheStorage cacheStorage = null;
+        private ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+        private boolean metricsEnabled = false;
+        private InetSocketAddress metricsAdminAddress = null;
 
         private DefaultHttpProxyServerBootstrap() {
         }
@@ -648,7 +977,17 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
                 int maxInitialLineLength,
                 int maxHeaderSize,
                 int maxChunkSize,
-                boolean allowRequestToOriginServer) {
+                boolean allowRequestToOriginServer,
+                ConnectionPoolConfiguration connectionPoolConfiguration,
+                AsyncHostResolver asyncServerResolver,
+                boolean reusePort,
+                boolean upstreamOnClientEventLoop,
+                boolean spliceTunnels,
+                int flushThreshold,
+                CacheStorage cacheStorage,
+                ByteBufAllocator allocator,
+                boolean metricsEnabled,
+                InetSocketAddress metricsAdminAddress) {
             this.serverGroup = serverGroup;
             this.transportProtocol = transportProtocol;
             this.requestedAddress = requestedAddress;
@@ -674,6 +1013,16 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
         	this.maxHeaderSize = maxHeaderSize;
         	this.maxChunkSize = maxChunkSize;
         	this.allowRequestToOriginServer = allowRequestToOriginServer;
+            this.connectionPoolConfiguration = connectionPoolConfiguration;
+            this.asyncServerResolver = asyncServerResolver;
+            this.reusePort = reusePort;
+            this.upstreamOnClientEventLoop = upstreamOnClientEventLoop;
+            this.spliceTunnels = spliceTunnels;
+            this.flushThreshold = flushThreshold;
+            this.cacheStorage = cacheStorage;
+            this.allocator = allocator;
+            this.metricsEnabled = metricsEnabled;
+            this.metricsAdminAddress = metricsAdminAddress;
         }
 
         private DefaultHttpProxyServerBootstrap(Properties props) {
@@ -835,6 +1184,13 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
             return this;
         }
 
+        @Override
+        public HttpProxyServerBootstrap withAsyncServerResolver(
+                AsyncHostResolver asyncServerResolver) {
+            this.asyncServerResolver = asyncServerResolver;
+            return this;
+        }
+
         @Override
         public HttpProxyServerBootstrap plusActivityTracker(
                 ActivityTracker activityTracker) {
@@ -883,6 +1239,68 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
             this.clientToProxyAcceptorThreads = configuration.getAcceptorThreads();
             this.clientToProxyWorkerThreads = configuration.getClientToProxyWorkerThreads();
             this.proxyToServerWorkerThreads = configuration.getProxyToServerWorkerThreads();
+            this.filterOffloadThreads = configuration.getFilterOffloadThreads();
+            this.filterOffloadQueueSize = configuration.getFilterOffloadQueueSize();
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withIoTransport(IoTransport ioTransport) {
+            this.ioTransport = ioTransport;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withReusePort(boolean reusePort) {
+            this.reusePort = reusePort;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withUpstreamOnClientEventLoop(boolean upstreamOnClientEventLoop) {
+            this.upstreamOnClientEventLoop = upstreamOnClientEventLoop;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withSpliceTunnels(boolean spliceTunnels) {
+            this.spliceTunnels = spliceTunnels;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withFlushThreshold(int flushThreshold) {
+            this.flushThreshold = flushThreshold;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withCacheStorage(CacheStorage cacheStorage) {
+            this.cacheStorage = cacheStorage;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withAllocator(ByteBufAllocator allocator) {
+            this.allocator = allocator;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withMetrics(boolean metrics) {
+            this.metricsEnabled = metrics;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withMetricsAdminAddress(InetSocketAddress metricsAdminAddress) {
+            this.metricsAdminAddress = metricsAdminAddress;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withConnectionPoolConfiguration(ConnectionPoolConfiguration configuration) {
+            this.connectionPoolConfiguration = configuration;
             return this;
         }
 
@@ -893,7 +1311,8 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
                 serverGroup = this.serverGroup;
             }
             else {
-                serverGroup = new ServerGroup(name, clientToProxyAcceptorThreads, clientToProxyWorkerThreads, proxyToServerWorkerThreads);
+                serverGroup = new ServerGroup(name, clientToProxyAcceptorThreads, clientToProxyWorkerThreads, proxyToServerWorkerThreads, ioTransport,
+                        filterOffloadThreads, filterOffloadQueueSize);
             }
 
             return new DefaultHttpProxyServer(serverGroup,
@@ -904,7 +1323,9 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
                     idleConnectionTimeout, activityTrackers, connectTimeout,
                     serverResolver, readThrottleBytesPerSecond, writeThrottleBytesPerSecond,
                     localAddress, proxyAlias, maxInitialLineLength, maxHeaderSize, maxChunkSize,
-                    allowRequestToOriginServer);
+                    allowRequestToOriginServer, connectionPoolConfiguration,
+                    asyncServerResolver, reusePort, upstreamOnClientEventLoop, spliceTunnels,
+                    flushThreshold, cacheStorage, allocator, metricsEnabled, metricsAdminAddress);
         }
 
         private InetSocketAddress determineListenAddress() {
@@ -0,0 +1,135 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * A bounded pool of threads for CPU-heavy filter work, such as scanning request bodies, so that it doesn't monopolize
+ * the event loops that serve every other connection. Tasks are queued up to a fixed limit; once the queue is full,
+ * further tasks are rejected instead of piling up.
+ * </p>
+ *
+ * <p>
+ * Results are delivered through promises of the submitting channel's event loop, so that listeners continue on the
+ * event loop rather than on the offload thread.
+ * </p>
+ */
+public class FilterOffloadExecutor {
+    private static final Logger LOG = LoggerFactory.getLogger(FilterOffloadExecutor.class);
+
+    private final ThreadPoolExecutor executor;
+    private final int queueSize;
+
+    private final AtomicLong rejectedTasks = new AtomicLong();
+
+    /**
+     * @param threads number of offload threads
+     * @param queueSize maximum number of tasks waiting for an offload thread
+     * @param threadFactory factory for the offload threads
+     */
+    public FilterOffloadExecutor(int threads, int queueSize, CategorizedThreadFactory threadFactory) {
+        this.queueSize = queueSize;
+        this.executor = new ThreadPoolExecutor(threads, threads,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                threadFactory,
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Runs the task on an offload thread.
+     *
+     * @param task the task to run
+     * @param resultExecutor the executor whose promise is completed with the result of the task, normally the event
+     *                       loop of the channel the task was submitted for
+     * @return a future for the result of the task
+     * @throws RejectedExecutionException if the queue is full or the executor has been shut down
+     */
+    public <T> Future<T> submit(final Callable<T> task, EventExecutor resultExecutor) {
+        final Promise<T> promise = resultExecutor.newPromise();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        promise.trySuccess(task.call());
+                    } catch (Throwable t) {
+                        promise.tryFailure(t);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejectedTasks.incrementAndGet();
+            LOG.debug("Rejected filter task with {} tasks queued", executor.getQueue().size());
+            throw e;
+        }
+
+        return promise;
+    }
+
+    /**
+     * Stops accepting new tasks. When not graceful, queued tasks are abandoned and running tasks are interrupted.
+     *
+     * @param graceful when true, waits for queued and running tasks to finish
+     */
+    void shutdown(boolean graceful) {
+        if (graceful) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(60, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+
+                LOG.warn("Interrupted while shutting down filter offload executor");
+            }
+        } else {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Number of tasks waiting for an offload thread.
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Maximum number of tasks that can wait for an offload thread.
+     */
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * Number of offload threads currently running a task.
+     */
+    public int getActiveThreads() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Approximate number of tasks that have finished running.
+     */
+    public long getCompletedTasks() {
+        return executor.getCompletedTaskCount();
+    }
+
+    /**
+     * Number of tasks that were rejected because the queue was full or the executor had been shut down.
+     */
+    public long getRejectedTasks() {
+        return rejectedTasks.get();
+    }
+}
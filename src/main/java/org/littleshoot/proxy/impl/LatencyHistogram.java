@@ -0,0 +1,126 @@
+package org.littleshoot.proxy.impl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * A lock-free histogram of durations in nanoseconds. Like HdrHistogram, it divides every power of two into a fixed
+ * number of linear sub-buckets, so that any recorded value can be reported with a relative error of at most 12.5%,
+ * while recording is a single atomic increment.
+ * </p>
+ *
+ * <p>
+ * The histogram covers durations of up to 2^41 ns, about 37 minutes; longer durations are counted in the last bucket.
+ * </p>
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The largest power of two, in nanoseconds, that the histogram distinguishes.
+     */
+    private static final int MAX_EXPONENT = 40;
+
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final StripedCounter count = new StripedCounter();
+    private final StripedCounter sum = new StripedCounter();
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos the duration in nanoseconds
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucketFor(nanos));
+        count.increment();
+        sum.add(nanos);
+    }
+
+    /**
+     * @return the number of recorded durations
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return the sum of the recorded durations, in nanoseconds
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Returns the duration that the given percentage of recorded durations do not exceed, rounded up to the upper
+     * bound of its bucket.
+     *
+     * @param percentile percentile between 0 and 100
+     * @return the duration at the percentile in nanoseconds, or 0 if nothing has been recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            cumulative += snapshot[i];
+            if (cumulative >= target) {
+                return upperBound(i) - 1;
+            }
+        }
+        return upperBound(BUCKETS - 1) - 1;
+    }
+
+    /**
+     * Returns the number of recorded durations shorter than the given power of two.
+     *
+     * @param exponent the power of two, in nanoseconds
+     * @return the cumulative count of durations below 2<sup>exponent</sup> nanoseconds
+     */
+    long getCountBelowPowerOfTwo(int exponent) {
+        long limit = 1L << exponent;
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS && upperBound(i) <= limit; i++) {
+            cumulative += counts.get(i);
+        }
+        return cumulative;
+    }
+
+    static int bucketFor(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        int bucket = (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    /**
+     * @return the exclusive upper bound of the bucket, in nanoseconds
+     */
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket + 1;
+        }
+
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = bucket % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS);
+    }
+}
@@ -0,0 +1,75 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.util.CharsetUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves the proxy's {@link ProxyMetrics} in the Prometheus text format at <code>/metrics</code> on the metrics admin
+ * port.
+ */
+class MetricsAdminHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+    private static final Logger LOG = LoggerFactory.getLogger(MetricsAdminHandler.class);
+
+    static final String METRICS_PATH = "/metrics";
+
+    private static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final ProxyMetrics metrics;
+
+    MetricsAdminHandler(ProxyMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+        FullHttpResponse response;
+        if (!METRICS_PATH.equals(new QueryStringDecoder(request.getUri()).path())) {
+            response = textResponse(ctx, HttpResponseStatus.NOT_FOUND, "Not Found");
+        } else if (!HttpMethod.GET.equals(request.getMethod()) && !HttpMethod.HEAD.equals(request.getMethod())) {
+            response = textResponse(ctx, HttpResponseStatus.METHOD_NOT_ALLOWED, "Method Not Allowed");
+            response.headers().set(HttpHeaders.Names.ALLOW, "GET, HEAD");
+        } else {
+            response = textResponse(ctx, HttpResponseStatus.OK, metrics.toPrometheusText());
+            response.headers().set(HttpHeaders.Names.CONTENT_TYPE, PROMETHEUS_CONTENT_TYPE);
+            if (HttpMethod.HEAD.equals(request.getMethod())) {
+                response.content().clear();
+            }
+        }
+
+        boolean keepAlive = HttpHeaders.isKeepAlive(request);
+        HttpHeaders.setKeepAlive(response, keepAlive);
+        if (keepAlive) {
+            ctx.writeAndFlush(response);
+        } else {
+            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        LOG.debug("Closing metrics admin connection after error", cause);
+        ctx.close();
+    }
+
+    private static FullHttpResponse textResponse(ChannelHandlerContext ctx, HttpResponseStatus status, String body) {
+        byte[] bytes = body.getBytes(CharsetUtil.UTF_8);
+        ByteBuf content = ctx.alloc().buffer(bytes.length).writeBytes(bytes);
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, content);
+        response.headers().set(HttpHeaders.Names.CONTENT_TYPE, "text/plain; charset=utf-8");
+        HttpHeaders.setContentLength(response, bytes.length);
+        return response;
+    }
+}
@@ -4,15 +4,19 @@ import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
 import io.netty.handler.codec.http.*;
+import io.netty.handler.ssl.ReferenceCountedOpenSslEngine;
 import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.timeout.IdleStateEvent;
 import io.netty.util.ReferenceCounted;
+import io.netty.util.concurrent.FastThreadLocal;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
 import io.netty.util.concurrent.Promise;
 import org.littleshoot.proxy.HttpFilters;
 
 import javax.net.ssl.SSLEngine;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.littleshoot.proxy.impl.ConnectionState.*;
 
@@ -79,6 +83,17 @@ abstract class ProxyConnection<I extends HttpObject> extends
      */
     protected volatile SSLEngine sslEngine;
 
+    /**
+     * The writes made while handling the current batch of reads on each
+     * thread, which are flushed once the batch is complete.
+     */
+    private static final FastThreadLocal<PendingFlushes> PENDING_FLUSHES = new FastThreadLocal<PendingFlushes>() {
+        @Override
+        protected PendingFlushes initialValue() {
+            return new PendingFlushes();
+        }
+    };
+
     /**
      * Construct a new ProxyConnection.
      * 
@@ -165,9 +180,18 @@ abstract class ProxyConnection<I extends HttpObject> extends
         case NEGOTIATING_CONNECT:
             LOG.debug("Attempted to read from connection that's in the process of negotiating an HTTP CONNECT.  This is probably the LastHttpContent of a chunked CONNECT.");
             break;
+        case AWAITING_COLLAPSED_RESPONSE:
+            LOG.debug("Dropping message received while waiting for the response to an identical request. This is probably the LastHttpContent of the request. Message: {}", httpObject);
+            break;
         case AWAITING_CONNECT_OK:
             LOG.warn("AWAITING_CONNECT_OK should have been handled by ProxyToServerConnection.read()");
             break;
+        case AWAITING_FILTER_DECISION:
+            LOG.warn("AWAITING_FILTER_DECISION should have been handled by ClientToProxyConnection.read()");
+            break;
+        case AWAITING_SERVER_ADDRESS:
+            LOG.warn("AWAITING_SERVER_ADDRESS should have been handled by ClientToProxyConnection.read()");
+            break;
         case HANDSHAKING:
             LOG.warn(
                     "Attempted to read from connection that's in the process of handshaking.  This shouldn't happen.",
@@ -244,13 +268,7 @@ abstract class ProxyConnection<I extends HttpObject> extends
      * @param httpObject
      */
     protected void writeHttp(HttpObject httpObject) {
-        if (ProxyUtils.isLastChunk(httpObject)) {
-            channel.write(httpObject);
-            LOG.debug("Writing an empty buffer to signal the end of our chunked transfer");
-            writeToChannel(Unpooled.EMPTY_BUFFER);
-        } else {
-            writeToChannel(httpObject);
-        }
+        writeToChannel(httpObject);
     }
 
     /**
@@ -262,10 +280,57 @@ abstract class ProxyConnection<I extends HttpObject> extends
         writeToChannel(buf);
     }
 
+    /**
+     * Writes a message to the channel. Messages written while handling a batch
+     * of reads on the current thread are only flushed once the batch is
+     * complete, or once the batch has written at least the proxy's flush
+     * threshold, so that the messages relayed for one read from the socket go
+     * out together. All other messages are flushed immediately.
+     * 
+     * @param msg
+     * @return
+     */
     protected ChannelFuture writeToChannel(final Object msg) {
+        int flushThreshold = proxyServer.getFlushThreshold();
+        if (flushThreshold > 0) {
+            PendingFlushes pendingFlushes = PENDING_FLUSHES.get();
+            if (pendingFlushes.reader != null) {
+                // the message may be released by the write, so measure it first
+                int size = sizeOf(msg);
+                ChannelFuture future = channel.write(msg);
+                pendingFlushes.add(this, size);
+                if (pendingFlushes.unflushedBytes >= flushThreshold) {
+                    pendingFlushes.flush();
+                }
+                return future;
+            }
+        }
+
         return channel.writeAndFlush(msg);
     }
 
+    private static int sizeOf(Object msg) {
+        if (msg instanceof ByteBuf) {
+            return ((ByteBuf) msg).readableBytes();
+        } else if (msg instanceof HttpContent) {
+            return ((HttpContent) msg).content().readableBytes();
+        } else {
+            return 0;
+        }
+    }
+
+    /**
+     * Flushes the connections written to during the current batch of reads, if
+     * this connection is the one doing the reading.
+     */
+    private void flushPendingWrites() {
+        PendingFlushes pendingFlushes = PENDING_FLUSHES.get();
+        if (pendingFlushes.reader == this) {
+            pendingFlushes.flush();
+            pendingFlushes.reader = null;
+        }
+    }
+
     /***************************************************************************
      * Lifecycle
      **************************************************************************/
@@ -376,7 +441,10 @@ abstract class ProxyConnection<I extends HttpObject> extends
         if (null != channel) {
             channel.config().setAutoRead(true);
         }
-        SslHandler handler = new SslHandler(sslEngine);
+        final SslHandler handler = new SslHandler(sslEngine);
+        if (proxyServer.getMetrics() != null) {
+            recordHandshake(handler);
+        }
         if(pipeline.get("ssl") == null) {
             pipeline.addFirst("ssl", handler);
         } else {
@@ -389,6 +457,37 @@ abstract class ProxyConnection<I extends HttpObject> extends
         return handler.handshakeFuture();
     }
 
+    /**
+     * Records the outcome of the handshake in the proxy's metrics once it completes.
+     */
+    private void recordHandshake(final SslHandler handler) {
+        final long handshakeStartedMillis = System.currentTimeMillis();
+        handler.handshakeFuture().addListener(new GenericFutureListener<Future<? super Channel>>() {
+            @Override
+            public void operationComplete(Future<? super Channel> future) throws Exception {
+                if (future.isSuccess()) {
+                    boolean resumed = isResumedSession(handler.engine(), handshakeStartedMillis);
+                    proxyServer.getMetrics().recordTlsHandshake(runsAsSslClient, resumed);
+                }
+            }
+        });
+    }
+
+    /**
+     * A handshake resumed a cached session if the session was created before the handshake started. Neither the JDK
+     * nor Netty's OpenSSL engine say whether a session was reused, so this compares the times instead. OpenSSL only
+     * records the creation time in whole seconds, so for its engines the start of the handshake is truncated to whole
+     * seconds too; otherwise every new session would appear to predate its own handshake. Sessions resumed within the
+     * second they were created in are then counted as new ones.
+     */
+    private static boolean isResumedSession(SSLEngine sslEngine, long handshakeStartedMillis) {
+        long startedMillis = handshakeStartedMillis;
+        if (sslEngine instanceof ReferenceCountedOpenSslEngine) {
+            startedMillis -= startedMillis % 1000;
+        }
+        return sslEngine.getSession().getCreationTime() < startedMillis;
+    }
+
     /**
      * Encrypts the channel using the provided {@link SSLEngine}.
      * 
@@ -463,7 +562,7 @@ abstract class ProxyConnection<I extends HttpObject> extends
             return null;
         } else {
             final Promise<Void> promise = channel.newPromise();
-            writeToChannel(Unpooled.EMPTY_BUFFER).addListener(
+            channel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(
                     new GenericFutureListener<Future<? super Void>>() {
                         @Override
                         public void operationComplete(
@@ -584,9 +683,27 @@ abstract class ProxyConnection<I extends HttpObject> extends
     @Override
     protected final void channelRead0(ChannelHandlerContext ctx, Object msg)
             throws Exception {
+        PendingFlushes pendingFlushes = PENDING_FLUSHES.get();
+        if (pendingFlushes.reader != this) {
+            // should never be necessary, since every batch of reads ends with channelReadComplete() or
+            // channelInactive(). but never leave another connection's writes sitting unflushed.
+            pendingFlushes.flush();
+            pendingFlushes.reader = this;
+        }
+
         read(msg);
     }
 
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx)
+            throws Exception {
+        try {
+            flushPendingWrites();
+        } finally {
+            super.channelReadComplete(ctx);
+        }
+    }
+
     @Override
     public void channelRegistered(ChannelHandlerContext ctx) throws Exception {
         try {
@@ -618,6 +735,8 @@ abstract class ProxyConnection<I extends HttpObject> extends
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         try {
+            // decoders may pass on a final message as the channel closes, without completing the read
+            flushPendingWrites();
             disconnected();
         } finally {
             super.channelInactive(ctx);
@@ -836,4 +955,33 @@ abstract class ProxyConnection<I extends HttpObject> extends
         protected abstract void responseWritten(HttpResponse httpResponse);
     }
 
+
+    /**
+     * Connections that were written to, but not yet flushed, while handling a
+     * batch of reads on one thread.
+     */
+    private static class PendingFlushes {
+        /**
+         * The connection whose batch of reads is being handled, or null if the
+         * thread isn't currently handling a read.
+         */
+        private ProxyConnection<?> reader;
+        private final List<ProxyConnection<?>> connections = new ArrayList<ProxyConnection<?>>(2);
+        private int unflushedBytes;
+
+        void add(ProxyConnection<?> connection, int bytes) {
+            if (!connections.contains(connection)) {
+                connections.add(connection);
+            }
+            unflushedBytes += bytes;
+        }
+
+        void flush() {
+            for (int i = 0; i < connections.size(); i++) {
+                connections.get(i).channel.flush();
+            }
+            connections.clear();
+            unflushedBytes = 0;
+        }
+    }
 }
@@ -0,0 +1,303 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import org.littleshoot.proxy.ActivityTracker;
+import org.littleshoot.proxy.ActivityTrackerAdapter;
+import org.littleshoot.proxy.FlowContext;
+import org.littleshoot.proxy.FullFlowContext;
+
+import javax.net.ssl.SSLSession;
+import java.net.InetSocketAddress;
+import java.util.Locale;
+
+/**
+ * <p>
+ * Counts the requests, responses, bytes and connections handled by a proxy, and records how long DNS resolution,
+ * connecting to servers, TLS handshakes with servers and waiting for the first byte of responses take. The counts are
+ * collected by an {@link ActivityTracker} registered with the proxy, and the durations by the server connections.
+ * </p>
+ *
+ * <p>
+ * Counters are striped and histograms are lock-free, so that recording adds little overhead to the event loops. The
+ * metrics can be read programmatically, or scraped in the Prometheus text format from the proxy's metrics admin port.
+ * </p>
+ */
+public class ProxyMetrics {
+    /**
+     * The smallest and largest histogram bucket boundaries exposed to Prometheus, as powers of two in nanoseconds:
+     * about 130 microseconds and 34 seconds.
+     */
+    private static final int MIN_EXPOSED_EXPONENT = 17;
+    private static final int MAX_EXPOSED_EXPONENT = 35;
+
+    private final StripedCounter clientConnections = new StripedCounter();
+    private final StripedCounter activeClientConnections = new StripedCounter();
+    private final StripedCounter clientTlsHandshakes = new StripedCounter();
+    private final StripedCounter clientTlsResumedHandshakes = new StripedCounter();
+    private final StripedCounter serverTlsHandshakes = new StripedCounter();
+    private final StripedCounter serverTlsResumedHandshakes = new StripedCounter();
+    private final StripedCounter requests = new StripedCounter();
+    private final StripedCounter[] responsesByStatusClass = new StripedCounter[5];
+    private final StripedCounter bytesReceivedFromClients = new StripedCounter();
+    private final StripedCounter bytesSentToClients = new StripedCounter();
+    private final StripedCounter bytesReceivedFromServers = new StripedCounter();
+    private final StripedCounter bytesSentToServers = new StripedCounter();
+
+    private final LatencyHistogram dnsResolution = new LatencyHistogram();
+    private final LatencyHistogram serverConnect = new LatencyHistogram();
+    private final LatencyHistogram serverTlsHandshake = new LatencyHistogram();
+    private final LatencyHistogram timeToFirstByte = new LatencyHistogram();
+
+    private final ActivityTracker activityTracker = new ActivityTrackerAdapter() {
+        @Override
+        public void clientConnected(InetSocketAddress clientAddress) {
+            clientConnections.increment();
+            activeClientConnections.increment();
+        }
+
+        @Override
+        public void clientDisconnected(InetSocketAddress clientAddress, SSLSession sslSession) {
+            activeClientConnections.add(-1);
+        }
+
+        @Override
+        public void bytesReceivedFromClient(FlowContext flowContext, int numberOfBytes) {
+            bytesReceivedFromClients.add(numberOfBytes);
+        }
+
+        @Override
+        public void requestReceivedFromClient(FlowContext flowContext, HttpRequest httpRequest) {
+            requests.increment();
+        }
+
+        @Override
+        public void bytesSentToServer(FullFlowContext flowContext, int numberOfBytes) {
+            bytesSentToServers.add(numberOfBytes);
+        }
+
+        @Override
+        public void bytesReceivedFromServer(FullFlowContext flowContext, int numberOfBytes) {
+            bytesReceivedFromServers.add(numberOfBytes);
+        }
+
+        @Override
+        public void bytesSentToClient(FlowContext flowContext, int numberOfBytes) {
+            bytesSentToClients.add(numberOfBytes);
+        }
+
+        @Override
+        public void responseSentToClient(FlowContext flowContext, HttpResponse httpResponse) {
+            int statusClass = httpResponse.getStatus().code() / 100;
+            if (statusClass >= 1 && statusClass <= 5) {
+                responsesByStatusClass[statusClass - 1].increment();
+            }
+        }
+    };
+
+    public ProxyMetrics() {
+        for (int i = 0; i < responsesByStatusClass.length; i++) {
+            responsesByStatusClass[i] = new StripedCounter();
+        }
+    }
+
+    /**
+     * Returns the activity tracker that collects the counts. It must be registered with the proxy.
+     */
+    ActivityTracker getActivityTracker() {
+        return activityTracker;
+    }
+
+    void recordDnsResolution(long nanos) {
+        dnsResolution.record(nanos);
+    }
+
+    void recordServerConnect(long nanos) {
+        serverConnect.record(nanos);
+    }
+
+    void recordServerTlsHandshake(long nanos) {
+        serverTlsHandshake.record(nanos);
+    }
+
+    void recordTimeToFirstByte(long nanos) {
+        timeToFirstByte.record(nanos);
+    }
+
+    /**
+     * Records a completed TLS handshake.
+     *
+     * @param withServer true for handshakes with servers and chained proxies, false for handshakes with clients
+     * @param resumed true if the handshake resumed a cached session
+     */
+    void recordTlsHandshake(boolean withServer, boolean resumed) {
+        if (withServer) {
+            serverTlsHandshakes.increment();
+            if (resumed) {
+                serverTlsResumedHandshakes.increment();
+            }
+        } else {
+            clientTlsHandshakes.increment();
+            if (resumed) {
+                clientTlsResumedHandshakes.increment();
+            }
+        }
+    }
+
+    /**
+     * Number of client connections accepted since the proxy started.
+     */
+    public long getClientConnections() {
+        return clientConnections.sum();
+    }
+
+    /**
+     * Number of client connections currently open.
+     */
+    public long getActiveClientConnections() {
+        return activeClientConnections.sum();
+    }
+
+    /**
+     * Number of requests received from clients.
+     */
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    /**
+     * Number of responses sent to clients with the given class of status code.
+     *
+     * @param statusClass the first digit of the status code, from 1 to 5
+     */
+    public long getResponses(int statusClass) {
+        return responsesByStatusClass[statusClass - 1].sum();
+    }
+
+    /**
+     * Number of TLS handshakes completed with clients, including handshakes with MITM'd clients.
+     */
+    public long getClientTlsHandshakes() {
+        return clientTlsHandshakes.sum();
+    }
+
+    /**
+     * Number of TLS handshakes with clients that resumed a cached session.
+     */
+    public long getClientTlsResumedHandshakes() {
+        return clientTlsResumedHandshakes.sum();
+    }
+
+    /**
+     * Number of TLS handshakes completed with servers and chained proxies.
+     */
+    public long getServerTlsHandshakes() {
+        return serverTlsHandshakes.sum();
+    }
+
+    /**
+     * Number of TLS handshakes with servers and chained proxies that resumed a cached session.
+     */
+    public long getServerTlsResumedHandshakes() {
+        return serverTlsResumedHandshakes.sum();
+    }
+
+    public long getBytesReceivedFromClients() {
+        return bytesReceivedFromClients.sum();
+    }
+
+    public long getBytesSentToClients() {
+        return bytesSentToClients.sum();
+    }
+
+    public long getBytesReceivedFromServers() {
+        return bytesReceivedFromServers.sum();
+    }
+
+    public long getBytesSentToServers() {
+        return bytesSentToServers.sum();
+    }
+
+    public LatencyHistogram getDnsResolution() {
+        return dnsResolution;
+    }
+
+    public LatencyHistogram getServerConnect() {
+        return serverConnect;
+    }
+
+    public LatencyHistogram getServerTlsHandshake() {
+        return serverTlsHandshake;
+    }
+
+    public LatencyHistogram getTimeToFirstByte() {
+        return timeToFirstByte;
+    }
+
+    /**
+     * Returns the metrics in the Prometheus text exposition format, version 0.0.4.
+     */
+    public String toPrometheusText() {
+        StringBuilder text = new StringBuilder(4096);
+
+        appendCounter(text, "littleproxy_client_connections_total", "Client connections accepted.", getClientConnections());
+        appendGauge(text, "littleproxy_client_connections_active", "Client connections currently open.", getActiveClientConnections());
+        appendCounter(text, "littleproxy_client_tls_handshakes_total", "TLS handshakes completed with clients.", getClientTlsHandshakes());
+        appendCounter(text, "littleproxy_client_tls_resumed_handshakes_total", "TLS handshakes with clients that resumed a cached session.", getClientTlsResumedHandshakes());
+        appendCounter(text, "littleproxy_server_tls_handshakes_total", "TLS handshakes completed with servers.", getServerTlsHandshakes());
+        appendCounter(text, "littleproxy_server_tls_resumed_handshakes_total", "TLS handshakes with servers that resumed a cached session.", getServerTlsResumedHandshakes());
+        appendCounter(text, "littleproxy_requests_total", "Requests received from clients.", getRequests());
+
+        appendHeader(text, "littleproxy_responses_total", "Responses sent to clients, by status class.", "counter");
+        for (int i = 0; i < responsesByStatusClass.length; i++) {
+            text.append("littleproxy_responses_total{code=\"").append(i + 1).append("xx\"} ")
+                    .append(responsesByStatusClass[i].sum()).append('\n');
+        }
+
+        appendCounter(text, "littleproxy_client_received_bytes_total", "Bytes received from clients.", getBytesReceivedFromClients());
+        appendCounter(text, "littleproxy_client_sent_bytes_total", "Bytes sent to clients.", getBytesSentToClients());
+        appendCounter(text, "littleproxy_server_received_bytes_total", "Bytes received from servers.", getBytesReceivedFromServers());
+        appendCounter(text, "littleproxy_server_sent_bytes_total", "Bytes sent to servers.", getBytesSentToServers());
+
+        appendHistogram(text, "littleproxy_dns_resolution_seconds", "Time to resolve server addresses.", dnsResolution);
+        appendHistogram(text, "littleproxy_server_connect_seconds", "Time to open connections to servers.", serverConnect);
+        appendHistogram(text, "littleproxy_server_tls_handshake_seconds", "Time to complete TLS handshakes with servers.", serverTlsHandshake);
+        appendHistogram(text, "littleproxy_time_to_first_byte_seconds", "Time from sending a request to a server until its response starts to arrive.", timeToFirstByte);
+
+        return text.toString();
+    }
+
+    private static void appendHeader(StringBuilder text, String name, String help, String type) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void appendCounter(StringBuilder text, String name, String help, long value) {
+        appendHeader(text, name, help, "counter");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void appendGauge(StringBuilder text, String name, String help, long value) {
+        appendHeader(text, name, help, "gauge");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void appendHistogram(StringBuilder text, String name, String help, LatencyHistogram histogram) {
+        appendHeader(text, name, help, "histogram");
+
+        // read the total first, so that the +Inf bucket is never smaller than the finite buckets recorded after it
+        long count = histogram.getCount();
+        long sum = histogram.getSum();
+        for (int exponent = MIN_EXPOSED_EXPONENT; exponent <= MAX_EXPOSED_EXPONENT; exponent++) {
+            text.append(name).append("_bucket{le=\"").append(seconds(1L << exponent)).append("\"} ")
+                    .append(Math.min(count, histogram.getCountBelowPowerOfTwo(exponent))).append('\n');
+        }
+        text.append(name).append("_bucket{le=\"+Inf\"} ").append(count).append('\n');
+        text.append(name).append("_sum ").append(seconds(sum)).append('\n');
+        text.append(name).append("_count ").append(count).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.US, "%.9f", nanos / 1e9);
+    }
+}
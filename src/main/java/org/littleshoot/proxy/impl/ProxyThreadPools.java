@@ -2,7 +2,9 @@ package org.littleshoot.proxy.impl;
 
 import com.google.common.collect.ImmutableList;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.EpollEventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
+import org.littleshoot.proxy.IoTransport;
 
 import java.nio.channels.spi.SelectorProvider;
 import java.util.List;
@@ -17,30 +19,51 @@ public class ProxyThreadPools {
      * proxies. A different EventLoopGroup is used for each
      * TransportProtocol, since these have to be configured differently.
      */
-    private final NioEventLoopGroup clientToProxyAcceptorPool;
+    private final EventLoopGroup clientToProxyAcceptorPool;
 
     /**
      * These {@link EventLoopGroup}s process incoming requests to the
      * proxies. A different EventLoopGroup is used for each
      * TransportProtocol, since these have to be configured differently.
      */
-    private final NioEventLoopGroup clientToProxyWorkerPool;
+    private final EventLoopGroup clientToProxyWorkerPool;
 
     /**
      * These {@link EventLoopGroup}s are used for making outgoing
      * connections to servers. A different EventLoopGroup is used for each
      * TransportProtocol, since these have to be configured differently.
      */
-    private final NioEventLoopGroup proxyToServerWorkerPool;
+    private final EventLoopGroup proxyToServerWorkerPool;
 
     public ProxyThreadPools(SelectorProvider selectorProvider, int incomingAcceptorThreads, int incomingWorkerThreads, int outgoingWorkerThreads, String serverGroupName, int serverGroupId) {
-        clientToProxyAcceptorPool = new NioEventLoopGroup(incomingAcceptorThreads, new CategorizedThreadFactory(serverGroupName, "ClientToProxyAcceptor", serverGroupId), selectorProvider);
+        this(IoTransport.NIO, selectorProvider, incomingAcceptorThreads, incomingWorkerThreads, outgoingWorkerThreads, serverGroupName, serverGroupId);
+    }
+
+    /**
+     * Creates the thread pools using the given I/O transport. The selectorProvider is only used by the NIO transport.
+     */
+    public ProxyThreadPools(IoTransport ioTransport, SelectorProvider selectorProvider, int incomingAcceptorThreads, int incomingWorkerThreads, int outgoingWorkerThreads, String serverGroupName, int serverGroupId) {
+        if (ioTransport == IoTransport.EPOLL) {
+            clientToProxyAcceptorPool = new EpollEventLoopGroup(incomingAcceptorThreads, new CategorizedThreadFactory(serverGroupName, "ClientToProxyAcceptor", serverGroupId));
+
+            EpollEventLoopGroup clientToProxyWorkers = new EpollEventLoopGroup(incomingWorkerThreads, new CategorizedThreadFactory(serverGroupName, "ClientToProxyWorker", serverGroupId));
+            clientToProxyWorkers.setIoRatio(90);
+            clientToProxyWorkerPool = clientToProxyWorkers;
+
+            EpollEventLoopGroup proxyToServerWorkers = new EpollEventLoopGroup(outgoingWorkerThreads, new CategorizedThreadFactory(serverGroupName, "ProxyToServerWorker", serverGroupId));
+            proxyToServerWorkers.setIoRatio(90);
+            proxyToServerWorkerPool = proxyToServerWorkers;
+        } else {
+            clientToProxyAcceptorPool = new NioEventLoopGroup(incomingAcceptorThreads, new CategorizedThreadFactory(serverGroupName, "ClientToProxyAcceptor", serverGroupId), selectorProvider);
 
-        clientToProxyWorkerPool = new NioEventLoopGroup(incomingWorkerThreads, new CategorizedThreadFactory(serverGroupName, "ClientToProxyWorker", serverGroupId), selectorProvider);
-        clientToProxyWorkerPool.setIoRatio(90);
+            NioEventLoopGroup clientToProxyWorkers = new NioEventLoopGroup(incomingWorkerThreads, new CategorizedThreadFactory(serverGroupName, "ClientToProxyWorker", serverGroupId), selectorProvider);
+            clientToProxyWorkers.setIoRatio(90);
+            clientToProxyWorkerPool = clientToProxyWorkers;
 
-        proxyToServerWorkerPool = new NioEventLoopGroup(outgoingWorkerThreads, new CategorizedThreadFactory(serverGroupName, "ProxyToServerWorker", serverGroupId), selectorProvider);
-        proxyToServerWorkerPool.setIoRatio(90);
+            NioEventLoopGroup proxyToServerWorkers = new NioEventLoopGroup(outgoingWorkerThreads, new CategorizedThreadFactory(serverGroupName, "ProxyToServerWorker", serverGroupId), selectorProvider);
+            proxyToServerWorkers.setIoRatio(90);
+            proxyToServerWorkerPool = proxyToServerWorkers;
+        }
     }
 
     /**
@@ -50,15 +73,15 @@ public class ProxyThreadPools {
         return ImmutableList.<EventLoopGroup>of(clientToProxyAcceptorPool, clientToProxyWorkerPool, proxyToServerWorkerPool);
     }
 
-    public NioEventLoopGroup getClientToProxyAcceptorPool() {
+    public EventLoopGroup getClientToProxyAcceptorPool() {
         return clientToProxyAcceptorPool;
     }
 
-    public NioEventLoopGroup getClientToProxyWorkerPool() {
+    public EventLoopGroup getClientToProxyWorkerPool() {
         return clientToProxyWorkerPool;
     }
 
-    public NioEventLoopGroup getProxyToServerWorkerPool() {
+    public EventLoopGroup getProxyToServerWorkerPool() {
         return proxyToServerWorkerPool;
     }
 }
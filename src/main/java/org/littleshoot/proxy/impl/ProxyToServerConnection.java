@@ -11,8 +11,14 @@ import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.AbstractEpollStreamChannel;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollSocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.channel.udt.nio.NioUdtProvider;
+import io.netty.handler.codec.http.FullHttpMessage;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpHeaders;
@@ -27,27 +33,37 @@ import io.netty.handler.codec.http.HttpResponseEncoder;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.timeout.IdleStateHandler;
 import io.netty.handler.traffic.GlobalTrafficShapingHandler;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.util.ReferenceCounted;
+import io.netty.util.concurrent.EventExecutor;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.Promise;
 import org.littleshoot.proxy.ActivityTracker;
+import org.littleshoot.proxy.BodyTransformingHttpFilters;
 import org.littleshoot.proxy.ChainedProxy;
 import org.littleshoot.proxy.ChainedProxyAdapter;
 import org.littleshoot.proxy.ChainedProxyManager;
 import org.littleshoot.proxy.FullFlowContext;
+import org.littleshoot.proxy.HttpBodyTransformer;
 import org.littleshoot.proxy.HttpFilters;
+import org.littleshoot.proxy.IoTransport;
 import org.littleshoot.proxy.MitmManager;
 import org.littleshoot.proxy.TransportProtocol;
 import org.littleshoot.proxy.UnknownTransportProtocolException;
 
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLProtocolException;
 import javax.net.ssl.SSLSession;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayDeque;
 import java.util.Queue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.RejectedExecutionException;
 
@@ -57,6 +73,8 @@ import static org.littleshoot.proxy.impl.ConnectionState.AWAITING_INITIAL;
 import static org.littleshoot.proxy.impl.ConnectionState.CONNECTING;
 import static org.littleshoot.proxy.impl.ConnectionState.DISCONNECTED;
 import static org.littleshoot.proxy.impl.ConnectionState.HANDSHAKING;
+import static org.littleshoot.proxy.impl.ConnectionState.NEGOTIATING_CONNECT;
+import static org.littleshoot.proxy.impl.ConnectionState.RESOLVING;
 
 /**
  * <p>
@@ -80,6 +98,12 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
     private final ProxyToServerConnection serverConnection = this;
     private volatile TransportProtocol transportProtocol;
     private volatile InetSocketAddress remoteAddress;
+
+    /**
+     * Pending resolution of the server's address when connecting directly to the server. Resolution starts as soon as
+     * the connection is set up, and the {@link ConnectionFlow} waits for it before connecting.
+     */
+    private volatile Future<InetSocketAddress> remoteAddressResolution;
     private volatile InetSocketAddress localAddress;
     private final String serverHostAndPort;
     private volatile ChainedProxy chainedProxy;
@@ -105,11 +129,19 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
 
     /**
      * While we're in the process of connecting, it's possible that we'll
-     * receive a new message to write. This lock helps us synchronize and wait
-     * for the connection to be established before writing the next message.
+     * receive a new message to write. This lock synchronizes queueing such
+     * messages in {@link #pendingMessages} with the completion of the
+     * {@link ConnectionFlow}.
      */
     private final Object connectLock = new Object();
 
+    /**
+     * Messages that were written while we were still connecting. These are
+     * written once the {@link ConnectionFlow} succeeds, or released if it
+     * fails. Guarded by {@link #connectLock}.
+     */
+    private final Queue<Object> pendingMessages = new ArrayDeque<Object>();
+
     /**
      * This is the initial request received prior to connecting. We keep track
      * of it so that we can process it after connection finishes.
@@ -122,17 +154,36 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
      */
     private volatile HttpRequest currentHttpRequest;
 
+    /**
+     * Transforms the body of the response currently being received, if the
+     * filters asked for it.
+     */
+    private BodyTransformation responseBodyTransformation;
+
     /**
      * While we're doing a chunked transfer, this keeps track of the initial
      * HttpResponse object for our transfer (which is useful for its headers).
      */
     private volatile HttpResponse currentHttpResponse;
 
+    /**
+     * True from the time a request is written to the server until the corresponding response has been read in full.
+     * A connection may only be returned to the {@link ServerConnectionPool} while this is false.
+     */
+    private volatile boolean awaitingResponse = false;
+
     /**
      * Limits bandwidth when throttling is enabled.
      */
     private volatile GlobalTrafficShapingHandler trafficHandler;
 
+    /**
+     * When metrics are enabled, the {@link System#nanoTime()} at which the current connection step (connecting or the
+     * TLS handshake) started, and at which the last request was sent in full to the server.
+     */
+    private volatile long connectionStepStartedNanos;
+    private volatile long requestSentNanos;
+
     /**
      * Minimum size of the adaptive recv buffer when throttling is enabled. 
      */
@@ -147,15 +198,13 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
      * @param initialFilters
      * @param initialHttpRequest
      * @return
-     * @throws UnknownHostException
      */
     static ProxyToServerConnection create(DefaultHttpProxyServer proxyServer,
             ClientToProxyConnection clientConnection,
             String serverHostAndPort,
             HttpFilters initialFilters,
             HttpRequest initialHttpRequest,
-            GlobalTrafficShapingHandler globalTrafficShapingHandler)
-            throws UnknownHostException {
+            GlobalTrafficShapingHandler globalTrafficShapingHandler) {
         Queue<ChainedProxy> chainedProxies = new ConcurrentLinkedQueue<ChainedProxy>();
         ChainedProxyManager chainedProxyManager = proxyServer
                 .getChainProxyManager();
@@ -183,8 +232,7 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
             ChainedProxy chainedProxy,
             Queue<ChainedProxy> availableChainedProxies,
             HttpFilters initialFilters,
-            GlobalTrafficShapingHandler globalTrafficShapingHandler)
-            throws UnknownHostException {
+            GlobalTrafficShapingHandler globalTrafficShapingHandler) {
         super(DISCONNECTED, proxyServer, true);
         this.clientConnection = clientConnection;
         this.serverHostAndPort = serverHostAndPort;
@@ -219,15 +267,22 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
     protected ConnectionState readHTTPInitial(HttpResponse httpResponse) {
         LOG.debug("Received raw response: {}", httpResponse);
 
+        if (requestSentNanos != 0 && proxyServer.getMetrics() != null) {
+            proxyServer.getMetrics().recordTimeToFirstByte(System.nanoTime() - requestSentNanos);
+            requestSentNanos = 0;
+        }
+
+        FullHttpResponse substituteResponse = null;
         if (httpResponse.getDecoderResult().isFailure()) {
             LOG.debug("Could not parse response from server. Decoder result: {}", httpResponse.getDecoderResult().toString());
 
             // create a "substitute" Bad Gateway response from the server, since we couldn't understand what the actual
             // response from the server was. set the keep-alive on the substitute response to false so the proxy closes
             // the connection to the server, since we don't know what state the server thinks the connection is in.
-            FullHttpResponse substituteResponse = ProxyUtils.createFullHttpResponse(HttpVersion.HTTP_1_1,
+            substituteResponse = ProxyUtils.createFullHttpResponse(HttpVersion.HTTP_1_1,
                     HttpResponseStatus.BAD_GATEWAY,
-                    "Unable to parse response from server");
+                    "Unable to parse response from server",
+                    channel.alloc());
             HttpHeaders.setKeepAlive(substituteResponse, false);
             httpResponse = substituteResponse;
         }
@@ -237,9 +292,16 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
         rememberCurrentResponse(httpResponse);
         respondWith(httpResponse);
 
+        if (substituteResponse != null) {
+            // unlike the messages read from the server, which are released once they have been read, nothing else
+            // releases the substitute response. the client connection has retained it if it is writing it.
+            substituteResponse.release();
+        }
+
         if (ProxyUtils.isChunked(httpResponse)) {
             return AWAITING_CHUNK;
         } else {
+            awaitingResponse = false;
             currentFilters.serverToProxyResponseReceived();
 
             return AWAITING_INITIAL;
@@ -327,21 +389,20 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
             if (isConnecting()) {
                 synchronized (connectLock) {
                     if (isConnecting()) {
-                        LOG.debug("Attempted to write while still in the process of connecting, waiting for connection.");
+                        LOG.debug("Attempted to write while still in the process of connecting, queueing message until the connection is established.");
+                        // stop reading from the client so that messages don't pile up while we're connecting
                         clientConnection.stopReading();
-                        try {
-                            connectLock.wait(30000);
-                        } catch (InterruptedException ie) {
-                            LOG.warn("Interrupted while waiting for connect monitor");
-                        }
+                        pendingMessages.add(msg);
+                        return;
                     }
                 }
             }
 
             // only write this message if a connection was established and is not in the process of disconnecting or
             // already disconnected
-            if (isConnecting() || getCurrentState().isDisconnectingOrDisconnected()) {
-                LOG.debug("Connection failed or timed out while waiting to write message to server. Message will be discarded: {}", msg);
+            if (getCurrentState().isDisconnectingOrDisconnected()) {
+                LOG.debug("Connection failed or was closed before message could be written to server. Message will be discarded: {}", msg);
+                ReferenceCountUtil.release(msg);
                 return;
             }
 
@@ -359,18 +420,56 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
             HttpRequest httpRequest = (HttpRequest) httpObject;
             // Remember that we issued this HttpRequest for later
             currentHttpRequest = httpRequest;
+            awaitingResponse = true;
         }
         super.writeHttp(httpObject);
     }
 
+    /**
+     * Writes any messages that were queued while we were connecting. Called by
+     * the {@link ConnectionFlow} once it has succeeded, while holding
+     * {@link #connectLock}.
+     */
+    void writePendingMessages() {
+        Object msg;
+        while ((msg = pendingMessages.poll()) != null) {
+            if (getCurrentState().isDisconnectingOrDisconnected()) {
+                LOG.debug("Connection closed before queued message could be written to server. Message will be discarded: {}", msg);
+                ReferenceCountUtil.release(msg);
+            } else {
+                LOG.debug("Writing message that was queued while connecting: {}", msg);
+                doWrite(msg);
+            }
+        }
+    }
+
+    /**
+     * Releases any messages that were queued while we were connecting. Called
+     * by the {@link ConnectionFlow} once it has failed for good, while holding
+     * {@link #connectLock}.
+     */
+    void discardPendingMessages() {
+        Object msg;
+        while ((msg = pendingMessages.poll()) != null) {
+            LOG.debug("Connection failed while message was queued. Message will be discarded: {}", msg);
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
     /***************************************************************************
      * Lifecycle
      **************************************************************************/
 
     @Override
     protected void become(ConnectionState newState) {
+        // the initial state is set before the proxy server is, so there is nothing to time yet
+        if (getCurrentState() != null && proxyServer.getMetrics() != null) {
+            recordConnectionTiming(newState);
+        }
+
         // Report connection status to HttpFilters
-        if (getCurrentState() == DISCONNECTED && newState == CONNECTING) {
+        if ((getCurrentState() == DISCONNECTED || getCurrentState() == RESOLVING)
+                && newState == CONNECTING) {
             currentFilters.proxyToServerConnectionStarted();
         } else if (getCurrentState() == CONNECTING) {
             if (newState == HANDSHAKING) {
@@ -388,12 +487,35 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
             }
         } else if (getCurrentState() == AWAITING_CHUNK
                 && newState != AWAITING_CHUNK) {
+            awaitingResponse = false;
             currentFilters.serverToProxyResponseReceived();
         }
 
         super.become(newState);
     }
 
+    /**
+     * Records the time taken to connect to the server and to complete the TLS handshake with it, as the connection
+     * moves from the given step to the next. Each step is timed from the moment the connection enters it, so that
+     * steps in between, such as the CONNECT to a chained proxy before a MITM handshake, aren't counted.
+     */
+    private void recordConnectionTiming(ConnectionState newState) {
+        ProxyMetrics metrics = proxyServer.getMetrics();
+        ConnectionState currentState = getCurrentState();
+        long now = System.nanoTime();
+        if (currentState == CONNECTING
+                && (newState == HANDSHAKING || newState == AWAITING_CONNECT_OK || newState == AWAITING_INITIAL)) {
+            metrics.recordServerConnect(now - connectionStepStartedNanos);
+        } else if (currentState == HANDSHAKING
+                && (newState == AWAITING_CONNECT_OK || newState == AWAITING_INITIAL)) {
+            metrics.recordServerTlsHandshake(now - connectionStepStartedNanos);
+        }
+
+        if ((newState == CONNECTING || newState == HANDSHAKING) && newState != currentState) {
+            connectionStepStartedNanos = now;
+        }
+    }
+
     @Override
     protected void becameSaturated() {
         super.becameSaturated();
@@ -415,6 +537,7 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
     @Override
     protected void disconnected() {
         super.disconnected();
+        releaseResponseBodyTransformation();
         if (this.chainedProxy != null) {
             // Let the ChainedProxy know that we disconnected
             try {
@@ -468,6 +591,14 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
         return serverHostAndPort;
     }
 
+    /**
+     * Returns the pending resolution of the server's address, or null if we're
+     * connecting to a chained proxy.
+     */
+    Future<InetSocketAddress> getRemoteAddressResolution() {
+        return remoteAddressResolution;
+    }
+
     public boolean hasUpstreamChainedProxy() {
         return getChainedProxyAddress() != null;
     }
@@ -485,6 +616,51 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
         return initialRequest;
     }
 
+    /**
+     * Hands this connection's channel over to the proxy server's {@link ServerConnectionPool}, so that it can be
+     * reused by other clients. This is only possible for idle, keep-alive connections made directly to an origin
+     * server over plain HTTP. If the channel was pooled, this connection no longer has a channel and behaves as if it
+     * were disconnected.
+     *
+     * @return true if the channel was returned to the pool, false if the caller should disconnect as usual
+     */
+    boolean releaseToPool() {
+        ServerConnectionPool pool = proxyServer.getServerConnectionPool();
+        Channel pooledChannel = channel;
+        if (pool == null
+                || pooledChannel == null
+                || !isPoolable()
+                || !is(AWAITING_INITIAL)
+                || awaitingResponse
+                || isTunneling()
+                || sslEngine != null
+                || currentHttpResponse == null
+                || !HttpHeaders.isKeepAlive(currentHttpResponse)) {
+            return false;
+        }
+
+        if (!pool.release(remoteAddress, pooledChannel)) {
+            return false;
+        }
+
+        LOG.debug("Released connection to {} to the connection pool", remoteAddress);
+        this.ctx = null;
+        this.channel = null;
+        become(DISCONNECTED);
+
+        return true;
+    }
+
+    /**
+     * Only direct, unencrypted HTTP connections to origin servers can be shared between clients.
+     */
+    private boolean isPoolable() {
+        return transportProtocol == TransportProtocol.TCP
+                && !hasUpstreamChainedProxy()
+                && initialRequest != null
+                && !ProxyUtils.isCONNECT(initialRequest);
+    }
+
     @Override
     protected HttpFilters getHttpFiltersFromProxyServer(HttpRequest httpRequest) {
         return currentFilters;
@@ -520,6 +696,50 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
                 currentHttpResponse, httpObject);
     }
 
+    /**
+     * Applies the filters' {@link HttpBodyTransformer} to the response being
+     * received. Called by the client connection once the response has passed
+     * through {@link HttpFilters#serverToProxyResponse(HttpObject)}.
+     *
+     * @return the transformed object, which the caller must release, or the
+     *         given object if the body is not being transformed
+     */
+    HttpObject transformResponseBody(HttpFilters filters, HttpObject httpObject) {
+        if (httpObject instanceof HttpResponse) {
+            releaseResponseBodyTransformation();
+
+            HttpResponse httpResponse = (HttpResponse) httpObject;
+            if (!(filters instanceof BodyTransformingHttpFilters)) {
+                return httpObject;
+            } else if (!(httpResponse instanceof FullHttpMessage)
+                    && HttpVersion.HTTP_1_0.equals(currentHttpRequest.getProtocolVersion())) {
+                LOG.debug("Not transforming the body of a response to an HTTP/1.0 request, since it can't be chunked");
+            } else if (!ProxyUtils.isHEAD(currentHttpRequest) && !ProxyUtils.isContentAlwaysEmpty(httpResponse)) {
+                HttpBodyTransformer transformer = ((BodyTransformingHttpFilters) filters).responseBodyTransformer(httpResponse);
+                if (transformer != null) {
+                    responseBodyTransformation = BodyTransformation.start(transformer, httpResponse, channel.alloc());
+                }
+            }
+        }
+
+        if (responseBodyTransformation == null) {
+            return httpObject;
+        }
+
+        HttpObject transformed = responseBodyTransformation.transform(httpObject);
+        if (ProxyUtils.isLastChunk(httpObject)) {
+            responseBodyTransformation = null;
+        }
+        return transformed;
+    }
+
+    private void releaseResponseBodyTransformation() {
+        if (responseBodyTransformation != null) {
+            responseBodyTransformation.release();
+            responseBodyTransformation = null;
+        }
+    }
+
     /**
      * Configures the connection to the upstream server and begins the {@link ConnectionFlow}.
      *
@@ -541,12 +761,17 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
      */
     private void initializeConnectionFlow() {
         this.connectionFlow = new ConnectionFlow(clientConnection, this,
-                connectLock)
-                .then(ConnectChannel);
+                connectLock);
+
+        // the server's address is only resolved once we actually need to connect to it
+        if (remoteAddress == null) {
+            connectionFlow.then(ResolveServerAddress);
+        }
+
+        connectionFlow.then(ConnectChannel);
 
         if (chainedProxy != null && chainedProxy.requiresEncryption()) {
-            connectionFlow.then(serverConnection.EncryptChannel(chainedProxy
-                    .newSslEngine()));
+            connectionFlow.then(serverConnection.EncryptChannel(newChainedProxySslEngine()));
         }
 
         if (ProxyUtils.isCONNECT(initialRequest)) {
@@ -582,10 +807,46 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
                 connectionFlow.then(serverConnection.StartTunneling)
                         .then(clientConnection.RespondCONNECTSuccessful)
                         .then(clientConnection.StartTunneling);
+
+                if (proxyServer.isSpliceTunnels()) {
+                    connectionFlow.then(SpliceTunnel);
+                }
             }
         }
     }
 
+    /**
+     * Obtains the engine for encrypting the connection to the chained proxy. The engine is requested for the chained
+     * proxy's host and port, so that it can resume a TLS session cached from an earlier connection to the same chained
+     * proxy. Chained proxies that only provide engines without peer information get the engine from
+     * {@link ChainedProxy#newSslEngine()}.
+     */
+    private SSLEngine newChainedProxySslEngine() {
+        SSLEngine sslEngine = chainedProxy.newSslEngine(remoteAddress.getHostString(), remoteAddress.getPort());
+        if (sslEngine == null) {
+            sslEngine = chainedProxy.newSslEngine();
+        }
+        return sslEngine;
+    }
+
+    /**
+     * Resolves the address of the upstream server using the proxy's {@link org.littleshoot.proxy.AsyncHostResolver},
+     * so that a slow DNS lookup doesn't hold up the event loop.
+     */
+    private ConnectionFlowStep ResolveServerAddress = new ConnectionFlowStep(
+            this, RESOLVING) {
+        @Override
+        boolean shouldExecuteOnEventLoop() {
+            // we don't have a channel of our own until we've connected
+            return false;
+        }
+
+        @Override
+        protected Future<?> execute() {
+            return remoteAddressResolution;
+        }
+    };
+
     /**
      * Opens the socket connection.
      */
@@ -598,10 +859,103 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
 
         @Override
         protected Future<?> execute() {
-            Bootstrap cb = new Bootstrap().group(proxyServer.getProxyToServerWorkerFor(transportProtocol));
+            ServerConnectionPool pool = proxyServer.getServerConnectionPool();
+            if (pool != null && isPoolable()) {
+                Channel pooledChannel = pool.acquire(remoteAddress);
+                if (pooledChannel != null) {
+                    return adoptPooledChannel(pooledChannel);
+                }
+            }
+
+            return connectNewChannel();
+        }
+    };
+
+    /**
+     * Takes over an idle channel from the {@link ServerConnectionPool}, installing our own pipeline in place of the
+     * pool's handlers. If the channel was closed in the meantime, falls back to opening a new channel.
+     *
+     * @param pooledChannel the channel checked out of the pool
+     * @return a future that succeeds once this connection owns a usable channel
+     */
+    private Future<?> adoptPooledChannel(final Channel pooledChannel) {
+        final Promise<Void> promise = pooledChannel.eventLoop().newPromise();
+        pooledChannel.eventLoop().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!pooledChannel.isActive()) {
+                    LOG.debug("Pooled connection was closed before it could be reused, opening a new connection");
+                    connectNewChannel().addListener(new ChannelFutureListener() {
+                        @Override
+                        public void operationComplete(ChannelFuture future) throws Exception {
+                            if (future.isSuccess()) {
+                                promise.setSuccess(null);
+                            } else {
+                                promise.setFailure(future.cause());
+                            }
+                        }
+                    });
+                    return;
+                }
+
+                try {
+                    ChannelPipeline pipeline = pooledChannel.pipeline();
+                    while (pipeline.last() != null) {
+                        pipeline.removeLast();
+                    }
+                    initChannelPipeline(pipeline, initialRequest);
+
+                    // the channel is already registered and active, so we won't get channelRegistered() for it
+                    ctx = pipeline.context(ProxyToServerConnection.this);
+                    channel = pooledChannel;
+
+                    promise.setSuccess(null);
+                } catch (Throwable t) {
+                    pooledChannel.close();
+                    promise.setFailure(t);
+                }
+            }
+        });
+
+        return promise;
+    }
+
+    /**
+     * Chooses the event loop group to register a new upstream channel with. When configured to do so, the channel is
+     * registered with the client connection's own event loop, so that data relayed between the two channels never
+     * has to cross threads. This is only possible when the client and server channels use the same transport, since
+     * an event loop can only serve channels of the kind it was built for (e.g. UDT channels need a UDT event loop).
+     */
+    private EventLoopGroup upstreamEventLoopGroup() {
+        if (transportProtocol == TransportProtocol.TCP
+                && proxyServer.getTransportProtocol() == TransportProtocol.TCP
+                && (proxyServer.isUpstreamOnClientEventLoop() || isSpliceableTunnel())) {
+            return clientConnection.channel.eventLoop();
+        }
+
+        return proxyServer.getProxyToServerWorkerFor(transportProtocol);
+    }
 
-            switch (transportProtocol) {
-            case TCP:
+    /**
+     * Opens a new socket connection to {@link #remoteAddress}.
+     */
+    private ChannelFuture connectNewChannel() {
+        Bootstrap cb = new Bootstrap().group(upstreamEventLoopGroup());
+
+        switch (transportProtocol) {
+        case TCP:
+            if (proxyServer.getIoTransportFor(TransportProtocol.TCP) == IoTransport.EPOLL) {
+                LOG.debug("Connecting to server with TCP using native epoll");
+                cb.channelFactory(new ChannelFactory<Channel>() {
+                    @Override
+                    public Channel newChannel() {
+                        return new EpollSocketChannel();
+                    }
+                });
+                if (proxyServer.isSpliceTunnels()) {
+                    cb.option(EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED);
+                }
+            } else {
                 LOG.debug("Connecting to server with TCP");
                 cb.channelFactory(new ChannelFactory<Channel>() {
                     @Override
@@ -609,32 +963,147 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
                         return new NioSocketChannel();
                     }
                 });
-                break;
-            case UDT:
-                LOG.debug("Connecting to server with UDT");
-                cb.channelFactory(NioUdtProvider.BYTE_CONNECTOR)
-                        .option(ChannelOption.SO_REUSEADDR, true);
-                break;
-            default:
-                throw new UnknownTransportProtocolException(transportProtocol);
             }
+            break;
+        case UDT:
+            LOG.debug("Connecting to server with UDT");
+            cb.channelFactory(NioUdtProvider.BYTE_CONNECTOR)
+                    .option(ChannelOption.SO_REUSEADDR, true);
+            break;
+        default:
+            throw new UnknownTransportProtocolException(transportProtocol);
+        }
 
-            cb.handler(new ChannelInitializer<Channel>() {
-                protected void initChannel(Channel ch) throws Exception {
-                    initChannelPipeline(ch.pipeline(), initialRequest);
-                };
-            });
-            cb.option(ChannelOption.CONNECT_TIMEOUT_MILLIS,
-                    proxyServer.getConnectTimeout());
+        cb.handler(new ChannelInitializer<Channel>() {
+            protected void initChannel(Channel ch) throws Exception {
+                ServerConnectionPool pool = proxyServer.getServerConnectionPool();
+                if (pool != null) {
+                    pool.channelOpened(ch);
+                }
+                initChannelPipeline(ch.pipeline(), initialRequest);
+            };
+        });
+        cb.option(ChannelOption.CONNECT_TIMEOUT_MILLIS,
+                proxyServer.getConnectTimeout());
+        cb.option(ChannelOption.ALLOCATOR, proxyServer.getAllocator());
+
+        if (localAddress != null) {
+            return cb.connect(remoteAddress, localAddress);
+        } else {
+            return cb.connect(remoteAddress);
+        }
+    }
 
-            if (localAddress != null) {
-                return cb.connect(remoteAddress, localAddress);
-            } else {
-                return cb.connect(remoteAddress);
+    /**
+     * Returns true if this connection is for a CONNECT tunnel that may be spliced, i.e. one that the proxy won't
+     * intercept or otherwise need to see the data of.
+     */
+    private boolean isSpliceableTunnel() {
+        return proxyServer.isSpliceTunnels()
+                && ProxyUtils.isCONNECT(initialRequest)
+                && proxyServer.getMitmManager() == null
+                && !proxyServer.isTrackingActivity()
+                && trafficHandler == null;
+    }
+
+    /**
+     * Once both ends of a CONNECT tunnel have stopped speaking HTTP, hands the relaying of data over to the kernel by
+     * splicing each socket into the other. Spliced data never enters the channel pipelines, so this step leaves the
+     * tunnel alone unless nothing in the pipelines needs to see the data and both channels are level-triggered epoll
+     * channels on the same event loop.
+     */
+    private ConnectionFlowStep SpliceTunnel = new ConnectionFlowStep(
+            this, NEGOTIATING_CONNECT) {
+        @Override
+        boolean shouldSuppressInitialRequest() {
+            return true;
+        }
+
+        @Override
+        protected Future<?> execute() {
+            Channel clientChannel = clientConnection.channel;
+            if (!isSpliceableTunnel()
+                    || !canSplice(clientChannel)
+                    || !canSplice(channel)
+                    || clientChannel.eventLoop() != channel.eventLoop()) {
+                LOG.debug("Unable to splice tunnel, relaying data through the pipeline");
+                return channel.newSucceededFuture();
+            }
+
+            // spliced reads don't reach the idle handlers, which would otherwise time out busy tunnels. the kernel's
+            // TCP statistics take their place.
+            if (clientChannel.pipeline().get("idle") != null) {
+                clientChannel.pipeline().remove("idle");
+            }
+            if (channel.pipeline().get("idle") != null) {
+                channel.pipeline().remove("idle");
             }
+
+            LOG.debug("Splicing tunnel");
+            splice(clientChannel, channel);
+            splice(channel, clientChannel);
+
+            int idleTimeoutSeconds = proxyServer.getIdleConnectionTimeout();
+            if (idleTimeoutSeconds > 0) {
+                long idleTimeoutMillis = TimeUnit.SECONDS.toMillis(idleTimeoutSeconds);
+                scheduleSplicedIdleCheck(clientChannel, idleTimeoutMillis, idleTimeoutMillis);
+            }
+
+            return channel.newSucceededFuture();
         }
     };
 
+    private boolean canSplice(Channel channel) {
+        return channel instanceof EpollSocketChannel
+                && ((EpollSocketChannel) channel).config().getEpollMode() == EpollMode.LEVEL_TRIGGERED
+                && channel.pipeline().get(SslHandler.class) == null;
+    }
+
+    /**
+     * Closes a spliced tunnel once neither of its sockets has received any data for the idle timeout, so that a
+     * tunnel to a peer that went away doesn't hold on to both connections forever. Spliced data never reaches the
+     * pipelines, so the time since data was last received is taken from the kernel's TCP_INFO for each socket.
+     */
+    private void scheduleSplicedIdleCheck(final Channel clientChannel, final long idleTimeoutMillis, long delayMillis) {
+        channel.eventLoop().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!clientChannel.isOpen() || !channel.isOpen()) {
+                    return;
+                }
+
+                long idleMillis = Math.min(
+                        ((EpollSocketChannel) clientChannel).tcpInfo().lastDataRecv(),
+                        ((EpollSocketChannel) channel).tcpInfo().lastDataRecv());
+                if (idleMillis >= idleTimeoutMillis) {
+                    LOG.debug("Spliced tunnel has been idle for {} ms, closing it", idleMillis);
+                    clientChannel.close();
+                    channel.close();
+                } else {
+                    scheduleSplicedIdleCheck(clientChannel, idleTimeoutMillis, idleTimeoutMillis - idleMillis);
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Splices all data read from one channel into the other, until either of them is closed. If splicing fails, both
+     * channels are closed, since there is no telling how much of the data made it across.
+     */
+    private void splice(final Channel from, final Channel to) {
+        ((AbstractEpollStreamChannel) from).spliceTo((AbstractEpollStreamChannel) to, Integer.MAX_VALUE)
+                .addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) throws Exception {
+                        if (!future.isSuccess() && from.isOpen()) {
+                            LOG.debug("Splicing tunnel failed, closing it", future.cause());
+                            from.close();
+                            to.close();
+                        }
+                    }
+                });
+    }
+
     /**
      * Writes the HTTP CONNECT to the server and waits for a 200 response.
      */
@@ -743,8 +1212,7 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
      * @param cause the reason that our attempt to connect failed (can be null)
      * @return true if we are trying to fall back to another connection
      */
-    protected boolean connectionFailed(Throwable cause)
-            throws UnknownHostException {
+    protected boolean connectionFailed(Throwable cause) {
         // unlike a browser, java throws an exception when receiving an unrecognized_name TLS warning, even if the server
         // sends back a valid certificate for the expected host. we can retry the connection without SNI to allow the proxy
         // to connect to these misconfigured hosts. we should only retry the connection without SNI if the connection
@@ -794,25 +1262,26 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
     /**
      * Convenience method to prepare to retry this connection. Closes the connection's channel and sets up
      * the connection again using {@link #setupConnectionParameters()}.
-     *
-     * @throws UnknownHostException when {@link #setupConnectionParameters()} is unable to resolve the hostname
      */
-    private void resetConnectionForRetry() throws UnknownHostException {
-        // Remove ourselves as handler on the old context
-        this.ctx.pipeline().remove(this);
-        this.ctx.close();
-        this.ctx = null;
+    private void resetConnectionForRetry() {
+        // Remove ourselves as handler on the old context. if the failure happened while resolving the server's address,
+        // there is no channel yet.
+        if (this.ctx != null) {
+            this.ctx.pipeline().remove(this);
+            this.ctx.close();
+            this.ctx = null;
+        }
 
         this.setupConnectionParameters();
     }
 
     /**
      * Set up our connection parameters based on server address and chained
-     * proxies.
-     * 
-     * @throws UnknownHostException when unable to resolve the hostname to an IP address
+     * proxies. When connecting directly to the server, this starts resolving
+     * its address in the background. The {@link ConnectionFlow} waits for the
+     * resolution to complete before connecting.
      */
-    private void setupConnectionParameters() throws UnknownHostException {
+    private void setupConnectionParameters() {
         if (chainedProxy != null
                 && chainedProxy != ChainedProxyAdapter.FALLBACK_TO_DIRECT_CONNECTION) {
             this.transportProtocol = chainedProxy.getTransportProtocol();
@@ -820,35 +1289,76 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
             this.localAddress = chainedProxy.getLocalAddress();
         } else {
             this.transportProtocol = TransportProtocol.TCP;
+            this.remoteAddress = null;
+            this.remoteAddressResolution = resolveServerAddress();
+            this.localAddress = proxyServer.getLocalAddress();
+        }
+    }
 
-            // Report DNS resolution to HttpFilters
-            this.remoteAddress = this.currentFilters.proxyToServerResolutionStarted(serverHostAndPort);
+    /**
+     * Resolves {@link #serverHostAndPort} (or the address supplied by the
+     * filters) without blocking, and records the result in
+     * {@link #remoteAddress}, notifying the filters of the outcome.
+     *
+     * @return a future that completes once the server's address is known
+     */
+    private Future<InetSocketAddress> resolveServerAddress() {
+        final EventExecutor executor = clientConnection.channel.eventLoop();
+
+        // Report DNS resolution to HttpFilters
+        InetSocketAddress filterAddress = currentFilters.proxyToServerResolutionStarted(serverHostAndPort);
+        if (filterAddress != null && !filterAddress.isUnresolved()) {
+            // the filter already resolved the address for us
+            this.remoteAddress = filterAddress;
+            currentFilters.proxyToServerResolutionSucceeded(serverHostAndPort, filterAddress);
+            return executor.newSucceededFuture(filterAddress);
+        }
 
-            // save the hostname and port of the unresolved address in hostAndPort, in case name resolution fails
-            String hostAndPort = null;
+        // save the hostname and port of the unresolved address in hostAndPort, in case name resolution fails
+        final String hostAndPort;
+        String host;
+        int port;
+        if (filterAddress == null) {
+            hostAndPort = serverHostAndPort;
             try {
-                if (this.remoteAddress == null) {
-                    hostAndPort = serverHostAndPort;
-                    this.remoteAddress = addressFor(serverHostAndPort, proxyServer);
-                } else if (this.remoteAddress.isUnresolved()) {
-                    // filter returned an unresolved address, so resolve it using the proxy server's resolver
-                    hostAndPort = HostAndPort.fromParts(this.remoteAddress.getHostName(), this.remoteAddress.getPort()).toString();
-                    this.remoteAddress = proxyServer.getServerResolver().resolve(this.remoteAddress.getHostName(),
-                            this.remoteAddress.getPort());
-                }
-            } catch (UnknownHostException e) {
-                // unable to resolve the hostname to an IP address. notify the filters of the failure before allowing the
-                // exception to bubble up.
-                this.currentFilters.proxyToServerResolutionFailed(hostAndPort);
-
-                throw e;
+                HostAndPort parsedHostAndPort = HostAndPort.fromString(serverHostAndPort);
+                host = parsedHostAndPort.getHost();
+                port = parsedHostAndPort.getPortOrDefault(80);
+            } catch (IllegalArgumentException e) {
+                // we couldn't understand the hostAndPort string, so there is no way we can resolve it.
+                currentFilters.proxyToServerResolutionFailed(hostAndPort);
+                return executor.newFailedFuture(new UnknownHostException(hostAndPort));
             }
+        } else {
+            // filter returned an unresolved address, so resolve it using the proxy server's resolver
+            host = filterAddress.getHostName();
+            port = filterAddress.getPort();
+            hostAndPort = HostAndPort.fromParts(host, port).toString();
+        }
 
-            this.currentFilters.proxyToServerResolutionSucceeded(serverHostAndPort, this.remoteAddress);
-
+        final long resolutionStartedNanos = System.nanoTime();
+        final Promise<InetSocketAddress> promise = executor.newPromise();
+        proxyServer.getAsyncServerResolver().resolve(host, port, executor).addListener(
+                new GenericFutureListener<Future<InetSocketAddress>>() {
+                    @Override
+                    public void operationComplete(Future<InetSocketAddress> future) throws Exception {
+                        if (future.isSuccess()) {
+                            if (proxyServer.getMetrics() != null) {
+                                proxyServer.getMetrics().recordDnsResolution(System.nanoTime() - resolutionStartedNanos);
+                            }
+                            remoteAddress = future.getNow();
+                            currentFilters.proxyToServerResolutionSucceeded(serverHostAndPort, remoteAddress);
+                            promise.setSuccess(remoteAddress);
+                        } else {
+                            // unable to resolve the hostname to an IP address. notify the filters of the failure
+                            // before failing the connection flow.
+                            currentFilters.proxyToServerResolutionFailed(hostAndPort);
+                            promise.setFailure(future.cause());
+                        }
+                    }
+                });
 
-            this.localAddress = proxyServer.getLocalAddress();
-        }
+        return promise;
     }
 
     /**
@@ -873,8 +1383,12 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
             pipeline.addLast("global-traffic-shaping", trafficHandler);
         }
 
-        pipeline.addLast("bytesReadMonitor", bytesReadMonitor);
-        pipeline.addLast("bytesWrittenMonitor", bytesWrittenMonitor);
+        // the byte and response monitors only report to activity trackers, so leave them out if there are none
+        boolean trackingActivity = proxyServer.isTrackingActivity();
+        if (trackingActivity) {
+            pipeline.addLast("bytesReadMonitor", bytesReadMonitor);
+            pipeline.addLast("bytesWrittenMonitor", bytesWrittenMonitor);
+        }
 
         pipeline.addLast("encoder", new HttpRequestEncoder());
         pipeline.addLast("decoder", new HeadAwareHttpResponseDecoder(
@@ -889,7 +1403,10 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
             aggregateContentForFiltering(pipeline, numberOfBytesToBuffer);
         }
 
-        pipeline.addLast("responseReadMonitor", responseReadMonitor);
+        if (trackingActivity) {
+            pipeline.addLast("responseReadMonitor", responseReadMonitor);
+        }
+        // the request monitor also notifies the filters, so it is always needed
         pipeline.addLast("requestWrittenMonitor", requestWrittenMonitor);
 
         // Set idle timeout
@@ -970,11 +1487,29 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
      * We track statistics on bytes, requests and responses by adding handlers
      * at the appropriate parts of the pipeline (see initChannelPipeline()).
      **************************************************************************/
+    /**
+     * The flow context last reported to the activity trackers. Only accessed
+     * on this connection's event loop.
+     */
+    private FullFlowContext flowContext;
+
+    /**
+     * Returns the flow context for activity on this connection, reusing the
+     * previous context for as long as it still describes the flow.
+     */
+    private FullFlowContext flowContext() {
+        FullFlowContext context = flowContext;
+        if (context == null || !clientConnection.isCurrentFlowContext(context, this)) {
+            context = new FullFlowContext(clientConnection, this);
+            flowContext = context;
+        }
+        return context;
+    }
+
     private final BytesReadMonitor bytesReadMonitor = new BytesReadMonitor() {
         @Override
         protected void bytesRead(int numberOfBytes) {
-            FullFlowContext flowContext = new FullFlowContext(clientConnection,
-                    ProxyToServerConnection.this);
+            FullFlowContext flowContext = flowContext();
             for (ActivityTracker tracker : proxyServer
                     .getActivityTrackers()) {
                 tracker.bytesReceivedFromServer(flowContext, numberOfBytes);
@@ -985,8 +1520,7 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
     private ResponseReadMonitor responseReadMonitor = new ResponseReadMonitor() {
         @Override
         protected void responseRead(HttpResponse httpResponse) {
-            FullFlowContext flowContext = new FullFlowContext(clientConnection,
-                    ProxyToServerConnection.this);
+            FullFlowContext flowContext = flowContext();
             for (ActivityTracker tracker : proxyServer
                     .getActivityTrackers()) {
                 tracker.responseReceivedFromServer(flowContext, httpResponse);
@@ -997,8 +1531,7 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
     private BytesWrittenMonitor bytesWrittenMonitor = new BytesWrittenMonitor() {
         @Override
         protected void bytesWritten(int numberOfBytes) {
-            FullFlowContext flowContext = new FullFlowContext(clientConnection,
-                    ProxyToServerConnection.this);
+            FullFlowContext flowContext = flowContext();
             for (ActivityTracker tracker : proxyServer
                     .getActivityTrackers()) {
                 tracker.bytesSentToServer(flowContext, numberOfBytes);
@@ -1009,15 +1542,16 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
     private RequestWrittenMonitor requestWrittenMonitor = new RequestWrittenMonitor() {
         @Override
         protected void requestWriting(HttpRequest httpRequest) {
-            FullFlowContext flowContext = new FullFlowContext(clientConnection,
-                    ProxyToServerConnection.this);
-            try {
-                for (ActivityTracker tracker : proxyServer
-                        .getActivityTrackers()) {
-                    tracker.requestSentToServer(flowContext, httpRequest);
+            if (proxyServer.isTrackingActivity()) {
+                FullFlowContext flowContext = flowContext();
+                try {
+                    for (ActivityTracker tracker : proxyServer
+                            .getActivityTrackers()) {
+                        tracker.requestSentToServer(flowContext, httpRequest);
+                    }
+                } catch (Throwable t) {
+                    LOG.warn("Error while invoking ActivityTracker on request", t);
                 }
-            } catch (Throwable t) {
-                LOG.warn("Error while invoking ActivityTracker on request", t);
             }
 
             currentFilters.proxyToServerRequestSending();
@@ -1030,6 +1564,9 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
         @Override
         protected void contentWritten(HttpContent httpContent) {
             if (httpContent instanceof LastHttpContent) {
+                if (proxyServer.getMetrics() != null) {
+                    requestSentNanos = System.nanoTime();
+                }
                 currentFilters.proxyToServerRequestSent();
             }
         }
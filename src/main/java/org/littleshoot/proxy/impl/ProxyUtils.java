@@ -4,6 +4,7 @@ import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.udt.nio.NioUdtProvider;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
@@ -598,6 +599,27 @@ public class ProxyUtils {
         return createFullHttpResponse(httpVersion, status, "text/html; charset=utf-8", content, bytes.length);
     }
 
+    /**
+     * Creates a new {@link FullHttpResponse} with the specified String as the body contents (encoded using UTF-8),
+     * allocating the body from the given allocator. The body is released when the response is written.
+     *
+     * @param httpVersion HTTP version of the response
+     * @param status HTTP status code
+     * @param body body to include in the FullHttpResponse; will be UTF-8 encoded
+     * @param allocator allocator for the body, typically the allocator of the channel the response will be written to
+     * @return new http response object
+     */
+    public static FullHttpResponse createFullHttpResponse(HttpVersion httpVersion,
+                                                          HttpResponseStatus status,
+                                                          String body,
+                                                          ByteBufAllocator allocator) {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        ByteBuf content = allocator.buffer(bytes.length);
+        content.writeBytes(bytes);
+
+        return createFullHttpResponse(httpVersion, status, "text/html; charset=utf-8", content, bytes.length);
+    }
+
     /**
      * Creates a new {@link FullHttpResponse} with no body content
      *
@@ -0,0 +1,1114 @@
+package org.littleshoot.proxy.impl;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableSet;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderDateFormat;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import org.littleshoot.proxy.CacheStorage;
+import org.littleshoot.proxy.CachedResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * <p>
+ * The proxy's shared HTTP response cache, as described by RFC 7234. This class
+ * decides which responses may be stored and whether a stored response may be
+ * used to answer a request; the responses themselves are kept by a
+ * {@link CacheStorage}.
+ * </p>
+ *
+ * <p>
+ * Only responses to GET requests are stored. Requests are answered from the
+ * cache when the stored response is fresh, the request's Vary-ed headers
+ * match, and the request's Cache-Control directives allow it. Conditional
+ * requests are answered with 304 Not Modified when the stored response's
+ * validators match. Responses that set cookies are not stored.
+ * </p>
+ *
+ * <p>
+ * When a stored response is stale, or has to be revalidated before use, the
+ * request is forwarded with the stored response's validators added, and a 304
+ * Not Modified response from the server refreshes the stored response, which
+ * is then sent to the client. Identical requests that arrive while a request
+ * is being forwarded wait for its response rather than being forwarded too,
+ * so that a burst of requests for the same resource only reaches the server
+ * once.
+ * </p>
+ *
+ * <p>
+ * The stale content extensions of RFC 5861 are supported: responses with
+ * stale-while-revalidate are served stale for a while after they expire, while
+ * they are revalidated in the background, and responses with stale-if-error,
+ * or requested with stale-if-error, are served stale when the server can't be
+ * reached or answers with a server error.
+ * </p>
+ */
+class ResponseCache {
+    private static final Logger LOG = LoggerFactory.getLogger(ResponseCache.class);
+
+    /**
+     * Status codes that are cacheable by default, i.e. may be stored with a
+     * heuristic freshness lifetime. See RFC 7231, section 6.1 and RFC 7538.
+     */
+    private static final Set<Integer> CACHEABLE_BY_DEFAULT = ImmutableSet.of(
+            200, 203, 204, 300, 301, 308, 404, 405, 410, 414, 501);
+
+    /**
+     * Methods that do not invalidate cached responses. See RFC 7234, section
+     * 4.4.
+     */
+    private static final Set<HttpMethod> SAFE_METHODS = ImmutableSet.of(
+            HttpMethod.GET, HttpMethod.HEAD, HttpMethod.OPTIONS, HttpMethod.TRACE);
+
+    /**
+     * Headers that describe a particular message rather than the stored
+     * response, and are not stored.
+     */
+    private static final Set<String> UNSTORED_HEADERS = ImmutableSet.of(
+            HttpHeaders.Names.CONNECTION.toLowerCase(Locale.US),
+            HttpHeaders.Names.TRANSFER_ENCODING.toLowerCase(Locale.US),
+            HttpHeaders.Names.CONTENT_LENGTH.toLowerCase(Locale.US));
+
+    /**
+     * Headers of a stored response that are sent with a 304 Not Modified
+     * response. See RFC 7232, section 4.1.
+     */
+    private static final List<String> NOT_MODIFIED_HEADERS = Arrays.asList(
+            HttpHeaders.Names.CACHE_CONTROL,
+            HttpHeaders.Names.CONTENT_LOCATION,
+            HttpHeaders.Names.DATE,
+            HttpHeaders.Names.ETAG,
+            HttpHeaders.Names.EXPIRES,
+            HttpHeaders.Names.VARY);
+
+    /**
+     * Server errors that may be replaced by a stale response. See RFC 5861,
+     * section 4.
+     */
+    private static final Set<Integer> SERVER_ERRORS = ImmutableSet.of(500, 502, 503, 504);
+
+    /**
+     * Request headers that make a request conditional. See RFC 7232, section
+     * 3.
+     */
+    private static final List<String> CONDITIONAL_HEADERS = Arrays.asList(
+            HttpHeaders.Names.IF_MATCH,
+            HttpHeaders.Names.IF_NONE_MATCH,
+            HttpHeaders.Names.IF_MODIFIED_SINCE,
+            HttpHeaders.Names.IF_UNMODIFIED_SINCE,
+            HttpHeaders.Names.IF_RANGE);
+
+    /**
+     * Heuristic freshness lifetimes are a fraction of the time since the
+     * response was last modified, as suggested by RFC 7234, section 4.2.2, and
+     * capped at a day so that no Warning header is needed.
+     */
+    private static final int HEURISTIC_FRESHNESS_PERCENT = 10;
+    private static final long MAX_HEURISTIC_FRESHNESS_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private static final Joiner HEADER_VALUE_JOINER = Joiner.on(", ");
+
+    /**
+     * Warnings added to stale responses. See RFC 7234, section 5.5.
+     */
+    private static final String RESPONSE_IS_STALE_WARNING = "110 - \"Response is Stale\"";
+    private static final String REVALIDATION_FAILED_WARNING = "111 - \"Revalidation Failed\"";
+
+    private static final Pattern ABSOLUTE_URI = Pattern.compile("^https?://.*", Pattern.CASE_INSENSITIVE);
+
+    private final CacheStorage storage;
+
+    /**
+     * The exchanges of the requests currently being forwarded, which identical
+     * requests can wait for.
+     */
+    private final ConcurrentMap<String, Exchange> inFlight = new ConcurrentHashMap<String, Exchange>();
+
+    ResponseCache(CacheStorage storage) {
+        this.storage = storage;
+    }
+
+    CacheStorage getStorage() {
+        return storage;
+    }
+
+    /**
+     * Returns the key for the given request, which is its effective request URI
+     * (RFC 7230, section 5.5), or null if it cannot be determined.
+     *
+     * @param request
+     *            the request
+     * @param https
+     *            true if the request was received over HTTPS, e.g. when
+     *            MITMing, in which case its URI is in origin-form
+     */
+    static String cacheKey(HttpRequest request, boolean https) {
+        String uri = request.getUri();
+        if (ABSOLUTE_URI.matcher(uri).matches()) {
+            return normalize(uri);
+        }
+
+        String host = request.headers().get(HttpHeaders.Names.HOST);
+        if (host == null || host.isEmpty() || !uri.startsWith("/")) {
+            return null;
+        }
+
+        return normalize((https ? "https://" : "http://") + host + uri);
+    }
+
+    /**
+     * Lower-cases the scheme and host of an absolute URI, since they're
+     * case-insensitive, and removes the default port.
+     */
+    private static String normalize(String uri) {
+        try {
+            URI parsed = new URI(uri);
+            String scheme = parsed.getScheme().toLowerCase(Locale.US);
+            String host = parsed.getHost();
+            if (host == null) {
+                return null;
+            }
+            int port = parsed.getPort();
+            if (("http".equals(scheme) && port == 80) || ("https".equals(scheme) && port == 443)) {
+                port = -1;
+            }
+            String path = parsed.getRawPath();
+            if (path == null || path.isEmpty()) {
+                path = "/";
+            }
+
+            StringBuilder key = new StringBuilder(uri.length())
+                    .append(scheme).append("://").append(host.toLowerCase(Locale.US));
+            if (port != -1) {
+                key.append(':').append(port);
+            }
+            key.append(path);
+            if (parsed.getRawQuery() != null) {
+                key.append('?').append(parsed.getRawQuery());
+            }
+
+            return key.toString();
+        } catch (URISyntaxException e) {
+            LOG.debug("Not caching response for unparseable URI {}", uri);
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if the request asks to only be answered from the cache.
+     */
+    static boolean isOnlyIfCached(HttpRequest request) {
+        return CacheControl.forRequest(request).has(CacheControl.ONLY_IF_CACHED);
+    }
+
+    /**
+     * Returns true if the request may wait for the response to an identical
+     * request that is already being forwarded, rather than being forwarded
+     * itself.
+     */
+    static boolean isCollapsible(HttpRequest request) {
+        if (request.getMethod() != HttpMethod.GET
+                || request.headers().contains(HttpHeaders.Names.RANGE)
+                || request.headers().contains(HttpHeaders.Names.AUTHORIZATION)) {
+            return false;
+        }
+
+        CacheControl requestCacheControl = CacheControl.forRequest(request);
+        return !requestCacheControl.has(CacheControl.NO_STORE) && !requestCacheControl.has(CacheControl.NO_CACHE);
+    }
+
+    /**
+     * Looks for a stored response that may be used to answer the request.
+     *
+     * @param key
+     *            the cache key of the request
+     * @param request
+     *            the request
+     * @return the response to send to the client, or null if the request has
+     *         to be forwarded
+     */
+    FullHttpResponse lookup(String key, HttpRequest request) {
+        if (request.getMethod() != HttpMethod.GET
+                || request.headers().contains(HttpHeaders.Names.RANGE)) {
+            return null;
+        }
+
+        CacheControl requestCacheControl = CacheControl.forRequest(request);
+        if (requestCacheControl.has(CacheControl.NO_STORE) || requestCacheControl.has(CacheControl.NO_CACHE)) {
+            return null;
+        }
+
+        CachedResponse cached = storage.get(key);
+        if (cached == null) {
+            LOG.debug("Cache miss for {}", key);
+            return null;
+        }
+
+        if (!matchesVaryHeaders(cached, request)) {
+            LOG.debug("Cached response for {} varies from the request", key);
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        if (!isUsable(cached, requestCacheControl, now)) {
+            if (!mayServeWhileRevalidating(cached, requestCacheControl, now)) {
+                LOG.debug("Cached response for {} is stale", key);
+                return null;
+            }
+
+            LOG.debug("Serving stale cached response for {} while it is revalidated", key);
+        } else {
+            LOG.debug("Cache hit for {}", key);
+        }
+
+        FullHttpResponse response = responseFor(cached, request, now);
+        if (isStale(cached, now)) {
+            response.headers().add(HttpHeaders.Names.WARNING, RESPONSE_IS_STALE_WARNING);
+        }
+
+        return response;
+    }
+
+    /**
+     * Returns true if the response returned by {@link #lookup} is stale, in
+     * which case the stored response should be revalidated in the background.
+     */
+    static boolean isStale(HttpResponse response) {
+        for (String warning : response.headers().getAll(HttpHeaders.Names.WARNING)) {
+            if (warning.startsWith(RESPONSE_IS_STALE_WARNING)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns true if the stored response may be used while it is stale, as
+     * long as it is revalidated in the background. See RFC 5861, section 3.
+     * Requests that limit the age of the response they accept are not
+     * answered with stale responses.
+     */
+    private static boolean mayServeWhileRevalidating(CachedResponse cached, CacheControl requestCacheControl, long now) {
+        if (requestCacheControl.has(CacheControl.MAX_AGE) || requestCacheControl.has(CacheControl.MIN_FRESH)) {
+            return false;
+        }
+
+        CacheControl responseCacheControl = CacheControl.parse(cached.getAllHeaders(HttpHeaders.Names.CACHE_CONTROL));
+        if (mustRevalidate(responseCacheControl)) {
+            return false;
+        }
+
+        long staleWhileRevalidate = responseCacheControl.getSeconds(CacheControl.STALE_WHILE_REVALIDATE);
+        return staleWhileRevalidate != -1
+                && staleness(cached, responseCacheControl, now) <= TimeUnit.SECONDS.toMillis(staleWhileRevalidate);
+    }
+
+    /**
+     * Returns the stored response for the request if it may be used instead of
+     * an error response, because the server could not be reached or answered
+     * with an error, and the stored response or the request allow it with
+     * stale-if-error. See RFC 5861, section 4.
+     *
+     * @param key
+     *            the cache key of the request
+     * @param request
+     *            the request
+     * @param evaluatePreconditions
+     *            false if the request's conditional headers were added by the
+     *            proxy rather than the client
+     * @return the response to send to the client, or null
+     */
+    private FullHttpResponse lookupStaleIfError(String key, HttpRequest request, boolean evaluatePreconditions) {
+        if (request.getMethod() != HttpMethod.GET
+                || request.headers().contains(HttpHeaders.Names.RANGE)) {
+            return null;
+        }
+
+        CacheControl requestCacheControl = CacheControl.forRequest(request);
+        if (requestCacheControl.has(CacheControl.NO_STORE)) {
+            return null;
+        }
+
+        CachedResponse cached = storage.get(key);
+        if (cached == null || !matchesVaryHeaders(cached, request)) {
+            return null;
+        }
+
+        CacheControl responseCacheControl = CacheControl.parse(cached.getAllHeaders(HttpHeaders.Names.CACHE_CONTROL));
+        if (mustRevalidate(responseCacheControl)) {
+            return null;
+        }
+
+        long staleIfError = Math.max(responseCacheControl.getSeconds(CacheControl.STALE_IF_ERROR),
+                requestCacheControl.getSeconds(CacheControl.STALE_IF_ERROR));
+        long now = System.currentTimeMillis();
+        if (staleIfError == -1 || staleness(cached, responseCacheControl, now) > TimeUnit.SECONDS.toMillis(staleIfError)) {
+            return null;
+        }
+
+        LOG.debug("Serving stale cached response for {} instead of an error", key);
+
+        FullHttpResponse response = evaluatePreconditions ? responseFor(cached, request, now) : toFullResponse(cached, now);
+        response.headers().add(HttpHeaders.Names.WARNING, REVALIDATION_FAILED_WARNING);
+
+        return response;
+    }
+
+    /**
+     * Creates the response to the request from the stored response: a 304 Not
+     * Modified response if the request's preconditions match the stored
+     * response, otherwise the whole stored response.
+     */
+    private static FullHttpResponse responseFor(CachedResponse cached, HttpRequest request, long now) {
+        if (!isNotModified(cached, request)) {
+            return toFullResponse(cached, now);
+        }
+
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED);
+        for (String name : NOT_MODIFIED_HEADERS) {
+            List<String> values = cached.getAllHeaders(name);
+            if (!values.isEmpty()) {
+                response.headers().set(name, values);
+            }
+        }
+        setAge(response, cached, now);
+
+        return response;
+    }
+
+    /**
+     * Starts following the exchange of a request that is about to be forwarded
+     * upstream, so that its response can be stored, or can invalidate stored
+     * responses. If an identical request is already being forwarded and the
+     * request may wait for its response, no exchange is started; instead,
+     * the callback is called once the response to the identical request has
+     * been received, or the identical request failed, on the thread that
+     * handled it.
+     *
+     * @param key
+     *            the cache key of the request
+     * @param request
+     *            the request
+     * @param onInFlightFinished
+     *            the callback, or null if the request may not wait
+     * @return the exchange, or null if the request is waiting for an
+     *         identical request
+     */
+    Exchange newExchange(String key, HttpRequest request, Runnable onInFlightFinished) {
+        Exchange exchange = new Exchange(key, request);
+        if (!isCollapsible(request)) {
+            return exchange;
+        }
+
+        Exchange inFlightExchange;
+        while ((inFlightExchange = inFlight.putIfAbsent(key, exchange)) != null) {
+            if (onInFlightFinished == null) {
+                return exchange;
+            }
+
+            if (inFlightExchange.addWaiter(onInFlightFinished)) {
+                return null;
+            }
+
+            // the exchange finished in the meantime
+            inFlight.remove(key, inFlightExchange);
+        }
+
+        return exchange;
+    }
+
+    /**
+     * Starts following the revalidation of a stored response that was served
+     * stale, using a copy of the request it was served to. The copy's
+     * conditional headers are replaced by the stored response's validators.
+     *
+     * @param key
+     *            the cache key of the request
+     * @param request
+     *            a copy of the request
+     * @return the exchange, or null if the request is already being forwarded
+     *         or revalidated
+     */
+    Exchange newBackgroundRevalidation(String key, HttpRequest request) {
+        for (String name : CONDITIONAL_HEADERS) {
+            request.headers().remove(name);
+        }
+
+        Exchange exchange = new Exchange(key, request);
+        return inFlight.putIfAbsent(key, exchange) == null ? exchange : null;
+    }
+
+    /**
+     * Creates a response with the stored response's status, headers and body.
+     */
+    private static FullHttpResponse toFullResponse(CachedResponse cached, long now) {
+        ByteBuf content = Unpooled.wrappedBuffer(cached.getContent());
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, cached.getStatus(), content);
+        response.headers().set(cached.getHeaders());
+        HttpHeaders.setContentLength(response, content.readableBytes());
+        setAge(response, cached, now);
+
+        return response;
+    }
+
+    private static void setAge(HttpResponse response, CachedResponse cached, long now) {
+        response.headers().set(HttpHeaders.Names.AGE, TimeUnit.MILLISECONDS.toSeconds(currentAge(cached, now)));
+    }
+
+    /**
+     * Returns true if the stored response may be used to answer a request with
+     * the given Cache-Control directives. Stale responses are only used when
+     * the request explicitly accepts them with max-stale, and the response
+     * doesn't forbid it.
+     */
+    private boolean isUsable(CachedResponse cached, CacheControl requestCacheControl, long now) {
+        CacheControl responseCacheControl = CacheControl.parse(cached.getAllHeaders(HttpHeaders.Names.CACHE_CONTROL));
+        if (responseCacheControl.has(CacheControl.NO_CACHE)) {
+            return false;
+        }
+
+        long age = currentAge(cached, now);
+        long freshnessLifetime = freshnessLifetime(cached, responseCacheControl);
+
+        long maxAge = requestCacheControl.getSeconds(CacheControl.MAX_AGE);
+        if (maxAge != -1 && age > TimeUnit.SECONDS.toMillis(maxAge)) {
+            return false;
+        }
+
+        long minFresh = requestCacheControl.getSeconds(CacheControl.MIN_FRESH);
+        if (minFresh != -1) {
+            age += TimeUnit.SECONDS.toMillis(minFresh);
+        }
+
+        if (age < freshnessLifetime) {
+            return true;
+        }
+
+        if (!requestCacheControl.has(CacheControl.MAX_STALE)
+                || responseCacheControl.has(CacheControl.MUST_REVALIDATE)
+                || responseCacheControl.has(CacheControl.PROXY_REVALIDATE)
+                || responseCacheControl.has(CacheControl.S_MAXAGE)) {
+            return false;
+        }
+
+        // max-stale without a value accepts a response of any staleness
+        long maxStale = requestCacheControl.getSeconds(CacheControl.MAX_STALE);
+        return maxStale == -1 || age - freshnessLifetime <= TimeUnit.SECONDS.toMillis(maxStale);
+    }
+
+    private static boolean isStale(CachedResponse cached, long now) {
+        CacheControl responseCacheControl = CacheControl.parse(cached.getAllHeaders(HttpHeaders.Names.CACHE_CONTROL));
+        return staleness(cached, responseCacheControl, now) > 0;
+    }
+
+    /**
+     * Returns how long ago the stored response became stale, in milliseconds,
+     * or 0 if it is fresh.
+     */
+    private static long staleness(CachedResponse cached, CacheControl responseCacheControl, long now) {
+        return Math.max(0, currentAge(cached, now) - freshnessLifetime(cached, responseCacheControl));
+    }
+
+    /**
+     * Returns true if the response must not be used without revalidating it
+     * first, even when stale responses would otherwise be allowed.
+     */
+    private static boolean mustRevalidate(CacheControl responseCacheControl) {
+        return responseCacheControl.has(CacheControl.NO_CACHE)
+                || responseCacheControl.has(CacheControl.MUST_REVALIDATE)
+                || responseCacheControl.has(CacheControl.PROXY_REVALIDATE);
+    }
+
+    /**
+     * Calculates the freshness lifetime of a response, in milliseconds. See RFC
+     * 7234, section 4.2.1.
+     */
+    private static long freshnessLifetime(CachedResponse cached, CacheControl cacheControl) {
+        long sharedMaxAge = cacheControl.getSeconds(CacheControl.S_MAXAGE);
+        if (sharedMaxAge != -1) {
+            return TimeUnit.SECONDS.toMillis(sharedMaxAge);
+        }
+
+        long maxAge = cacheControl.getSeconds(CacheControl.MAX_AGE);
+        if (maxAge != -1) {
+            return TimeUnit.SECONDS.toMillis(maxAge);
+        }
+
+        long date = dateValue(cached);
+
+        if (cached.getHeader(HttpHeaders.Names.EXPIRES) != null) {
+            // invalid dates, such as "0", mean the response has already expired
+            Date expires = parseDate(cached.getHeader(HttpHeaders.Names.EXPIRES));
+            return expires != null ? Math.max(0, expires.getTime() - date) : 0;
+        }
+
+        Date lastModified = parseDate(cached.getHeader(HttpHeaders.Names.LAST_MODIFIED));
+        if (lastModified != null
+                && (CACHEABLE_BY_DEFAULT.contains(cached.getStatus().code()) || cacheControl.has(CacheControl.PUBLIC))) {
+            long heuristic = Math.max(0, date - lastModified.getTime()) * HEURISTIC_FRESHNESS_PERCENT / 100;
+            return Math.min(heuristic, MAX_HEURISTIC_FRESHNESS_MILLIS);
+        }
+
+        return 0;
+    }
+
+    /**
+     * Calculates the current age of a response, in milliseconds. See RFC 7234,
+     * section 4.2.3.
+     */
+    static long currentAge(CachedResponse cached, long now) {
+        long ageValue = 0;
+        String age = cached.getHeader(HttpHeaders.Names.AGE);
+        if (age != null) {
+            try {
+                ageValue = TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(age.trim())));
+            } catch (NumberFormatException e) {
+                // ignore invalid Age headers
+            }
+        }
+
+        long apparentAge = Math.max(0, cached.getResponseTime() - dateValue(cached));
+        long responseDelay = cached.getResponseTime() - cached.getRequestTime();
+        long correctedInitialAge = Math.max(apparentAge, ageValue + responseDelay);
+        long residentTime = now - cached.getResponseTime();
+
+        return correctedInitialAge + residentTime;
+    }
+
+    private static long dateValue(CachedResponse cached) {
+        Date date = parseDate(cached.getHeader(HttpHeaders.Names.DATE));
+        return date != null ? date.getTime() : cached.getResponseTime();
+    }
+
+    private static Date parseDate(String value) {
+        if (value == null) {
+            return null;
+        }
+
+        try {
+            return HttpHeaderDateFormat.get().parse(value.trim());
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if the request's values of the headers named by the stored
+     * response's Vary header are the same as those of the request the response
+     * was stored for. See RFC 7234, section 4.1.
+     */
+    private static boolean matchesVaryHeaders(CachedResponse cached, HttpRequest request) {
+        for (Map.Entry<String, String> varyHeader : cached.getVaryHeaders().entrySet()) {
+            String value = headerValue(request, varyHeader.getKey());
+            if (value == null ? varyHeader.getValue() != null : !value.equals(varyHeader.getValue())) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the combined values of all of a request's headers with the given
+     * name, or null if the request doesn't have the header.
+     */
+    private static String headerValue(HttpRequest request, String name) {
+        List<String> values = request.headers().getAll(name);
+        if (values.isEmpty()) {
+            return null;
+        }
+
+        return HEADER_VALUE_JOINER.join(values);
+    }
+
+    /**
+     * Evaluates the request's If-None-Match or If-Modified-Since precondition
+     * against the stored response. See RFC 7232, sections 3.2, 3.3 and 6.
+     */
+    private static boolean isNotModified(CachedResponse cached, HttpRequest request) {
+        List<String> ifNoneMatch = ProxyUtils.getAllCommaSeparatedHeaderValues(HttpHeaders.Names.IF_NONE_MATCH, request);
+        if (!ifNoneMatch.isEmpty()) {
+            String etag = cached.getHeader(HttpHeaders.Names.ETAG);
+            for (String candidate : ifNoneMatch) {
+                if ("*".equals(candidate) || (etag != null && weakEntityTag(candidate).equals(weakEntityTag(etag)))) {
+                    return true;
+                }
+            }
+
+            // If-Modified-Since is ignored when If-None-Match is present
+            return false;
+        }
+
+        Date ifModifiedSince = parseDate(request.headers().get(HttpHeaders.Names.IF_MODIFIED_SINCE));
+        if (ifModifiedSince == null) {
+            return false;
+        }
+
+        String lastModifiedHeader = cached.getHeader(HttpHeaders.Names.LAST_MODIFIED);
+        Date lastModified = parseDate(lastModifiedHeader != null ? lastModifiedHeader : cached.getHeader(HttpHeaders.Names.DATE));
+        return lastModified != null && !lastModified.after(ifModifiedSince);
+    }
+
+    /**
+     * Strips the weakness indicator from an entity tag, since If-None-Match
+     * uses the weak comparison function.
+     */
+    private static String weakEntityTag(String entityTag) {
+        entityTag = entityTag.trim();
+        return entityTag.startsWith("W/") ? entityTag.substring(2) : entityTag;
+    }
+
+    /**
+     * Follows the response to a request that was forwarded upstream. If the
+     * response may be stored, its body is buffered as it is relayed to the
+     * client, and the response is stored once it is complete. Successful
+     * responses to unsafe requests invalidate the stored responses for the
+     * request's URI, and 304 Not Modified responses refresh them.
+     */
+    class Exchange {
+        private final String key;
+        private final HttpRequest request;
+        private final long requestTime = System.currentTimeMillis();
+
+        /**
+         * The stored response whose validators were added to the request, if
+         * any.
+         */
+        private CachedResponse revalidating;
+
+        /**
+         * True when the client is sent a stored response instead of the
+         * server's response, i.e. a refreshed stored response instead of a 304
+         * Not Modified response, or a stale one instead of an error.
+         */
+        private boolean replacingResponse;
+
+        private HttpResponse response;
+        private long responseTime;
+
+        /**
+         * Callbacks of the identical requests waiting for this exchange, and
+         * whether it is finished. Guarded by this.
+         */
+        private List<Runnable> waiters;
+        private boolean finished;
+
+        /**
+         * The body of the response so far, while it is being buffered for
+         * storage.
+         */
+        private ByteArrayOutputStream content;
+
+        private Exchange(String key, HttpRequest request) {
+            this.key = key;
+            this.request = request;
+        }
+
+        /**
+         * Adds the validators of the stored response for the request to the
+         * request, if there is one, so that the server can answer with 304 Not
+         * Modified if it is still valid. Requests that are already conditional
+         * are left alone, since their 304 responses are meant for the client.
+         * This is called just before the request is forwarded.
+         */
+        void addValidators() {
+            if (request.getMethod() != HttpMethod.GET || request.headers().contains(HttpHeaders.Names.RANGE)
+                    || CacheControl.forRequest(request).has(CacheControl.NO_STORE)) {
+                return;
+            }
+
+            for (String name : CONDITIONAL_HEADERS) {
+                if (request.headers().contains(name)) {
+                    return;
+                }
+            }
+
+            CachedResponse cached = storage.get(key);
+            if (cached == null || !matchesVaryHeaders(cached, request)) {
+                return;
+            }
+
+            String etag = cached.getHeader(HttpHeaders.Names.ETAG);
+            String lastModified = cached.getHeader(HttpHeaders.Names.LAST_MODIFIED);
+            if (etag == null && lastModified == null) {
+                return;
+            }
+
+            LOG.debug("Revalidating cached response for {}", key);
+            revalidating = cached;
+            if (etag != null) {
+                request.headers().set(HttpHeaders.Names.IF_NONE_MATCH, etag);
+            }
+            if (lastModified != null) {
+                request.headers().set(HttpHeaders.Names.IF_MODIFIED_SINCE, lastModified);
+            }
+        }
+
+        /**
+         * Follows a message of the response, and returns the message to send to
+         * the client in its place. When the server answers the revalidation of
+         * a stored response with 304 Not Modified, the client is sent the
+         * refreshed stored response instead, and when it answers with an error
+         * that stale-if-error allows to hide, the client is sent the stale
+         * stored response. The rest of the server's response is then dropped.
+         *
+         * @return the message to send to the client, or null if nothing should
+         *         be sent
+         */
+        HttpObject responseReceived(HttpObject httpObject) {
+            if (httpObject.getDecoderResult().isFailure()) {
+                content = null;
+                finish();
+                return httpObject;
+            }
+
+            HttpObject toClient = httpObject;
+            if (httpObject instanceof HttpResponse) {
+                response = (HttpResponse) httpObject;
+                responseTime = System.currentTimeMillis();
+                FullHttpResponse refreshed = responseStarted();
+                if (refreshed != null) {
+                    replacingResponse = true;
+                    toClient = refreshed;
+                }
+            } else if (replacingResponse) {
+                toClient = null;
+            }
+
+            if (content != null && httpObject instanceof HttpContent) {
+                ByteBuf chunk = ((HttpContent) httpObject).content();
+                if (content.size() + chunk.readableBytes() > storage.getMaximumObjectSize()) {
+                    LOG.debug("Response for {} is too large to cache", key);
+                    content = null;
+                } else {
+                    try {
+                        chunk.getBytes(chunk.readerIndex(), content, chunk.readableBytes());
+                    } catch (IOException e) {
+                        // ByteArrayOutputStreams don't throw
+                        content = null;
+                    }
+                }
+            }
+
+            if (ProxyUtils.isLastChunk(httpObject)) {
+                if (content != null) {
+                    store();
+                }
+                finish();
+            }
+
+            return toClient;
+        }
+
+        /**
+         * Returns the stored response to send to the client instead of an error
+         * response, if stale-if-error allows it, or null.
+         */
+        FullHttpResponse staleIfError() {
+            return lookupStaleIfError(key, request, revalidating == null);
+        }
+
+        /**
+         * Returns true once the whole response has been received, or the
+         * exchange was otherwise finished.
+         */
+        synchronized boolean isFinished() {
+            return finished;
+        }
+
+        /**
+         * Finishes the exchange, and lets the identical requests waiting for it
+         * continue. This is called once the response is complete, and must also
+         * be called when the request fails or the response is abandoned.
+         */
+        void finish() {
+            List<Runnable> toNotify;
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+                toNotify = waiters;
+                waiters = null;
+            }
+
+            inFlight.remove(key, this);
+
+            if (toNotify != null) {
+                LOG.debug("Resuming {} requests waiting for {}", toNotify.size(), key);
+                for (Runnable waiter : toNotify) {
+                    waiter.run();
+                }
+            }
+        }
+
+        private synchronized boolean addWaiter(Runnable waiter) {
+            if (finished) {
+                return false;
+            }
+
+            if (waiters == null) {
+                waiters = new ArrayList<Runnable>();
+            }
+            waiters.add(waiter);
+
+            return true;
+        }
+
+        /**
+         * Handles the start of the response.
+         *
+         * @return the stored response to send to the client instead of the
+         *         server's response, or null
+         */
+        private FullHttpResponse responseStarted() {
+            int status = response.getStatus().code();
+
+            if (!SAFE_METHODS.contains(request.getMethod())) {
+                if (status < 400) {
+                    invalidate();
+                }
+                return null;
+            }
+
+            if (status == HttpResponseStatus.NOT_MODIFIED.code()) {
+                return notModified();
+            }
+
+            if (SERVER_ERRORS.contains(status)) {
+                FullHttpResponse staleResponse = staleIfError();
+                if (staleResponse != null) {
+                    return staleResponse;
+                }
+            }
+
+            if (isStorable()) {
+                content = new ByteArrayOutputStream();
+            }
+
+            return null;
+        }
+
+        /**
+         * Refreshes the stored response with the headers of a 304 Not Modified
+         * response, if its validators match. See RFC 7234, section 4.3.4.
+         *
+         * @return the refreshed stored response, if the 304 response answers
+         *         the proxy's revalidation rather than the client's own
+         *         conditional request, or null
+         */
+        private FullHttpResponse notModified() {
+            CachedResponse stored = revalidating != null ? revalidating : storage.get(key);
+            if (stored == null || !hasSameValidators(stored, response)) {
+                return null;
+            }
+
+            HttpHeaders headers = stored.getHeaders();
+            for (String name : response.headers().names()) {
+                if (!ProxyUtils.shouldRemoveHopByHopHeader(name) && !UNSTORED_HEADERS.contains(name.toLowerCase(Locale.US))) {
+                    headers.set(name, response.headers().getAll(name));
+                }
+            }
+
+            CachedResponse refreshed = new CachedResponse(stored.getStatus(), headers, stored.getContent(),
+                    stored.getVaryHeaders(), requestTime, responseTime);
+
+            CacheControl responseCacheControl = CacheControl.parse(refreshed.getAllHeaders(HttpHeaders.Names.CACHE_CONTROL));
+            if (responseCacheControl.has(CacheControl.NO_STORE) || responseCacheControl.has(CacheControl.PRIVATE)) {
+                storage.remove(key);
+            } else {
+                LOG.debug("Refreshing cached response for {}", key);
+                storage.put(key, refreshed);
+            }
+
+            if (revalidating == null) {
+                return null;
+            }
+
+            FullHttpResponse fullResponse = toFullResponse(refreshed, responseTime);
+            HttpHeaders.setKeepAlive(fullResponse, HttpHeaders.isKeepAlive(response));
+            return fullResponse;
+        }
+
+        /**
+         * Determines whether the response may be stored by a shared cache. See
+         * RFC 7234, section 3.
+         */
+        private boolean isStorable() {
+            if (request.getMethod() != HttpMethod.GET || request.headers().contains(HttpHeaders.Names.RANGE)) {
+                return false;
+            }
+
+            CacheControl requestCacheControl = CacheControl.forRequest(request);
+            CacheControl responseCacheControl = CacheControl.parse(response.headers().getAll(HttpHeaders.Names.CACHE_CONTROL));
+            // responses with no-cache are stored, since they are revalidated before they are used
+            if (requestCacheControl.has(CacheControl.NO_STORE)
+                    || responseCacheControl.has(CacheControl.NO_STORE)
+                    || responseCacheControl.has(CacheControl.PRIVATE)) {
+                return false;
+            }
+
+            if (request.headers().contains(HttpHeaders.Names.AUTHORIZATION)
+                    && !responseCacheControl.has(CacheControl.PUBLIC)
+                    && !responseCacheControl.has(CacheControl.S_MAXAGE)
+                    && !responseCacheControl.has(CacheControl.MUST_REVALIDATE)) {
+                return false;
+            }
+
+            if (response.headers().contains(HttpHeaders.Names.SET_COOKIE)) {
+                return false;
+            }
+
+            for (String vary : ProxyUtils.getAllCommaSeparatedHeaderValues(HttpHeaders.Names.VARY, response)) {
+                if ("*".equals(vary)) {
+                    return false;
+                }
+            }
+
+            int status = response.getStatus().code();
+            boolean hasExplicitFreshness = response.headers().contains(HttpHeaders.Names.EXPIRES)
+                    || responseCacheControl.has(CacheControl.MAX_AGE)
+                    || responseCacheControl.has(CacheControl.S_MAXAGE)
+                    || responseCacheControl.has(CacheControl.PUBLIC);
+            if (status < 200
+                    || status == HttpResponseStatus.PARTIAL_CONTENT.code()
+                    || status == HttpResponseStatus.NOT_MODIFIED.code()
+                    || (!hasExplicitFreshness && !CACHEABLE_BY_DEFAULT.contains(status))) {
+                return false;
+            }
+
+            String contentLength = response.headers().get(HttpHeaders.Names.CONTENT_LENGTH);
+            if (contentLength != null) {
+                try {
+                    if (Long.parseLong(contentLength.trim()) > storage.getMaximumObjectSize()) {
+                        return false;
+                    }
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        private void store() {
+            byte[] body = content.toByteArray();
+            content = null;
+
+            // make sure the whole body was received
+            String contentLength = response.headers().get(HttpHeaders.Names.CONTENT_LENGTH);
+            if (contentLength != null && !HttpHeaders.isTransferEncodingChunked(response)
+                    && Long.parseLong(contentLength.trim()) != body.length) {
+                return;
+            }
+
+            HttpHeaders headers = new DefaultHttpHeaders().add(response.headers());
+            for (String connectionToken : ProxyUtils.getAllCommaSeparatedHeaderValues(HttpHeaders.Names.CONNECTION, response)) {
+                headers.remove(connectionToken);
+            }
+            for (String name : response.headers().names()) {
+                if (ProxyUtils.shouldRemoveHopByHopHeader(name) || UNSTORED_HEADERS.contains(name.toLowerCase(Locale.US))) {
+                    headers.remove(name);
+                }
+            }
+
+            Map<String, String> varyHeaders = new HashMap<String, String>();
+            for (String vary : ProxyUtils.getAllCommaSeparatedHeaderValues(HttpHeaders.Names.VARY, response)) {
+                String name = vary.toLowerCase(Locale.US);
+                varyHeaders.put(name, headerValue(request, name));
+            }
+
+            LOG.debug("Storing response for {}", key);
+            storage.put(key, new CachedResponse(response.getStatus(), headers, ByteBuffer.wrap(body),
+                    varyHeaders, requestTime, responseTime));
+        }
+
+        /**
+         * Removes the stored responses for the request's URI, and for the URIs
+         * in the response's Location and Content-Location headers if they have
+         * the same host. See RFC 7234, section 4.4.
+         */
+        private void invalidate() {
+            LOG.debug("Invalidating cached response for {}", key);
+            storage.remove(key);
+
+            for (String header : new String[] { HttpHeaders.Names.LOCATION, HttpHeaders.Names.CONTENT_LOCATION }) {
+                String location = response.headers().get(header);
+                if (location == null) {
+                    continue;
+                }
+
+                try {
+                    String locationKey = normalize(new URI(key).resolve(location.trim()).toString());
+                    if (locationKey != null && sameOrigin(key, locationKey)) {
+                        storage.remove(locationKey);
+                    }
+                } catch (IllegalArgumentException e) {
+                    LOG.debug("Not invalidating unparseable {}: {}", header, location);
+                } catch (URISyntaxException e) {
+                    LOG.debug("Not invalidating unparseable {}: {}", header, location);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if a 304 Not Modified response applies to the stored
+     * response, i.e. it has the same entity tag, or the same modification date
+     * if it has no entity tag. See RFC 7234, section 4.3.4.
+     */
+    private static boolean hasSameValidators(CachedResponse stored, HttpResponse notModified) {
+        String etag = notModified.headers().get(HttpHeaders.Names.ETAG);
+        if (etag != null) {
+            String storedEtag = stored.getHeader(HttpHeaders.Names.ETAG);
+            return storedEtag != null && weakEntityTag(storedEtag).equals(weakEntityTag(etag));
+        }
+
+        String lastModified = notModified.headers().get(HttpHeaders.Names.LAST_MODIFIED);
+        if (lastModified != null) {
+            return lastModified.equals(stored.getHeader(HttpHeaders.Names.LAST_MODIFIED));
+        }
+
+        return true;
+    }
+
+    private static boolean sameOrigin(String key, String otherKey) throws URISyntaxException {
+        URI uri = new URI(key);
+        URI other = new URI(otherKey);
+        return uri.getScheme().equals(other.getScheme())
+                && uri.getHost().equals(other.getHost())
+                && uri.getPort() == other.getPort();
+    }
+}
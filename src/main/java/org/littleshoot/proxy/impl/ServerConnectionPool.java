@@ -0,0 +1,280 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * A server-wide pool of idle connections to upstream servers, keyed by the resolved address of the server. When a
+ * client disconnects, the keep-alive connections it was using to reach origin servers are returned here instead of
+ * being closed, so that the next {@link ProxyToServerConnection} headed for the same server can skip the TCP
+ * handshake.
+ * </p>
+ *
+ * <p>
+ * Only plain HTTP connections made directly to the origin server are pooled. Connections that are encrypted, tunneled
+ * or that go through a chained proxy are bound to the client that opened them and are never pooled.
+ * </p>
+ *
+ * <p>
+ * While a channel sits in the pool its pipeline is stripped down to an idle timer and a handler that closes the
+ * channel if the server hangs up, sends unsolicited data or the idle timeout expires.
+ * </p>
+ */
+public class ServerConnectionPool {
+    private static final Logger LOG = LoggerFactory.getLogger(ServerConnectionPool.class);
+
+    /**
+     * Records when a pooled channel was originally opened, to enforce the maximum connection lifetime.
+     */
+    private static final AttributeKey<Long> CREATED_AT = AttributeKey.valueOf("littleproxy.pool.createdAt");
+
+    private final int maxIdleConnectionsPerServer;
+    private final int maxIdleConnections;
+    private final int idleTimeoutSeconds;
+    private final long maxLifetimeMillis;
+
+    private final ConcurrentMap<InetSocketAddress, IdleChannels> idleChannelsByAddress = new ConcurrentHashMap<InetSocketAddress, IdleChannels>();
+
+    /**
+     * Number of channels currently idle in the pool (or about to be added to it), across all servers.
+     */
+    private final AtomicInteger idleConnections = new AtomicInteger();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ServerConnectionPool(ConnectionPoolConfiguration configuration) {
+        this.maxIdleConnectionsPerServer = configuration.getMaxIdleConnectionsPerServer();
+        this.maxIdleConnections = configuration.getMaxIdleConnections();
+        this.idleTimeoutSeconds = configuration.getIdleTimeoutSeconds();
+        this.maxLifetimeMillis = TimeUnit.SECONDS.toMillis(configuration.getMaxLifetimeSeconds());
+    }
+
+    /**
+     * Records the time at which a channel was opened. Should be called for every channel that may later be released
+     * to this pool.
+     *
+     * @param channel newly opened channel
+     */
+    void channelOpened(Channel channel) {
+        channel.attr(CREATED_AT).set(System.currentTimeMillis());
+    }
+
+    /**
+     * Checks out an idle channel connected to the given address, if one is available. The returned channel still has
+     * the pool's handlers in its pipeline; the caller is responsible for replacing them on the channel's event loop.
+     *
+     * @param address resolved address of the upstream server
+     * @return an active channel to the server, or null if there is no usable idle channel
+     */
+    Channel acquire(InetSocketAddress address) {
+        IdleChannels idleChannels = idleChannelsByAddress.get(address);
+        if (idleChannels != null) {
+            Channel channel;
+            // take the most recently used channel first, since it is the least likely to have been closed by the server
+            while ((channel = idleChannels.channels.pollFirst()) != null) {
+                idleChannels.count.decrementAndGet();
+                idleConnections.decrementAndGet();
+
+                if (channel.isActive() && !isExpired(channel)) {
+                    LOG.debug("Reusing pooled connection to {}: {}", address, channel);
+                    hits.incrementAndGet();
+                    return channel;
+                }
+
+                evictions.incrementAndGet();
+                channel.close();
+            }
+        }
+
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Returns a channel to the pool. The channel must be idle, i.e. there must not be a request or response in flight
+     * on it. If the pool is full or the channel is too old to be reused, this method returns false and the caller
+     * should close the channel itself.
+     *
+     * @param address resolved address of the upstream server the channel is connected to
+     * @param channel the idle channel
+     * @return true if the channel was accepted by the pool
+     */
+    boolean release(final InetSocketAddress address, final Channel channel) {
+        if (!channel.isActive() || isExpired(channel)) {
+            return false;
+        }
+
+        if (idleConnections.incrementAndGet() > maxIdleConnections) {
+            idleConnections.decrementAndGet();
+            LOG.debug("Connection pool is full, not pooling connection to {}", address);
+            return false;
+        }
+
+        // reserve the slot before the channel is actually added below, so that concurrent releases can't all see room
+        // for one more channel
+        final IdleChannels idleChannels = idleChannelsFor(address);
+        if (idleChannels.count.incrementAndGet() > maxIdleConnectionsPerServer) {
+            idleChannels.count.decrementAndGet();
+            idleConnections.decrementAndGet();
+            LOG.debug("Connection pool already has {} idle connections to {}, not pooling connection", maxIdleConnectionsPerServer, address);
+            return false;
+        }
+
+        // pipeline modifications must happen on the channel's event loop. the channel is only made available to other
+        // connections once the pipeline has been reset.
+        channel.eventLoop().execute(new Runnable() {
+            @Override
+            public void run() {
+                ChannelPipeline pipeline = channel.pipeline();
+                while (pipeline.last() != null) {
+                    pipeline.removeLast();
+                }
+
+                pipeline.addLast("idle", new IdleStateHandler(0, 0, idleTimeoutSeconds));
+                pipeline.addLast("pooled", new PooledChannelHandler(address));
+
+                idleChannels.channels.offerFirst(channel);
+
+                // the server may have closed the channel before the pooled handler was installed
+                if (!channel.isActive()) {
+                    evict(address, channel);
+                }
+            }
+        });
+
+        LOG.debug("Returned connection to {} to the pool: {}", address, channel);
+        return true;
+    }
+
+    /**
+     * Number of idle connections currently held by the pool.
+     */
+    public int getIdleConnections() {
+        return idleConnections.get();
+    }
+
+    /**
+     * Number of times a pooled connection was handed out.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Number of times no usable pooled connection was available.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Number of pooled connections that were closed because they expired, timed out or were closed by the server.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    private IdleChannels idleChannelsFor(InetSocketAddress address) {
+        IdleChannels idleChannels = idleChannelsByAddress.get(address);
+        if (idleChannels == null) {
+            IdleChannels newIdleChannels = new IdleChannels();
+            idleChannels = idleChannelsByAddress.putIfAbsent(address, newIdleChannels);
+            if (idleChannels == null) {
+                idleChannels = newIdleChannels;
+            }
+        }
+
+        return idleChannels;
+    }
+
+    private boolean isExpired(Channel channel) {
+        if (maxLifetimeMillis <= 0) {
+            return false;
+        }
+
+        Long createdAt = channel.attr(CREATED_AT).get();
+        return createdAt != null && System.currentTimeMillis() - createdAt > maxLifetimeMillis;
+    }
+
+    /**
+     * Removes the channel from the pool, if it has not already been checked out, and closes it.
+     */
+    private void evict(InetSocketAddress address, Channel channel) {
+        IdleChannels idleChannels = idleChannelsByAddress.get(address);
+        if (idleChannels != null && idleChannels.channels.remove(channel)) {
+            idleChannels.count.decrementAndGet();
+            idleConnections.decrementAndGet();
+            evictions.incrementAndGet();
+            LOG.debug("Evicted pooled connection to {}: {}", address, channel);
+        }
+
+        channel.close();
+    }
+
+    /**
+     * The idle channels to one server, and the number of them that are in the pool or about to be added to it.
+     */
+    private static class IdleChannels {
+        private final Deque<Channel> channels = new ConcurrentLinkedDeque<Channel>();
+        private final AtomicInteger count = new AtomicInteger();
+    }
+
+    /**
+     * Watches a channel while it is idle in the pool.
+     */
+    @Sharable
+    private class PooledChannelHandler extends ChannelInboundHandlerAdapter {
+        private final InetSocketAddress address;
+
+        private PooledChannelHandler(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            // the server should not send anything on an idle connection. we can't tell what state it thinks the
+            // connection is in, so get rid of it.
+            ReferenceCountUtil.release(msg);
+            evict(address, ctx.channel());
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            evict(address, ctx.channel());
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt instanceof IdleStateEvent) {
+                evict(address, ctx.channel());
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            LOG.debug("Exception on pooled connection to {}", address, cause);
+            evict(address, ctx.channel());
+        }
+    }
+}
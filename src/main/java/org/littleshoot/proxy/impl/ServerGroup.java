@@ -1,8 +1,10 @@
 package org.littleshoot.proxy.impl;
 
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
 import io.netty.channel.udt.nio.NioUdtProvider;
 import org.littleshoot.proxy.HttpProxyServer;
+import org.littleshoot.proxy.IoTransport;
 import org.littleshoot.proxy.TransportProtocol;
 import org.littleshoot.proxy.UnknownTransportProtocolException;
 import org.slf4j.Logger;
@@ -40,6 +42,16 @@ public class ServerGroup {
      */
     public static final int DEFAULT_OUTGOING_WORKER_THREADS = 8;
 
+    /**
+     * The default number of threads to run request filters on. By default, filters run on the worker threads.
+     */
+    public static final int DEFAULT_FILTER_OFFLOAD_THREADS = 0;
+
+    /**
+     * The default maximum number of requests waiting for a filter offload thread.
+     */
+    public static final int DEFAULT_FILTER_OFFLOAD_QUEUE_SIZE = 1024;
+
     /**
      * Global counter for the {@link #serverGroupId}.
      */
@@ -60,6 +72,17 @@ public class ServerGroup {
     private final int incomingWorkerThreads;
     private final int outgoingWorkerThreads;
 
+    /**
+     * The I/O transport used for TCP channels. This is the transport that is actually in use, which may differ from
+     * the requested transport if the native transport is not available.
+     */
+    private final IoTransport tcpIoTransport;
+
+    /**
+     * The executor that request filters are offloaded to, or null if filters run on the worker threads.
+     */
+    private final FilterOffloadExecutor filterOffloadExecutor;
+
     /**
      * List of all servers registered to use this ServerGroup. Any access to this list should be synchronized using the
      * {@link #SERVER_REGISTRATION_LOCK}.
@@ -105,11 +128,58 @@ public class ServerGroup {
      * @param outgoingWorkerThreads number of proxy-to-server worker threads per protocol
      */
     public ServerGroup(String name, int incomingAcceptorThreads, int incomingWorkerThreads, int outgoingWorkerThreads) {
+        this(name, incomingAcceptorThreads, incomingWorkerThreads, outgoingWorkerThreads, IoTransport.NIO);
+    }
+
+    /**
+     * Creates a new ServerGroup instance for a proxy that uses the specified I/O transport for TCP connections. If the
+     * native epoll transport is requested but is not available on this platform, the ServerGroup falls back to NIO.
+     * UDT connections always use NIO.
+     *
+     * @param name ServerGroup name to include in thread names
+     * @param incomingAcceptorThreads number of acceptor threads per protocol
+     * @param incomingWorkerThreads number of client-to-proxy worker threads per protocol
+     * @param outgoingWorkerThreads number of proxy-to-server worker threads per protocol
+     * @param ioTransport the I/O transport to use for TCP connections
+     */
+    public ServerGroup(String name, int incomingAcceptorThreads, int incomingWorkerThreads, int outgoingWorkerThreads, IoTransport ioTransport) {
+        this(name, incomingAcceptorThreads, incomingWorkerThreads, outgoingWorkerThreads, ioTransport,
+                DEFAULT_FILTER_OFFLOAD_THREADS, DEFAULT_FILTER_OFFLOAD_QUEUE_SIZE);
+    }
+
+    /**
+     * Creates a new ServerGroup instance for a proxy that uses the specified I/O transport for TCP connections and,
+     * if filterOffloadThreads is greater than zero, runs request filters on a separate, bounded thread pool.
+     *
+     * @param name ServerGroup name to include in thread names
+     * @param incomingAcceptorThreads number of acceptor threads per protocol
+     * @param incomingWorkerThreads number of client-to-proxy worker threads per protocol
+     * @param outgoingWorkerThreads number of proxy-to-server worker threads per protocol
+     * @param ioTransport the I/O transport to use for TCP connections
+     * @param filterOffloadThreads number of threads to run request filters on, shared by all protocols
+     * @param filterOffloadQueueSize maximum number of requests waiting for a filter offload thread
+     */
+    public ServerGroup(String name, int incomingAcceptorThreads, int incomingWorkerThreads, int outgoingWorkerThreads, IoTransport ioTransport,
+                       int filterOffloadThreads, int filterOffloadQueueSize) {
         this.name = name;
         this.serverGroupId = serverGroupCount.getAndIncrement();
         this.incomingAcceptorThreads = incomingAcceptorThreads;
         this.incomingWorkerThreads = incomingWorkerThreads;
         this.outgoingWorkerThreads = outgoingWorkerThreads;
+
+        if (ioTransport == IoTransport.EPOLL && !Epoll.isAvailable()) {
+            log.warn("Native epoll transport is not available, falling back to NIO", Epoll.unavailabilityCause());
+            this.tcpIoTransport = IoTransport.NIO;
+        } else {
+            this.tcpIoTransport = ioTransport;
+        }
+
+        if (filterOffloadThreads > 0) {
+            this.filterOffloadExecutor = new FilterOffloadExecutor(filterOffloadThreads, filterOffloadQueueSize,
+                    new CategorizedThreadFactory(name, "FilterOffload", serverGroupId));
+        } else {
+            this.filterOffloadExecutor = null;
+        }
     }
 
     /**
@@ -133,15 +203,16 @@ public class ServerGroup {
         if (protocolThreadPools.get(protocol) == null) {
             synchronized (THREAD_POOL_INIT_LOCK) {
                 if (protocolThreadPools.get(protocol) == null) {
-                    log.debug("Initializing thread pools for {} with {} acceptor threads, {} incoming worker threads, and {} outgoing worker threads",
-                            protocol, incomingAcceptorThreads, incomingWorkerThreads, outgoingWorkerThreads);
+                    log.debug("Initializing {} thread pools for {} with {} acceptor threads, {} incoming worker threads, and {} outgoing worker threads",
+                            getIoTransportFor(protocol), protocol, incomingAcceptorThreads, incomingWorkerThreads, outgoingWorkerThreads);
 
                     SelectorProvider selectorProvider = TRANSPORT_PROTOCOL_SELECTOR_PROVIDERS.get(protocol);
                     if (selectorProvider == null) {
                         throw new UnknownTransportProtocolException(protocol);
                     }
 
-                    ProxyThreadPools threadPools = new ProxyThreadPools(selectorProvider,
+                    ProxyThreadPools threadPools = new ProxyThreadPools(getIoTransportFor(protocol),
+                            selectorProvider,
                             incomingAcceptorThreads,
                             incomingWorkerThreads,
                             outgoingWorkerThreads,
@@ -227,6 +298,10 @@ public class ServerGroup {
             }
         }
 
+        if (filterOffloadExecutor != null) {
+            filterOffloadExecutor.shutdown(graceful);
+        }
+
         if (graceful) {
             for (EventLoopGroup group : allEventLoopGroups) {
                 try {
@@ -281,6 +356,34 @@ public class ServerGroup {
         return getThreadPoolsForProtocol(protocol).getProxyToServerWorkerPool();
     }
 
+    /**
+     * @return the number of acceptor threads per protocol
+     */
+    public int getIncomingAcceptorThreads() {
+        return incomingAcceptorThreads;
+    }
+
+    /**
+     * Returns the I/O transport used for channels of the specified protocol. Channels registered with this
+     * ServerGroup's thread pools must be created for this transport.
+     *
+     * @param protocol transport protocol of the channels
+     * @return the I/O transport in use for the protocol
+     */
+    public IoTransport getIoTransportFor(TransportProtocol protocol) {
+        // the native transport only supports TCP
+        return protocol == TransportProtocol.TCP ? tcpIoTransport : IoTransport.NIO;
+    }
+
+    /**
+     * Returns the executor that request filters are offloaded to, or null if filters run on the worker threads.
+     *
+     * @return the filter offload executor, or null
+     */
+    public FilterOffloadExecutor getFilterOffloadExecutor() {
+        return filterOffloadExecutor;
+    }
+
     /**
      * @return true if this ServerGroup has already been stopped
      */
@@ -0,0 +1,39 @@
+package org.littleshoot.proxy.impl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that spreads its updates over several cells, so that event loop threads updating it concurrently don't
+ * contend on a single cache line. Each thread updates the cell picked by its thread ID; the value is the sum of all
+ * cells.
+ */
+final class StripedCounter {
+    /**
+     * Number of cells. A power of two, so that a thread's cell can be picked with a mask.
+     */
+    private static final int STRIPES = 16;
+
+    /**
+     * Cells are spaced this many longs apart, so that neighbouring cells are on different cache lines.
+     */
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    void increment() {
+        add(1);
+    }
+
+    void add(long delta) {
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        cells.addAndGet(stripe * PADDING, delta);
+    }
+
+    long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+}
@@ -8,6 +8,8 @@ public class ThreadPoolConfiguration {
     private int acceptorThreads = ServerGroup.DEFAULT_INCOMING_ACCEPTOR_THREADS;
     private int clientToProxyWorkerThreads = ServerGroup.DEFAULT_INCOMING_WORKER_THREADS;
     private int proxyToServerWorkerThreads = ServerGroup.DEFAULT_OUTGOING_WORKER_THREADS;
+    private int filterOffloadThreads = ServerGroup.DEFAULT_FILTER_OFFLOAD_THREADS;
+    private int filterOffloadQueueSize = ServerGroup.DEFAULT_FILTER_OFFLOAD_QUEUE_SIZE;
 
     public int getClientToProxyWorkerThreads() {
         return clientToProxyWorkerThreads;
@@ -59,4 +61,41 @@ public class ThreadPoolConfiguration {
         return this;
     }
 
+    public int getFilterOffloadThreads() {
+        return filterOffloadThreads;
+    }
+
+    /**
+     * Set the number of filter offload threads to create. When greater than zero, the proxy calls
+     * {@link org.littleshoot.proxy.HttpFiltersSource#filterRequest(io.netty.handler.codec.http.HttpRequest, io.netty.channel.ChannelHandlerContext)}
+     * and {@link org.littleshoot.proxy.HttpFilters#clientToProxyRequest(io.netty.handler.codec.http.HttpObject)} for
+     * each initial request on one of these threads instead of on a client-to-proxy worker thread, so that CPU-heavy
+     * filters, such as filters that scan buffered request bodies, don't hold up unrelated connections. The default
+     * value is {@link ServerGroup#DEFAULT_FILTER_OFFLOAD_THREADS}, which calls the filters on the worker threads.
+     *
+     * @param filterOffloadThreads number of filter offload threads to create
+     * @return this thread pool configuration instance, for chaining
+     */
+    public ThreadPoolConfiguration withFilterOffloadThreads(int filterOffloadThreads) {
+        this.filterOffloadThreads = filterOffloadThreads;
+        return this;
+    }
+
+    public int getFilterOffloadQueueSize() {
+        return filterOffloadQueueSize;
+    }
+
+    /**
+     * Set the maximum number of requests that may wait for a filter offload thread. Requests that arrive while the
+     * queue is full are answered with 503 Service Unavailable. The default value is
+     * {@link ServerGroup#DEFAULT_FILTER_OFFLOAD_QUEUE_SIZE}.
+     *
+     * @param filterOffloadQueueSize maximum number of requests waiting for a filter offload thread
+     * @return this thread pool configuration instance, for chaining
+     */
+    public ThreadPoolConfiguration withFilterOffloadQueueSize(int filterOffloadQueueSize) {
+        this.filterOffloadQueueSize = filterOffloadQueueSize;
+        return this;
+    }
+
 }
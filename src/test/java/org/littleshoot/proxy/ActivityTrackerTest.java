@@ -0,0 +1,100 @@
+package org.littleshoot.proxy;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.mockserver.integration.ClientAndServer;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockserver.model.HttpRequest.request;
+import static org.mockserver.model.HttpResponse.response;
+
+/**
+ * Tests that activity trackers receive flow contexts that describe the
+ * current flow, and that the contexts are reused while the flow is unchanged.
+ */
+public class ActivityTrackerTest {
+    private ClientAndServer firstServer;
+    private ClientAndServer secondServer;
+    private HttpProxyServer proxyServer;
+    private final Queue<FlowContext> sentToServerContexts = new ConcurrentLinkedQueue<FlowContext>();
+    private final Queue<FlowContext> bytesFromServerContexts = new ConcurrentLinkedQueue<FlowContext>();
+
+    @Before
+    public void setUp() {
+        firstServer = new ClientAndServer(0);
+        secondServer = new ClientAndServer(0);
+        for (ClientAndServer server : new ClientAndServer[]{firstServer, secondServer}) {
+            server.when(request()
+                            .withPath("/tracked"))
+                    .respond(response()
+                                    .withStatusCode(200)
+                                    .withBody("tracked")
+                    );
+        }
+
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .plusActivityTracker(new ActivityTrackerAdapter() {
+                    @Override
+                    public void requestSentToServer(FullFlowContext flowContext, io.netty.handler.codec.http.HttpRequest httpRequest) {
+                        sentToServerContexts.add(flowContext);
+                    }
+
+                    @Override
+                    public void bytesReceivedFromServer(FullFlowContext flowContext, int numberOfBytes) {
+                        bytesFromServerContexts.add(flowContext);
+                    }
+                })
+                .start();
+    }
+
+    @After
+    public void tearDown() {
+        try {
+            firstServer.stop();
+            secondServer.stop();
+        } finally {
+            proxyServer.abort();
+        }
+    }
+
+    @Test
+    public void testFlowContextIsReusedUntilServerChanges() throws Exception {
+        CloseableHttpClient httpClient = HttpClients.custom()
+                .setProxy(new HttpHost("127.0.0.1", proxyServer.getListenAddress().getPort()))
+                .build();
+        try {
+            for (ClientAndServer server : new ClientAndServer[]{firstServer, firstServer, secondServer}) {
+                org.apache.http.HttpResponse response = httpClient.execute(new HttpGet("http://localhost:" + server.getPort() + "/tracked"));
+                assertEquals("tracked", EntityUtils.toString(response.getEntity()));
+            }
+        } finally {
+            httpClient.close();
+        }
+
+        assertEquals(3, sentToServerContexts.size());
+        FullFlowContext[] contexts = sentToServerContexts.toArray(new FullFlowContext[0]);
+        assertEquals("localhost:" + firstServer.getPort(), contexts[0].getServerHostAndPort());
+        assertEquals("Expected the flow context to be reused for the same server", contexts[0], contexts[1]);
+        assertEquals("localhost:" + secondServer.getPort(), contexts[2].getServerHostAndPort());
+
+        Set<FlowContext> distinctContexts = Collections.newSetFromMap(new IdentityHashMap<FlowContext, Boolean>());
+        distinctContexts.addAll(bytesFromServerContexts);
+        assertTrue("Expected one flow context per server connection, but got " + distinctContexts.size(),
+                distinctContexts.size() <= 2);
+    }
+}
@@ -0,0 +1,190 @@
+package org.littleshoot.proxy;
+
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.util.CharsetUtil;
+import org.apache.http.HttpHost;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.BufferedHttpEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.mockserver.integration.ClientAndServer;
+
+import java.net.ServerSocket;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.mockserver.model.HttpRequest.request;
+import static org.mockserver.model.HttpResponse.response;
+
+/**
+ * Tests that the proxy allocates the buffers of its connections, and of the
+ * responses it generates itself, from the configured allocator, and that it
+ * releases them.
+ */
+public class AllocatorTest {
+    private ClientAndServer mockServer;
+    private HttpProxyServer proxyServer;
+    private TrackingAllocator allocator;
+
+    @Before
+    public void setUp() {
+        mockServer = new ClientAndServer(0);
+        allocator = new TrackingAllocator();
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withAllocator(allocator)
+                .start();
+    }
+
+    @After
+    public void tearDown() {
+        try {
+            if (mockServer != null) {
+                mockServer.stop();
+            }
+        } finally {
+            if (proxyServer != null) {
+                proxyServer.abort();
+            }
+        }
+    }
+
+    @Test
+    public void testProxiedRequestUsesAllocator() throws Exception {
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/allocator"))
+                .respond(response()
+                                .withStatusCode(200)
+                                .withBody("success")
+                );
+
+        org.apache.http.HttpResponse response = get("http://localhost:" + mockServer.getPort() + "/allocator");
+
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertEquals("success", EntityUtils.toString(response.getEntity()));
+        assertThat("Expected the proxy to allocate buffers from the configured allocator",
+                allocator.buffers.size(), greaterThan(0));
+
+        proxyServer.stop();
+        proxyServer = null;
+
+        allocator.assertAllReleased();
+    }
+
+    @Test
+    public void testBadGatewayUsesAllocator() throws Exception {
+        // find a port that nothing is listening on
+        int closedPort;
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            closedPort = socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+
+        org.apache.http.HttpResponse response = get("http://localhost:" + closedPort + "/unreachable");
+
+        assertEquals(502, response.getStatusLine().getStatusCode());
+        int bodyLength = EntityUtils.toByteArray(response.getEntity()).length;
+        assertEquals("Expected the 502 response body to be allocated from the configured allocator",
+                1, Collections.frequency(allocator.initialCapacities, bodyLength));
+
+        proxyServer.stop();
+        proxyServer = null;
+
+        allocator.assertAllReleased();
+    }
+
+    @Test
+    public void testBufferedRequestBodyIsSharedWithOriginalRequest() throws Exception {
+        mockServer.when(request()
+                        .withMethod("POST")
+                        .withPath("/upload"))
+                .respond(response()
+                                .withStatusCode(200)
+                                .withBody("uploaded")
+                );
+
+        proxyServer.abort();
+
+        final AtomicReference<String> originalBody = new AtomicReference<String>();
+        final AtomicReference<String> originalHeader = new AtomicReference<String>();
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withAllocator(allocator)
+                .withFiltersSource(new HttpFiltersSourceAdapter() {
+                    @Override
+                    public HttpFilters filterRequest(final HttpRequest originalRequest) {
+                        return new HttpFiltersAdapter(originalRequest) {
+                            @Override
+                            public HttpResponse clientToProxyRequest(HttpObject httpObject) {
+                                ((HttpRequest) httpObject).headers().set("X-Upload", "filtered");
+                                return null;
+                            }
+
+                            @Override
+                            public HttpObject serverToProxyResponse(HttpObject httpObject) {
+                                originalBody.set(((FullHttpRequest) originalRequest).content().toString(CharsetUtil.UTF_8));
+                                originalHeader.set(originalRequest.headers().get("X-Upload"));
+                                return httpObject;
+                            }
+                        };
+                    }
+
+                    @Override
+                    public int getMaximumRequestBufferSizeInBytes() {
+                        return 1024 * 1024;
+                    }
+                })
+                .start();
+
+        HttpPost post = new HttpPost("http://localhost:" + mockServer.getPort() + "/upload");
+        post.setHeader("X-Upload", "original");
+        post.setEntity(new StringEntity("request body"));
+        org.apache.http.HttpResponse response = execute(post);
+
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertEquals("uploaded", EntityUtils.toString(response.getEntity()));
+        assertEquals("request body", originalBody.get());
+        assertEquals("Expected the original request to be unaffected by the filter", "original", originalHeader.get());
+        mockServer.verify(request().withPath("/upload").withHeader("X-Upload", "filtered").withBody("request body"));
+
+        proxyServer.stop();
+        proxyServer = null;
+
+        allocator.assertAllReleased();
+    }
+
+    private org.apache.http.HttpResponse get(String url) throws Exception {
+        return execute(new HttpGet(url));
+    }
+
+    private org.apache.http.HttpResponse execute(HttpUriRequest request) throws Exception {
+        CloseableHttpClient httpClient = HttpClients.custom()
+                .setProxy(new HttpHost("127.0.0.1", proxyServer.getListenAddress().getPort()))
+                .build();
+        try {
+            org.apache.http.HttpResponse response = httpClient.execute(request);
+            // read the body before the client is closed
+            response.setEntity(new BufferedHttpEntity(response.getEntity()));
+            return response;
+        } finally {
+            httpClient.close();
+        }
+    }
+}
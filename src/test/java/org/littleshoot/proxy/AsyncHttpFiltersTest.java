@@ -0,0 +1,214 @@
+package org.littleshoot.proxy;
+
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import org.apache.http.HttpHost;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.verify.VerificationTimes;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockserver.model.HttpRequest.request;
+import static org.mockserver.model.HttpResponse.response;
+
+/**
+ * Tests that the proxy waits for the decisions of {@link AsyncHttpFilters}
+ * before handling requests.
+ */
+public class AsyncHttpFiltersTest {
+    private ClientAndServer mockServer;
+    private HttpProxyServer proxyServer;
+    private CloseableHttpClient httpClient;
+    private EventExecutorGroup decisionExecutors;
+
+    @Before
+    public void setUp() {
+        mockServer = new ClientAndServer(0);
+        decisionExecutors = new DefaultEventExecutorGroup(1);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try {
+            if (httpClient != null) {
+                httpClient.close();
+            }
+            if (mockServer != null) {
+                mockServer.stop();
+            }
+            decisionExecutors.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+        } finally {
+            if (proxyServer != null) {
+                proxyServer.abort();
+            }
+        }
+    }
+
+    @Test
+    public void testRequestIsForwardedOnceAllowed() throws IOException {
+        mockServer.when(request()
+                        .withMethod("POST")
+                        .withPath("/allowed"))
+                .respond(response()
+                                .withStatusCode(200)
+                                .withBody("allowed")
+                );
+
+        AtomicInteger decisions = startProxy(Decision.ALLOW);
+
+        HttpPost post = new HttpPost("http://localhost:" + mockServer.getPort() + "/allowed");
+        post.setEntity(new StringEntity("request body"));
+        CloseableHttpResponse response = execute(post);
+        try {
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            assertEquals("allowed", EntityUtils.toString(response.getEntity()));
+        } finally {
+            response.close();
+        }
+
+        assertEquals(1, decisions.get());
+        mockServer.verify(request().withPath("/allowed").withBody("request body"));
+    }
+
+    @Test
+    public void testKeepAliveRequestsAreEachDecided() throws IOException {
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/allowed"))
+                .respond(response()
+                                .withStatusCode(200)
+                                .withBody("allowed")
+                );
+
+        AtomicInteger decisions = startProxy(Decision.ALLOW);
+
+        for (int i = 0; i < 3; i++) {
+            CloseableHttpResponse response = execute(new HttpGet("http://localhost:" + mockServer.getPort() + "/allowed"));
+            try {
+                assertEquals(200, response.getStatusLine().getStatusCode());
+                assertEquals("allowed", EntityUtils.toString(response.getEntity()));
+            } finally {
+                response.close();
+            }
+        }
+
+        assertEquals(3, decisions.get());
+    }
+
+    @Test
+    public void testShortCircuitResponseIsSent() throws IOException {
+        startProxy(Decision.DENY);
+
+        HttpPost post = new HttpPost("http://localhost:" + mockServer.getPort() + "/denied");
+        post.setEntity(new StringEntity("request body"));
+        CloseableHttpResponse response = execute(post);
+        try {
+            assertEquals(403, response.getStatusLine().getStatusCode());
+            EntityUtils.consume(response.getEntity());
+        } finally {
+            response.close();
+        }
+
+        mockServer.verify(request().withPath("/denied"), VerificationTimes.exactly(0));
+    }
+
+    @Test
+    public void testFailedDecisionRespondsWithBadGateway() throws IOException {
+        startProxy(Decision.FAIL);
+
+        CloseableHttpResponse response = execute(new HttpGet("http://localhost:" + mockServer.getPort() + "/failed"));
+        try {
+            assertEquals(502, response.getStatusLine().getStatusCode());
+            EntityUtils.consume(response.getEntity());
+        } finally {
+            response.close();
+        }
+
+        mockServer.verify(request().withPath("/failed"), VerificationTimes.exactly(0));
+    }
+
+    private enum Decision {
+        ALLOW, DENY, FAIL
+    }
+
+    /**
+     * Starts a proxy whose filters make the given decision on another thread,
+     * after a short delay.
+     *
+     * @return the number of decisions made
+     */
+    private AtomicInteger startProxy(final Decision decision) {
+        final AtomicInteger decisions = new AtomicInteger();
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withFiltersSource(new HttpFiltersSourceAdapter() {
+                    @Override
+                    public HttpFilters filterRequest(HttpRequest originalRequest) {
+                        return new AsyncHttpFiltersAdapter(originalRequest) {
+                            @Override
+                            public Future<HttpResponse> clientToProxyRequestAsync(HttpRequest httpRequest) {
+                                EventExecutor decisionExecutor = decisionExecutors.next();
+                                final Promise<HttpResponse> promise = decisionExecutor.newPromise();
+                                decisionExecutor.schedule(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        decisions.incrementAndGet();
+                                        switch (decision) {
+                                            case ALLOW:
+                                                promise.setSuccess(null);
+                                                break;
+                                            case DENY:
+                                                HttpResponse forbidden = new DefaultFullHttpResponse(
+                                                        HttpVersion.HTTP_1_1, HttpResponseStatus.FORBIDDEN, Unpooled.EMPTY_BUFFER);
+                                                HttpHeaders.setContentLength(forbidden, 0);
+                                                promise.setSuccess(forbidden);
+                                                break;
+                                            case FAIL:
+                                                promise.setFailure(new IllegalStateException("policy service unavailable"));
+                                                break;
+                                        }
+                                    }
+                                }, 100, TimeUnit.MILLISECONDS);
+                                return promise;
+                            }
+                        };
+                    }
+                })
+                .start();
+        return decisions;
+    }
+
+    private CloseableHttpResponse execute(HttpUriRequest request) throws IOException {
+        if (httpClient == null) {
+            httpClient = HttpClients.custom()
+                    .setProxy(new HttpHost("127.0.0.1", proxyServer.getListenAddress().getPort()))
+                    .build();
+        }
+        return httpClient.execute(request);
+    }
+}
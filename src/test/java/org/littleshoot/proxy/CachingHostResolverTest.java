@@ -0,0 +1,118 @@
+package org.littleshoot.proxy;
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class CachingHostResolverTest {
+    /**
+     * Resolves every host to the loopback address, except hosts starting with "unknown", and counts lookups.
+     */
+    private static class CountingResolver implements HostResolver {
+        private final AtomicInteger lookups = new AtomicInteger();
+
+        @Override
+        public InetSocketAddress resolve(String host, int port) throws UnknownHostException {
+            lookups.incrementAndGet();
+            if (host.startsWith("unknown")) {
+                throw new UnknownHostException(host);
+            }
+
+            return new InetSocketAddress("127.0.0.1", port);
+        }
+    }
+
+    @Test
+    public void testResolvedAddressIsCachedAcrossPorts() throws UnknownHostException {
+        CountingResolver countingResolver = new CountingResolver();
+        CachingHostResolver resolver = new CachingHostResolver(countingResolver);
+
+        assertEquals(new InetSocketAddress("127.0.0.1", 80), resolver.resolve("www.example.com", 80));
+        assertEquals(new InetSocketAddress("127.0.0.1", 443), resolver.resolve("WWW.example.com", 443));
+
+        assertEquals("Expected the second lookup to be served from the cache", 1, countingResolver.lookups.get());
+        assertEquals(1, resolver.getMisses());
+        assertEquals(1, resolver.getHits());
+    }
+
+    @Test
+    public void testUnknownHostIsCached() {
+        CountingResolver countingResolver = new CountingResolver();
+        CachingHostResolver resolver = new CachingHostResolver(countingResolver,
+                new HostResolverCacheConfiguration().withNegativeTtlSeconds(60));
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                resolver.resolve("unknown.example.com", 80);
+                fail("Expected an UnknownHostException");
+            } catch (UnknownHostException e) {
+                // expected
+            }
+        }
+
+        assertEquals("Expected the failed lookup to be cached", 1, countingResolver.lookups.get());
+    }
+
+    @Test
+    public void testEntryExpires() throws Exception {
+        CountingResolver countingResolver = new CountingResolver();
+        CachingHostResolver resolver = new CachingHostResolver(countingResolver,
+                new HostResolverCacheConfiguration()
+                        .withTtlSeconds(1)
+                        .withMinTtlSeconds(1)
+                        .withRefreshAheadPercent(0));
+
+        resolver.resolve("www.example.com", 80);
+        Thread.sleep(1200);
+        resolver.resolve("www.example.com", 80);
+
+        assertEquals("Expected the expired entry to be looked up again", 2, countingResolver.lookups.get());
+        assertEquals(2, resolver.getMisses());
+    }
+
+    @Test
+    public void testTtlIsClampedToMaximum() throws Exception {
+        CountingResolver countingResolver = new CountingResolver();
+        CachingHostResolver resolver = new CachingHostResolver(countingResolver,
+                new HostResolverCacheConfiguration()
+                        .withTtlSeconds(3600)
+                        .withMinTtlSeconds(0)
+                        .withMaxTtlSeconds(1)
+                        .withRefreshAheadPercent(0));
+
+        resolver.resolve("www.example.com", 80);
+        Thread.sleep(1200);
+        resolver.resolve("www.example.com", 80);
+
+        assertEquals("Expected the TTL to be clamped to the maximum", 2, countingResolver.lookups.get());
+    }
+
+    @Test
+    public void testHotEntryIsRefreshedInBackground() throws Exception {
+        CountingResolver countingResolver = new CountingResolver();
+        CachingHostResolver resolver = new CachingHostResolver(countingResolver,
+                new HostResolverCacheConfiguration()
+                        .withTtlSeconds(2)
+                        .withMinTtlSeconds(1)
+                        .withRefreshAheadPercent(90)
+                        .withHotEntryHits(1));
+
+        resolver.resolve("www.example.com", 80);
+        Thread.sleep(500);
+        resolver.resolve("www.example.com", 80);
+        Thread.sleep(200);
+
+        assertEquals(1, resolver.getRefreshes());
+        assertEquals("Expected the hot entry to be refreshed in the background", 2, countingResolver.lookups.get());
+
+        // the refreshed entry is valid for another full TTL
+        Thread.sleep(1600);
+        resolver.resolve("www.example.com", 80);
+        assertEquals(1, resolver.getMisses());
+    }
+}
@@ -0,0 +1,93 @@
+package org.littleshoot.proxy;
+
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class DefaultAsyncHostResolverTest {
+    private EventExecutorGroup executorGroup;
+    private EventExecutor executor;
+
+    @Before
+    public void setUp() {
+        executorGroup = new DefaultEventExecutorGroup(1);
+        executor = executorGroup.next();
+    }
+
+    @After
+    public void tearDown() {
+        executorGroup.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testResolvesUsingWrappedResolver() {
+        HostResolver resolver = new HostResolver() {
+            @Override
+            public InetSocketAddress resolve(String host, int port) throws UnknownHostException {
+                return new InetSocketAddress("127.0.0.1", port);
+            }
+        };
+
+        Future<InetSocketAddress> future = new DefaultAsyncHostResolver(resolver).resolve("www.example.com", 8080, executor);
+
+        assertTrue("Expected resolution to succeed", future.awaitUninterruptibly(5, TimeUnit.SECONDS) && future.isSuccess());
+        assertEquals(new InetSocketAddress("127.0.0.1", 8080), future.getNow());
+    }
+
+    @Test
+    public void testFailureIsPropagated() {
+        HostResolver resolver = new HostResolver() {
+            @Override
+            public InetSocketAddress resolve(String host, int port) throws UnknownHostException {
+                throw new UnknownHostException(host);
+            }
+        };
+
+        Future<InetSocketAddress> future = new DefaultAsyncHostResolver(resolver).resolve("www.doesnotexist", 80, executor);
+
+        assertTrue("Expected resolution to complete", future.awaitUninterruptibly(5, TimeUnit.SECONDS));
+        assertFalse("Expected resolution to fail", future.isSuccess());
+        assertThat(future.cause(), instanceOf(UnknownHostException.class));
+    }
+
+    @Test
+    public void testSlowLookupTimesOut() {
+        final CountDownLatch lookupReleased = new CountDownLatch(1);
+        HostResolver resolver = new HostResolver() {
+            @Override
+            public InetSocketAddress resolve(String host, int port) throws UnknownHostException {
+                try {
+                    lookupReleased.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return new InetSocketAddress("127.0.0.1", port);
+            }
+        };
+
+        try {
+            Future<InetSocketAddress> future = new DefaultAsyncHostResolver(resolver, 1, 1, 200).resolve("slow.example.com", 80, executor);
+
+            assertTrue("Expected resolution to complete", future.awaitUninterruptibly(5, TimeUnit.SECONDS));
+            assertFalse("Expected resolution to time out", future.isSuccess());
+            assertThat(future.cause(), instanceOf(UnknownHostException.class));
+        } finally {
+            lookupReleased.countDown();
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package org.littleshoot.proxy;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.ssl.SSLContexts;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.server.ssl.SslSocketConnector;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.littleshoot.proxy.extras.CertificateGenerator;
+import org.littleshoot.proxy.extras.DynamicCertificateMitmManager;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.littleshoot.proxy.impl.ProxyMetrics;
+
+import javax.net.ssl.SSLContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.hasItem;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests that the {@link DynamicCertificateMitmManager} impersonates servers with certificates signed by its
+ * certificate authority, and reuses them for later connections to the same host.
+ */
+public class DynamicCertificateMitmManagerTest {
+    private Server webServer;
+    private DefaultHttpProxyServer proxyServer;
+    private DynamicCertificateMitmManager mitmManager;
+    private static final char[] PASSWORD = "password".toCharArray();
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private X509Certificate caCertificate;
+    private PrivateKey caPrivateKey;
+
+    @Before
+    public void setUp() throws Exception {
+        webServer = TestUtils.startWebServer(true);
+
+        KeyPair caKeyPair = CertificateGenerator.generateKeyPair("RSA", 2048);
+        caCertificate = CertificateGenerator.createCertificateAuthority(caKeyPair, "LittleProxy Test CA", 1);
+        caPrivateKey = caKeyPair.getPrivate();
+        mitmManager = new DynamicCertificateMitmManager(caCertificate, caKeyPair.getPrivate(), true,
+                DynamicCertificateMitmManager.DEFAULT_MAXIMUM_CACHED_HOSTS);
+
+        proxyServer = (DefaultHttpProxyServer) DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withManInTheMiddle(mitmManager)
+                .withMetrics(true)
+                .start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try {
+            if (webServer != null) {
+                webServer.stop();
+            }
+        } finally {
+            if (proxyServer != null) {
+                proxyServer.abort();
+            }
+        }
+    }
+
+    @Test
+    public void testClientsTrustingTheCaAcceptTheHostCertificate() throws Exception {
+        String url = "https://localhost:" + TestUtils.findLocalHttpsPort(webServer) + "/";
+
+        // each client makes a new connection, and so a new handshake with the proxy
+        for (int i = 0; i < 2; i++) {
+            CloseableHttpClient httpClient = createClientTrustingCa();
+            try {
+                org.apache.http.HttpResponse response = httpClient.execute(new HttpGet(url));
+                assertEquals(200, response.getStatusLine().getStatusCode());
+                assertThat(EntityUtils.toString(response.getEntity()), containsString("Received 0 bytes"));
+            } finally {
+                httpClient.close();
+            }
+        }
+
+        assertEquals("Expected the certificate for localhost to be created once and reused", 1,
+                mitmManager.getCachedHostCount());
+    }
+
+    @Test
+    public void testTlsSessionsAreResumedOnBothConnections() throws Exception {
+        String url = "https://localhost:" + TestUtils.findLocalHttpsPort(webServer) + "/";
+
+        // the clients share an SSLContext, and so its session cache
+        SSLContext sslContext = createSslContextTrustingCa();
+        for (int i = 0; i < 2; i++) {
+            CloseableHttpClient httpClient = createClientTrustingCa(sslContext);
+            try {
+                org.apache.http.HttpResponse response = httpClient.execute(new HttpGet(url));
+                assertEquals(200, response.getStatusLine().getStatusCode());
+                EntityUtils.consume(response.getEntity());
+            } finally {
+                httpClient.close();
+            }
+        }
+
+        ProxyMetrics metrics = proxyServer.getMetrics();
+        assertEquals(2, metrics.getClientTlsHandshakes());
+        assertEquals("Expected the second client to resume its session with the proxy", 1,
+                metrics.getClientTlsResumedHandshakes());
+        assertEquals(2, metrics.getServerTlsHandshakes());
+        assertEquals("Expected the proxy to resume its session with the server", 1,
+                metrics.getServerTlsResumedHandshakes());
+    }
+
+    @Test
+    public void testUpstreamCertificateForHostIsAccepted() throws Exception {
+        assertEquals(200, getThroughVerifyingProxy("localhost"));
+    }
+
+    @Test
+    public void testUpstreamCertificateForWrongHostIsRejected() throws Exception {
+        assertEquals("Expected the proxy to reject a trusted certificate that was issued for another host", 502,
+                getThroughVerifyingProxy("wrong.example.com"));
+    }
+
+    @Test
+    public void testHostCertificateCopiesServerAlternativeNames() throws Exception {
+        KeyPair hostKeyPair = CertificateGenerator.generateKeyPair("EC", 256);
+
+        List<List<?>> serverNames = new ArrayList<List<?>>();
+        serverNames.add(generalName(2, "www.example.com"));
+        serverNames.add(generalName(2, "example.com"));
+        serverNames.add(generalName(7, "192.0.2.1"));
+        serverNames.add(generalName(1, "admin@example.com"));
+
+        KeyPair caKeyPair = CertificateGenerator.generateKeyPair("EC", 256);
+        X509Certificate ca = CertificateGenerator.createCertificateAuthority(caKeyPair, "LittleProxy Test CA", 1);
+        X509Certificate hostCertificate = CertificateGenerator.createHostCertificate("www.example.com", serverNames,
+                hostKeyPair.getPublic(), ca, caKeyPair.getPrivate());
+
+        hostCertificate.verify(caKeyPair.getPublic());
+        assertEquals(ca.getSubjectX500Principal(), hostCertificate.getIssuerX500Principal());
+
+        Collection<List<?>> names = hostCertificate.getSubjectAlternativeNames();
+        assertEquals("Expected the duplicate host name and the e-mail address to be dropped", 3, names.size());
+        assertThat(names, hasItem(generalName(2, "www.example.com")));
+        assertThat(names, hasItem(generalName(2, "example.com")));
+        assertThat(names, hasItem(generalName(7, "192.0.2.1")));
+    }
+
+    /**
+     * Requests a page from a server whose certificate is issued for the given host name, through a proxy that trusts
+     * the server's certificate authority but not all servers.
+     *
+     * @return the status code of the response
+     */
+    private int getThroughVerifyingProxy(String certificateHost) throws Exception {
+        KeyPair upstreamCaKeyPair = CertificateGenerator.generateKeyPair("EC", 256);
+        X509Certificate upstreamCa = CertificateGenerator.createCertificateAuthority(upstreamCaKeyPair,
+                "Upstream Test CA", 1);
+        KeyPair upstreamKeyPair = CertificateGenerator.generateKeyPair("EC", 256);
+        X509Certificate upstreamCertificate = CertificateGenerator.createHostCertificate(certificateHost, null,
+                upstreamKeyPair.getPublic(), upstreamCa, upstreamCaKeyPair.getPrivate());
+
+        KeyStore upstreamKeyStore = KeyStore.getInstance("JKS");
+        upstreamKeyStore.load(null, null);
+        upstreamKeyStore.setKeyEntry("upstream", upstreamKeyPair.getPrivate(), PASSWORD,
+                new Certificate[]{upstreamCertificate, upstreamCa});
+        Server upstreamServer = startHttpsServer(SSLContexts.custom()
+                .loadKeyMaterial(upstreamKeyStore, PASSWORD)
+                .build());
+
+        DefaultHttpProxyServer verifyingProxy = null;
+        try {
+            // servers are verified against the JVM's default trust store, which is read when the manager is created
+            KeyStore trustStore = KeyStore.getInstance("JKS");
+            trustStore.load(null, null);
+            trustStore.setCertificateEntry("upstream-ca", upstreamCa);
+            File trustStoreFile = temporaryFolder.newFile();
+            OutputStream out = new FileOutputStream(trustStoreFile);
+            try {
+                trustStore.store(out, PASSWORD);
+            } finally {
+                out.close();
+            }
+
+            DynamicCertificateMitmManager verifyingManager;
+            String previousTrustStore = System.getProperty("javax.net.ssl.trustStore");
+            String previousTrustStorePassword = System.getProperty("javax.net.ssl.trustStorePassword");
+            System.setProperty("javax.net.ssl.trustStore", trustStoreFile.getPath());
+            System.setProperty("javax.net.ssl.trustStorePassword", new String(PASSWORD));
+            try {
+                verifyingManager = new DynamicCertificateMitmManager(caCertificate, caPrivateKey, false,
+                        DynamicCertificateMitmManager.DEFAULT_MAXIMUM_CACHED_HOSTS);
+            } finally {
+                restoreProperty("javax.net.ssl.trustStore", previousTrustStore);
+                restoreProperty("javax.net.ssl.trustStorePassword", previousTrustStorePassword);
+            }
+
+            verifyingProxy = (DefaultHttpProxyServer) DefaultHttpProxyServer.bootstrap()
+                    .withPort(0)
+                    .withManInTheMiddle(verifyingManager)
+                    .start();
+
+            CloseableHttpClient httpClient = HttpClients.custom()
+                    .setProxy(new HttpHost("127.0.0.1", verifyingProxy.getListenAddress().getPort()))
+                    .setSSLSocketFactory(new SSLConnectionSocketFactory(createSslContextTrustingCa()))
+                    .build();
+            try {
+                org.apache.http.HttpResponse response = httpClient.execute(new HttpGet(
+                        "https://localhost:" + TestUtils.findLocalHttpsPort(upstreamServer) + "/"));
+                EntityUtils.consume(response.getEntity());
+                return response.getStatusLine().getStatusCode();
+            } finally {
+                httpClient.close();
+            }
+        } finally {
+            try {
+                upstreamServer.stop();
+            } finally {
+                if (verifyingProxy != null) {
+                    verifyingProxy.abort();
+                }
+            }
+        }
+    }
+
+    private static Server startHttpsServer(SSLContext sslContext) throws Exception {
+        Server server = new Server();
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                    HttpServletResponse response) throws IOException, ServletException {
+                response.setStatus(HttpServletResponse.SC_OK);
+                baseRequest.setHandled(true);
+            }
+        });
+
+        SslContextFactory sslContextFactory = new SslContextFactory();
+        sslContextFactory.setSslContext(sslContext);
+        SslSocketConnector connector = new SslSocketConnector(sslContextFactory);
+        connector.setPort(0);
+        server.addConnector(connector);
+        server.start();
+        return server;
+    }
+
+    private static void restoreProperty(String name, String value) {
+        if (value != null) {
+            System.setProperty(name, value);
+        } else {
+            System.clearProperty(name);
+        }
+    }
+
+    private CloseableHttpClient createClientTrustingCa() throws Exception {
+        return createClientTrustingCa(createSslContextTrustingCa());
+    }
+
+    private CloseableHttpClient createClientTrustingCa(SSLContext sslContext) {
+        return HttpClients.custom()
+                .setProxy(new HttpHost("127.0.0.1", proxyServer.getListenAddress().getPort()))
+                .setSSLSocketFactory(new SSLConnectionSocketFactory(sslContext))
+                .build();
+    }
+
+    private SSLContext createSslContextTrustingCa() throws Exception {
+        KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        trustStore.load(null, null);
+        trustStore.setCertificateEntry("ca", caCertificate);
+        return SSLContexts.custom().loadTrustMaterial(trustStore, null).build();
+    }
+
+    private static List<?> generalName(int type, String value) {
+        List<Object> name = new ArrayList<Object>();
+        name.add(type);
+        name.add(value);
+        return name;
+    }
+}
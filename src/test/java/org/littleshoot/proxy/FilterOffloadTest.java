@@ -0,0 +1,184 @@
+package org.littleshoot.proxy;
+
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.util.CharsetUtil;
+import org.apache.http.HttpHost;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.BufferedHttpEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.littleshoot.proxy.impl.FilterOffloadExecutor;
+import org.littleshoot.proxy.impl.ThreadPoolConfiguration;
+import org.mockserver.integration.ClientAndServer;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockserver.model.HttpRequest.request;
+import static org.mockserver.model.HttpResponse.response;
+
+/**
+ * Tests that request filters run on the filter offload executor when it is
+ * configured, and that requests are rejected once it is saturated.
+ */
+public class FilterOffloadTest {
+    private ClientAndServer mockServer;
+    private HttpProxyServer proxyServer;
+    private ExecutorService clientExecutor;
+
+    @Before
+    public void setUp() {
+        mockServer = new ClientAndServer(0);
+        mockServer.when(request()
+                        .withPath("/offload"))
+                .respond(response()
+                                .withStatusCode(200)
+                                .withBody("success")
+                );
+        clientExecutor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        try {
+            clientExecutor.shutdownNow();
+            if (mockServer != null) {
+                mockServer.stop();
+            }
+        } finally {
+            if (proxyServer != null) {
+                proxyServer.abort();
+            }
+        }
+    }
+
+    @Test
+    public void testFiltersRunOnOffloadThreads() throws Exception {
+        final AtomicReference<String> filterRequestThread = new AtomicReference<String>();
+        final AtomicReference<String> clientToProxyRequestThread = new AtomicReference<String>();
+        final AtomicReference<String> scannedBody = new AtomicReference<String>();
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withThreadPoolConfiguration(new ThreadPoolConfiguration()
+                        .withFilterOffloadThreads(2))
+                .withFiltersSource(new HttpFiltersSourceAdapter() {
+                    @Override
+                    public HttpFilters filterRequest(HttpRequest originalRequest) {
+                        filterRequestThread.set(Thread.currentThread().getName());
+                        return new HttpFiltersAdapter(originalRequest) {
+                            @Override
+                            public HttpResponse clientToProxyRequest(HttpObject httpObject) {
+                                clientToProxyRequestThread.set(Thread.currentThread().getName());
+                                scannedBody.set(((FullHttpRequest) httpObject).content().toString(CharsetUtil.UTF_8));
+                                return null;
+                            }
+                        };
+                    }
+
+                    @Override
+                    public int getMaximumRequestBufferSizeInBytes() {
+                        return 1024 * 1024;
+                    }
+                })
+                .start();
+
+        HttpPost post = new HttpPost("http://localhost:" + mockServer.getPort() + "/offload");
+        post.setEntity(new StringEntity("scan me"));
+        org.apache.http.HttpResponse response = execute(post);
+
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertEquals("success", EntityUtils.toString(response.getEntity()));
+        assertThat(filterRequestThread.get(), containsString("FilterOffload"));
+        assertThat(clientToProxyRequestThread.get(), containsString("FilterOffload"));
+        assertEquals("scan me", scannedBody.get());
+
+        FilterOffloadExecutor filterOffloadExecutor = ((DefaultHttpProxyServer) proxyServer).getFilterOffloadExecutor();
+        assertEquals(0, filterOffloadExecutor.getRejectedTasks());
+    }
+
+    @Test
+    public void testSaturatedOffloadExecutorRespondsWithServiceUnavailable() throws Exception {
+        final CountDownLatch filterStarted = new CountDownLatch(1);
+        final CountDownLatch releaseFilters = new CountDownLatch(1);
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withThreadPoolConfiguration(new ThreadPoolConfiguration()
+                        .withFilterOffloadThreads(1)
+                        .withFilterOffloadQueueSize(1))
+                .withFiltersSource(new HttpFiltersSourceAdapter() {
+                    @Override
+                    public HttpFilters filterRequest(HttpRequest originalRequest) {
+                        filterStarted.countDown();
+                        try {
+                            releaseFilters.await(30, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return null;
+                    }
+                })
+                .start();
+        FilterOffloadExecutor filterOffloadExecutor = ((DefaultHttpProxyServer) proxyServer).getFilterOffloadExecutor();
+
+        // occupy the only offload thread, then fill the queue
+        Future<org.apache.http.HttpResponse> running = executeInBackground(new HttpGet("http://localhost:" + mockServer.getPort() + "/offload"));
+        assertTrue(filterStarted.await(10, TimeUnit.SECONDS));
+        Future<org.apache.http.HttpResponse> queued = executeInBackground(new HttpGet("http://localhost:" + mockServer.getPort() + "/offload"));
+        long deadline = System.currentTimeMillis() + 10000;
+        while (filterOffloadExecutor.getQueueDepth() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, filterOffloadExecutor.getQueueDepth());
+
+        org.apache.http.HttpResponse rejected = execute(new HttpGet("http://localhost:" + mockServer.getPort() + "/offload"));
+        assertEquals(503, rejected.getStatusLine().getStatusCode());
+        assertEquals(1, filterOffloadExecutor.getRejectedTasks());
+
+        releaseFilters.countDown();
+        assertEquals(200, running.get(10, TimeUnit.SECONDS).getStatusLine().getStatusCode());
+        assertEquals(200, queued.get(10, TimeUnit.SECONDS).getStatusLine().getStatusCode());
+    }
+
+    private Future<org.apache.http.HttpResponse> executeInBackground(final HttpUriRequest request) {
+        return clientExecutor.submit(new Callable<org.apache.http.HttpResponse>() {
+            @Override
+            public org.apache.http.HttpResponse call() throws Exception {
+                return execute(request);
+            }
+        });
+    }
+
+    private org.apache.http.HttpResponse execute(HttpUriRequest request) throws Exception {
+        CloseableHttpClient httpClient = HttpClients.custom()
+                .setProxy(new HttpHost("127.0.0.1", proxyServer.getListenAddress().getPort()))
+                .build();
+        try {
+            org.apache.http.HttpResponse response = httpClient.execute(request);
+            // read the body before the client is closed
+            response.setEntity(new BufferedHttpEntity(response.getEntity()));
+            return response;
+        } finally {
+            httpClient.close();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package org.littleshoot.proxy;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests that chunked responses made of many small chunks are relayed intact, whether writes are flushed at the end
+ * of each batch of reads, early once the flush threshold is reached, or immediately.
+ */
+public class FlushThresholdTest {
+    private static final int CHUNKS = 2000;
+    private static final String CHUNK = "0123456789";
+
+    private ServerSocket originServer;
+    private Thread originThread;
+
+    private HttpProxyServer proxyServer;
+
+    @Before
+    public void setUp() throws IOException {
+        originServer = new ServerSocket(0);
+        originThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Socket socket = originServer.accept();
+                        respondWithManyChunks(socket);
+                    }
+                } catch (IOException e) {
+                    // server socket closed
+                }
+            }
+        }, "FlushThresholdTest-origin");
+        originThread.setDaemon(true);
+        originThread.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try {
+            originServer.close();
+        } finally {
+            if (proxyServer != null) {
+                proxyServer.abort();
+            }
+        }
+    }
+
+    @Test
+    public void testDefaultFlushThreshold() throws IOException {
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .start();
+
+        assertChunkedResponseRelayed();
+    }
+
+    @Test
+    public void testSmallFlushThreshold() throws IOException {
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withFlushThreshold(1)
+                .start();
+
+        assertChunkedResponseRelayed();
+    }
+
+    @Test
+    public void testFlushEveryWrite() throws IOException {
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withFlushThreshold(0)
+                .start();
+
+        assertChunkedResponseRelayed();
+    }
+
+    private void assertChunkedResponseRelayed() throws IOException {
+        CloseableHttpClient httpClient = HttpClients.custom()
+                .setProxy(new HttpHost("127.0.0.1", proxyServer.getListenAddress().getPort()))
+                .build();
+        try {
+            for (int i = 0; i < 2; i++) {
+                CloseableHttpResponse response = httpClient.execute(new HttpGet("http://localhost:" + originServer.getLocalPort() + "/chunks"));
+                try {
+                    assertEquals("Expected to receive a 200 from the server", 200, response.getStatusLine().getStatusCode());
+                    String body = EntityUtils.toString(response.getEntity(), "UTF-8");
+                    assertEquals("Expected to receive every chunk of the response", CHUNKS * CHUNK.length(), body.length());
+                } finally {
+                    response.close();
+                }
+            }
+        } finally {
+            httpClient.close();
+        }
+    }
+
+    /**
+     * Reads a request from the socket, and responds with a chunked response whose chunks are all written separately.
+     */
+    private static void respondWithManyChunks(Socket socket) throws IOException {
+        try {
+            InputStream in = socket.getInputStream();
+            StringBuilder request = new StringBuilder();
+            while (!request.toString().endsWith("\r\n\r\n")) {
+                int b = in.read();
+                if (b == -1) {
+                    return;
+                }
+                request.append((char) b);
+            }
+
+            OutputStream out = socket.getOutputStream();
+            Charset ascii = Charset.forName("US-ASCII");
+            out.write(("HTTP/1.1 200 OK\r\n"
+                    + "Transfer-Encoding: chunked\r\n"
+                    + "Connection: close\r\n"
+                    + "\r\n").getBytes(ascii));
+            out.flush();
+
+            byte[] chunk = (Integer.toHexString(CHUNK.length()) + "\r\n" + CHUNK + "\r\n").getBytes(ascii);
+            for (int i = 0; i < CHUNKS; i++) {
+                out.write(chunk);
+                out.flush();
+            }
+            out.write("0\r\n\r\n".getBytes(ascii));
+            out.flush();
+        } finally {
+            socket.close();
+        }
+    }
+}
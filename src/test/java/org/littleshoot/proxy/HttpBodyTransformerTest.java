@@ -0,0 +1,305 @@
+package org.littleshoot.proxy;
+
+import com.google.common.io.ByteStreams;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import org.apache.http.HttpHost;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.littleshoot.proxy.test.SocketClientUtil;
+import org.mockserver.integration.ClientAndServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockserver.model.HttpRequest.request;
+import static org.mockserver.model.HttpResponse.response;
+
+/**
+ * Tests that {@link HttpBodyTransformer}s rewrite request and response bodies
+ * as they stream through the proxy.
+ */
+public class HttpBodyTransformerTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // maps each byte to a char, so that mockserver can send binary content as a string
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private ClientAndServer mockServer;
+    private HttpProxyServer proxyServer;
+    private CloseableHttpClient httpClient;
+
+    @Before
+    public void setUp() {
+        mockServer = new ClientAndServer(0);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try {
+            if (httpClient != null) {
+                httpClient.close();
+            }
+            if (mockServer != null) {
+                mockServer.stop();
+            }
+        } finally {
+            if (proxyServer != null) {
+                proxyServer.abort();
+            }
+        }
+    }
+
+    @Test
+    public void testResponseBodyIsTransformedAcrossChunks() throws IOException {
+        // much larger than the decoder's maximum chunk size, so that some matches span two chunks
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; body.length() < 100000; i++) {
+            body.append("line ").append(i).append(" contains a secret\n");
+        }
+
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/secret"))
+                .respond(response()
+                                .withStatusCode(200)
+                                .withBody(body.toString())
+                );
+
+        startProxy(new ReplacingTransformer("secret", "[redacted]", false, false), null);
+
+        CloseableHttpResponse response = execute(new HttpGet("http://localhost:" + mockServer.getPort() + "/secret"));
+        try {
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            assertEquals(body.toString().replace("secret", "[redacted]"), EntityUtils.toString(response.getEntity(), UTF_8));
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void testCompressedResponseBodyIsDecompressed() throws IOException {
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/gzip"))
+                .respond(response()
+                                .withStatusCode(200)
+                                .withHeader("Content-Encoding", "gzip")
+                                .withBody(new String(gzip("a compressed secret"), ISO_8859_1), ISO_8859_1)
+                );
+
+        startProxy(new ReplacingTransformer("secret", "[redacted]", true, false), null);
+
+        CloseableHttpResponse response = execute(new HttpGet("http://localhost:" + mockServer.getPort() + "/gzip"));
+        try {
+            assertNull("Expected the body to be sent uncompressed", response.getFirstHeader("Content-Encoding"));
+            assertEquals("a compressed [redacted]", EntityUtils.toString(response.getEntity(), UTF_8));
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void testCompressedResponseBodyIsRecompressed() throws IOException {
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/gzip"))
+                .respond(response()
+                                .withStatusCode(200)
+                                .withHeader("Content-Encoding", "gzip")
+                                .withBody(new String(gzip("a compressed secret"), ISO_8859_1), ISO_8859_1)
+                );
+
+        startProxy(new ReplacingTransformer("secret", "[redacted]", true, true), null);
+
+        CloseableHttpResponse response = execute(new HttpGet("http://localhost:" + mockServer.getPort() + "/gzip"));
+        try {
+            assertEquals("gzip", response.getFirstHeader("Content-Encoding").getValue());
+            assertEquals("a compressed [redacted]", gunzip(EntityUtils.toByteArray(response.getEntity())));
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void testRequestBodyIsTransformed() throws IOException {
+        mockServer.when(request()
+                        .withMethod("POST")
+                        .withPath("/upload"))
+                .respond(response()
+                                .withStatusCode(200)
+                                .withBody("uploaded")
+                );
+
+        startProxy(null, new ReplacingTransformer("secret", "[redacted]", false, false));
+
+        HttpPost post = new HttpPost("http://localhost:" + mockServer.getPort() + "/upload");
+        post.setEntity(new StringEntity("an uploaded secret", UTF_8));
+        CloseableHttpResponse response = execute(post);
+        try {
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            EntityUtils.consume(response.getEntity());
+        } finally {
+            response.close();
+        }
+
+        mockServer.verify(request()
+                .withPath("/upload")
+                .withBody("an uploaded [redacted]"));
+    }
+
+    @Test
+    public void testResponseToHttp10RequestIsNotChunked() throws IOException {
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/secret"))
+                .respond(response()
+                                .withStatusCode(200)
+                                .withBody("a streamed secret")
+                );
+
+        startProxy(new ReplacingTransformer("secret", "[redacted]", false, false), null);
+
+        Socket socket = SocketClientUtil.getSocketToProxyServer(proxyServer);
+        try {
+            SocketClientUtil.writeStringToSocket("GET http://localhost:" + mockServer.getPort() + "/secret HTTP/1.0\r\n"
+                    + "Host: localhost:" + mockServer.getPort() + "\r\n"
+                    + "\r\n", socket);
+
+            // the proxy closes the connection after the response, since the request isn't keep-alive
+            String response = new String(ByteStreams.toByteArray(socket.getInputStream()), ISO_8859_1);
+            assertTrue("Expected a 200 response, but got: " + response, response.startsWith("HTTP/1.1 200"));
+            assertFalse("Expected the response to an HTTP/1.0 client not to be chunked, but got: " + response,
+                    response.toLowerCase(Locale.US).contains("transfer-encoding: chunked"));
+            assertTrue("Expected the body to be sent as received, but got: " + response,
+                    response.endsWith("\r\n\r\na streamed secret"));
+        } finally {
+            socket.close();
+        }
+    }
+
+    private void startProxy(final HttpBodyTransformer responseBodyTransformer,
+            final HttpBodyTransformer requestBodyTransformer) {
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withFiltersSource(new HttpFiltersSourceAdapter() {
+                    @Override
+                    public HttpFilters filterRequest(HttpRequest originalRequest) {
+                        return new BodyTransformingHttpFiltersAdapter(originalRequest) {
+                            @Override
+                            public HttpBodyTransformer requestBodyTransformer(HttpRequest httpRequest) {
+                                return requestBodyTransformer;
+                            }
+
+                            @Override
+                            public HttpBodyTransformer responseBodyTransformer(HttpResponse httpResponse) {
+                                return responseBodyTransformer;
+                            }
+                        };
+                    }
+                })
+                .start();
+    }
+
+    private CloseableHttpResponse execute(HttpUriRequest request) throws IOException {
+        // leave compressed responses as they are, to check what the proxy sent
+        httpClient = HttpClients.custom()
+                .setProxy(new HttpHost("127.0.0.1", proxyServer.getListenAddress().getPort()))
+                .disableContentCompression()
+                .build();
+        return httpClient.execute(request);
+    }
+
+    private static byte[] gzip(String content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+        gzip.write(content.getBytes(UTF_8));
+        gzip.close();
+        return bytes.toByteArray();
+    }
+
+    private static String gunzip(byte[] content) throws IOException {
+        GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(content));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = gzip.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        return new String(bytes.toByteArray(), UTF_8);
+    }
+
+    /**
+     * Replaces every occurrence of an ASCII string, holding back enough bytes
+     * to find occurrences that span chunks.
+     */
+    private static class ReplacingTransformer extends HttpBodyTransformerAdapter {
+        private final byte[] target;
+        private final byte[] replacement;
+        private final boolean decompressing;
+        private final boolean recompressing;
+
+        ReplacingTransformer(String target, String replacement, boolean decompressing, boolean recompressing) {
+            this.target = target.getBytes(UTF_8);
+            this.replacement = replacement.getBytes(UTF_8);
+            this.decompressing = decompressing;
+            this.recompressing = recompressing;
+        }
+
+        @Override
+        public void transform(ByteBuf in, ByteBuf out, boolean last) {
+            while (in.readableBytes() >= target.length) {
+                if (matches(in)) {
+                    out.writeBytes(replacement);
+                    in.skipBytes(target.length);
+                } else {
+                    out.writeByte(in.readByte());
+                }
+            }
+        }
+
+        private boolean matches(ByteBuf in) {
+            for (int i = 0; i < target.length; i++) {
+                if (in.getByte(in.readerIndex() + i) != target[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int getMaximumLookahead() {
+            return target.length - 1;
+        }
+
+        @Override
+        public boolean isDecompressing() {
+            return decompressing;
+        }
+
+        @Override
+        public boolean isRecompressing() {
+            return recompressing;
+        }
+    }
+}
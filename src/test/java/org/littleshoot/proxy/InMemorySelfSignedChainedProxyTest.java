@@ -0,0 +1,46 @@
+package org.littleshoot.proxy;
+
+import static org.littleshoot.proxy.TransportProtocol.*;
+
+import javax.net.ssl.SSLEngine;
+
+import org.littleshoot.proxy.extras.SelfSignedSslEngineSource;
+
+/**
+ * Tests an encrypted chained proxy whose two ends each use their own in-memory
+ * {@link SelfSignedSslEngineSource}, relying on the sources sharing the same
+ * certificate to authenticate each other.
+ */
+public class InMemorySelfSignedChainedProxyTest extends BaseChainedProxyTest {
+    private final SslEngineSource serverSslEngineSource = SelfSignedSslEngineSource
+            .inMemory(false, true);
+    private final SslEngineSource clientSslEngineSource = SelfSignedSslEngineSource
+            .inMemory(false, true);
+
+    @Override
+    protected HttpProxyServerBootstrap upstreamProxy() {
+        return super.upstreamProxy()
+                .withTransportProtocol(TCP)
+                .withSslEngineSource(serverSslEngineSource);
+    }
+
+    @Override
+    protected ChainedProxy newChainedProxy() {
+        return new BaseChainedProxy() {
+            @Override
+            public TransportProtocol getTransportProtocol() {
+                return TransportProtocol.TCP;
+            }
+
+            @Override
+            public boolean requiresEncryption() {
+                return true;
+            }
+
+            @Override
+            public SSLEngine newSslEngine() {
+                return clientSslEngineSource.newSslEngine();
+            }
+        };
+    }
+}
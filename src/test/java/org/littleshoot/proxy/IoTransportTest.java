@@ -0,0 +1,91 @@
+package org.littleshoot.proxy;
+
+import io.netty.channel.epoll.Epoll;
+import org.apache.http.HttpResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.littleshoot.proxy.impl.ServerGroup;
+import org.littleshoot.proxy.impl.ThreadPoolConfiguration;
+import org.littleshoot.proxy.test.HttpClientUtil;
+import org.mockserver.integration.ClientAndServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockserver.model.HttpRequest.request;
+import static org.mockserver.model.HttpResponse.response;
+
+/**
+ * Tests that the proxy works with the native epoll transport, or with the NIO fallback when epoll is not available.
+ */
+public class IoTransportTest {
+    private ClientAndServer mockServer;
+    private int mockServerPort;
+
+    private HttpProxyServer proxyServer;
+
+    @Before
+    public void setUp() {
+        mockServer = new ClientAndServer(0);
+        mockServerPort = mockServer.getPort();
+
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/transport"))
+                .respond(response()
+                                .withStatusCode(200)
+                                .withBody("transport response")
+                );
+    }
+
+    @After
+    public void tearDown() {
+        try {
+            if (mockServer != null) {
+                mockServer.stop();
+            }
+        } finally {
+            if (proxyServer != null) {
+                proxyServer.abort();
+            }
+        }
+    }
+
+    @Test
+    public void testEpollFallsBackToNioWhenUnavailable() {
+        ServerGroup serverGroup = new ServerGroup("IoTransportTest", 1, 1, 1, IoTransport.EPOLL);
+
+        IoTransport expectedTransport = Epoll.isAvailable() ? IoTransport.EPOLL : IoTransport.NIO;
+        assertEquals(expectedTransport, serverGroup.getIoTransportFor(TransportProtocol.TCP));
+        assertEquals("UDT should always use NIO", IoTransport.NIO, serverGroup.getIoTransportFor(TransportProtocol.UDT));
+    }
+
+    @Test
+    public void testRequestWithEpollTransport() {
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withIoTransport(IoTransport.EPOLL)
+                .start();
+
+        for (int i = 0; i < 2; i++) {
+            HttpResponse response = HttpClientUtil.performHttpGet("http://localhost:" + mockServerPort + "/transport", proxyServer);
+            assertEquals("Expected to receive a 200 from the server", 200, response.getStatusLine().getStatusCode());
+        }
+    }
+
+    @Test
+    public void testRequestWithReusePortListeners() {
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withIoTransport(IoTransport.EPOLL)
+                .withReusePort(true)
+                .withThreadPoolConfiguration(new ThreadPoolConfiguration()
+                        .withAcceptorThreads(2))
+                .start();
+
+        for (int i = 0; i < 4; i++) {
+            HttpResponse response = HttpClientUtil.performHttpGet("http://localhost:" + mockServerPort + "/transport", proxyServer);
+            assertEquals("Expected to receive a 200 from the server", 200, response.getStatusLine().getStatusCode());
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package org.littleshoot.proxy;
+
+import org.junit.Test;
+import org.littleshoot.proxy.extras.KeyPairPool;
+
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class KeyPairPoolTest {
+    @Test
+    public void testPoolIsFilledAndRefilledInBackground() throws Exception {
+        KeyPairPool pool = new KeyPairPool("EC", 256, 4, 1);
+        try {
+            waitForDepth(pool, 4);
+
+            Set<PublicKey> publicKeys = new HashSet<PublicKey>();
+            for (int i = 0; i < 3; i++) {
+                KeyPair keyPair = pool.take();
+                assertEquals("EC", keyPair.getPublic().getAlgorithm());
+                publicKeys.add(keyPair.getPublic());
+            }
+            assertEquals("Expected every key pair to be handed out only once", 3, publicKeys.size());
+
+            // taking the third key pair reached the low-water mark, so the pool is refilled
+            waitForDepth(pool, 4);
+            assertEquals(0, pool.getStarvationCount());
+            assertEquals(7, pool.getGeneratedCount());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testKeyPairsAreGeneratedOnDemandWhenPoolIsEmpty() throws Exception {
+        KeyPairPool pool = new KeyPairPool("EC", 256, 2, 0);
+        pool.shutdown();
+
+        for (int i = 0; i < 3; i++) {
+            pool.take();
+        }
+
+        assertThat(pool.getStarvationCount(), greaterThanOrEqualTo(1L));
+        assertEquals(0, pool.getDepth());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLowWaterMarkMustBeBelowCapacity() {
+        new KeyPairPool("EC", 256, 4, 4);
+    }
+
+    private static void waitForDepth(KeyPairPool pool, int depth) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (pool.getDepth() < depth && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("Pool was not filled in time; depth is " + pool.getDepth(), pool.getDepth() >= depth);
+    }
+}
@@ -0,0 +1,189 @@
+package org.littleshoot.proxy;
+
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import org.apache.http.HttpHost;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.mockserver.integration.ClientAndServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockserver.model.HttpRequest.request;
+import static org.mockserver.model.HttpResponse.response;
+
+/**
+ * Tests the {@link MappedFileCacheStorage}, on its own and as the second tier
+ * of a {@link TieredCacheStorage}.
+ */
+public class MappedFileCacheStorageTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testStoredBodyIsServedFromMappedFile() throws IOException {
+        MappedFileCacheStorage storage = new MappedFileCacheStorage(temporaryFolder.newFolder(), 1024, 2);
+
+        storage.put("key", cachedResponse("stored body"));
+
+        CachedResponse stored = storage.get("key");
+        assertNotNull(stored);
+        assertTrue("Expected the body to be stored outside of the heap", stored.getContent().isDirect());
+        assertEquals("stored body", body(stored));
+        assertEquals("max-age=60", stored.getHeader("Cache-Control"));
+
+        storage.remove("key");
+        assertNull(storage.get("key"));
+    }
+
+    @Test
+    public void testOldestSegmentIsDroppedWhenFull() throws IOException {
+        MappedFileCacheStorage storage = new MappedFileCacheStorage(temporaryFolder.newFolder(), 16, 2);
+
+        storage.put("first", cachedResponse("0123456789"));
+        storage.put("second", cachedResponse("0123456789"));
+
+        CachedResponse first = storage.get("first");
+        assertNotNull(first);
+
+        storage.put("third", cachedResponse("abcdefghij"));
+
+        assertNull("Expected the first segment to be dropped", storage.get("first"));
+        assertEquals("0123456789", body(storage.get("second")));
+        assertEquals("abcdefghij", body(storage.get("third")));
+        assertEquals("Expected a dropped response to remain readable", "0123456789", body(first));
+    }
+
+    @Test
+    public void testRefreshedResponseKeepsItsBody() throws IOException {
+        MappedFileCacheStorage storage = new MappedFileCacheStorage(temporaryFolder.newFolder(), 16, 2);
+
+        storage.put("refreshed", cachedResponse("0123456789"));
+        storage.put("other", cachedResponse("abcdefghij"));
+
+        // refresh the first response many times, the way 304 responses do
+        for (int i = 0; i < 10; i++) {
+            CachedResponse stored = storage.get("refreshed");
+            DefaultHttpHeaders headers = new DefaultHttpHeaders();
+            headers.set("Cache-Control", "max-age=" + i);
+            storage.put("refreshed", new CachedResponse(stored.getStatus(),
+                    headers,
+                    stored.getContent(),
+                    stored.getVaryHeaders(),
+                    stored.getRequestTime(),
+                    stored.getResponseTime()));
+        }
+
+        assertEquals("max-age=9", storage.get("refreshed").getHeader("Cache-Control"));
+        assertEquals("0123456789", body(storage.get("refreshed")));
+        assertEquals("Expected refreshing a response not to push other responses out", "abcdefghij",
+                body(storage.get("other")));
+    }
+
+    @Test
+    public void testTooLargeResponseIsNotStored() throws IOException {
+        MappedFileCacheStorage storage = new MappedFileCacheStorage(temporaryFolder.newFolder(), 4, 2);
+
+        storage.put("key", cachedResponse("too large"));
+
+        assertNull(storage.get("key"));
+    }
+
+    @Test
+    public void testLargeResponseIsServedFromSecondTier() throws IOException {
+        StringBuilder largeBody = new StringBuilder();
+        while (largeBody.length() < 100000) {
+            largeBody.append("large cacheable response ");
+        }
+
+        ClientAndServer mockServer = new ClientAndServer(0);
+        HttpProxyServer proxyServer = null;
+        CloseableHttpClient httpClient = null;
+        try {
+            mockServer.when(request()
+                            .withMethod("GET")
+                            .withPath("/large"))
+                    .respond(response()
+                                    .withStatusCode(200)
+                                    .withHeader("Cache-Control", "max-age=60")
+                                    .withBody(largeBody.toString())
+                    );
+
+            InMemoryCacheStorage firstTier = new InMemoryCacheStorage(1024 * 1024, 1024);
+            MappedFileCacheStorage secondTier = new MappedFileCacheStorage(temporaryFolder.newFolder(), 1024 * 1024, 2);
+            proxyServer = DefaultHttpProxyServer.bootstrap()
+                    .withPort(0)
+                    .withCacheStorage(new TieredCacheStorage(firstTier, secondTier))
+                    .start();
+
+            httpClient = HttpClients.custom()
+                    .setProxy(new HttpHost("127.0.0.1", proxyServer.getListenAddress().getPort()))
+                    .build();
+
+            String url = "http://localhost:" + mockServer.getPort() + "/large";
+            assertEquals(largeBody.toString(), get(httpClient, url));
+            assertEquals(largeBody.toString(), get(httpClient, url));
+
+            assertEquals("Expected the second request to be answered from the cache", 1,
+                    mockServer.retrieveRecordedRequests(request().withPath("/large")).length);
+            assertEquals(0, firstTier.getSize());
+            assertEquals(1, secondTier.getSize());
+        } finally {
+            try {
+                if (httpClient != null) {
+                    httpClient.close();
+                }
+            } finally {
+                mockServer.stop();
+                if (proxyServer != null) {
+                    proxyServer.abort();
+                }
+            }
+        }
+    }
+
+    private static CachedResponse cachedResponse(String body) {
+        DefaultHttpHeaders headers = new DefaultHttpHeaders();
+        headers.set("Cache-Control", "max-age=60");
+
+        long now = System.currentTimeMillis();
+        return new CachedResponse(HttpResponseStatus.OK,
+                headers,
+                ByteBuffer.wrap(body.getBytes(UTF_8)),
+                Collections.<String, String>emptyMap(),
+                now,
+                now);
+    }
+
+    private static String body(CachedResponse response) {
+        ByteBuffer content = response.getContent();
+        byte[] bytes = new byte[content.remaining()];
+        content.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static String get(CloseableHttpClient httpClient, String url) throws IOException {
+        CloseableHttpResponse response = httpClient.execute(new HttpGet(url));
+        try {
+            return EntityUtils.toString(response.getEntity());
+        } finally {
+            response.close();
+        }
+    }
+}
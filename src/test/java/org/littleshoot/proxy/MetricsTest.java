@@ -0,0 +1,129 @@
+package org.littleshoot.proxy;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.littleshoot.proxy.impl.ProxyMetrics;
+import org.mockserver.integration.ClientAndServer;
+
+import java.net.InetSocketAddress;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.mockserver.model.HttpRequest.request;
+import static org.mockserver.model.HttpResponse.response;
+
+/**
+ * Tests the proxy's built-in metrics and the Prometheus metrics admin port.
+ */
+public class MetricsTest {
+    private ClientAndServer mockServer;
+    private DefaultHttpProxyServer proxyServer;
+
+    @Before
+    public void setUp() {
+        mockServer = new ClientAndServer(0);
+        mockServer.when(request()
+                        .withPath("/found"))
+                .respond(response()
+                                .withStatusCode(200)
+                                .withBody("found")
+                );
+        mockServer.when(request()
+                        .withPath("/missing"))
+                .respond(response()
+                                .withStatusCode(404)
+                );
+    }
+
+    @After
+    public void tearDown() {
+        try {
+            mockServer.stop();
+        } finally {
+            if (proxyServer != null) {
+                proxyServer.abort();
+            }
+        }
+    }
+
+    @Test
+    public void testMetricsAreDisabledByDefault() {
+        proxyServer = (DefaultHttpProxyServer) DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .start();
+
+        assertNull(proxyServer.getMetrics());
+        assertNull(proxyServer.getMetricsAdminAddress());
+    }
+
+    @Test
+    public void testMetricsAreRecordedAndServedOnAdminPort() throws Exception {
+        proxyServer = (DefaultHttpProxyServer) DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withMetricsAdminAddress(new InetSocketAddress("127.0.0.1", 0))
+                .start();
+
+        CloseableHttpClient httpClient = HttpClients.custom()
+                .setProxy(new HttpHost("127.0.0.1", proxyServer.getListenAddress().getPort()))
+                .build();
+        try {
+            org.apache.http.HttpResponse response = httpClient.execute(new HttpGet("http://localhost:" + mockServer.getPort() + "/found"));
+            assertEquals("found", EntityUtils.toString(response.getEntity()));
+
+            response = httpClient.execute(new HttpGet("http://localhost:" + mockServer.getPort() + "/missing"));
+            assertEquals(404, response.getStatusLine().getStatusCode());
+            EntityUtils.consume(response.getEntity());
+        } finally {
+            httpClient.close();
+        }
+
+        ProxyMetrics metrics = proxyServer.getMetrics();
+        assertNotNull(metrics);
+        assertEquals(2, metrics.getRequests());
+        assertEquals(1, metrics.getResponses(2));
+        assertEquals(1, metrics.getResponses(4));
+        assertEquals(1, metrics.getServerConnect().getCount());
+        assertEquals(2, metrics.getTimeToFirstByte().getCount());
+        assertThat(metrics.getBytesReceivedFromServers(), greaterThan(0L));
+        assertThat(metrics.getBytesSentToClients(), greaterThan(0L));
+
+        InetSocketAddress adminAddress = proxyServer.getMetricsAdminAddress();
+        assertNotNull(adminAddress);
+
+        CloseableHttpClient adminClient = HttpClients.createDefault();
+        try {
+            org.apache.http.HttpResponse response = adminClient.execute(new HttpGet("http://127.0.0.1:" + adminAddress.getPort() + "/metrics"));
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            assertThat(response.getFirstHeader("Content-Type").getValue(), containsString("version=0.0.4"));
+
+            String text = EntityUtils.toString(response.getEntity());
+            assertThat(text, containsString("littleproxy_requests_total 2\n"));
+            assertThat(text, containsString("littleproxy_responses_total{code=\"2xx\"} 1\n"));
+            assertThat(text, containsString("littleproxy_responses_total{code=\"4xx\"} 1\n"));
+            assertThat(text, containsString("littleproxy_server_connect_seconds_count 1\n"));
+            assertThat(text, containsString("littleproxy_time_to_first_byte_seconds_bucket{le=\"+Inf\"} 2\n"));
+
+            response = adminClient.execute(new HttpGet("http://127.0.0.1:" + adminAddress.getPort() + "/other"));
+            assertEquals(404, response.getStatusLine().getStatusCode());
+            EntityUtils.consume(response.getEntity());
+
+            response = adminClient.execute(new HttpPost("http://127.0.0.1:" + adminAddress.getPort() + "/metrics"));
+            assertEquals(405, response.getStatusLine().getStatusCode());
+            EntityUtils.consume(response.getEntity());
+        } finally {
+            adminClient.close();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package org.littleshoot.proxy;
+
+import static org.littleshoot.proxy.TransportProtocol.*;
+
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.SSLEngine;
+
+import org.littleshoot.proxy.extras.CertificateGenerator;
+import org.littleshoot.proxy.extras.NettySslEngineSource;
+
+/**
+ * Tests an encrypted chained proxy whose TLS on both ends comes from a {@link NettySslEngineSource}, with the
+ * downstream proxy authenticating to the upstream proxy with the source's certificate.
+ */
+public class NettySslEngineSourceChainedProxyTest extends BaseChainedProxyTest {
+    private final NettySslEngineSource sslEngineSource = newSslEngineSource();
+
+    @Override
+    protected HttpProxyServerBootstrap upstreamProxy() {
+        return super.upstreamProxy()
+                .withTransportProtocol(TCP)
+                .withSslEngineSource(sslEngineSource);
+    }
+
+    @Override
+    protected ChainedProxy newChainedProxy() {
+        return new BaseChainedProxy() {
+            @Override
+            public TransportProtocol getTransportProtocol() {
+                return TransportProtocol.TCP;
+            }
+
+            @Override
+            public boolean requiresEncryption() {
+                return true;
+            }
+
+            @Override
+            public SSLEngine newSslEngine() {
+                return sslEngineSource.newSslEngine(getChainedProxyAddress().getHostName(),
+                        getChainedProxyAddress().getPort());
+            }
+        };
+    }
+
+    private static NettySslEngineSource newSslEngineSource() {
+        try {
+            KeyPair keyPair = CertificateGenerator.generateKeyPair("EC", 256);
+            X509Certificate certificate = CertificateGenerator.createCertificateAuthority(keyPair, "littleproxy", 1);
+            return new NettySslEngineSource(keyPair.getPrivate(), new X509Certificate[]{certificate}, true);
+        } catch (Exception e) {
+            throw new IllegalStateException("Unable to generate a certificate", e);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package org.littleshoot.proxy;
+
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslProvider;
+import org.junit.Before;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Runs the {@link SslSessionResumptionTest} with the OpenSSL provider, whose sessions only record their creation time
+ * in whole seconds.
+ */
+public class OpenSslSessionResumptionTest extends SslSessionResumptionTest {
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        assumeTrue("Skipping since netty-tcnative is not available", OpenSsl.isAvailable());
+        super.setUp();
+    }
+
+    @Override
+    protected SslProvider sslProvider() {
+        return SslProvider.OPENSSL;
+    }
+}
@@ -0,0 +1,195 @@
+package org.littleshoot.proxy;
+
+import io.netty.handler.codec.http.HttpRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.mockserver.integration.ClientAndServer;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.NoSuchAlgorithmException;
+import java.util.Queue;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockserver.model.HttpRequest.request;
+import static org.mockserver.model.HttpResponse.response;
+
+/**
+ * Tests that messages written to a server connection while it is still
+ * connecting are queued, and either written in order once it has connected,
+ * or released if it can't connect.
+ */
+public class PendingMessagesTest {
+    private static final String CHUNKED_BODY = "6\r\nchunk1\r\n"
+            + "6\r\nchunk2\r\n"
+            + "6\r\nchunk3\r\n"
+            + "0\r\n\r\n";
+
+    private ClientAndServer mockServer;
+    private ServerSocket stallingChainedProxy;
+    private HttpProxyServer proxyServer;
+    private TrackingAllocator allocator;
+
+    @Before
+    public void setUp() throws Exception {
+        mockServer = new ClientAndServer(0);
+        stallingChainedProxy = startStallingServer();
+        allocator = new TrackingAllocator();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try {
+            if (mockServer != null) {
+                mockServer.stop();
+            }
+        } finally {
+            try {
+                stallingChainedProxy.close();
+            } finally {
+                if (proxyServer != null) {
+                    proxyServer.abort();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testChunksQueuedWhileConnectingAreWrittenInOrder() throws Exception {
+        mockServer.when(request()
+                        .withMethod("POST")
+                        .withPath("/chunked"))
+                .respond(response()
+                                .withStatusCode(200)
+                                .withBody("received")
+                );
+
+        startProxy(true);
+
+        assertEquals("HTTP/1.1 200 OK", postChunked("localhost:" + mockServer.getPort()));
+        mockServer.verify(request()
+                .withMethod("POST")
+                .withPath("/chunked")
+                .withBody("chunk1chunk2chunk3"));
+    }
+
+    @Test
+    public void testChunksQueuedWhileConnectingAreReleasedWhenConnectionFails() throws Exception {
+        startProxy(false);
+
+        assertEquals("HTTP/1.1 502 Bad Gateway", postChunked("localhost:" + mockServer.getPort()));
+
+        proxyServer.stop();
+        proxyServer = null;
+
+        allocator.assertAllReleased();
+    }
+
+    /**
+     * Starts a proxy that connects through an encrypted chained proxy that
+     * never completes the handshake, so that the server connection stays in
+     * its connection flow until the chained proxy gives up.
+     *
+     * @param fallBackToDirectConnection
+     *            whether to connect directly once the chained proxy failed
+     */
+    private void startProxy(final boolean fallBackToDirectConnection) {
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withAllocator(allocator)
+                .withChainProxyManager(new ChainedProxyManager() {
+                    @Override
+                    public void lookupChainedProxies(HttpRequest httpRequest, Queue<ChainedProxy> chainedProxies) {
+                        chainedProxies.add(new ChainedProxyAdapter() {
+                            @Override
+                            public InetSocketAddress getChainedProxyAddress() {
+                                return new InetSocketAddress("127.0.0.1", stallingChainedProxy.getLocalPort());
+                            }
+
+                            @Override
+                            public boolean requiresEncryption() {
+                                return true;
+                            }
+
+                            @Override
+                            public SSLEngine newSslEngine() {
+                                try {
+                                    SSLEngine sslEngine = SSLContext.getDefault().createSSLEngine();
+                                    sslEngine.setUseClientMode(true);
+                                    return sslEngine;
+                                } catch (NoSuchAlgorithmException e) {
+                                    throw new RuntimeException(e);
+                                }
+                            }
+                        });
+
+                        if (fallBackToDirectConnection) {
+                            chainedProxies.add(ChainedProxyAdapter.FALLBACK_TO_DIRECT_CONNECTION);
+                        }
+                    }
+                })
+                .start();
+    }
+
+    /**
+     * Sends a chunked POST to the host in a single write, so that all of its
+     * chunks are read while the server connection is still connecting, and
+     * returns the status line of the response.
+     */
+    private String postChunked(String hostAndPort) throws IOException {
+        Socket socket = new Socket("127.0.0.1", proxyServer.getListenAddress().getPort());
+        try {
+            socket.setSoTimeout(10000);
+            socket.getOutputStream().write(("POST http://" + hostAndPort + "/chunked HTTP/1.1\r\n"
+                    + "Host: " + hostAndPort + "\r\n"
+                    + "Transfer-Encoding: chunked\r\n"
+                    + "Connection: close\r\n"
+                    + "\r\n"
+                    + CHUNKED_BODY).getBytes("UTF-8"));
+            socket.getOutputStream().flush();
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            return in.readLine();
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Starts a server that accepts connections, but closes each of them after
+     * half a second without having sent anything.
+     */
+    private static ServerSocket startStallingServer() throws IOException {
+        final ServerSocket serverSocket = new ServerSocket(0);
+        Thread server = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        try {
+                            Thread.sleep(500);
+                        } finally {
+                            socket.close();
+                        }
+                    } catch (IOException e) {
+                        // the server socket was closed
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        server.setDaemon(true);
+        server.start();
+        return serverSocket;
+    }
+}
@@ -0,0 +1,657 @@
+package org.littleshoot.proxy;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.model.Header;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockserver.model.HttpRequest.request;
+import static org.mockserver.model.HttpResponse.response;
+
+/**
+ * Tests the proxy's response cache, using an {@link InMemoryCacheStorage}.
+ */
+public class ResponseCacheTest {
+    private ClientAndServer mockServer;
+    private int mockServerPort;
+
+    private HttpProxyServer proxyServer;
+    private InMemoryCacheStorage cacheStorage;
+
+    private CloseableHttpClient httpClient;
+
+    @Before
+    public void setUp() {
+        mockServer = new ClientAndServer(0);
+        mockServerPort = mockServer.getPort();
+
+        cacheStorage = new InMemoryCacheStorage();
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withCacheStorage(cacheStorage)
+                // make sure that a lost response fails the test instead of blocking it forever
+                .withIdleConnectionTimeout(10)
+                .start();
+
+        httpClient = HttpClients.custom()
+                .setProxy(new HttpHost("127.0.0.1", proxyServer.getListenAddress().getPort()))
+                .build();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try {
+            if (httpClient != null) {
+                httpClient.close();
+            }
+        } finally {
+            try {
+                if (mockServer != null) {
+                    mockServer.stop();
+                }
+            } finally {
+                if (proxyServer != null) {
+                    proxyServer.abort();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFreshResponseIsServedFromCache() throws IOException {
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/cacheable"))
+                .respond(response()
+                                .withStatusCode(200)
+                                .withHeader("Cache-Control", "max-age=60")
+                                .withBody("cacheable response")
+                );
+
+        ResponseInfo first = get("/cacheable");
+        ResponseInfo second = get("/cacheable");
+
+        assertEquals(200, second.getStatusCode());
+        assertEquals("cacheable response", first.getBody());
+        assertEquals("cacheable response", second.getBody());
+        assertEquals("Expected the second request to be answered from the cache", 1, upstreamRequests("/cacheable"));
+        assertEquals(1, cacheStorage.getSize());
+    }
+
+    @Test
+    public void testNoStoreResponseIsNotCached() throws IOException {
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/no-store"))
+                .respond(response()
+                                .withStatusCode(200)
+                                .withHeader("Cache-Control", "no-store, max-age=60")
+                                .withBody("uncacheable response")
+                );
+
+        get("/no-store");
+        get("/no-store");
+
+        assertEquals("Expected both requests to reach the server", 2, upstreamRequests("/no-store"));
+    }
+
+    @Test
+    public void testResponseWithoutFreshnessInformationIsNotReused() throws IOException {
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/no-freshness"))
+                .respond(response()
+                                .withStatusCode(200)
+                                .withBody("response")
+                );
+
+        get("/no-freshness");
+        get("/no-freshness");
+
+        assertEquals("Expected both requests to reach the server", 2, upstreamRequests("/no-freshness"));
+    }
+
+    @Test
+    public void testRequestNoCacheBypassesCache() throws IOException {
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/cacheable"))
+                .respond(response()
+                                .withStatusCode(200)
+                                .withHeader("Cache-Control", "max-age=60")
+                                .withBody("cacheable response")
+                );
+
+        get("/cacheable");
+
+        HttpGet noCache = new HttpGet(url("/cacheable"));
+        noCache.setHeader("Cache-Control", "no-cache");
+        execute(noCache);
+
+        assertEquals("Expected the no-cache request to reach the server", 2, upstreamRequests("/cacheable"));
+    }
+
+    @Test
+    public void testVaryHeadersMustMatch() throws IOException {
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/vary"))
+                .respond(response()
+                                .withStatusCode(200)
+                                .withHeader("Cache-Control", "max-age=60")
+                                .withHeader("Vary", "X-Variant")
+                                .withBody("varying response")
+                );
+
+        HttpGet variantA = new HttpGet(url("/vary"));
+        variantA.setHeader("X-Variant", "a");
+        execute(variantA);
+
+        HttpGet sameVariant = new HttpGet(url("/vary"));
+        sameVariant.setHeader("X-Variant", "a");
+        execute(sameVariant);
+
+        assertEquals("Expected the request for the same variant to be answered from the cache", 1, upstreamRequests("/vary"));
+
+        HttpGet variantB = new HttpGet(url("/vary"));
+        variantB.setHeader("X-Variant", "b");
+        execute(variantB);
+
+        assertEquals("Expected the request for another variant to reach the server", 2, upstreamRequests("/vary"));
+    }
+
+    @Test
+    public void testConditionalRequestIsAnsweredWithNotModified() throws IOException {
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/etag"))
+                .respond(response()
+                                .withStatusCode(200)
+                                .withHeader("Cache-Control", "max-age=60")
+                                .withHeader("ETag", "\"v1\"")
+                                .withBody("tagged response")
+                );
+
+        get("/etag");
+
+        HttpGet conditional = new HttpGet(url("/etag"));
+        conditional.setHeader("If-None-Match", "W/\"v1\"");
+        ResponseInfo notModified = execute(conditional);
+
+        assertEquals(304, notModified.getStatusCode());
+        assertEquals(1, upstreamRequests("/etag"));
+    }
+
+    @Test
+    public void testUnsafeRequestInvalidatesCachedResponse() throws IOException {
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/resource"))
+                .respond(response()
+                                .withStatusCode(200)
+                                .withHeader("Cache-Control", "max-age=60")
+                                .withBody("resource")
+                );
+        mockServer.when(request()
+                        .withMethod("POST")
+                        .withPath("/resource"))
+                .respond(response()
+                                .withStatusCode(204)
+                );
+
+        get("/resource");
+        execute(new HttpPost(url("/resource")));
+        get("/resource");
+
+        assertEquals("Expected the POST to invalidate the cached response", 2,
+                mockServer.retrieveRecordedRequests(request().withMethod("GET").withPath("/resource")).length);
+    }
+
+    @Test
+    public void testOnlyIfCachedMiss() throws IOException {
+        HttpGet onlyIfCached = new HttpGet(url("/not-cached"));
+        onlyIfCached.setHeader("Cache-Control", "only-if-cached");
+        ResponseInfo response = execute(onlyIfCached);
+
+        assertEquals(504, response.getStatusCode());
+        assertEquals(0, upstreamRequests("/not-cached"));
+    }
+
+    @Test
+    public void testCachedResponseHasAgeHeader() throws IOException {
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/age"))
+                .respond(response()
+                                .withStatusCode(200)
+                                .withHeaders(new Header("Cache-Control", "max-age=60"), new Header("Age", "10"))
+                                .withBody("aged response")
+                );
+
+        get("/age");
+
+        CloseableHttpResponse response = httpClient.execute(new HttpGet(url("/age")));
+        try {
+            assertNotNull(response.getFirstHeader("Age"));
+            assertEquals(true, Integer.parseInt(response.getFirstHeader("Age").getValue()) >= 10);
+            EntityUtils.consume(response.getEntity());
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void testStaleResponseIsRevalidated() throws IOException {
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/revalidate")
+                        .withHeader("If-None-Match", "\"v1\""))
+                .respond(response()
+                                .withStatusCode(304)
+                                .withHeaders(new Header("Cache-Control", "max-age=0"), new Header("ETag", "\"v1\""))
+                );
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/revalidate"))
+                .respond(response()
+                                .withStatusCode(200)
+                                .withHeaders(new Header("Cache-Control", "max-age=0"), new Header("ETag", "\"v1\""))
+                                .withBody("revalidated response")
+                );
+
+        get("/revalidate");
+        ResponseInfo revalidated = get("/revalidate");
+
+        assertEquals(200, revalidated.getStatusCode());
+        assertEquals("revalidated response", revalidated.getBody());
+        assertEquals("Expected the stale response to be revalidated with its entity tag", 1,
+                mockServer.retrieveRecordedRequests(request().withPath("/revalidate").withHeader("If-None-Match", "\"v1\"")).length);
+    }
+
+    @Test
+    public void testNoCacheResponseIsRevalidatedBeforeUse() throws IOException {
+        String lastModified = "Tue, 15 Nov 1994 12:45:26 GMT";
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/no-cache")
+                        .withHeader("If-Modified-Since", lastModified))
+                .respond(response()
+                                .withStatusCode(304)
+                );
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/no-cache"))
+                .respond(response()
+                                .withStatusCode(200)
+                                .withHeaders(new Header("Cache-Control", "no-cache"), new Header("Last-Modified", lastModified))
+                                .withBody("no-cache response")
+                );
+
+        get("/no-cache");
+        ResponseInfo revalidated = get("/no-cache");
+
+        assertEquals(200, revalidated.getStatusCode());
+        assertEquals("no-cache response", revalidated.getBody());
+        assertEquals("Expected the no-cache response to be revalidated", 1,
+                mockServer.retrieveRecordedRequests(request().withPath("/no-cache").withHeader("If-Modified-Since", lastModified)).length);
+    }
+
+    @Test
+    public void testConcurrentRequestsAreCollapsed() throws Exception {
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/slow"))
+                .respond(response()
+                                .withStatusCode(200)
+                                .withHeader("Cache-Control", "max-age=60")
+                                .withBody("slow response")
+                                .withDelay(TimeUnit.MILLISECONDS, 1000)
+                );
+
+        int clients = 5;
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        try {
+            List<Future<ResponseInfo>> responses = new ArrayList<Future<ResponseInfo>>();
+            for (int i = 0; i < clients; i++) {
+                responses.add(executor.submit(new Callable<ResponseInfo>() {
+                    @Override
+                    public ResponseInfo call() throws Exception {
+                        CloseableHttpClient client = HttpClients.custom()
+                                .setProxy(new HttpHost("127.0.0.1", proxyServer.getListenAddress().getPort()))
+                                .build();
+                        try {
+                            CloseableHttpResponse response = client.execute(new HttpGet(url("/slow")));
+                            try {
+                                return new ResponseInfo(response.getStatusLine().getStatusCode(),
+                                        EntityUtils.toString(response.getEntity()));
+                            } finally {
+                                response.close();
+                            }
+                        } finally {
+                            client.close();
+                        }
+                    }
+                }));
+            }
+
+            for (Future<ResponseInfo> response : responses) {
+                assertEquals("slow response", response.get(10, TimeUnit.SECONDS).getBody());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals("Expected concurrent requests to be collapsed into one upstream request", 1, upstreamRequests("/slow"));
+    }
+
+    @Test
+    public void testStaleWhileRevalidate() throws Exception {
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/swr"))
+                .respond(response()
+                                .withStatusCode(200)
+                                .withHeader("Cache-Control", "max-age=1, stale-while-revalidate=60")
+                                .withBody("first version")
+                );
+
+        get("/swr");
+        Thread.sleep(1500);
+
+        mockServer.clear(request().withPath("/swr"));
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/swr"))
+                .respond(response()
+                                .withStatusCode(200)
+                                .withHeader("Cache-Control", "max-age=60")
+                                .withBody("second version")
+                                .withDelay(TimeUnit.MILLISECONDS, 1000)
+                );
+
+        long start = System.currentTimeMillis();
+        CloseableHttpResponse stale = httpClient.execute(new HttpGet(url("/swr")));
+        try {
+            assertEquals("first version", EntityUtils.toString(stale.getEntity()));
+            assertNotNull("Expected a stale response warning", stale.getFirstHeader("Warning"));
+            assertTrue("Expected the stale response to be served without waiting for the server",
+                    System.currentTimeMillis() - start < 1000);
+        } finally {
+            stale.close();
+        }
+
+        // wait for the background revalidation to complete
+        long deadline = System.currentTimeMillis() + 5000;
+        while (upstreamRequests("/swr") == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Thread.sleep(1500);
+
+        assertEquals("second version", get("/swr").getBody());
+        assertEquals("Expected the server to only be asked to revalidate once", 1, upstreamRequests("/swr"));
+    }
+
+    @Test
+    public void testStaleWhileRevalidateOutlivesNonKeepAliveClient() throws Exception {
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/swr"))
+                .respond(response()
+                                .withStatusCode(200)
+                                .withHeader("Cache-Control", "max-age=1, stale-while-revalidate=60")
+                                .withBody("first version")
+                );
+
+        get("/swr");
+        Thread.sleep(1500);
+
+        mockServer.clear(request().withPath("/swr"));
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/swr"))
+                .respond(response()
+                                .withStatusCode(200)
+                                .withHeader("Cache-Control", "max-age=60")
+                                .withBody("second version")
+                                .withDelay(TimeUnit.MILLISECONDS, 1500)
+                );
+
+        Socket client = new Socket("127.0.0.1", proxyServer.getListenAddress().getPort());
+        try {
+            client.setSoTimeout(5000);
+            InputStream in = client.getInputStream();
+            OutputStream out = client.getOutputStream();
+
+            // a new client connection, whose stale response is revalidated in the background
+            out.write(rawGet("/swr", false));
+            assertEquals("first version", readRawResponseBody(in));
+
+            // give the revalidation time to connect to the server, which holds on to its response for longer
+            Thread.sleep(500);
+
+            // the proxy closes the connection once it has answered a request that doesn't keep it alive, while the
+            // revalidation is still waiting for the server's response
+            out.write(rawGet("/swr", true));
+            assertEquals("first version", readRawResponseBody(in));
+            assertEquals("Expected the proxy to close the connection", -1, in.read());
+        } finally {
+            client.close();
+        }
+
+        // wait for the delayed revalidation response
+        long deadline = System.currentTimeMillis() + 5000;
+        while (upstreamRequests("/swr") == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Thread.sleep(500);
+
+        assertEquals("Expected the revalidation to complete after the client disconnected",
+                "second version", get("/swr").getBody());
+        assertEquals("Expected the server to only be asked to revalidate once", 1, upstreamRequests("/swr"));
+    }
+
+    @Test
+    public void testStaleIfErrorHidesServerError() throws Exception {
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/sie"))
+                .respond(response()
+                                .withStatusCode(200)
+                                .withHeader("Cache-Control", "max-age=1, stale-if-error=60")
+                                .withBody("good response")
+                );
+
+        get("/sie");
+        Thread.sleep(1500);
+
+        mockServer.clear(request().withPath("/sie"));
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/sie"))
+                .respond(response()
+                                .withStatusCode(503)
+                                .withBody("server error")
+                );
+
+        CloseableHttpResponse response = httpClient.execute(new HttpGet(url("/sie")));
+        try {
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            assertEquals("good response", EntityUtils.toString(response.getEntity()));
+            assertEquals("111 - \"Revalidation Failed\"", response.getFirstHeader("Warning").getValue());
+        } finally {
+            response.close();
+        }
+        assertEquals(1, upstreamRequests("/sie"));
+    }
+
+    @Test
+    public void testStaleIfErrorWhenServerIsUnreachable() throws Exception {
+        // use a server that stops listening as soon as it has responded, so that connecting to it afterwards is
+        // refused right away
+        ServerSocket serverSocket = new ServerSocket(0);
+        Thread server = respondOnce(serverSocket, "HTTP/1.1 200 OK\r\n"
+                + "Cache-Control: max-age=1\r\n"
+                + "Content-Length: 13\r\n"
+                + "Connection: close\r\n"
+                + "\r\n"
+                + "good response");
+        String url = "http://localhost:" + serverSocket.getLocalPort() + "/sie";
+
+        assertEquals("good response", execute(new HttpGet(url)).getBody());
+        server.join(5000);
+        assertTrue("Expected the server to have stopped listening", serverSocket.isClosed());
+        Thread.sleep(1500);
+
+        HttpGet staleIfError = new HttpGet(url);
+        staleIfError.setHeader("Cache-Control", "stale-if-error=60");
+        ResponseInfo response = execute(staleIfError);
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals("good response", response.getBody());
+
+        ResponseInfo error = execute(new HttpGet(url));
+        assertEquals("Expected a 502 without stale-if-error", 502, error.getStatusCode());
+    }
+
+    /**
+     * Starts a thread that accepts a single connection, reads a request from
+     * it and writes the given response, and then closes the server socket.
+     */
+    private static Thread respondOnce(final ServerSocket serverSocket, final String response) {
+        Thread server = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = serverSocket.accept();
+                    try {
+                        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+                        String line;
+                        while ((line = in.readLine()) != null && !line.isEmpty()) {
+                            // read the request up to the double-CRLF
+                        }
+
+                        OutputStream out = socket.getOutputStream();
+                        out.write(response.getBytes("UTF-8"));
+                        out.flush();
+                    } finally {
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    try {
+                        serverSocket.close();
+                    } catch (IOException e) {
+                        // nothing more to do
+                    }
+                }
+            }
+        });
+        server.setDaemon(true);
+        server.start();
+        return server;
+    }
+
+    /**
+     * Returns a GET request for the path on the mock server, to be written
+     * to a raw connection to the proxy.
+     */
+    private byte[] rawGet(String path, boolean close) throws IOException {
+        String hostAndPort = "localhost:" + mockServerPort;
+        return ("GET http://" + hostAndPort + path + " HTTP/1.1\r\n"
+                + "Host: " + hostAndPort + "\r\n"
+                + (close ? "Connection: close\r\n" : "")
+                + "\r\n").getBytes("UTF-8");
+    }
+
+    /**
+     * Reads a response with a Content-Length from a raw connection to the
+     * proxy, and returns its body.
+     */
+    private static String readRawResponseBody(InputStream in) throws IOException {
+        int contentLength = -1;
+        String line;
+        while (!(line = readLine(in)).isEmpty()) {
+            if (line.toLowerCase().startsWith("content-length:")) {
+                contentLength = Integer.parseInt(line.substring("content-length:".length()).trim());
+            }
+        }
+        assertTrue("Expected a Content-Length", contentLength >= 0);
+
+        byte[] body = new byte[contentLength];
+        int read = 0;
+        while (read < contentLength) {
+            int n = in.read(body, read, contentLength - read);
+            if (n == -1) {
+                throw new EOFException("Connection closed before the end of the body");
+            }
+            read += n;
+        }
+        return new String(body, "UTF-8");
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) {
+                throw new EOFException("Connection closed before the end of the headers");
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    private String url(String path) {
+        return "http://localhost:" + mockServerPort + path;
+    }
+
+    private ResponseInfo get(String path) throws IOException {
+        return execute(new HttpGet(url(path)));
+    }
+
+    private ResponseInfo execute(HttpUriRequest request) throws IOException {
+        CloseableHttpResponse response = httpClient.execute(request);
+        try {
+            String body = response.getEntity() != null ? EntityUtils.toString(response.getEntity()) : null;
+            return new ResponseInfo(response.getStatusLine().getStatusCode(), body);
+        } finally {
+            response.close();
+        }
+    }
+
+    private int upstreamRequests(String path) {
+        return mockServer.retrieveRecordedRequests(request().withPath(path)).length;
+    }
+}
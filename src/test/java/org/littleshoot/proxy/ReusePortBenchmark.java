@@ -0,0 +1,105 @@
+package org.littleshoot.proxy;
+
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.littleshoot.proxy.impl.ThreadPoolConfiguration;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how many new client connections per second the proxy can accept and answer, with a single listening server
+ * channel versus one SO_REUSEPORT server channel per acceptor thread. Requires Linux and the native epoll transport.
+ * Each client connection sends a single origin-form request, which the proxy rejects itself, so no upstream server is
+ * involved.
+ * <p>
+ * Usage: ReusePortBenchmark [acceptorThreads] [clientThreads] [seconds]
+ */
+public class ReusePortBenchmark {
+    private static final byte[] REQUEST = "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(Charset.forName("US-ASCII"));
+
+    public static void main(String[] args) throws Exception {
+        int acceptorThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int clientThreads = args.length > 1 ? Integer.parseInt(args[1]) : 4 * acceptorThreads;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        // warm up the JIT before measuring
+        run(false, acceptorThreads, clientThreads, 2);
+
+        double single = run(false, acceptorThreads, clientThreads, seconds);
+        double reusePort = run(true, acceptorThreads, clientThreads, seconds);
+
+        System.out.printf("1 listener:  %.0f connections/sec%n", single);
+        System.out.printf("%d listeners: %.0f connections/sec (%.2fx)%n", acceptorThreads, reusePort, reusePort / single);
+    }
+
+    private static double run(boolean reusePort, int acceptorThreads, int clientThreads, int seconds) throws Exception {
+        HttpProxyServer proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withIoTransport(IoTransport.EPOLL)
+                .withReusePort(reusePort)
+                .withThreadPoolConfiguration(new ThreadPoolConfiguration()
+                        .withAcceptorThreads(acceptorThreads))
+                .start();
+
+        final InetSocketAddress proxyAddress = new InetSocketAddress("127.0.0.1", proxyServer.getListenAddress().getPort());
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong connections = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+
+        List<Thread> clients = new ArrayList<Thread>(clientThreads);
+        for (int i = 0; i < clientThreads; i++) {
+            Thread client = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (running.get()) {
+                        try (Socket socket = new Socket()) {
+                            socket.setSoLinger(true, 0);
+                            socket.connect(proxyAddress, 5000);
+                            socket.setSoTimeout(5000);
+
+                            OutputStream out = socket.getOutputStream();
+                            out.write(REQUEST);
+                            out.flush();
+
+                            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+                            if (in.readLine() != null) {
+                                connections.incrementAndGet();
+                            } else {
+                                errors.incrementAndGet();
+                            }
+                        } catch (Exception e) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            }, "ReusePortBenchmark-client-" + i);
+            client.start();
+            clients.add(client);
+        }
+
+        long start = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        running.set(false);
+        for (Thread client : clients) {
+            client.join();
+        }
+        long elapsedNanos = System.nanoTime() - start;
+
+        proxyServer.abort();
+
+        if (errors.get() > 0) {
+            System.out.println("Failed connections: " + errors.get());
+        }
+
+        return connections.get() / (elapsedNanos / 1e9);
+    }
+}
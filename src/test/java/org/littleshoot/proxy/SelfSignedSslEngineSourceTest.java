@@ -0,0 +1,52 @@
+package org.littleshoot.proxy;
+
+import com.google.common.io.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.littleshoot.proxy.extras.SelfSignedSslEngineSource;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the {@link SelfSignedSslEngineSource} generates its key store when the key store file is missing, and
+ * reuses the saved key store afterwards.
+ */
+public class SelfSignedSslEngineSourceTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testKeyStoreIsGeneratedOnceAndReused() throws Exception {
+        File keyStoreFile = new File(temporaryFolder.getRoot(), "generated_keystore.jks");
+
+        new SelfSignedSslEngineSource(keyStoreFile.getPath());
+        assertTrue("Expected the generated key store to be saved", keyStoreFile.isFile());
+
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        InputStream is = new FileInputStream(keyStoreFile);
+        try {
+            keyStore.load(is, "Be Your Own Lantern".toCharArray());
+        } finally {
+            is.close();
+        }
+        assertNotNull(keyStore.getKey("littleproxy", "Be Your Own Lantern".toCharArray()));
+        X509Certificate certificate = (X509Certificate) keyStore.getCertificate("littleproxy");
+        certificate.verify(certificate.getPublicKey());
+        assertEquals("CN=littleproxy", certificate.getSubjectX500Principal().getName());
+
+        byte[] generated = Files.toByteArray(keyStoreFile);
+        SelfSignedSslEngineSource reloaded = new SelfSignedSslEngineSource(keyStoreFile.getPath());
+        assertNotNull(reloaded.newSslEngine());
+        assertArrayEquals("Expected the existing key store to be reused", generated, Files.toByteArray(keyStoreFile));
+    }
+}
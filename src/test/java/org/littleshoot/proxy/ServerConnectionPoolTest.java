@@ -0,0 +1,109 @@
+package org.littleshoot.proxy;
+
+import org.apache.http.HttpResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.ConnectionPoolConfiguration;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.littleshoot.proxy.impl.ServerConnectionPool;
+import org.littleshoot.proxy.test.HttpClientUtil;
+import org.mockserver.integration.ClientAndServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockserver.model.HttpRequest.request;
+import static org.mockserver.model.HttpResponse.response;
+
+/**
+ * Tests that upstream connections are shared between clients when the server-wide connection pool is enabled.
+ */
+public class ServerConnectionPoolTest {
+    private ClientAndServer mockServer;
+    private int mockServerPort;
+
+    private HttpProxyServer proxyServer;
+
+    @Before
+    public void setUp() {
+        mockServer = new ClientAndServer(0);
+        mockServerPort = mockServer.getPort();
+
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/pooled"))
+                .respond(response()
+                                .withStatusCode(200)
+                                .withBody("pooled response")
+                );
+    }
+
+    @After
+    public void tearDown() {
+        try {
+            if (mockServer != null) {
+                mockServer.stop();
+            }
+        } finally {
+            if (proxyServer != null) {
+                proxyServer.abort();
+            }
+        }
+    }
+
+    @Test
+    public void testConnectionReusedAcrossClients() throws InterruptedException {
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withConnectionPoolConfiguration(new ConnectionPoolConfiguration()
+                        .withMaxIdleConnectionsPerServer(2))
+                .start();
+
+        ServerConnectionPool pool = ((DefaultHttpProxyServer) proxyServer).getServerConnectionPool();
+
+        for (int i = 0; i < 3; i++) {
+            HttpResponse response = HttpClientUtil.performHttpGet("http://localhost:" + mockServerPort + "/pooled", proxyServer);
+            assertEquals("Expected to receive a 200 from the server", 200, response.getStatusLine().getStatusCode());
+
+            // give the client disconnect a moment to return the server connection to the pool
+            Thread.sleep(250);
+        }
+
+        assertEquals("Expected only the first request to open a new connection", 1, pool.getMisses());
+        assertEquals("Expected later requests to reuse the pooled connection", 2, pool.getHits());
+        assertEquals("Expected the connection to be idle in the pool", 1, pool.getIdleConnections());
+    }
+
+    @Test
+    public void testExpiredConnectionsAreNotReused() throws InterruptedException {
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withConnectionPoolConfiguration(new ConnectionPoolConfiguration()
+                        .withMaxLifetimeSeconds(1))
+                .start();
+
+        ServerConnectionPool pool = ((DefaultHttpProxyServer) proxyServer).getServerConnectionPool();
+
+        HttpResponse response = HttpClientUtil.performHttpGet("http://localhost:" + mockServerPort + "/pooled", proxyServer);
+        assertEquals("Expected to receive a 200 from the server", 200, response.getStatusLine().getStatusCode());
+
+        Thread.sleep(1500);
+
+        response = HttpClientUtil.performHttpGet("http://localhost:" + mockServerPort + "/pooled", proxyServer);
+        assertEquals("Expected to receive a 200 from the server", 200, response.getStatusLine().getStatusCode());
+
+        assertEquals("Expected the expired connection not to be reused", 0, pool.getHits());
+        assertTrue("Expected the expired connection to be evicted", pool.getEvictions() >= 1);
+    }
+
+    @Test
+    public void testPoolDisabledByDefault() {
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .start();
+
+        assertNull("Connection pool should be disabled unless configured",
+                ((DefaultHttpProxyServer) proxyServer).getServerConnectionPool());
+    }
+}
@@ -0,0 +1,268 @@
+package org.littleshoot.proxy;
+
+import io.netty.buffer.AbstractByteBufAllocator;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.epoll.Epoll;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.littleshoot.proxy.test.SocketClientUtil;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Tests CONNECT tunnels through a proxy that splices tunnels when the native epoll transport is available, and relays
+ * them through the pipeline otherwise. Whether the data went through the proxy's pipelines is told apart by the
+ * amount of memory the proxy allocated from its allocator: spliced data never enters the JVM.
+ */
+public class SpliceTunnelTest {
+    private static final int PAYLOAD_SIZE = 1024 * 1024;
+
+    private ServerSocket echoServer;
+    private Thread echoThread;
+
+    private HttpProxyServer proxyServer;
+    private CountingAllocator allocator;
+
+    @Before
+    public void setUp() throws IOException {
+        allocator = new CountingAllocator();
+
+        echoServer = new ServerSocket(0);
+        echoThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Socket socket = echoServer.accept();
+                        echo(socket);
+                    }
+                } catch (IOException e) {
+                    // server socket closed
+                }
+            }
+        }, "SpliceTunnelTest-echo");
+        echoThread.setDaemon(true);
+        echoThread.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try {
+            echoServer.close();
+        } finally {
+            if (proxyServer != null) {
+                proxyServer.abort();
+            }
+        }
+    }
+
+    @Test
+    public void testSplicedTunnel() throws IOException {
+        assumeTrue("Skipping since the native epoll transport is not available", Epoll.isAvailable());
+
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withIoTransport(IoTransport.EPOLL)
+                .withSpliceTunnels(true)
+                .withAllocator(allocator)
+                .start();
+
+        assertTunnelEchoes();
+        assertTunnelEchoes();
+
+        assertTrue("Expected the tunneled data to bypass the proxy's buffers, but the proxy allocated "
+                + allocator.getAllocatedBytes() + " bytes", allocator.getAllocatedBytes() < PAYLOAD_SIZE);
+    }
+
+    @Test
+    public void testIdleSplicedTunnelIsClosed() throws IOException {
+        assumeTrue("Skipping since the native epoll transport is not available", Epoll.isAvailable());
+
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withIoTransport(IoTransport.EPOLL)
+                .withSpliceTunnels(true)
+                .withIdleConnectionTimeout(1)
+                .withAllocator(allocator)
+                .start();
+
+        Socket socket = openTunnel();
+        try {
+            assertPayloadEchoes(socket);
+            assertTrue("Expected the tunnel to be spliced", allocator.getAllocatedBytes() < PAYLOAD_SIZE);
+
+            // the echo server keeps its end open, so only the idle timeout can close the tunnel
+            long idleSince = System.currentTimeMillis();
+            assertEquals("Expected the idle tunnel to be closed", -1, socket.getInputStream().read());
+            long idleMillis = System.currentTimeMillis() - idleSince;
+            assertTrue("Expected the tunnel to stay open for the idle timeout, but it was closed after "
+                    + idleMillis + " ms", idleMillis >= 500);
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testTunnelWithActivityTrackerIsNotSpliced() throws IOException {
+        final AtomicLong bytesReceivedFromClient = new AtomicLong();
+
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withIoTransport(IoTransport.EPOLL)
+                .withSpliceTunnels(true)
+                .plusActivityTracker(new ActivityTrackerAdapter() {
+                    @Override
+                    public void bytesReceivedFromClient(FlowContext flowContext, int numberOfBytes) {
+                        bytesReceivedFromClient.addAndGet(numberOfBytes);
+                    }
+                })
+                .withAllocator(allocator)
+                .start();
+
+        assertTunnelEchoes();
+
+        assertTrue("Expected the activity tracker to see the tunneled data", bytesReceivedFromClient.get() > PAYLOAD_SIZE);
+        assertTrue("Expected the tunneled data to be read into the proxy's buffers",
+                allocator.getAllocatedBytes() > PAYLOAD_SIZE);
+    }
+
+    /**
+     * Opens a tunnel to the echo server, sends it a payload and verifies the payload is echoed back, and that closing
+     * the client's side of the tunnel closes the server's side.
+     */
+    private void assertTunnelEchoes() throws IOException {
+        Socket socket = openTunnel();
+        try {
+            assertPayloadEchoes(socket);
+
+            socket.shutdownOutput();
+            assertEquals("Expected the tunnel to be closed once the client stopped sending", -1, socket.getInputStream().read());
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Connects to the proxy and opens a tunnel to the echo server.
+     */
+    private Socket openTunnel() throws IOException {
+        Socket socket = new Socket();
+        boolean connected = false;
+        try {
+            socket.connect(new InetSocketAddress("localhost", proxyServer.getListenAddress().getPort()));
+            socket.setSoTimeout(10000);
+
+            String connect = "CONNECT localhost:" + echoServer.getLocalPort() + " HTTP/1.1\r\n"
+                    + "Host: localhost:" + echoServer.getLocalPort() + "\r\n"
+                    + "\r\n";
+            SocketClientUtil.writeStringToSocket(connect, socket);
+
+            String response = readResponseHeaders(socket.getInputStream());
+            assertTrue("Expected the CONNECT to succeed, but got: " + response, response.startsWith("HTTP/1.1 200"));
+            connected = true;
+            return socket;
+        } finally {
+            if (!connected) {
+                socket.close();
+            }
+        }
+    }
+
+    private static void assertPayloadEchoes(Socket socket) throws IOException {
+        final byte[] payload = new byte[PAYLOAD_SIZE];
+        new Random().nextBytes(payload);
+
+        final OutputStream out = socket.getOutputStream();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    out.write(payload);
+                    out.flush();
+                } catch (IOException e) {
+                    // the reader will fail
+                }
+            }
+        });
+        writer.start();
+
+        byte[] echoed = new byte[PAYLOAD_SIZE];
+        new DataInputStream(socket.getInputStream()).readFully(echoed);
+        assertArrayEquals("Expected the payload to be echoed back through the tunnel", payload, echoed);
+    }
+
+    private static String readResponseHeaders(InputStream in) throws IOException {
+        StringBuilder headers = new StringBuilder();
+        while (!headers.toString().endsWith("\r\n\r\n")) {
+            int b = in.read();
+            if (b == -1) {
+                break;
+            }
+            headers.append((char) b);
+        }
+
+        return headers.toString();
+    }
+
+    private static void echo(Socket socket) throws IOException {
+        try {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(Arrays.copyOf(buffer, read));
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Counts the bytes of all buffers the proxy allocates.
+     */
+    private static class CountingAllocator extends AbstractByteBufAllocator {
+        private final AtomicLong allocatedBytes = new AtomicLong();
+
+        @Override
+        protected ByteBuf newHeapBuffer(int initialCapacity, int maxCapacity) {
+            return count(UnpooledByteBufAllocator.DEFAULT.heapBuffer(initialCapacity, maxCapacity));
+        }
+
+        @Override
+        protected ByteBuf newDirectBuffer(int initialCapacity, int maxCapacity) {
+            return count(UnpooledByteBufAllocator.DEFAULT.directBuffer(initialCapacity, maxCapacity));
+        }
+
+        @Override
+        public boolean isDirectBufferPooled() {
+            return false;
+        }
+
+        private ByteBuf count(ByteBuf buffer) {
+            allocatedBytes.addAndGet(buffer.capacity());
+            return buffer;
+        }
+
+        long getAllocatedBytes() {
+            return allocatedBytes.get();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package org.littleshoot.proxy;
+
+import io.netty.handler.ssl.SslProvider;
+import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
+import org.apache.http.ssl.SSLContexts;
+import org.eclipse.jetty.server.Server;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.extras.CertificateGenerator;
+import org.littleshoot.proxy.extras.NettySslEngineSource;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.littleshoot.proxy.impl.ProxyMetrics;
+import org.littleshoot.proxy.test.SocketClientUtil;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the proxy's metrics tell TLS handshakes with clients that resume a session apart from those that create a
+ * new one, for clients connecting to the proxy over TLS with the JDK provider.
+ */
+public class SslSessionResumptionTest {
+    private Server webServer;
+    private DefaultHttpProxyServer proxyServer;
+
+    @Before
+    public void setUp() throws Exception {
+        webServer = TestUtils.startWebServer();
+
+        KeyPair keyPair = CertificateGenerator.generateKeyPair("EC", 256);
+        X509Certificate certificate = CertificateGenerator.createSelfSignedCertificate(keyPair, "localhost", 1);
+        proxyServer = (DefaultHttpProxyServer) DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withSslEngineSource(new NettySslEngineSource(keyPair.getPrivate(),
+                        new X509Certificate[]{certificate}, true, sslProvider()))
+                .withAuthenticateSslClients(false)
+                .withMetrics(true)
+                .start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try {
+            if (webServer != null) {
+                webServer.stop();
+            }
+        } finally {
+            if (proxyServer != null) {
+                proxyServer.abort();
+            }
+        }
+    }
+
+    protected SslProvider sslProvider() {
+        return SslProvider.JDK;
+    }
+
+    @Test
+    public void testOnlyResumedHandshakesAreCountedAsResumed() throws Exception {
+        SSLContext firstClient = createClientSslContext();
+        get(firstClient);
+        get(createClientSslContext());
+
+        ProxyMetrics metrics = proxyServer.getMetrics();
+        assertEquals(2, metrics.getClientTlsHandshakes());
+        assertEquals("Expected clients without a cached session to be counted as new sessions", 0,
+                metrics.getClientTlsResumedHandshakes());
+
+        // some providers only record the creation time of sessions in whole seconds
+        Thread.sleep(1100);
+        get(firstClient);
+
+        assertEquals(3, metrics.getClientTlsHandshakes());
+        assertEquals("Expected the first client to resume its session", 1, metrics.getClientTlsResumedHandshakes());
+    }
+
+    /**
+     * Makes a request through the proxy over a new TLS connection, and reads the status line of the response. Reading
+     * the response also makes the client process any session ticket the proxy sent after the handshake.
+     */
+    private void get(SSLContext sslContext) throws Exception {
+        SSLSocket socket = (SSLSocket) sslContext.getSocketFactory().createSocket("localhost",
+                proxyServer.getListenAddress().getPort());
+        try {
+            socket.setSoTimeout(10000);
+            socket.startHandshake();
+
+            SocketClientUtil.writeStringToSocket("GET http://localhost:" + TestUtils.findLocalHttpPort(webServer)
+                    + "/ HTTP/1.1\r\nHost: localhost\r\n\r\n", socket);
+            String statusLine = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8")).readLine();
+            assertTrue("Expected a 200 response, but got: " + statusLine, statusLine.startsWith("HTTP/1.1 200"));
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static SSLContext createClientSslContext() throws Exception {
+        return SSLContexts.custom().loadTrustMaterial(null, new TrustSelfSignedStrategy()).build();
+    }
+}
@@ -0,0 +1,54 @@
+package org.littleshoot.proxy;
+
+import io.netty.buffer.AbstractByteBufAllocator;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Allocates unpooled direct buffers, and remembers every buffer it allocated,
+ * so that tests can check that the proxy released them.
+ */
+class TrackingAllocator extends AbstractByteBufAllocator {
+    final Queue<ByteBuf> buffers = new ConcurrentLinkedQueue<ByteBuf>();
+    final Queue<Integer> initialCapacities = new ConcurrentLinkedQueue<Integer>();
+
+    TrackingAllocator() {
+        super(true);
+    }
+
+    @Override
+    protected ByteBuf newHeapBuffer(int initialCapacity, int maxCapacity) {
+        return track(UnpooledByteBufAllocator.DEFAULT.heapBuffer(initialCapacity, maxCapacity));
+    }
+
+    @Override
+    protected ByteBuf newDirectBuffer(int initialCapacity, int maxCapacity) {
+        return track(UnpooledByteBufAllocator.DEFAULT.directBuffer(initialCapacity, maxCapacity));
+    }
+
+    @Override
+    public boolean isDirectBufferPooled() {
+        return false;
+    }
+
+    private ByteBuf track(ByteBuf buffer) {
+        buffers.add(buffer);
+        initialCapacities.add(buffer.capacity());
+        return buffer;
+    }
+
+    void assertAllReleased() {
+        int unreleased = 0;
+        for (ByteBuf buffer : buffers) {
+            if (buffer.refCnt() != 0) {
+                unreleased++;
+            }
+        }
+        assertEquals("Expected every buffer allocated by the proxy to be released", 0, unreleased);
+    }
+}
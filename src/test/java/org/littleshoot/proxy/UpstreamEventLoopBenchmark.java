@@ -0,0 +1,150 @@
+package org.littleshoot.proxy;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpVersion;
+import org.apache.http.HttpHost;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares request throughput when upstream connections use the separate proxy-to-server worker pool (the default)
+ * versus when they are registered with the client connection's event loop. Clients use keep-alive connections to
+ * fetch a fixed-size response from a local origin server, so the benchmark is dominated by relaying data between the
+ * client and server channels.
+ * <p>
+ * Usage: UpstreamEventLoopBenchmark [clientThreads] [seconds] [responseBytes]
+ */
+public class UpstreamEventLoopBenchmark {
+    public static void main(String[] args) throws Exception {
+        int clientThreads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int responseBytes = args.length > 2 ? Integer.parseInt(args[2]) : 16 * 1024;
+
+        NioEventLoopGroup originGroup = new NioEventLoopGroup(2);
+        try {
+            Channel origin = startOrigin(originGroup, responseBytes);
+            int originPort = ((InetSocketAddress) origin.localAddress()).getPort();
+            String url = "http://127.0.0.1:" + originPort + "/";
+
+            // warm up the JIT before measuring
+            run(false, url, clientThreads, 2);
+
+            double split = run(false, url, clientThreads, seconds);
+            double colocated = run(true, url, clientThreads, seconds);
+
+            System.out.printf("Separate proxy-to-server pool: %.0f requests/sec%n", split);
+            System.out.printf("Client event loop:             %.0f requests/sec (%.2fx)%n", colocated, colocated / split);
+        } finally {
+            originGroup.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+        }
+    }
+
+    private static double run(boolean upstreamOnClientEventLoop, final String url, int clientThreads, int seconds) throws Exception {
+        final HttpProxyServer proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withUpstreamOnClientEventLoop(upstreamOnClientEventLoop)
+                .start();
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+
+        List<Thread> clients = new ArrayList<Thread>(clientThreads);
+        for (int i = 0; i < clientThreads; i++) {
+            Thread client = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try (CloseableHttpClient httpClient = HttpClients.custom()
+                            .setProxy(new HttpHost("127.0.0.1", proxyServer.getListenAddress().getPort()))
+                            .build()) {
+                        while (running.get()) {
+                            try (CloseableHttpResponse response = httpClient.execute(new HttpGet(url))) {
+                                EntityUtils.consume(response.getEntity());
+                                requests.incrementAndGet();
+                            } catch (Exception e) {
+                                errors.incrementAndGet();
+                            }
+                        }
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                    }
+                }
+            }, "UpstreamEventLoopBenchmark-client-" + i);
+            client.start();
+            clients.add(client);
+        }
+
+        long start = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        running.set(false);
+        for (Thread client : clients) {
+            client.join();
+        }
+        long elapsedNanos = System.nanoTime() - start;
+
+        proxyServer.abort();
+
+        if (errors.get() > 0) {
+            System.out.println("Failed requests: " + errors.get());
+        }
+
+        return requests.get() / (elapsedNanos / 1e9);
+    }
+
+    /**
+     * Starts a minimal keep-alive HTTP server that answers every request with the same response body.
+     */
+    private static Channel startOrigin(NioEventLoopGroup group, int responseBytes) throws InterruptedException {
+        final byte[] body = new byte[responseBytes];
+        Arrays.fill(body, (byte) 'x');
+
+        return new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) throws Exception {
+                        ch.pipeline().addLast(new HttpServerCodec());
+                        ch.pipeline().addLast(new HttpObjectAggregator(64 * 1024));
+                        ch.pipeline().addLast(new SimpleChannelInboundHandler<HttpRequest>() {
+                            @Override
+                            protected void channelRead0(ChannelHandlerContext ctx, HttpRequest request) throws Exception {
+                                FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                                        Unpooled.wrappedBuffer(body));
+                                HttpHeaders.setContentLength(response, body.length);
+                                ctx.writeAndFlush(response);
+                            }
+                        });
+                    }
+                })
+                .bind(new InetSocketAddress("127.0.0.1", 0))
+                .sync()
+                .channel();
+    }
+}
@@ -0,0 +1,113 @@
+package org.littleshoot.proxy;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.littleshoot.proxy.test.HttpClientUtil;
+import org.mockserver.integration.ClientAndServer;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockserver.model.HttpRequest.request;
+import static org.mockserver.model.HttpResponse.response;
+
+/**
+ * Tests that upstream connections can be registered with the client connection's event loop.
+ */
+public class UpstreamOnClientEventLoopTest {
+    private ClientAndServer mockServer;
+    private int mockServerPort;
+
+    private HttpProxyServer proxyServer;
+
+    private final AtomicReference<Thread> clientThread = new AtomicReference<Thread>();
+    private final AtomicReference<Thread> serverThread = new AtomicReference<Thread>();
+
+    @Before
+    public void setUp() {
+        mockServer = new ClientAndServer(0);
+        mockServerPort = mockServer.getPort();
+
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/colocated"))
+                .respond(response()
+                                .withStatusCode(200)
+                                .withBody("colocated response")
+                );
+    }
+
+    @After
+    public void tearDown() {
+        try {
+            if (mockServer != null) {
+                mockServer.stop();
+            }
+        } finally {
+            if (proxyServer != null) {
+                proxyServer.abort();
+            }
+        }
+    }
+
+    @Test
+    public void testUpstreamChannelUsesClientEventLoop() {
+        proxyServer = bootstrapProxy()
+                .withUpstreamOnClientEventLoop(true)
+                .start();
+
+        performRequest();
+
+        assertSame("Expected the server connection to be processed on the client connection's thread", clientThread.get(), serverThread.get());
+    }
+
+    @Test
+    public void testUpstreamChannelUsesSeparatePoolByDefault() {
+        proxyServer = bootstrapProxy()
+                .start();
+
+        performRequest();
+
+        assertNotSame("Expected the server connection to be processed on a proxy-to-server worker thread", clientThread.get(), serverThread.get());
+    }
+
+    private void performRequest() {
+        org.apache.http.HttpResponse response = HttpClientUtil.performHttpGet("http://localhost:" + mockServerPort + "/colocated", proxyServer);
+        assertEquals("Expected to receive a 200 from the server", 200, response.getStatusLine().getStatusCode());
+
+        assertNotNull(clientThread.get());
+        assertNotNull(serverThread.get());
+    }
+
+    private HttpProxyServerBootstrap bootstrapProxy() {
+        return DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withFiltersSource(new HttpFiltersSourceAdapter() {
+                    @Override
+                    public HttpFilters filterRequest(HttpRequest originalRequest, ChannelHandlerContext ctx) {
+                        return new HttpFiltersAdapter(originalRequest, ctx) {
+                            @Override
+                            public HttpResponse clientToProxyRequest(HttpObject httpObject) {
+                                clientThread.set(Thread.currentThread());
+                                return null;
+                            }
+
+                            @Override
+                            public HttpObject serverToProxyResponse(HttpObject httpObject) {
+                                serverThread.set(Thread.currentThread());
+                                return httpObject;
+                            }
+                        };
+                    }
+                });
+    }
+}
@@ -0,0 +1,56 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CacheControlTest {
+    @Test
+    public void testParseDirectives() {
+        CacheControl cacheControl = CacheControl.parse(Arrays.asList("Public, MAX-AGE=60", "s-maxage=\"120\""));
+
+        assertTrue(cacheControl.has(CacheControl.PUBLIC));
+        assertEquals(60, cacheControl.getSeconds(CacheControl.MAX_AGE));
+        assertEquals(120, cacheControl.getSeconds(CacheControl.S_MAXAGE));
+        assertFalse(cacheControl.has(CacheControl.NO_STORE));
+    }
+
+    @Test
+    public void testQuotedArgumentsMayContainCommas() {
+        CacheControl cacheControl = CacheControl.parse(Collections.singletonList("no-cache=\"Set-Cookie, X-Other\", max-age=5"));
+
+        assertTrue(cacheControl.has(CacheControl.NO_CACHE));
+        assertFalse(cacheControl.has("x-other\""));
+        assertEquals(5, cacheControl.getSeconds(CacheControl.MAX_AGE));
+    }
+
+    @Test
+    public void testInvalidDeltaSeconds() {
+        CacheControl cacheControl = CacheControl.parse(Arrays.asList("max-age=abc, max-stale, s-maxage=99999999999999999999"));
+
+        assertEquals(-1, cacheControl.getSeconds(CacheControl.MAX_AGE));
+        assertTrue(cacheControl.has(CacheControl.MAX_STALE));
+        assertEquals(-1, cacheControl.getSeconds(CacheControl.MAX_STALE));
+        assertEquals(Long.MAX_VALUE, cacheControl.getSeconds(CacheControl.S_MAXAGE));
+    }
+
+    @Test
+    public void testPragmaNoCache() {
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/");
+        request.headers().set("Pragma", "no-cache");
+        assertTrue(CacheControl.forRequest(request).has(CacheControl.NO_CACHE));
+
+        // Cache-Control takes precedence over Pragma
+        request.headers().set("Cache-Control", "max-age=10");
+        assertFalse(CacheControl.forRequest(request).has(CacheControl.NO_CACHE));
+    }
+}
@@ -0,0 +1,51 @@
+package org.littleshoot.proxy.impl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+    @Test
+    public void testBucketsCoverValuesWithBoundedError() {
+        for (long nanos : new long[]{0, 1, 7, 8, 9, 15, 16, 1000, 123456789L, 1L << 39}) {
+            int bucket = LatencyHistogram.bucketFor(nanos);
+            long upperBound = LatencyHistogram.upperBound(bucket);
+            assertTrue("Expected " + nanos + " to be below the upper bound of its bucket", nanos < upperBound);
+            assertTrue("Expected " + nanos + " to be at least the upper bound of the previous bucket",
+                    bucket == 0 || nanos >= LatencyHistogram.upperBound(bucket - 1));
+            assertTrue("Expected the bucket for " + nanos + " to be within 12.5%", upperBound - 1 <= nanos + nanos / 8);
+        }
+    }
+
+    @Test
+    public void testPercentilesAndCounts() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getValueAtPercentile(50));
+
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 1000000L);
+        }
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(5050000000L, histogram.getSum());
+
+        long median = histogram.getValueAtPercentile(50);
+        assertTrue("Unexpected median " + median, median >= 50000000L && median <= 50000000L + 50000000L / 8);
+        long max = histogram.getValueAtPercentile(100);
+        assertTrue("Unexpected maximum " + max, max >= 100000000L && max <= 100000000L + 100000000L / 8);
+
+        assertEquals(0, histogram.getCountBelowPowerOfTwo(19));
+        assertEquals(100, histogram.getCountBelowPowerOfTwo(27));
+    }
+
+    @Test
+    public void testNegativeAndHugeDurationsAreClamped() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE / 2);
+
+        assertEquals(2, histogram.getCount());
+        assertEquals(1, histogram.getCountBelowPowerOfTwo(1));
+    }
+}
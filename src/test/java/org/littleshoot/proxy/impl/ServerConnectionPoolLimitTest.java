@@ -0,0 +1,79 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests that the {@link ServerConnectionPool} enforces its per-server limit when connections are released
+ * concurrently.
+ */
+public class ServerConnectionPoolLimitTest {
+    private static final int THREADS = 16;
+
+    @Test
+    public void testConcurrentReleasesRespectPerServerLimit() throws Exception {
+        final ServerConnectionPool pool = new ServerConnectionPool(new ConnectionPoolConfiguration()
+                .withMaxIdleConnectionsPerServer(2)
+                .withMaxIdleConnections(100));
+        final InetSocketAddress address = new InetSocketAddress("127.0.0.1", 80);
+
+        final List<EmbeddedChannel> channels = new ArrayList<EmbeddedChannel>();
+        for (int i = 0; i < THREADS; i++) {
+            channels.add(new EmbeddedChannel());
+        }
+
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (final EmbeddedChannel channel : channels) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        start.await();
+                        return pool.release(address, channel);
+                    }
+                }));
+            }
+            start.countDown();
+
+            int accepted = 0;
+            for (Future<Boolean> result : results) {
+                if (result.get()) {
+                    accepted++;
+                }
+            }
+
+            assertEquals("Expected the pool to accept only as many connections as the per-server limit", 2, accepted);
+            assertEquals(2, pool.getIdleConnections());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // the embedded channels only add themselves to the pool once their pending tasks run
+        for (EmbeddedChannel channel : channels) {
+            channel.runPendingTasks();
+        }
+
+        assertEquals(0, pool.getMisses());
+        for (int i = 0; i < 2; i++) {
+            assertNotNull(pool.acquire(address));
+        }
+        assertEquals("Expected the released slots to be freed when the connections are checked out", 0,
+                pool.getIdleConnections());
+        assertNull(pool.acquire(address));
+    }
+}